@@ -0,0 +1,506 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.database.Cursor;
+import android.location.Location;
+import android.net.Uri;
+import android.os.SystemClock;
+import android.util.Log;
+import android.util.LongSparseArray;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.List;
+
+/**
+ * Write-behind {@link TracksProviderUtils}. Inserted track points and track
+ * updates are kept in memory and written in a single transaction once
+ * {@link #MAX_BUFFERED_POINTS} points are buffered or the oldest change is
+ * older than {@link #MAX_BUFFER_AGE}, or when {@link #flush()} is called. The
+ * recording then wakes the storage up once per batch instead of two or three
+ * times per fix.
+ * <p>
+ * Track point ids are allocated by the {@link TracksProvider} when a point is
+ * buffered, so {@link #insertTrackPoint(Location, long)} still returns the
+ * final uri. Reads of the recording track (the track, its last track point)
+ * see the buffered changes; the other reads flush first.
+ * <p>
+ * Buffered changes are lost if the process dies before they are flushed: at
+ * most {@link #MAX_BUFFER_AGE} of recording, see {@link TrackPointLog} for a
+ * crash safe alternative.
+ */
+public class BufferedTracksProviderUtils implements TracksProviderUtils {
+
+    private static final String TAG = BufferedTracksProviderUtils.class.getSimpleName();
+
+    /**
+     * The maximum number of buffered track points.
+     */
+    static final int MAX_BUFFERED_POINTS = 100;
+
+    /**
+     * The maximum age of a buffered change, in milliseconds.
+     */
+    static final long MAX_BUFFER_AGE = 60 * 1000L;
+
+    private final TracksProviderUtils mTracksProviderUtils;
+    private final TracksProvider mTracksProvider;
+    private volatile TrackUpdateSource mTrackUpdateSource;
+
+    // Guards the buffered changes
+    private final Object mLock = new Object();
+
+    // The buffered track points, by track id
+    private final LongSparseArray<TrackPoints> mPendingTrackPoints = new LongSparseArray<TrackPoints>();
+
+    // The buffered track updates, by track id
+    private final LongSparseArray<Track> mPendingTracks = new LongSparseArray<Track>();
+
+    private int mPendingTrackPointCount = 0;
+
+    // The elapsed realtime of the oldest buffered change, -1L if none
+    private long mOldestChangeTime = -1L;
+
+    /**
+     * Constructor.
+     *
+     * @param tracksProviderUtils the tracks provider utils writing to the storage
+     * @param tracksProvider      the tracks provider, allocating the track point
+     *                            ids
+     */
+    public BufferedTracksProviderUtils(TracksProviderUtils tracksProviderUtils,
+                                       TracksProvider tracksProvider) {
+        this.mTracksProviderUtils = tracksProviderUtils;
+        this.mTracksProvider = tracksProvider;
+    }
+
+    /**
+     * Gets the tracks provider utils writing to the storage, without the
+     * buffer. For bulk writes, e.g. an import, which would otherwise hold the
+     * buffer lock, and block the recording, for a whole transaction.
+     */
+    public TracksProviderUtils getUnbufferedTracksProviderUtils() {
+        return mTracksProviderUtils;
+    }
+
+    @Override
+    public void clearTrack(Context context, long trackId) {
+        synchronized (mLock) {
+            discard(trackId);
+            mTracksProviderUtils.clearTrack(context, trackId);
+        }
+    }
+
+    @Override
+    public void deleteAllTracks(Context context) {
+        synchronized (mLock) {
+            mPendingTrackPoints.clear();
+            mPendingTracks.clear();
+            mPendingTrackPointCount = 0;
+            mOldestChangeTime = -1L;
+            mTracksProviderUtils.deleteAllTracks(context);
+        }
+    }
+
+    @Override
+    public void deleteTrack(Context context, long trackId) {
+        synchronized (mLock) {
+            discard(trackId);
+            mTracksProviderUtils.deleteTrack(context, trackId);
+        }
+    }
+
+    @Override
+    public List<Track> getAllTracks() {
+        flushTrackUpdates(-1L);
+        flush();
+        return mTracksProviderUtils.getAllTracks();
+    }
+
+    @Override
+    public long[] getAllTrackIds() {
+        return mTracksProviderUtils.getAllTrackIds();
+    }
+
+    @Override
+    public List<TrackSummary> getTrackSummaries(long afterTrackId, int limit) {
+        flushTrackUpdates(-1L);
+        flush();
+        return mTracksProviderUtils.getTrackSummaries(afterTrackId, limit);
+    }
+
+    @Override
+    public Track getLastTrack() {
+        flushTrackUpdates(-1L);
+        flush();
+        return mTracksProviderUtils.getLastTrack();
+    }
+
+    @Override
+    public Track getTrack(long trackId) {
+        flushTrackUpdates(trackId);
+        synchronized (mLock) {
+            Track track = mPendingTracks.get(trackId);
+            if (track != null) {
+                return track.copyWithoutTrackPoints();
+            }
+        }
+        return mTracksProviderUtils.getTrack(trackId);
+    }
+
+    @Override
+    public Uri insertTrack(Track track) {
+        return mTracksProviderUtils.insertTrack(track);
+    }
+
+    @Override
+    public void updateTrack(Track track) {
+        synchronized (mLock) {
+            // The caller can keep changing its track
+            mPendingTracks.put(track.getId(), track.copyWithoutTrackPoints());
+            onChange();
+        }
+    }
+
+    @Override
+    public void deleteWaypoint(Context context, long waypointId) {
+        mTracksProviderUtils.deleteWaypoint(context, waypointId);
+    }
+
+    @Override
+    public long getFirstWaypointId(long trackId) {
+        return mTracksProviderUtils.getFirstWaypointId(trackId);
+    }
+
+    @Override
+    public Waypoint getLastWaypoint(long trackId, Waypoint.WaypointType waypointType) {
+        return mTracksProviderUtils.getLastWaypoint(trackId, waypointType);
+    }
+
+    @Override
+    public int getNextWaypointNumber(long trackId, Waypoint.WaypointType waypointType) {
+        return mTracksProviderUtils.getNextWaypointNumber(trackId, waypointType);
+    }
+
+    @Override
+    public Waypoint getWaypoint(long waypointId) {
+        return mTracksProviderUtils.getWaypoint(waypointId);
+    }
+
+    @Override
+    public int getWaypointCount(long trackId) {
+        return mTracksProviderUtils.getWaypointCount(trackId);
+    }
+
+    @Override
+    public Cursor getWaypointCursor(long trackId, long minWaypointId, int maxWaypoints) {
+        return mTracksProviderUtils.getWaypointCursor(trackId, minWaypointId, maxWaypoints);
+    }
+
+    @Override
+    public Waypoint createWaypoint(Cursor cursor) {
+        return mTracksProviderUtils.createWaypoint(cursor);
+    }
+
+    @Override
+    public Uri insertWaypoint(Waypoint waypoint) {
+        return mTracksProviderUtils.insertWaypoint(waypoint);
+    }
+
+    @Override
+    public boolean updateWaypoint(Waypoint waypoint) {
+        return mTracksProviderUtils.updateWaypoint(waypoint);
+    }
+
+    @Override
+    public int bulkInsertTrackPoint(Location[] locations, int length, long trackId) {
+        // Keep the track points in order
+        flush();
+        return mTracksProviderUtils.bulkInsertTrackPoint(locations, length, trackId);
+    }
+
+    @Override
+    public int bulkInsertTrackPoints(TrackPoints trackPoints, long trackId) {
+        flush();
+        return mTracksProviderUtils.bulkInsertTrackPoints(trackPoints, trackId);
+    }
+
+    @Override
+    public int writeTrackPoints(long trackId, OutputStream outputStream) throws IOException {
+        flush();
+        return mTracksProviderUtils.writeTrackPoints(trackId, outputStream);
+    }
+
+    @Override
+    public int readTrackPoints(long trackId, InputStream inputStream) throws IOException {
+        flush();
+        return mTracksProviderUtils.readTrackPoints(trackId, inputStream);
+    }
+
+    @Override
+    public long getFirstTrackPointId(long trackId) {
+        synchronized (mLock) {
+            long trackPointId = mTracksProviderUtils.getFirstTrackPointId(trackId);
+            if (trackPointId < 0) {
+                TrackPoints trackPoints = mPendingTrackPoints.get(trackId);
+                if (trackPoints != null && !trackPoints.isEmpty()) {
+                    return trackPoints.getId(0);
+                }
+            }
+            return trackPointId;
+        }
+    }
+
+    @Override
+    public long getLastTrackPointId(long trackId) {
+        synchronized (mLock) {
+            TrackPoints trackPoints = mPendingTrackPoints.get(trackId);
+            if (trackPoints != null && !trackPoints.isEmpty()) {
+                return trackPoints.getId(trackPoints.size() - 1);
+            }
+        }
+        return mTracksProviderUtils.getLastTrackPointId(trackId);
+    }
+
+    @Override
+    public long[] getTrackIdsInBox(double south, double west, double north, double east) {
+        flush();
+        return mTracksProviderUtils.getTrackIdsInBox(south, west, north, east);
+    }
+
+    @Override
+    public int getTrackPointsInBox(double south, double west, double north, double east,
+                                   int limit, TrackPoints trackPoints) {
+        flush();
+        return mTracksProviderUtils.getTrackPointsInBox(south, west, north, east, limit,
+                trackPoints);
+    }
+
+    @Override
+    public TrackPoints getNearestTrackPoints(double latitude, double longitude, int count) {
+        flush();
+        return mTracksProviderUtils.getNearestTrackPoints(latitude, longitude, count);
+    }
+
+    @Override
+    public long seekToTime(long trackId, long time) {
+        flush();
+        return mTracksProviderUtils.seekToTime(trackId, time);
+    }
+
+    @Override
+    public LocationIterator rangeByTime(long trackId, long startTime, long endTime,
+                                        LocationFactory locationFactory) {
+        flush();
+        return mTracksProviderUtils.rangeByTime(trackId, startTime, endTime, locationFactory);
+    }
+
+    @Override
+    public Location interpolatedPositionAt(long trackId, long time) {
+        flush();
+        return mTracksProviderUtils.interpolatedPositionAt(trackId, time);
+    }
+
+    @Override
+    public long getTrackPointId(long trackId, Location location) {
+        flush();
+        return mTracksProviderUtils.getTrackPointId(trackId, location);
+    }
+
+    @Override
+    public Location getFirstValidTrackPoint(long trackId) {
+        flush();
+        return mTracksProviderUtils.getFirstValidTrackPoint(trackId);
+    }
+
+    @Override
+    public Location getLastValidTrackPoint(long trackId) {
+        synchronized (mLock) {
+            TrackPoints trackPoints = mPendingTrackPoints.get(trackId);
+            if (trackPoints != null) {
+                for (int i = trackPoints.size() - 1; i >= 0; i--) {
+                    // Skip the pause and resume separators
+                    if (Math.abs(trackPoints.getLatitude(i)) <= 90) {
+                        return trackPoints.getLocation(i, DEFAULT_LOCATION_FACTORY.createLocation());
+                    }
+                }
+            }
+        }
+        return mTracksProviderUtils.getLastValidTrackPoint(trackId);
+    }
+
+    @Override
+    public Location getLastValidTrackPoint() {
+        flush();
+        return mTracksProviderUtils.getLastValidTrackPoint();
+    }
+
+    @Override
+    public List<Segment> getSegments(long trackId) {
+        // The segments are written with the track points
+        flush();
+        return mTracksProviderUtils.getSegments(trackId);
+    }
+
+    @Override
+    public LocationIterator getTrackPointLocationIterator(long trackId, long startTrackPointId,
+                                                          boolean descending,
+                                                          LocationFactory locationFactory) {
+        flush();
+        return mTracksProviderUtils.getTrackPointLocationIterator(trackId, startTrackPointId,
+                descending, locationFactory);
+    }
+
+    @Override
+    public Uri insertTrackPoint(Location location, long trackId) {
+        synchronized (mLock) {
+            TrackPoints trackPoints = mPendingTrackPoints.get(trackId);
+            if (trackPoints == null) {
+                trackPoints = new TrackPoints(MAX_BUFFERED_POINTS);
+                mPendingTrackPoints.put(trackId, trackPoints);
+            }
+            long trackPointId = mTracksProvider.allocateTrackPointId();
+            trackPoints.add(trackPointId, location);
+            mPendingTrackPointCount++;
+            onChange();
+            return ContentUris.withAppendedId(TrackPointsColumns.CONTENT_URI, trackPointId);
+        }
+    }
+
+    @Override
+    public void flush() {
+        synchronized (mLock) {
+            if (mOldestChangeTime < 0) {
+                return;
+            }
+            // On a rollback the tracks provider utils drop their caches, and the changes stay buffered
+            mTracksProviderUtils.runInTransaction(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; i < mPendingTrackPoints.size(); i++) {
+                        TrackPoints trackPoints = mPendingTrackPoints.valueAt(i);
+                        if (!trackPoints.isEmpty()) {
+                            mTracksProviderUtils.bulkInsertTrackPoints(trackPoints,
+                                    mPendingTrackPoints.keyAt(i));
+                        }
+                    }
+                    for (int i = 0; i < mPendingTracks.size(); i++) {
+                        mTracksProviderUtils.updateTrack(mPendingTracks.valueAt(i));
+                    }
+                }
+            });
+            Log.d(TAG, "Flushed " + mPendingTrackPointCount + " track points and "
+                    + mPendingTracks.size() + " tracks");
+
+            clearPending();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * Holds the buffer lock for the whole task, blocking the recording: keep
+     * the task short, and do bulk writes with
+     * {@link #getUnbufferedTracksProviderUtils()}.
+     */
+    @Override
+    public void runInTransaction(final Runnable runnable) {
+        // Locked first, as flush does, so the buffer and the database are always locked in order
+        synchronized (mLock) {
+            flush();
+            try {
+                mTracksProviderUtils.runInTransaction(new Runnable() {
+                    @Override
+                    public void run() {
+                        runnable.run();
+
+                        // The changes buffered by the task are committed with it
+                        flush();
+                    }
+                });
+            } catch (RuntimeException e) {
+                // And rolled back with it
+                clearPending();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void setTrackUpdateSource(TrackUpdateSource trackUpdateSource) {
+        // Asked here, before the buffered changes are read
+        mTrackUpdateSource = trackUpdateSource;
+    }
+
+    /**
+     * Asks the track update source, if any, to write the changes of a track.
+     *
+     * @param trackId the track id, -1L for all the tracks
+     */
+    private void flushTrackUpdates(long trackId) {
+        TrackUpdateSource trackUpdateSource = mTrackUpdateSource;
+        if (trackUpdateSource != null) {
+            trackUpdateSource.flushTrackUpdates(trackId);
+        }
+    }
+
+    /**
+     * Records a change, flushing if a threshold is reached. Must be called
+     * holding {@link #mLock}.
+     */
+    private void onChange() {
+        long now = SystemClock.elapsedRealtime();
+        if (mOldestChangeTime < 0) {
+            mOldestChangeTime = now;
+        }
+        if (mPendingTrackPointCount >= MAX_BUFFERED_POINTS
+                || now - mOldestChangeTime >= MAX_BUFFER_AGE) {
+            flush();
+        }
+    }
+
+    /**
+     * Drops all the buffered changes. Must be called holding {@link #mLock}.
+     */
+    private void clearPending() {
+        // Keep the containers of the tracks being recorded
+        for (int i = 0; i < mPendingTrackPoints.size(); i++) {
+            mPendingTrackPoints.valueAt(i).clear();
+        }
+        mPendingTracks.clear();
+        mPendingTrackPointCount = 0;
+        mOldestChangeTime = -1L;
+    }
+
+    /**
+     * Drops the buffered changes of a track. Must be called holding
+     * {@link #mLock}.
+     *
+     * @param trackId the track id
+     */
+    private void discard(long trackId) {
+        TrackPoints trackPoints = mPendingTrackPoints.get(trackId);
+        if (trackPoints != null) {
+            mPendingTrackPointCount -= trackPoints.size();
+            mPendingTrackPoints.remove(trackId);
+        }
+        mPendingTracks.remove(trackId);
+    }
+}
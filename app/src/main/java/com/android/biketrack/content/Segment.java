@@ -0,0 +1,97 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+/**
+ * A segment of a track: a run of valid track points, ended by a pause or by a
+ * segment break point (see
+ * {@link com.android.biketrack.service.location.TrackRecordingService#PAUSE_LATITUDE}).
+ * Segments are maintained by {@link TracksProvider} as the track points are
+ * inserted, so the readers don't have to scan the points to find them.
+ */
+public class Segment {
+
+    private final long id;
+    private final long trackId;
+    private final long startId;
+    private final long stopId;
+    private final long startTime;
+    private final long stopTime;
+    private final int numberOfPoints;
+    private final double distance;
+    private final float maxSpeed;
+
+    Segment(long id, long trackId, long startId, long stopId, long startTime, long stopTime,
+            int numberOfPoints, double distance, float maxSpeed) {
+        this.id = id;
+        this.trackId = trackId;
+        this.startId = startId;
+        this.stopId = stopId;
+        this.startTime = startTime;
+        this.stopTime = stopTime;
+        this.numberOfPoints = numberOfPoints;
+        this.distance = distance;
+        this.maxSpeed = maxSpeed;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public long getTrackId() {
+        return trackId;
+    }
+
+    /**
+     * Gets the id of the first track point of the segment.
+     */
+    public long getStartId() {
+        return startId;
+    }
+
+    /**
+     * Gets the id of the last track point of the segment.
+     */
+    public long getStopId() {
+        return stopId;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getStopTime() {
+        return stopTime;
+    }
+
+    public int getNumberOfPoints() {
+        return numberOfPoints;
+    }
+
+    /**
+     * Gets the distance between the points of the segment, in meters.
+     */
+    public double getDistance() {
+        return distance;
+    }
+
+    /**
+     * Gets the maximum speed of the points of the segment, 0 if unknown.
+     */
+    public float getMaxSpeed() {
+        return maxSpeed;
+    }
+}
@@ -0,0 +1,163 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.content.ContentValues;
+import android.location.Location;
+
+/**
+ * Builds the last segment of a track from its track points, in insertion
+ * order. A valid point opens a segment or extends the open one; a pause or
+ * segment break point (latitude above 90) closes it. Used by
+ * {@link TracksProvider}, which writes the segment row.
+ */
+class SegmentBuilder {
+
+    private final long trackId;
+
+    // The segment row id, -1L if not written yet
+    private long segmentId = -1L;
+    private boolean open = false;
+    private boolean dirty = false;
+
+    private long startId;
+    private long stopId;
+    private long startTime;
+    private long stopTime;
+    private int numberOfPoints;
+    private double distance;
+    private float maxSpeed;
+
+    // The last point of the segment
+    private double lastLatitude;
+    private double lastLongitude;
+
+    private final float[] results = new float[1];
+
+    SegmentBuilder(long trackId) {
+        this.trackId = trackId;
+    }
+
+    /**
+     * Restores the open segment of a track, as written in the database.
+     *
+     * @param segment       the segment
+     * @param lastLatitude  the latitude of its last point
+     * @param lastLongitude the longitude of its last point
+     */
+    void restore(Segment segment, double lastLatitude, double lastLongitude) {
+        segmentId = segment.getId();
+        open = true;
+        dirty = false;
+        startId = segment.getStartId();
+        stopId = segment.getStopId();
+        startTime = segment.getStartTime();
+        stopTime = segment.getStopTime();
+        numberOfPoints = segment.getNumberOfPoints();
+        distance = segment.getDistance();
+        maxSpeed = segment.getMaxSpeed();
+        this.lastLatitude = lastLatitude;
+        this.lastLongitude = lastLongitude;
+    }
+
+    long getTrackId() {
+        return trackId;
+    }
+
+    long getSegmentId() {
+        return segmentId;
+    }
+
+    void setSegmentId(long segmentId) {
+        this.segmentId = segmentId;
+    }
+
+    /**
+     * Returns true if the segment changed since it was last written.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setWritten() {
+        dirty = false;
+    }
+
+    /**
+     * Returns true if adding a point would close the open segment: it must be
+     * written first.
+     *
+     * @param latitude the latitude of the point
+     */
+    boolean closes(double latitude) {
+        return open && Math.abs(latitude) > 90;
+    }
+
+    /**
+     * Adds a track point.
+     *
+     * @param trackPointId the track point id
+     * @param latitude     the latitude
+     * @param longitude    the longitude
+     * @param time         the time
+     * @param speed        the speed, NaN if none
+     */
+    void add(long trackPointId, double latitude, double longitude, long time, float speed) {
+        if (Math.abs(latitude) > 90) {
+            // Pause or segment break, the next valid point starts a new segment
+            open = false;
+            segmentId = -1L;
+            dirty = false;
+            return;
+        }
+        if (!open) {
+            open = true;
+            startId = trackPointId;
+            startTime = time;
+            numberOfPoints = 0;
+            distance = 0.0;
+            maxSpeed = 0f;
+        } else {
+            Location.distanceBetween(lastLatitude, lastLongitude, latitude, longitude, results);
+            distance += results[0];
+        }
+        stopId = trackPointId;
+        stopTime = time;
+        numberOfPoints++;
+        if (!Float.isNaN(speed) && speed > maxSpeed) {
+            maxSpeed = speed;
+        }
+        lastLatitude = latitude;
+        lastLongitude = longitude;
+        dirty = true;
+    }
+
+    /**
+     * Creates the {@link ContentValues} of the segment row.
+     */
+    ContentValues createContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(SegmentsColumns.TRACKID, trackId);
+        values.put(SegmentsColumns.STARTID, startId);
+        values.put(SegmentsColumns.STOPID, stopId);
+        values.put(SegmentsColumns.STARTTIME, startTime);
+        values.put(SegmentsColumns.STOPTIME, stopTime);
+        values.put(SegmentsColumns.NUMPOINTS, numberOfPoints);
+        values.put(SegmentsColumns.DISTANCE, distance);
+        values.put(SegmentsColumns.MAXSPEED, maxSpeed);
+        return values;
+    }
+}
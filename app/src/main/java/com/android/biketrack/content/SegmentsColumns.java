@@ -0,0 +1,64 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Constants for the segments table. A segment is a run of valid track points
+ * between two pause or segment break points, see {@link Segment}.
+ */
+public interface SegmentsColumns extends BaseColumns {
+
+    public static final String TABLE_NAME = "segments";
+
+    /**
+     * Segments provider uri.
+     */
+    public static final Uri CONTENT_URI = Uri.parse(
+            "content://" + TracksProviderUtils.AUTHORITY + "/" + TABLE_NAME);
+
+    /**
+     * Segment id sort order, which is also the track order.
+     */
+    public static final String DEFAULT_SORT_ORDER = _ID;
+
+    // Columns
+    public static final String TRACKID = "trackid"; // track id
+    public static final String STARTID = "startid"; // first track point id
+    public static final String STOPID = "stopid"; // last track point id
+    public static final String STARTTIME = "starttime"; // first track point time
+    public static final String STOPTIME = "stoptime"; // last track point time
+    public static final String NUMPOINTS = "numpoints"; // number of track points
+    public static final String DISTANCE = "distance"; // distance, in meters
+    public static final String MAXSPEED = "maxspeed"; // maximum speed
+
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + _ID + " INTEGER PRIMARY KEY, "
+            + TRACKID + " INTEGER NOT NULL, "
+            + STARTID + " INTEGER, "
+            + STOPID + " INTEGER, "
+            + STARTTIME + " INTEGER, "
+            + STOPTIME + " INTEGER, "
+            + NUMPOINTS + " INTEGER, "
+            + DISTANCE + " FLOAT, "
+            + MAXSPEED + " FLOAT"
+            + ");";
+
+    public static final String CREATE_TRACKID_INDEX = "CREATE INDEX "
+            + TABLE_NAME + "_" + TRACKID + "_index ON " + TABLE_NAME + "(" + TRACKID + ");";
+}
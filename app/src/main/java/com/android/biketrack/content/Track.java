@@ -17,12 +17,15 @@
 package com.android.biketrack.content;
 
 import android.location.Location;
+import android.os.BadParcelableException;
 import android.os.Parcel;
 import android.os.Parcelable;
 
 import com.android.biketrack.stats.TripStatistics;
 
-import java.util.ArrayList;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 
 /**
  * A track.
@@ -53,7 +56,10 @@ public class Track implements Parcelable {
     private TripStatistics tripStatistics = new TripStatistics();
 
     // Location points (which may not have been loaded)
-    private ArrayList<Location> locations = new ArrayList<Location>();
+    private TrackPoints trackPoints = new TrackPoints();
+
+    // True to write the loaded points to a parcel, see setParcelTrackPoints
+    private boolean parcelTrackPoints = false;
 
     public Track() {
     }
@@ -73,11 +79,23 @@ public class Track implements Parcelable {
         sharedOwner = in.readString();
 
         ClassLoader classLoader = getClass().getClassLoader();
-        //tripStatistics = in.readParcelable(classLoader);
+        tripStatistics = in.readParcelable(classLoader);
+        if (tripStatistics == null) {
+            tripStatistics = new TripStatistics();
+        }
 
-        for (int i = 0; i < numberOfPoints; ++i) {
-            Location location = in.readParcelable(classLoader);
-            locations.add(location);
+        byte[] blob = in.createByteArray();
+        if (blob != null) {
+            parcelTrackPoints = true;
+            try {
+                TrackPointCodec.Decoder decoder = new TrackPointCodec.Decoder(
+                        new ByteArrayInputStream(blob));
+                while (decoder.read(trackPoints)) {
+                    // Keep reading
+                }
+            } catch (IOException e) {
+                throw new BadParcelableException(e);
+            }
         }
     }
 
@@ -101,9 +119,30 @@ public class Track implements Parcelable {
         dest.writeByte((byte) (sharedWithMe ? 1 : 0));
         dest.writeString(sharedOwner);
 
-        //dest.writeParcelable(tripStatistics, 0);
-        for (int i = 0; i < numberOfPoints; ++i) {
-            dest.writeParcelable(locations.get(i), 0);
+        dest.writeParcelable(tripStatistics, 0);
+
+        /*
+         * By default only the track id is sent, as a handle to the points in the
+         * store: a long track would exceed the Binder transaction limit. If asked,
+         * the loaded points are sent as one encoded blob.
+         */
+        if (parcelTrackPoints) {
+            ByteArrayOutputStream outputStream = new ByteArrayOutputStream(
+                    16 * trackPoints.size() + 8);
+            try {
+                TrackPointCodec.Encoder encoder = new TrackPointCodec.Encoder(outputStream, false,
+                        true);
+                for (int i = 0; i < trackPoints.size(); i++) {
+                    encoder.write(trackPoints, i);
+                }
+                encoder.finish();
+            } catch (IOException e) {
+                // Not thrown by a ByteArrayOutputStream
+                throw new IllegalStateException(e);
+            }
+            dest.writeByteArray(outputStream.toByteArray());
+        } else {
+            dest.writeByteArray(null);
         }
     }
 
@@ -223,16 +262,87 @@ public class Track implements Parcelable {
         this.tripStatistics = tripStatistics;
     }
 
+    /**
+     * Adds a location to the loaded track points.
+     *
+     * @param location the location
+     * @return the index of the added point
+     */
     public int addLocation(Location location) {
-        locations.add(location);
-        return locations.size() - 1;
+        return trackPoints.add(-1L, location);
+    }
+
+    public TrackPoints getTrackPoints() {
+        return trackPoints;
+    }
+
+    public void setTrackPoints(TrackPoints trackPoints) {
+        this.trackPoints = trackPoints;
     }
 
-    public ArrayList<Location> getLocations() {
-        return locations;
+    /**
+     * Sets whether {@link #writeToParcel(Parcel, int)} writes the loaded track
+     * points, as a compact blob without their ids. Otherwise only the track is
+     * written and the receiver loads the points with
+     * {@link #loadTrackPoints(TracksProviderUtils)}. Defaults to false.
+     *
+     * @param parcelTrackPoints true to write the loaded track points
+     */
+    public void setParcelTrackPoints(boolean parcelTrackPoints) {
+        this.parcelTrackPoints = parcelTrackPoints;
     }
 
-    public void setLocations(ArrayList<Location> locations) {
-        this.locations = locations;
+    /**
+     * Gets the track points, loading them from the store if they were not
+     * loaded nor received in the parcel.
+     *
+     * @param tracksProviderUtils the tracks provider utils
+     * @return the track points
+     */
+    public TrackPoints loadTrackPoints(TracksProviderUtils tracksProviderUtils) {
+        if (!trackPoints.isEmpty() || parcelTrackPoints || id < 0) {
+            return trackPoints;
+        }
+        final Location location = TracksProviderUtils.DEFAULT_LOCATION_FACTORY.createLocation();
+        TracksProviderUtils.LocationIterator locationIterator =
+                tracksProviderUtils.getTrackPointLocationIterator(id, -1L, false,
+                        new TracksProviderUtils.LocationFactory() {
+                            @Override
+                            public Location createLocation() {
+                                return location;
+                            }
+                        });
+        try {
+            trackPoints.ensureCapacity(numberOfPoints);
+            while (locationIterator.hasNext()) {
+                Location next = locationIterator.next();
+                trackPoints.add(locationIterator.getLocationId(), next);
+            }
+        } finally {
+            locationIterator.close();
+        }
+        return trackPoints;
+    }
+
+    /**
+     * Creates a copy of the track and of its trip statistics, without the loaded
+     * track points.
+     */
+    public Track copyWithoutTrackPoints() {
+        Track track = new Track();
+        track.id = id;
+        track.name = name;
+        track.description = description;
+        track.category = category;
+        track.startId = startId;
+        track.stopId = stopId;
+        track.numberOfPoints = numberOfPoints;
+        track.icon = icon;
+        track.driveId = driveId;
+        track.modifiedTime = modifiedTime;
+        track.sharedWithMe = sharedWithMe;
+        track.sharedOwner = sharedOwner;
+        track.tripStatistics = new TripStatistics(tripStatistics);
+        return track;
     }
 }
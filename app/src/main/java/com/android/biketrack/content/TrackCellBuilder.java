@@ -0,0 +1,152 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.content.ContentValues;
+
+/**
+ * Builds the last cell run of a track from its track points, in insertion
+ * order, see {@link TrackCellsColumns}. A valid point in the cell of the run
+ * extends it, a valid point in another cell starts a new run. Pause and
+ * segment break points are skipped. Used by {@link TracksProvider}, which
+ * writes the rows.
+ */
+class TrackCellBuilder {
+
+    /**
+     * The cell size, in degrees: about 1 km of latitude.
+     */
+    static final double CELL_SIZE = 0.01;
+
+    // The number of cells of a latitude band
+    private static final long LONGITUDE_CELLS = Math.round(360 / CELL_SIZE);
+
+    private final long trackId;
+
+    // The row id, -1L if not written yet
+    private long rowId = -1L;
+    private long cell = -1L;
+    private long startId;
+    private long stopId;
+    private boolean dirty = false;
+
+    TrackCellBuilder(long trackId) {
+        this.trackId = trackId;
+    }
+
+    /**
+     * Gets the latitude band of a latitude.
+     */
+    static long getLatitudeIndex(double latitude) {
+        return (long) Math.floor((latitude + 90) / CELL_SIZE);
+    }
+
+    /**
+     * Gets the longitude column of a longitude.
+     */
+    static long getLongitudeIndex(double longitude) {
+        return Math.min((long) Math.floor((longitude + 180) / CELL_SIZE), LONGITUDE_CELLS - 1);
+    }
+
+    /**
+     * Gets the cell number of a latitude band and a longitude column.
+     */
+    static long getCell(long latitudeIndex, long longitudeIndex) {
+        return latitudeIndex * LONGITUDE_CELLS + longitudeIndex;
+    }
+
+    /**
+     * Gets the cell number of a position.
+     */
+    static long getCell(double latitude, double longitude) {
+        return getCell(getLatitudeIndex(latitude), getLongitudeIndex(longitude));
+    }
+
+    /**
+     * Restores the last run of a track, as written in the database.
+     */
+    void restore(long rowId, long cell, long startId, long stopId) {
+        this.rowId = rowId;
+        this.cell = cell;
+        this.startId = startId;
+        this.stopId = stopId;
+        dirty = false;
+    }
+
+    long getTrackId() {
+        return trackId;
+    }
+
+    long getRowId() {
+        return rowId;
+    }
+
+    void setRowId(long rowId) {
+        this.rowId = rowId;
+    }
+
+    /**
+     * Returns true if the run changed since it was last written.
+     */
+    boolean isDirty() {
+        return dirty;
+    }
+
+    void setWritten() {
+        dirty = false;
+    }
+
+    /**
+     * Returns true if adding a point would start a new run: the current one
+     * must be written first.
+     */
+    boolean starts(double latitude, double longitude) {
+        return dirty && Math.abs(latitude) <= 90 && getCell(latitude, longitude) != cell;
+    }
+
+    /**
+     * Adds a track point.
+     *
+     * @param trackPointId the track point id
+     * @param latitude     the latitude
+     * @param longitude    the longitude
+     */
+    void add(long trackPointId, double latitude, double longitude) {
+        if (Math.abs(latitude) > 90) {
+            return;
+        }
+        long pointCell = getCell(latitude, longitude);
+        if (pointCell != cell) {
+            rowId = -1L;
+            cell = pointCell;
+            startId = trackPointId;
+        }
+        stopId = trackPointId;
+        dirty = true;
+    }
+
+    /**
+     * Creates the {@link ContentValues} of the run row.
+     */
+    ContentValues createContentValues() {
+        ContentValues values = new ContentValues();
+        values.put(TrackCellsColumns.CELL, cell);
+        values.put(TrackCellsColumns.TRACKID, trackId);
+        values.put(TrackCellsColumns.STARTID, startId);
+        values.put(TrackCellsColumns.STOPID, stopId);
+        return values;
+    }
+}
@@ -0,0 +1,52 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.provider.BaseColumns;
+
+/**
+ * Constants for the track cells table, the spatial index of the track points.
+ * <p>
+ * The world is divided in a grid of cells of {@link TrackCellBuilder#CELL_SIZE}
+ * degrees. Each row is a run of consecutive track points of a track within a
+ * cell, as a range of track point ids: a bike ride crosses a cell in a few
+ * minutes, so a row covers tens of points. The cells are numbered row-major,
+ * so the cells of a latitude band in a longitude range are a range of cells.
+ */
+public interface TrackCellsColumns extends BaseColumns {
+
+    public static final String TABLE_NAME = "trackcells";
+
+    // Columns
+    public static final String CELL = "cell"; // cell number
+    public static final String TRACKID = "trackid"; // track id
+    public static final String STARTID = "startid"; // first track point id
+    public static final String STOPID = "stopid"; // last track point id
+
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + _ID + " INTEGER PRIMARY KEY, "
+            + CELL + " INTEGER NOT NULL, "
+            + TRACKID + " INTEGER NOT NULL, "
+            + STARTID + " INTEGER, "
+            + STOPID + " INTEGER"
+            + ");";
+
+    public static final String CREATE_CELL_INDEX = "CREATE INDEX "
+            + TABLE_NAME + "_" + CELL + "_index ON " + TABLE_NAME + "(" + CELL + ");";
+
+    public static final String CREATE_TRACKID_INDEX = "CREATE INDEX "
+            + TABLE_NAME + "_" + TRACKID + "_index ON " + TABLE_NAME + "(" + TRACKID + ");";
+}
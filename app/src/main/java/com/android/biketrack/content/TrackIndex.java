@@ -0,0 +1,156 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.util.LongSparseArray;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * In memory index of the tracks table, by track id. The ids are allocated by
+ * SQLite ({@code AUTOINCREMENT}), so they are never reused and a new track
+ * always gets the largest id: the index stays sorted by appending.
+ * <p>
+ * The index is loaded from the database on the first lookup, then kept up to
+ * date by the writes. As in {@link TrackTailCache}, loading runs without
+ * holding the lock and is dropped if the index changed meanwhile.
+ * <p>
+ * The tracks are copied in and out, so the callers can keep changing their
+ * tracks. Track points are never indexed.
+ */
+class TrackIndex {
+
+    private final LongSparseArray<Track> tracks = new LongSparseArray<Track>();
+    private boolean loaded = false;
+
+    // Incremented by every change, see load
+    private int modCount = 0;
+
+    /**
+     * Returns true if the index is loaded. The lookups must not be called
+     * otherwise.
+     */
+    synchronized boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Gets the modification count, to be passed to {@link #load(List, int)}.
+     */
+    synchronized int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Loads the index.
+     *
+     * @param allTracks    all the tracks, read from the database
+     * @param readModCount the modification count before reading the database
+     */
+    synchronized void load(List<Track> allTracks, int readModCount) {
+        if (readModCount != modCount) {
+            return;
+        }
+        tracks.clear();
+        for (Track track : allTracks) {
+            tracks.put(track.getId(), track.copyWithoutTrackPoints());
+        }
+        loaded = true;
+    }
+
+    /**
+     * Gets a copy of a track, null if not found.
+     *
+     * @param trackId the track id
+     */
+    synchronized Track get(long trackId) {
+        Track track = tracks.get(trackId);
+        return track != null ? track.copyWithoutTrackPoints() : null;
+    }
+
+    /**
+     * Gets a copy of the track with the largest id, null if none.
+     */
+    synchronized Track getLast() {
+        int size = tracks.size();
+        return size > 0 ? tracks.valueAt(size - 1).copyWithoutTrackPoints() : null;
+    }
+
+    /**
+     * Gets copies of all the tracks, by increasing id.
+     */
+    synchronized List<Track> getAll() {
+        int size = tracks.size();
+        List<Track> allTracks = new ArrayList<Track>(size);
+        for (int i = 0; i < size; i++) {
+            allTracks.add(tracks.valueAt(i).copyWithoutTrackPoints());
+        }
+        return allTracks;
+    }
+
+    /**
+     * Gets all the track ids, by increasing id.
+     */
+    synchronized long[] getIds() {
+        int size = tracks.size();
+        long[] ids = new long[size];
+        for (int i = 0; i < size; i++) {
+            ids[i] = tracks.keyAt(i);
+        }
+        return ids;
+    }
+
+    /**
+     * Puts a track, after it is inserted or updated.
+     *
+     * @param track the track, with its id
+     */
+    synchronized void put(Track track) {
+        modCount++;
+        if (loaded) {
+            tracks.put(track.getId(), track.copyWithoutTrackPoints());
+        }
+    }
+
+    /**
+     * Removes a track, after it is deleted.
+     *
+     * @param trackId the track id
+     */
+    synchronized void remove(long trackId) {
+        modCount++;
+        tracks.remove(trackId);
+    }
+
+    /**
+     * Unloads the index, e.g. after a rolled back transaction, so it is read
+     * again from the database.
+     */
+    synchronized void invalidate() {
+        modCount++;
+        tracks.clear();
+        loaded = false;
+    }
+
+    /**
+     * Removes all the tracks, after they are deleted.
+     */
+    synchronized void removeAll() {
+        modCount++;
+        tracks.clear();
+    }
+}
@@ -31,12 +31,21 @@ public class TrackLocation extends Location {
   private int id = -1;
   private Sensor.SensorDataSet sensorDataSet = null;
 
+  // The coordinates before smoothing, NaN if the location was not smoothed
+  private double rawLatitude = Double.NaN;
+  private double rawLongitude = Double.NaN;
+
   /**
    * The id of this location from the provider.
    */
   public TrackLocation(Location location, Sensor.SensorDataSet sd) {
     super(location);
     this.sensorDataSet = sd;
+    if (location instanceof TrackLocation) {
+      TrackLocation trackLocation = (TrackLocation) location;
+      rawLatitude = trackLocation.rawLatitude;
+      rawLongitude = trackLocation.rawLongitude;
+    }
   }
 
   public TrackLocation(String provider) {
@@ -58,10 +67,40 @@ public class TrackLocation extends Location {
   public void setId(int id) {
     this.id = id;
   }
+
+  /**
+   * Returns true if the location was smoothed and has the coordinates of the
+   * original fix.
+   */
+  public boolean hasRawCoordinates() {
+    return !Double.isNaN(rawLatitude);
+  }
+
+  public double getRawLatitude() {
+    return rawLatitude;
+  }
+
+  public double getRawLongitude() {
+    return rawLongitude;
+  }
+
+  /**
+   * Sets the coordinates of the original fix, before smoothing.
+   */
+  public void setRawCoordinates(double latitude, double longitude) {
+    rawLatitude = latitude;
+    rawLongitude = longitude;
+  }
+
+  public void removeRawCoordinates() {
+    rawLatitude = Double.NaN;
+    rawLongitude = Double.NaN;
+  }
   
   public void reset() {
     super.reset();
     sensorDataSet = null;
     id = -1;
+    removeRawCoordinates();
   }
 }
@@ -0,0 +1,414 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.location.Location;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compact streaming encoding of track points.
+ * <p>
+ * Coordinates are E7 fixed-point (about 1 cm), written as the zig-zag varint
+ * delta from the previous point. Times are written as the zig-zag varint delta
+ * of the previous delta, which is 0 for a steady fix rate. Altitudes are
+ * decimeters, delta encoded as well. Consecutive fixes of a bike ride differ by
+ * a few meters, so most fields take a single byte.
+ * <p>
+ * Accuracy and speed can optionally be quantized and bit-packed in a single
+ * varint (decimeters and centimeters/second), otherwise they are written as
+ * raw floats.
+ * <p>
+ * The raw coordinates of the smoothed points, see
+ * {@link TrackLocation#hasRawCoordinates()}, can optionally be written too, as
+ * the zig-zag varint delta from the smoothed coordinates of the point.
+ * <p>
+ * Each point starts with a byte of flags telling which optional fields it has.
+ * The stream of points ends with {@link #END_OF_POINTS}, so it can be embedded
+ * in a larger stream. Neither side buffers points: wrap the streams in
+ * buffered streams.
+ */
+public class TrackPointCodec {
+
+    private static final int VERSION = 2;
+
+    // Version 1 streams don't have raw coordinates
+    private static final int VERSION_1 = 1;
+
+    // Stream flags
+    private static final int FLAG_PACKED = 0x01;
+    private static final int FLAG_RAW_COORDINATES = 0x02;
+
+    // Point flags
+    private static final int HAS_ALTITUDE = 0x01;
+    private static final int HAS_ACCURACY = 0x02;
+    private static final int HAS_SPEED = 0x04;
+    private static final int HAS_BEARING = 0x08;
+    private static final int HAS_RAW_COORDINATES = 0x10;
+    private static final int END_OF_POINTS = 0x80;
+
+    private static final double E7 = 1E7;
+
+    // Packed accuracy, in decimeters
+    private static final int ACCURACY_BITS = 15;
+    private static final int ACCURACY_MAX = (1 << ACCURACY_BITS) - 1;
+
+    // Packed speed, in centimeters/second
+    private static final int SPEED_MAX = (1 << 16) - 1;
+
+    private TrackPointCodec() {
+    }
+
+    /**
+     * Encodes track points to an {@link OutputStream}.
+     */
+    public static class Encoder {
+
+        private final OutputStream outputStream;
+        private final boolean packed;
+        private final boolean rawCoordinates;
+
+        // The previous point
+        private int latitudeE7;
+        private int longitudeE7;
+        private long time;
+        private long timeDelta;
+        private int altitudeDm;
+
+        private int count = 0;
+
+        /**
+         * Constructor. Writes the stream header, without raw coordinates.
+         *
+         * @param outputStream         the output stream
+         * @param packAccuracyAndSpeed true to quantize and bit-pack accuracy and
+         *                             speed
+         */
+        public Encoder(OutputStream outputStream, boolean packAccuracyAndSpeed) throws IOException {
+            this(outputStream, packAccuracyAndSpeed, false);
+        }
+
+        /**
+         * Constructor. Writes the stream header.
+         *
+         * @param outputStream         the output stream
+         * @param packAccuracyAndSpeed true to quantize and bit-pack accuracy and
+         *                             speed
+         * @param rawCoordinates       true to write the raw coordinates of the
+         *                             smoothed points
+         */
+        public Encoder(OutputStream outputStream, boolean packAccuracyAndSpeed,
+                       boolean rawCoordinates) throws IOException {
+            this.outputStream = outputStream;
+            this.packed = packAccuracyAndSpeed;
+            this.rawCoordinates = rawCoordinates;
+            outputStream.write(VERSION);
+            outputStream.write((packed ? FLAG_PACKED : 0)
+                    | (rawCoordinates ? FLAG_RAW_COORDINATES : 0));
+        }
+
+        /**
+         * Gets the number of encoded points.
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Encodes a point of a columnar container.
+         *
+         * @param trackPoints the track points
+         * @param index       the point index
+         */
+        public void write(TrackPoints trackPoints, int index) throws IOException {
+            write(trackPoints.getLatitude(index), trackPoints.getLongitude(index),
+                    trackPoints.getTime(index), trackPoints.getAltitude(index),
+                    trackPoints.getAccuracy(index), trackPoints.getSpeed(index),
+                    trackPoints.getBearing(index), trackPoints.getRawLatitude(index),
+                    trackPoints.getRawLongitude(index));
+        }
+
+        /**
+         * Encodes a location.
+         *
+         * @param location the location
+         */
+        public void write(Location location) throws IOException {
+            TrackLocation trackLocation = location instanceof TrackLocation
+                    && ((TrackLocation) location).hasRawCoordinates()
+                    ? (TrackLocation) location : null;
+            write(location.getLatitude(), location.getLongitude(), location.getTime(),
+                    location.hasAltitude() ? (float) location.getAltitude() : Float.NaN,
+                    location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+                    location.hasSpeed() ? location.getSpeed() : Float.NaN,
+                    location.hasBearing() ? location.getBearing() : Float.NaN,
+                    trackLocation != null ? trackLocation.getRawLatitude() : Double.NaN,
+                    trackLocation != null ? trackLocation.getRawLongitude() : Double.NaN);
+        }
+
+        /**
+         * Encodes a point without raw coordinates. NaN optional values are not
+         * written.
+         */
+        public void write(double latitude, double longitude, long time, float altitude,
+                          float accuracy, float speed, float bearing) throws IOException {
+            write(latitude, longitude, time, altitude, accuracy, speed, bearing, Double.NaN,
+                    Double.NaN);
+        }
+
+        /**
+         * Encodes a point. NaN optional values are not written, nor the raw
+         * coordinates if the stream doesn't have them.
+         */
+        public void write(double latitude, double longitude, long time, float altitude,
+                          float accuracy, float speed, float bearing, double rawLatitude,
+                          double rawLongitude) throws IOException {
+            int flags = 0;
+            if (!Float.isNaN(altitude)) {
+                flags |= HAS_ALTITUDE;
+            }
+            if (!Float.isNaN(accuracy)) {
+                flags |= HAS_ACCURACY;
+            }
+            if (!Float.isNaN(speed)) {
+                flags |= HAS_SPEED;
+            }
+            if (!Float.isNaN(bearing)) {
+                flags |= HAS_BEARING;
+            }
+            if (rawCoordinates && !Double.isNaN(rawLatitude) && !Double.isNaN(rawLongitude)) {
+                flags |= HAS_RAW_COORDINATES;
+            }
+            outputStream.write(flags);
+
+            int newLatitudeE7 = (int) Math.round(latitude * E7);
+            int newLongitudeE7 = (int) Math.round(longitude * E7);
+            writeSignedVarint(outputStream, newLatitudeE7 - latitudeE7);
+            writeSignedVarint(outputStream, newLongitudeE7 - longitudeE7);
+            latitudeE7 = newLatitudeE7;
+            longitudeE7 = newLongitudeE7;
+
+            long newTimeDelta = time - this.time;
+            writeSignedVarint(outputStream, newTimeDelta - timeDelta);
+            this.time = time;
+            timeDelta = newTimeDelta;
+
+            if ((flags & HAS_ALTITUDE) != 0) {
+                int newAltitudeDm = Math.round(altitude * 10);
+                writeSignedVarint(outputStream, newAltitudeDm - altitudeDm);
+                altitudeDm = newAltitudeDm;
+            }
+
+            if (packed) {
+                if ((flags & (HAS_ACCURACY | HAS_SPEED)) != 0) {
+                    long accuracyDm = (flags & HAS_ACCURACY) != 0
+                            ? clamp(Math.round(accuracy * 10), ACCURACY_MAX) : 0;
+                    long speedCms = (flags & HAS_SPEED) != 0
+                            ? clamp(Math.round(speed * 100), SPEED_MAX) : 0;
+                    writeVarint(outputStream, (speedCms << ACCURACY_BITS) | accuracyDm);
+                }
+                if ((flags & HAS_BEARING) != 0) {
+                    writeVarint(outputStream, clamp(Math.round(bearing * 10), 3600));
+                }
+            } else {
+                if ((flags & HAS_ACCURACY) != 0) {
+                    writeFloat(outputStream, accuracy);
+                }
+                if ((flags & HAS_SPEED) != 0) {
+                    writeFloat(outputStream, speed);
+                }
+                if ((flags & HAS_BEARING) != 0) {
+                    writeFloat(outputStream, bearing);
+                }
+            }
+
+            if ((flags & HAS_RAW_COORDINATES) != 0) {
+                writeSignedVarint(outputStream, Math.round(rawLatitude * E7) - latitudeE7);
+                writeSignedVarint(outputStream, Math.round(rawLongitude * E7) - longitudeE7);
+            }
+            count++;
+        }
+
+        /**
+         * Writes the end of the points and flushes the stream. The stream is not
+         * closed.
+         */
+        public void finish() throws IOException {
+            outputStream.write(END_OF_POINTS);
+            outputStream.flush();
+        }
+    }
+
+    /**
+     * Decodes track points from an {@link InputStream}.
+     */
+    public static class Decoder {
+
+        private final InputStream inputStream;
+        private final boolean packed;
+        private final boolean rawCoordinates;
+
+        // The previous point
+        private int latitudeE7;
+        private int longitudeE7;
+        private long time;
+        private long timeDelta;
+        private int altitudeDm;
+
+        private boolean finished = false;
+
+        /**
+         * Constructor. Reads the stream header.
+         *
+         * @param inputStream the input stream
+         */
+        public Decoder(InputStream inputStream) throws IOException {
+            this.inputStream = inputStream;
+            int version = readByte(inputStream);
+            if (version != VERSION && version != VERSION_1) {
+                throw new IOException("Unsupported track point encoding version " + version);
+            }
+            int flags = readByte(inputStream);
+            packed = (flags & FLAG_PACKED) != 0;
+            rawCoordinates = version != VERSION_1 && (flags & FLAG_RAW_COORDINATES) != 0;
+        }
+
+        /**
+         * Decodes the next point, appending it to a columnar container with a -1L
+         * id.
+         *
+         * @param trackPoints the track points
+         * @return false if there are no more points
+         */
+        public boolean read(TrackPoints trackPoints) throws IOException {
+            if (finished) {
+                return false;
+            }
+            int flags = readByte(inputStream);
+            if (flags == END_OF_POINTS) {
+                finished = true;
+                return false;
+            }
+
+            latitudeE7 += (int) readSignedVarint(inputStream);
+            longitudeE7 += (int) readSignedVarint(inputStream);
+            timeDelta += readSignedVarint(inputStream);
+            time += timeDelta;
+
+            float altitude = Float.NaN;
+            if ((flags & HAS_ALTITUDE) != 0) {
+                altitudeDm += (int) readSignedVarint(inputStream);
+                altitude = altitudeDm / 10f;
+            }
+
+            float accuracy = Float.NaN;
+            float speed = Float.NaN;
+            float bearing = Float.NaN;
+            if (packed) {
+                if ((flags & (HAS_ACCURACY | HAS_SPEED)) != 0) {
+                    long value = readVarint(inputStream);
+                    if ((flags & HAS_ACCURACY) != 0) {
+                        accuracy = (value & ACCURACY_MAX) / 10f;
+                    }
+                    if ((flags & HAS_SPEED) != 0) {
+                        speed = (value >>> ACCURACY_BITS) / 100f;
+                    }
+                }
+                if ((flags & HAS_BEARING) != 0) {
+                    bearing = readVarint(inputStream) / 10f;
+                }
+            } else {
+                if ((flags & HAS_ACCURACY) != 0) {
+                    accuracy = readFloat(inputStream);
+                }
+                if ((flags & HAS_SPEED) != 0) {
+                    speed = readFloat(inputStream);
+                }
+                if ((flags & HAS_BEARING) != 0) {
+                    bearing = readFloat(inputStream);
+                }
+            }
+
+            int index = trackPoints.add(-1L, latitudeE7 / E7, longitudeE7 / E7, time, altitude,
+                    accuracy, speed, bearing);
+            if (rawCoordinates && (flags & HAS_RAW_COORDINATES) != 0) {
+                long rawLatitudeE7 = latitudeE7 + readSignedVarint(inputStream);
+                long rawLongitudeE7 = longitudeE7 + readSignedVarint(inputStream);
+                trackPoints.setRawCoordinates(index, rawLatitudeE7 / E7, rawLongitudeE7 / E7);
+            }
+            return true;
+        }
+    }
+
+    private static long clamp(long value, long max) {
+        return Math.max(0, Math.min(value, max));
+    }
+
+    private static void writeSignedVarint(OutputStream outputStream, long value) throws IOException {
+        // Zig-zag encoding, small negative values take few bytes too
+        writeVarint(outputStream, (value << 1) ^ (value >> 63));
+    }
+
+    private static void writeVarint(OutputStream outputStream, long value) throws IOException {
+        while ((value & ~0x7FL) != 0) {
+            outputStream.write((int) ((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        outputStream.write((int) value);
+    }
+
+    private static void writeFloat(OutputStream outputStream, float value) throws IOException {
+        int bits = Float.floatToIntBits(value);
+        outputStream.write(bits >>> 24);
+        outputStream.write(bits >>> 16);
+        outputStream.write(bits >>> 8);
+        outputStream.write(bits);
+    }
+
+    private static long readSignedVarint(InputStream inputStream) throws IOException {
+        long value = readVarint(inputStream);
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    private static long readVarint(InputStream inputStream) throws IOException {
+        long value = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = readByte(inputStream);
+            value |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+
+    private static float readFloat(InputStream inputStream) throws IOException {
+        int bits = readByte(inputStream) << 24 | readByte(inputStream) << 16
+                | readByte(inputStream) << 8 | readByte(inputStream);
+        return Float.intBitsToFloat(bits);
+    }
+
+    private static int readByte(InputStream inputStream) throws IOException {
+        int b = inputStream.read();
+        if (b == -1) {
+            throw new EOFException();
+        }
+        return b;
+    }
+}
@@ -0,0 +1,482 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.content.Context;
+import android.location.Location;
+import android.util.Log;
+
+import com.android.biketrack.utils.FileUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * Append-only log of the track points of a recording track, backed by a memory
+ * mapped file. Each point is a fixed-width binary record, so appending a point
+ * is a few stores into the mapped buffer: no SQL and no allocation. The kernel
+ * writes the pages back, so the log survives the death of the process;
+ * {@link #sync()} forces them to the storage to survive a power loss too.
+ * <p>
+ * The points are moved to the {@link TracksProvider} by
+ * {@link #mergeInto(TracksProviderUtils, Track)}. The log keeps track of the
+ * points already merged and of the batch being merged, so an interrupted merge
+ * can be resumed without inserting a committed batch twice.
+ * <p>
+ * This class is not thread safe.
+ */
+public class TrackPointLog {
+
+    private static final String TAG = TrackPointLog.class.getSimpleName();
+
+    /**
+     * The recording logs directory under the app files directory.
+     */
+    private static final String DIRECTORY = "recording";
+    private static final String EXTENSION = ".log";
+
+    private static final int MAGIC = 0x42544c47; // BTLG
+    private static final int VERSION = 2;
+
+    // Version 1 records don't have the raw coordinates
+    private static final int VERSION_1 = 1;
+
+    // Header layout
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    private static final int TRACK_ID_OFFSET = 8;
+    private static final int SIZE_OFFSET = 16;
+    private static final int MERGED_OFFSET = 20;
+    private static final int PENDING_OFFSET = 24;
+    private static final int HEADER_SIZE = 32;
+
+    // Record layout
+    private static final int LATITUDE_OFFSET = 0;
+    private static final int LONGITUDE_OFFSET = 8;
+    private static final int TIME_OFFSET = 16;
+    private static final int ALTITUDE_OFFSET = 24;
+    private static final int ACCURACY_OFFSET = 28;
+    private static final int SPEED_OFFSET = 32;
+    private static final int BEARING_OFFSET = 36;
+    private static final int RAW_LATITUDE_OFFSET = 40;
+    private static final int RAW_LONGITUDE_OFFSET = 48;
+    private static final int RECORD_SIZE = 56;
+    private static final int VERSION_1_RECORD_SIZE = 40;
+
+    // About one hour at 1 Hz, doubled when full
+    private static final int INITIAL_CAPACITY = 4096;
+
+    private static final int MERGE_BATCH_SIZE = 1000;
+
+    private final File file;
+    private final long trackId;
+
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+    private MappedByteBuffer buffer;
+
+    // The record size of the version of the file
+    private int recordSize = RECORD_SIZE;
+
+    // The number of records the mapped region can hold
+    private int capacity;
+
+    // The number of records in the log
+    private int size;
+
+    private TrackPointLog(File file, long trackId) {
+        this.file = file;
+        this.trackId = trackId;
+    }
+
+    /**
+     * Opens the log of a track, creating it if it doesn't exist. New points are
+     * appended after the existing ones.
+     *
+     * @param context the context
+     * @param trackId the track id
+     */
+    public static TrackPointLog open(Context context, long trackId) throws IOException {
+        File directory = getDirectory(context);
+        if (!FileUtils.ensureDirectoryExists(directory)) {
+            throw new IOException("Unable to create " + directory);
+        }
+        return open(getFile(context, trackId), trackId);
+    }
+
+    /**
+     * Opens a log file, creating it if it doesn't exist.
+     *
+     * @param file    the file
+     * @param trackId the track id
+     */
+    static TrackPointLog open(File file, long trackId) throws IOException {
+        TrackPointLog trackPointLog = new TrackPointLog(file, trackId);
+        try {
+            trackPointLog.map();
+        } catch (IOException e) {
+            trackPointLog.close();
+            throw e;
+        }
+        return trackPointLog;
+    }
+
+    /**
+     * Returns true if a track has a log.
+     *
+     * @param context the context
+     * @param trackId the track id
+     */
+    public static boolean exists(Context context, long trackId) {
+        return getFile(context, trackId).exists();
+    }
+
+    /**
+     * Gets the ids of the tracks having a log, in ascending order.
+     *
+     * @param context the context
+     */
+    public static long[] getTrackIds(Context context) {
+        String[] names = getDirectory(context).list();
+        if (names == null) {
+            return new long[0];
+        }
+        long[] trackIds = new long[names.length];
+        int count = 0;
+        for (String name : names) {
+            if (!name.endsWith(EXTENSION)) {
+                continue;
+            }
+            try {
+                trackIds[count] = Long.parseLong(FileUtils.getName(name));
+                count++;
+            } catch (NumberFormatException e) {
+                Log.w(TAG, "Unexpected file " + name);
+            }
+        }
+        trackIds = Arrays.copyOf(trackIds, count);
+        Arrays.sort(trackIds);
+        return trackIds;
+    }
+
+    private static File getDirectory(Context context) {
+        return new File(context.getFilesDir(), DIRECTORY);
+    }
+
+    private static File getFile(Context context, long trackId) {
+        return new File(getDirectory(context), Long.toString(trackId) + EXTENSION);
+    }
+
+    public long getTrackId() {
+        return trackId;
+    }
+
+    /**
+     * Gets the number of points in the log.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Appends a point.
+     *
+     * @param location the location
+     */
+    public void append(Location location) throws IOException {
+        if (size == capacity) {
+            remap(capacity * 2);
+        }
+        int position = HEADER_SIZE + size * recordSize;
+        buffer.putDouble(position + LATITUDE_OFFSET, location.getLatitude());
+        buffer.putDouble(position + LONGITUDE_OFFSET, location.getLongitude());
+        buffer.putLong(position + TIME_OFFSET, location.getTime());
+        buffer.putFloat(position + ALTITUDE_OFFSET,
+                location.hasAltitude() ? (float) location.getAltitude() : Float.NaN);
+        buffer.putFloat(position + ACCURACY_OFFSET,
+                location.hasAccuracy() ? location.getAccuracy() : Float.NaN);
+        buffer.putFloat(position + SPEED_OFFSET,
+                location.hasSpeed() ? location.getSpeed() : Float.NaN);
+        buffer.putFloat(position + BEARING_OFFSET,
+                location.hasBearing() ? location.getBearing() : Float.NaN);
+        if (recordSize >= RECORD_SIZE) {
+            boolean raw = location instanceof TrackLocation
+                    && ((TrackLocation) location).hasRawCoordinates();
+            buffer.putDouble(position + RAW_LATITUDE_OFFSET,
+                    raw ? ((TrackLocation) location).getRawLatitude() : Double.NaN);
+            buffer.putDouble(position + RAW_LONGITUDE_OFFSET,
+                    raw ? ((TrackLocation) location).getRawLongitude() : Double.NaN);
+        }
+
+        // Publish the record only once it is complete
+        size++;
+        buffer.putInt(SIZE_OFFSET, size);
+    }
+
+    /**
+     * Fills a location with the last valid point of the log. Separator points
+     * are skipped.
+     *
+     * @param location the location to fill
+     * @return true if the log has a valid point
+     */
+    public boolean getLastValidLocation(Location location) {
+        for (int i = size - 1; i >= 0; i--) {
+            int position = HEADER_SIZE + i * recordSize;
+            if (Math.abs(buffer.getDouble(position + LATITUDE_OFFSET)) <= 90) {
+                readLocation(position, location);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Forces the content of the log to the storage.
+     */
+    public void sync() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Inserts the points not merged yet into the tracks provider, in batches.
+     * Updates the start id, the stop id and the number of points of the track,
+     * but doesn't update the track in the provider.
+     *
+     * @param tracksProviderUtils the tracks provider utils
+     * @param track               the track of the log
+     */
+    public void mergeInto(TracksProviderUtils tracksProviderUtils, Track track) {
+        int merged = buffer.getInt(MERGED_OFFSET);
+        int pending = buffer.getInt(PENDING_OFFSET);
+        if (pending > 0 && merged + pending <= size
+                && isMerged(tracksProviderUtils, merged + pending - 1)) {
+            // Committed by an interrupted merge, before it was counted
+            if (track.getStartId() < 0) {
+                track.setStartId(tracksProviderUtils.getFirstTrackPointId(trackId));
+            }
+            track.setStopId(tracksProviderUtils.getLastTrackPointId(trackId));
+            for (int i = merged; i < merged + pending; i++) {
+                if (Math.abs(buffer.getDouble(HEADER_SIZE + i * recordSize + LATITUDE_OFFSET)) <= 90) {
+                    track.setNumberOfPoints(track.getNumberOfPoints() + 1);
+                }
+            }
+            merged += pending;
+            buffer.putInt(MERGED_OFFSET, merged);
+        }
+        buffer.putInt(PENDING_OFFSET, 0);
+
+        TrackPoints trackPoints = new TrackPoints(Math.min(MERGE_BATCH_SIZE, Math.max(size - merged, 1)));
+        while (merged < size) {
+            int length = Math.min(MERGE_BATCH_SIZE, size - merged);
+            trackPoints.clear();
+            for (int i = merged; i < merged + length; i++) {
+                readTrackPoint(HEADER_SIZE + i * recordSize, trackPoints);
+            }
+
+            // The batch commits before it is counted as merged
+            buffer.putInt(PENDING_OFFSET, length);
+            tracksProviderUtils.bulkInsertTrackPoints(trackPoints, trackId);
+
+            for (int i = 0; i < length; i++) {
+                long trackPointId = trackPoints.getId(i);
+                if (trackPointId >= 0) {
+                    if (track.getStartId() < 0) {
+                        track.setStartId(trackPointId);
+                    }
+                    track.setStopId(trackPointId);
+                }
+                if (Math.abs(trackPoints.getLatitude(i)) <= 90) {
+                    track.setNumberOfPoints(track.getNumberOfPoints() + 1);
+                }
+            }
+            merged += length;
+            buffer.putInt(MERGED_OFFSET, merged);
+            buffer.putInt(PENDING_OFFSET, 0);
+        }
+    }
+
+    /**
+     * Returns true if a point of the log is the last track point of the track
+     * in the provider, i.e. its batch was committed.
+     *
+     * @param tracksProviderUtils the tracks provider utils
+     * @param index               the point index
+     */
+    private boolean isMerged(TracksProviderUtils tracksProviderUtils, int index) {
+        long lastTrackPointId = tracksProviderUtils.getLastTrackPointId(trackId);
+        if (lastTrackPointId < 0) {
+            return false;
+        }
+        TracksProviderUtils.LocationIterator iterator = tracksProviderUtils
+                .getTrackPointLocationIterator(trackId, lastTrackPointId, false,
+                        TracksProviderUtils.DEFAULT_LOCATION_FACTORY);
+        try {
+            if (!iterator.hasNext()) {
+                return false;
+            }
+            Location location = iterator.next();
+            int position = HEADER_SIZE + index * recordSize;
+
+            // The provider keeps the coordinates as E6 integers
+            return location.getTime() == buffer.getLong(position + TIME_OFFSET)
+                    && Math.abs(location.getLatitude()
+                    - buffer.getDouble(position + LATITUDE_OFFSET)) < 2E-6
+                    && Math.abs(location.getLongitude()
+                    - buffer.getDouble(position + LONGITUDE_OFFSET)) < 2E-6;
+        } finally {
+            iterator.close();
+        }
+    }
+
+    /**
+     * Closes the log, forcing its content to the storage.
+     */
+    public void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close " + file, e);
+        } finally {
+            fileChannel = null;
+            randomAccessFile = null;
+        }
+    }
+
+    /**
+     * Closes and deletes the log.
+     */
+    public void delete() {
+        close();
+        if (!file.delete()) {
+            Log.w(TAG, "Unable to delete " + file);
+        }
+    }
+
+    /**
+     * Maps the log file, initializing the header of a new file.
+     */
+    private void map() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        fileChannel = randomAccessFile.getChannel();
+        long length = fileChannel.size();
+        if (length >= HEADER_SIZE) {
+            buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, length);
+            int version = buffer.getInt(VERSION_OFFSET);
+            if (buffer.getInt(MAGIC_OFFSET) != MAGIC || (version != VERSION && version != VERSION_1)
+                    || buffer.getLong(TRACK_ID_OFFSET) != trackId) {
+                throw new IOException("Invalid track point log " + file);
+            }
+            recordSize = version == VERSION_1 ? VERSION_1_RECORD_SIZE : RECORD_SIZE;
+            capacity = (int) ((length - HEADER_SIZE) / recordSize);
+            size = Math.min(buffer.getInt(SIZE_OFFSET), capacity);
+        } else {
+            remap(INITIAL_CAPACITY);
+            buffer.putInt(MAGIC_OFFSET, MAGIC);
+            buffer.putInt(VERSION_OFFSET, VERSION);
+            buffer.putLong(TRACK_ID_OFFSET, trackId);
+            buffer.putInt(SIZE_OFFSET, 0);
+            buffer.putInt(MERGED_OFFSET, 0);
+            buffer.putInt(PENDING_OFFSET, 0);
+            size = 0;
+        }
+    }
+
+    /**
+     * Maps a larger region of the file, growing the file.
+     *
+     * @param newCapacity the new capacity in records
+     */
+    private void remap(int newCapacity) throws IOException {
+        buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0,
+                HEADER_SIZE + (long) newCapacity * recordSize);
+        capacity = newCapacity;
+    }
+
+    private void readLocation(int position, Location location) {
+        location.setLatitude(buffer.getDouble(position + LATITUDE_OFFSET));
+        location.setLongitude(buffer.getDouble(position + LONGITUDE_OFFSET));
+        location.setTime(buffer.getLong(position + TIME_OFFSET));
+        float altitude = buffer.getFloat(position + ALTITUDE_OFFSET);
+        if (Float.isNaN(altitude)) {
+            location.removeAltitude();
+        } else {
+            location.setAltitude(altitude);
+        }
+        float accuracy = buffer.getFloat(position + ACCURACY_OFFSET);
+        if (Float.isNaN(accuracy)) {
+            location.removeAccuracy();
+        } else {
+            location.setAccuracy(accuracy);
+        }
+        float speed = buffer.getFloat(position + SPEED_OFFSET);
+        if (Float.isNaN(speed)) {
+            location.removeSpeed();
+        } else {
+            location.setSpeed(speed);
+        }
+        float bearing = buffer.getFloat(position + BEARING_OFFSET);
+        if (Float.isNaN(bearing)) {
+            location.removeBearing();
+        } else {
+            location.setBearing(bearing);
+        }
+        if (location instanceof TrackLocation) {
+            TrackLocation trackLocation = (TrackLocation) location;
+            double rawLatitude = recordSize >= RECORD_SIZE
+                    ? buffer.getDouble(position + RAW_LATITUDE_OFFSET) : Double.NaN;
+            if (Double.isNaN(rawLatitude)) {
+                trackLocation.removeRawCoordinates();
+            } else {
+                trackLocation.setRawCoordinates(rawLatitude,
+                        buffer.getDouble(position + RAW_LONGITUDE_OFFSET));
+            }
+        }
+    }
+
+    private void readTrackPoint(int position, TrackPoints trackPoints) {
+        int index = trackPoints.add(-1L,
+                buffer.getDouble(position + LATITUDE_OFFSET),
+                buffer.getDouble(position + LONGITUDE_OFFSET),
+                buffer.getLong(position + TIME_OFFSET),
+                buffer.getFloat(position + ALTITUDE_OFFSET),
+                buffer.getFloat(position + ACCURACY_OFFSET),
+                buffer.getFloat(position + SPEED_OFFSET),
+                buffer.getFloat(position + BEARING_OFFSET));
+        if (recordSize >= RECORD_SIZE) {
+            double rawLatitude = buffer.getDouble(position + RAW_LATITUDE_OFFSET);
+            if (!Double.isNaN(rawLatitude)) {
+                trackPoints.setRawCoordinates(index, rawLatitude,
+                        buffer.getDouble(position + RAW_LONGITUDE_OFFSET));
+            }
+        }
+    }
+}
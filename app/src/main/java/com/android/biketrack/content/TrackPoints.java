@@ -0,0 +1,398 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.location.Location;
+
+import java.util.Arrays;
+
+/**
+ * Columnar container of track points. Each field of a point is kept in its own
+ * primitive array, so a long track costs a few tens of bytes per point instead
+ * of a full {@link Location} object each, and adding points doesn't allocate
+ * once the arrays have grown.
+ * <p>
+ * Optional float fields (altitude, accuracy, speed, bearing) are stored as
+ * {@link Float#NaN} when the point doesn't have them. The raw coordinates of
+ * the smoothed points are only allocated once a point has them, and are
+ * {@link Double#NaN} for the other points.
+ * <p>
+ * Locations are only built on demand, see {@link #getLocation(int, Location)}.
+ * This class is not thread safe.
+ */
+public class TrackPoints {
+
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private int size = 0;
+    private long[] ids;
+    private double[] latitudes;
+    private double[] longitudes;
+    private long[] times;
+    private float[] altitudes;
+    private float[] accuracies;
+    private float[] speeds;
+    private float[] bearings;
+    private double[] rawLatitudes;
+    private double[] rawLongitudes;
+
+    public TrackPoints() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a container with room for a given number of points.
+     *
+     * @param capacity the initial capacity
+     */
+    public TrackPoints(int capacity) {
+        capacity = Math.max(capacity, 1);
+        ids = new long[capacity];
+        latitudes = new double[capacity];
+        longitudes = new double[capacity];
+        times = new long[capacity];
+        altitudes = new float[capacity];
+        accuracies = new float[capacity];
+        speeds = new float[capacity];
+        bearings = new float[capacity];
+    }
+
+    /**
+     * Gets the number of points.
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns true if there are no points.
+     */
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Removes all the points, keeping the allocated arrays.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Appends a point.
+     *
+     * @param id       the track point id, -1L if unknown
+     * @param location the location
+     * @return the index of the point
+     */
+    public int add(long id, Location location) {
+        int index = add(id, location.getLatitude(), location.getLongitude(), location.getTime(),
+                location.hasAltitude() ? (float) location.getAltitude() : Float.NaN,
+                location.hasAccuracy() ? location.getAccuracy() : Float.NaN,
+                location.hasSpeed() ? location.getSpeed() : Float.NaN,
+                location.hasBearing() ? location.getBearing() : Float.NaN);
+        if (location instanceof TrackLocation && ((TrackLocation) location).hasRawCoordinates()) {
+            TrackLocation trackLocation = (TrackLocation) location;
+            setRawCoordinates(index, trackLocation.getRawLatitude(), trackLocation.getRawLongitude());
+        }
+        return index;
+    }
+
+    /**
+     * Appends a point.
+     *
+     * @param id        the track point id, -1L if unknown
+     * @param latitude  the latitude in degrees
+     * @param longitude the longitude in degrees
+     * @param time      the time in milliseconds since the epoch
+     * @param altitude  the altitude in meters, NaN if not available
+     * @param accuracy  the accuracy in meters, NaN if not available
+     * @param speed     the speed in meters/second, NaN if not available
+     * @param bearing   the bearing in degrees, NaN if not available
+     * @return the index of the point
+     */
+    public int add(long id, double latitude, double longitude, long time, float altitude,
+                   float accuracy, float speed, float bearing) {
+        ensureCapacity(size + 1);
+        ids[size] = id;
+        latitudes[size] = latitude;
+        longitudes[size] = longitude;
+        times[size] = time;
+        altitudes[size] = altitude;
+        accuracies[size] = accuracy;
+        speeds[size] = speed;
+        bearings[size] = bearing;
+        if (rawLatitudes != null) {
+            rawLatitudes[size] = Double.NaN;
+            rawLongitudes[size] = Double.NaN;
+        }
+        return size++;
+    }
+
+    /**
+     * Appends a range of points of another container.
+     *
+     * @param other  the other container
+     * @param offset the index of the first point to copy
+     * @param length the number of points to copy
+     */
+    public void addAll(TrackPoints other, int offset, int length) {
+        if (offset < 0 || length < 0 || offset + length > other.size) {
+            throw new IndexOutOfBoundsException("offset: " + offset + ", length: " + length
+                    + ", size: " + other.size);
+        }
+        ensureCapacity(size + length);
+        System.arraycopy(other.ids, offset, ids, size, length);
+        System.arraycopy(other.latitudes, offset, latitudes, size, length);
+        System.arraycopy(other.longitudes, offset, longitudes, size, length);
+        System.arraycopy(other.times, offset, times, size, length);
+        System.arraycopy(other.altitudes, offset, altitudes, size, length);
+        System.arraycopy(other.accuracies, offset, accuracies, size, length);
+        System.arraycopy(other.speeds, offset, speeds, size, length);
+        System.arraycopy(other.bearings, offset, bearings, size, length);
+        if (other.rawLatitudes != null) {
+            allocateRawCoordinates();
+            System.arraycopy(other.rawLatitudes, offset, rawLatitudes, size, length);
+            System.arraycopy(other.rawLongitudes, offset, rawLongitudes, size, length);
+        } else if (rawLatitudes != null) {
+            Arrays.fill(rawLatitudes, size, size + length, Double.NaN);
+            Arrays.fill(rawLongitudes, size, size + length, Double.NaN);
+        }
+        size += length;
+    }
+
+    /**
+     * Removes the first points, shifting the others down.
+     *
+     * @param count the number of points to remove
+     */
+    public void removeFirst(int count) {
+        if (count < 0 || count > size) {
+            throw new IndexOutOfBoundsException("count: " + count + ", size: " + size);
+        }
+        int length = size - count;
+        System.arraycopy(ids, count, ids, 0, length);
+        System.arraycopy(latitudes, count, latitudes, 0, length);
+        System.arraycopy(longitudes, count, longitudes, 0, length);
+        System.arraycopy(times, count, times, 0, length);
+        System.arraycopy(altitudes, count, altitudes, 0, length);
+        System.arraycopy(accuracies, count, accuracies, 0, length);
+        System.arraycopy(speeds, count, speeds, 0, length);
+        System.arraycopy(bearings, count, bearings, 0, length);
+        if (rawLatitudes != null) {
+            System.arraycopy(rawLatitudes, count, rawLatitudes, 0, length);
+            System.arraycopy(rawLongitudes, count, rawLongitudes, 0, length);
+        }
+        size = length;
+    }
+
+    /**
+     * Sets the track point id of a point.
+     *
+     * @param index the point index
+     * @param id    the track point id
+     */
+    public void setId(int index, long id) {
+        checkIndex(index);
+        ids[index] = id;
+    }
+
+    public long getId(int index) {
+        checkIndex(index);
+        return ids[index];
+    }
+
+    public double getLatitude(int index) {
+        checkIndex(index);
+        return latitudes[index];
+    }
+
+    public double getLongitude(int index) {
+        checkIndex(index);
+        return longitudes[index];
+    }
+
+    public long getTime(int index) {
+        checkIndex(index);
+        return times[index];
+    }
+
+    public float getAltitude(int index) {
+        checkIndex(index);
+        return altitudes[index];
+    }
+
+    public float getAccuracy(int index) {
+        checkIndex(index);
+        return accuracies[index];
+    }
+
+    public float getSpeed(int index) {
+        checkIndex(index);
+        return speeds[index];
+    }
+
+    public float getBearing(int index) {
+        checkIndex(index);
+        return bearings[index];
+    }
+
+    /**
+     * Returns true if a point is a valid location, not a segment separator.
+     *
+     * @param index the point index
+     */
+    public boolean isValid(int index) {
+        checkIndex(index);
+        return Math.abs(latitudes[index]) <= 90;
+    }
+
+    /**
+     * Returns true if a point was smoothed and has the coordinates of the
+     * original fix.
+     *
+     * @param index the point index
+     */
+    public boolean hasRawCoordinates(int index) {
+        checkIndex(index);
+        return rawLatitudes != null && !Double.isNaN(rawLatitudes[index]);
+    }
+
+    /**
+     * Gets the latitude of the original fix of a point, NaN if the point was
+     * not smoothed.
+     *
+     * @param index the point index
+     */
+    public double getRawLatitude(int index) {
+        checkIndex(index);
+        return rawLatitudes != null ? rawLatitudes[index] : Double.NaN;
+    }
+
+    /**
+     * Gets the longitude of the original fix of a point, NaN if the point was
+     * not smoothed.
+     *
+     * @param index the point index
+     */
+    public double getRawLongitude(int index) {
+        checkIndex(index);
+        return rawLongitudes != null ? rawLongitudes[index] : Double.NaN;
+    }
+
+    /**
+     * Sets the coordinates of the original fix of a smoothed point.
+     *
+     * @param index     the point index
+     * @param latitude  the raw latitude in degrees
+     * @param longitude the raw longitude in degrees
+     */
+    public void setRawCoordinates(int index, double latitude, double longitude) {
+        checkIndex(index);
+        allocateRawCoordinates();
+        rawLatitudes[index] = latitude;
+        rawLongitudes[index] = longitude;
+    }
+
+    /**
+     * Fills a location with a point. The optional fields not available for the
+     * point are removed from the location, so the location can be reused.
+     *
+     * @param index    the point index
+     * @param location the location to fill
+     * @return the filled location
+     */
+    public Location getLocation(int index, Location location) {
+        checkIndex(index);
+        location.setLatitude(latitudes[index]);
+        location.setLongitude(longitudes[index]);
+        location.setTime(times[index]);
+        if (Float.isNaN(altitudes[index])) {
+            location.removeAltitude();
+        } else {
+            location.setAltitude(altitudes[index]);
+        }
+        if (Float.isNaN(accuracies[index])) {
+            location.removeAccuracy();
+        } else {
+            location.setAccuracy(accuracies[index]);
+        }
+        if (Float.isNaN(speeds[index])) {
+            location.removeSpeed();
+        } else {
+            location.setSpeed(speeds[index]);
+        }
+        if (Float.isNaN(bearings[index])) {
+            location.removeBearing();
+        } else {
+            location.setBearing(bearings[index]);
+        }
+        if (location instanceof TrackLocation) {
+            TrackLocation trackLocation = (TrackLocation) location;
+            if (rawLatitudes == null || Double.isNaN(rawLatitudes[index])) {
+                trackLocation.removeRawCoordinates();
+            } else {
+                trackLocation.setRawCoordinates(rawLatitudes[index], rawLongitudes[index]);
+            }
+        }
+        return location;
+    }
+
+    /**
+     * Ensures the arrays can hold a given number of points, growing them
+     * geometrically.
+     *
+     * @param minCapacity the required capacity
+     */
+    public void ensureCapacity(int minCapacity) {
+        int capacity = ids.length;
+        if (minCapacity <= capacity) {
+            return;
+        }
+        int newCapacity = Math.max(capacity + (capacity >> 1), minCapacity);
+        ids = Arrays.copyOf(ids, newCapacity);
+        latitudes = Arrays.copyOf(latitudes, newCapacity);
+        longitudes = Arrays.copyOf(longitudes, newCapacity);
+        times = Arrays.copyOf(times, newCapacity);
+        altitudes = Arrays.copyOf(altitudes, newCapacity);
+        accuracies = Arrays.copyOf(accuracies, newCapacity);
+        speeds = Arrays.copyOf(speeds, newCapacity);
+        bearings = Arrays.copyOf(bearings, newCapacity);
+        if (rawLatitudes != null) {
+            rawLatitudes = Arrays.copyOf(rawLatitudes, newCapacity);
+            rawLongitudes = Arrays.copyOf(rawLongitudes, newCapacity);
+        }
+    }
+
+    /**
+     * Allocates the raw coordinates arrays, the existing points having none.
+     */
+    private void allocateRawCoordinates() {
+        if (rawLatitudes != null) {
+            return;
+        }
+        rawLatitudes = new double[ids.length];
+        rawLongitudes = new double[ids.length];
+        Arrays.fill(rawLatitudes, Double.NaN);
+        Arrays.fill(rawLongitudes, Double.NaN);
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("index: " + index + ", size: " + size);
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Constants for the track points table.
+ * <p>
+ * Latitude and longitude are stored as signed millions of degrees (degrees *
+ * 1E6), the same unit used by the bounds of {@link com.android.biketrack.stats.TripStatistics}.
+ * <p>
+ * Taken from MyTracks Google application source code.
+ */
+public interface TrackPointsColumns extends BaseColumns {
+
+    public static final String TABLE_NAME = "trackpoints";
+
+    /**
+     * Track points provider uri.
+     */
+    public static final Uri CONTENT_URI = Uri.parse(
+            "content://" + TracksProviderUtils.AUTHORITY + "/" + TABLE_NAME);
+
+    /**
+     * Track point id sort order.
+     */
+    public static final String DEFAULT_SORT_ORDER = _ID;
+
+    // Columns
+    public static final String TRACKID = "trackid"; // track id
+    public static final String LONGITUDE = "longitude"; // longitude
+    public static final String LATITUDE = "latitude"; // latitude
+    public static final String TIME = "time"; // time
+    public static final String ALTITUDE = "elevation"; // altitude
+    public static final String ACCURACY = "accuracy"; // accuracy
+    public static final String SPEED = "speed"; // speed
+    public static final String BEARING = "bearing"; // bearing
+    public static final String RAW_LONGITUDE = "raw_longitude"; // unsmoothed longitude
+    public static final String RAW_LATITUDE = "raw_latitude"; // unsmoothed latitude
+
+    /*
+     * The rowid is used as track point id, without AUTOINCREMENT: appending a
+     * row doesn't have to touch the sqlite_sequence table.
+     */
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + _ID + " INTEGER PRIMARY KEY, "
+            + TRACKID + " INTEGER NOT NULL, "
+            + LONGITUDE + " INTEGER, "
+            + LATITUDE + " INTEGER, "
+            + TIME + " INTEGER, "
+            + ALTITUDE + " FLOAT, "
+            + ACCURACY + " FLOAT, "
+            + SPEED + " FLOAT, "
+            + BEARING + " FLOAT, "
+            + RAW_LONGITUDE + " INTEGER, "
+            + RAW_LATITUDE + " INTEGER"
+            + ");";
+
+    /*
+     * The coordinates of a fix before smoothing, NULL if the point was not
+     * smoothed.
+     */
+    public static final String ADD_RAW_LONGITUDE_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + RAW_LONGITUDE + " INTEGER;";
+    public static final String ADD_RAW_LATITUDE_COLUMN = "ALTER TABLE " + TABLE_NAME
+            + " ADD COLUMN " + RAW_LATITUDE + " INTEGER;";
+
+    /*
+     * An index on the track id implicitly contains the rowid, so it also serves
+     * the "WHERE trackid = ? ORDER BY _id" queries used to iterate a track.
+     */
+    public static final String CREATE_TRACKID_INDEX = "CREATE INDEX "
+            + TABLE_NAME + "_" + TRACKID + "_index ON " + TABLE_NAME + "(" + TRACKID + ");";
+
+    /*
+     * Serves the lookups by time of a track, see TracksProviderUtils#seekToTime.
+     */
+    public static final String CREATE_TRACKID_TIME_INDEX = "CREATE INDEX "
+            + TABLE_NAME + "_" + TRACKID + "_" + TIME + "_index ON " + TABLE_NAME + "("
+            + TRACKID + ", " + TIME + ");";
+
+    public static final String INSERT_STATEMENT = "INSERT INTO " + TABLE_NAME + " ("
+            + TRACKID + ", "
+            + LONGITUDE + ", "
+            + LATITUDE + ", "
+            + TIME + ", "
+            + ALTITUDE + ", "
+            + ACCURACY + ", "
+            + SPEED + ", "
+            + BEARING + ", "
+            + RAW_LONGITUDE + ", "
+            + RAW_LATITUDE + ", "
+            + _ID
+            + ") VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);";
+}
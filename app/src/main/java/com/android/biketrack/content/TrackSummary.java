@@ -0,0 +1,120 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+/**
+ * The summary of a track, enough to list the tracks: no track points, no full
+ * {@link com.android.biketrack.stats.TripStatistics}. Read from the tracks
+ * table, which is kept up to date by every track update.
+ */
+public class TrackSummary {
+
+    private final long id;
+    private final String name;
+    private final String category;
+    private final long startTime;
+    private final long stopTime;
+    private final double totalDistance;
+    private final long movingTime;
+    private final boolean hasBounds;
+    private final int bottom;
+    private final int top;
+    private final int left;
+    private final int right;
+
+    TrackSummary(long id, String name, String category, long startTime, long stopTime,
+                 double totalDistance, long movingTime, boolean hasBounds, int bottom, int top,
+                 int left, int right) {
+        this.id = id;
+        this.name = name;
+        this.category = category;
+        this.startTime = startTime;
+        this.stopTime = stopTime;
+        this.totalDistance = totalDistance;
+        this.movingTime = movingTime;
+        this.hasBounds = hasBounds;
+        this.bottom = bottom;
+        this.top = top;
+        this.left = left;
+        this.right = right;
+    }
+
+    public long getId() {
+        return id;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public String getCategory() {
+        return category;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getStopTime() {
+        return stopTime;
+    }
+
+    /**
+     * Gets the total distance in meters.
+     */
+    public double getTotalDistance() {
+        return totalDistance;
+    }
+
+    public long getMovingTime() {
+        return movingTime;
+    }
+
+    /**
+     * Returns true if the track has bounds, i.e. at least a valid location.
+     */
+    public boolean hasBounds() {
+        return hasBounds;
+    }
+
+    /**
+     * Gets the minimum latitude, in E6 degrees.
+     */
+    public int getBottom() {
+        return bottom;
+    }
+
+    /**
+     * Gets the maximum latitude, in E6 degrees.
+     */
+    public int getTop() {
+        return top;
+    }
+
+    /**
+     * Gets the minimum longitude, in E6 degrees.
+     */
+    public int getLeft() {
+        return left;
+    }
+
+    /**
+     * Gets the maximum longitude, in E6 degrees.
+     */
+    public int getRight() {
+        return right;
+    }
+}
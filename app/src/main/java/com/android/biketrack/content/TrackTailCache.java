@@ -0,0 +1,297 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.location.Location;
+import android.util.LongSparseArray;
+
+/**
+ * Cache of the tail of the tracks: the last track point id and the last valid
+ * track points of each track, and the last valid track point of all the
+ * tracks. Answers the queries of the recording hot path without a descending
+ * query per fix.
+ * <p>
+ * A tail is seeded from the database on the first lookup, then kept up to date
+ * by the inserts. Seeding runs without holding a lock, so a seed is dropped if
+ * the cache changed while the database was being read; the next lookup seeds
+ * again. Inserted points are ignored if their id is not after the last one, so
+ * a point inserted while seeding is not added twice.
+ * <p>
+ * The tails are spread over lock stripes by track id, so the recording writer
+ * and a reader of another track (e.g. an export) don't contend. The last valid
+ * track point of all the tracks has its own lock. No lock is held while
+ * another is taken.
+ */
+class TrackTailCache {
+
+    /**
+     * The number of valid track points kept per track.
+     */
+    static final int CAPACITY = 16;
+
+    /**
+     * Returned by the lookups when the track is not cached.
+     */
+    static final long NOT_CACHED = Long.MIN_VALUE;
+
+    // Must be a power of 2
+    private static final int STRIPES = 8;
+
+    /**
+     * The tail of a track.
+     */
+    private static class Tail {
+        long lastTrackPointId = -1L;
+
+        // The last valid track points, oldest first, up to 2 * CAPACITY
+        final TrackPoints validTrackPoints = new TrackPoints(2 * CAPACITY);
+    }
+
+    /**
+     * The tails of the tracks of a stripe, guarded by the stripe itself.
+     */
+    private static class Stripe {
+        final LongSparseArray<Tail> tails = new LongSparseArray<Tail>();
+
+        // Incremented by every change, see seed
+        int modCount = 0;
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    // The last valid track point of all the tracks, guarded by lastValidLock
+    private final Object lastValidLock = new Object();
+    private boolean lastValidKnown = false;
+    private final TrackPoints lastValid = new TrackPoints(1);
+    private int lastValidModCount = 0;
+
+    TrackTailCache() {
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Gets the modification count of the stripe of a track, to be passed to
+     * {@link #seed(long, long, TrackPoints, int)}.
+     *
+     * @param trackId the track id
+     */
+    int getModCount(long trackId) {
+        Stripe stripe = getStripe(trackId);
+        synchronized (stripe) {
+            return stripe.modCount;
+        }
+    }
+
+    /**
+     * Seeds the tail of a track, read from the database.
+     *
+     * @param trackId          the track id
+     * @param lastTrackPointId the last track point id, -1L if none
+     * @param validTrackPoints the last valid track points, oldest first
+     * @param readModCount     the modification count before reading the
+     *                         database
+     */
+    void seed(long trackId, long lastTrackPointId, TrackPoints validTrackPoints,
+              int readModCount) {
+        Stripe stripe = getStripe(trackId);
+        synchronized (stripe) {
+            if (readModCount != stripe.modCount) {
+                return;
+            }
+            Tail tail = new Tail();
+            tail.lastTrackPointId = lastTrackPointId;
+            int length = Math.min(validTrackPoints.size(), CAPACITY);
+            tail.validTrackPoints.addAll(validTrackPoints, validTrackPoints.size() - length, length);
+            stripe.tails.put(trackId, tail);
+        }
+    }
+
+    /**
+     * Gets the modification count of the last valid track point, to be passed
+     * to {@link #seedLastValid(TrackPoints, int)}.
+     */
+    int getLastValidModCount() {
+        synchronized (lastValidLock) {
+            return lastValidModCount;
+        }
+    }
+
+    /**
+     * Seeds the last valid track point of all the tracks, read from the
+     * database.
+     *
+     * @param trackPoints  the point, empty if none
+     * @param readModCount the modification count before reading the database
+     */
+    void seedLastValid(TrackPoints trackPoints, int readModCount) {
+        synchronized (lastValidLock) {
+            if (readModCount != lastValidModCount) {
+                return;
+            }
+            lastValid.clear();
+            if (!trackPoints.isEmpty()) {
+                lastValid.addAll(trackPoints, trackPoints.size() - 1, 1);
+            }
+            lastValidKnown = true;
+        }
+    }
+
+    /**
+     * Adds inserted track points.
+     *
+     * @param trackId     the track id
+     * @param trackPoints the track points, with their ids
+     * @param offset      the index of the first point
+     * @param length      the number of points
+     */
+    void add(long trackId, TrackPoints trackPoints, int offset, int length) {
+        int lastValidIndex = -1;
+        Stripe stripe = getStripe(trackId);
+        synchronized (stripe) {
+            stripe.modCount++;
+            Tail tail = stripe.tails.get(trackId);
+            for (int i = offset; i < offset + length; i++) {
+                long trackPointId = trackPoints.getId(i);
+                if (trackPointId < 0 || Math.abs(trackPoints.getLatitude(i)) > 90) {
+                    if (tail != null && trackPointId > tail.lastTrackPointId) {
+                        tail.lastTrackPointId = trackPointId;
+                    }
+                    continue;
+                }
+                lastValidIndex = i;
+                if (tail != null && trackPointId > tail.lastTrackPointId) {
+                    tail.lastTrackPointId = trackPointId;
+                    TrackPoints validTrackPoints = tail.validTrackPoints;
+                    if (validTrackPoints.size() == 2 * CAPACITY) {
+                        validTrackPoints.removeFirst(CAPACITY);
+                    }
+                    validTrackPoints.addAll(trackPoints, i, 1);
+                }
+            }
+        }
+
+        synchronized (lastValidLock) {
+            lastValidModCount++;
+            if (lastValidIndex >= 0 && lastValidKnown && (lastValid.isEmpty()
+                    || trackPoints.getId(lastValidIndex) > lastValid.getId(0))) {
+                lastValid.clear();
+                lastValid.addAll(trackPoints, lastValidIndex, 1);
+            }
+        }
+    }
+
+    /**
+     * Gets the last track point id of a track.
+     *
+     * @param trackId the track id
+     * @return the last track point id, -1L if none, {@link #NOT_CACHED} if the
+     * track is not cached
+     */
+    long getLastTrackPointId(long trackId) {
+        Stripe stripe = getStripe(trackId);
+        synchronized (stripe) {
+            Tail tail = stripe.tails.get(trackId);
+            return tail != null ? tail.lastTrackPointId : NOT_CACHED;
+        }
+    }
+
+    /**
+     * Fills a location with the last valid track point of a track.
+     *
+     * @param trackId  the track id
+     * @param location the location to fill
+     * @return the id of the point, -1L if none, {@link #NOT_CACHED} if the track
+     * is not cached
+     */
+    long getLastValidTrackPoint(long trackId, Location location) {
+        Stripe stripe = getStripe(trackId);
+        synchronized (stripe) {
+            Tail tail = stripe.tails.get(trackId);
+            if (tail == null) {
+                return NOT_CACHED;
+            }
+            TrackPoints validTrackPoints = tail.validTrackPoints;
+            if (validTrackPoints.isEmpty()) {
+                return -1L;
+            }
+            int index = validTrackPoints.size() - 1;
+            validTrackPoints.getLocation(index, location);
+            return validTrackPoints.getId(index);
+        }
+    }
+
+    /**
+     * Fills a location with the last valid track point of all the tracks.
+     *
+     * @param location the location to fill
+     * @return the id of the point, -1L if none, {@link #NOT_CACHED} if not
+     * cached
+     */
+    long getLastValidTrackPoint(Location location) {
+        synchronized (lastValidLock) {
+            if (!lastValidKnown) {
+                return NOT_CACHED;
+            }
+            if (lastValid.isEmpty()) {
+                return -1L;
+            }
+            lastValid.getLocation(0, location);
+            return lastValid.getId(0);
+        }
+    }
+
+    /**
+     * Drops the tail of a track, after its points are deleted or inserted
+     * without their ids. The last valid track point of all the tracks is
+     * dropped too.
+     *
+     * @param trackId the track id
+     */
+    void invalidate(long trackId) {
+        Stripe stripe = getStripe(trackId);
+        synchronized (stripe) {
+            stripe.modCount++;
+            stripe.tails.remove(trackId);
+        }
+        invalidateLastValid();
+    }
+
+    /**
+     * Drops all the tails.
+     */
+    void invalidateAll() {
+        for (Stripe stripe : stripes) {
+            synchronized (stripe) {
+                stripe.modCount++;
+                stripe.tails.clear();
+            }
+        }
+        invalidateLastValid();
+    }
+
+    private void invalidateLastValid() {
+        synchronized (lastValidLock) {
+            lastValidModCount++;
+            lastValidKnown = false;
+        }
+    }
+
+    private Stripe getStripe(long trackId) {
+        return stripes[(int) (trackId ^ (trackId >>> 32)) & (STRIPES - 1)];
+    }
+}
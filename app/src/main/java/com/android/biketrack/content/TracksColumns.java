@@ -0,0 +1,100 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Constants for the tracks table.
+ * <p>
+ * Taken from MyTracks Google application source code.
+ */
+public interface TracksColumns extends BaseColumns {
+
+    public static final String TABLE_NAME = "tracks";
+
+    /**
+     * Tracks provider uri.
+     */
+    public static final Uri CONTENT_URI = Uri.parse(
+            "content://" + TracksProviderUtils.AUTHORITY + "/" + TABLE_NAME);
+
+    /**
+     * Track id sort order.
+     */
+    public static final String DEFAULT_SORT_ORDER = _ID;
+
+    // Columns
+    public static final String NAME = "name"; // track name
+    public static final String DESCRIPTION = "description"; // track description
+    public static final String CATEGORY = "category"; // track activity type
+    public static final String STARTID = "startid"; // first track point id
+    public static final String STOPID = "stopid"; // last track point id
+    public static final String STARTTIME = "starttime"; // track start time
+    public static final String STOPTIME = "stoptime"; // track stop time
+    public static final String NUMPOINTS = "numpoints"; // number of track points
+    public static final String TOTALDISTANCE = "totaldistance"; // total distance
+    public static final String TOTALTIME = "totaltime"; // total time
+    public static final String MOVINGTIME = "movingtime"; // moving time
+    public static final String MINLAT = "minlat"; // minimum latitude
+    public static final String MAXLAT = "maxlat"; // maximum latitude
+    public static final String MINLON = "minlon"; // minimum longitude
+    public static final String MAXLON = "maxlon"; // maximum longitude
+    public static final String MAXSPEED = "maxspeed"; // maximum speed
+    public static final String MINELEVATION = "minelevation"; // minimum elevation
+    public static final String MAXELEVATION = "maxelevation"; // maximum elevation
+    public static final String ELEVATIONGAIN = "elevationgain"; // elevation gain
+    public static final String MINGRADE = "mingrade"; // minimum grade
+    public static final String MAXGRADE = "maxgrade"; // maximum grade
+    public static final String ICON = "icon"; // track activity type icon
+    public static final String DRIVEID = "driveid"; // Drive file id
+    public static final String MODIFIEDTIME = "modifiedtime"; // Drive modified time
+    public static final String SHAREDWITHME = "sharedwithme"; // track is shared with me
+    public static final String SHAREDOWNER = "sharedowner"; // track shared owner
+    public static final String CALORIE = "calorie"; // track calorie
+
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + NAME + " STRING, "
+            + DESCRIPTION + " STRING, "
+            + CATEGORY + " STRING, "
+            + STARTID + " INTEGER, "
+            + STOPID + " INTEGER, "
+            + STARTTIME + " INTEGER, "
+            + STOPTIME + " INTEGER, "
+            + NUMPOINTS + " INTEGER, "
+            + TOTALDISTANCE + " FLOAT, "
+            + TOTALTIME + " INTEGER, "
+            + MOVINGTIME + " INTEGER, "
+            + MINLAT + " INTEGER, "
+            + MAXLAT + " INTEGER, "
+            + MINLON + " INTEGER, "
+            + MAXLON + " INTEGER, "
+            + MAXSPEED + " FLOAT, "
+            + MINELEVATION + " FLOAT, "
+            + MAXELEVATION + " FLOAT, "
+            + ELEVATIONGAIN + " FLOAT, "
+            + MINGRADE + " FLOAT, "
+            + MAXGRADE + " FLOAT, "
+            + ICON + " STRING, "
+            + DRIVEID + " STRING, "
+            + MODIFIEDTIME + " INTEGER, "
+            + SHAREDWITHME + " INTEGER, "
+            + SHAREDOWNER + " STRING, "
+            + CALORIE + " FLOAT"
+            + ");";
+}
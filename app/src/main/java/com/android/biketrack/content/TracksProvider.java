@@ -15,9 +15,809 @@
  */
 package com.android.biketrack.content;
 
+import android.content.ContentValues;
+import android.content.Context;
+import android.database.Cursor;
+import android.database.DatabaseUtils;
+import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteOpenHelper;
+import android.database.sqlite.SQLiteStatement;
+import android.location.Location;
+import android.support.annotation.VisibleForTesting;
+import android.util.Log;
+import android.util.LongSparseArray;
+
 /**
+ * SQLite storage for tracks, track points and waypoints.
+ * <p>
+ * The database is opened in write-ahead logging mode, so readers (e.g. an
+ * export running in the background) never block the recording writer. Track
+ * points are inserted through a compiled statement, and
+ * {@link #bulkInsertTrackPoints(long, Location[], int)} commits all the points
+ * in a single transaction.
+ * <p>
+ * The segments of the tracks and the spatial index of the track points are
+ * maintained here as the track points are inserted, in the same transaction,
+ * whatever the caller: recording, log merge, import or restore.
  *
  * @author Gionata Boccalini
  */
-public class TracksProvider { // TODO to be done
+public class TracksProvider {
+
+    private static final String TAG = TracksProvider.class.getSimpleName();
+
+    @VisibleForTesting
+    static final String DATABASE_NAME = "biketrack.db";
+
+    @VisibleForTesting
+    static final int DATABASE_VERSION = 6;
+
+    private final DatabaseHelper mDatabaseHelper;
+
+    // Guards the compiled statements, which are not thread safe
+    private final Object mStatementLock = new Object();
+    private SQLiteStatement mInsertTrackPointStatement;
+
+    // The next track point id, -1L until read from the database
+    private long mNextTrackPointId = -1L;
+
+    // The last segment of the tracks being written, guarded by mStatementLock
+    private final LongSparseArray<SegmentBuilder> mSegmentBuilders =
+            new LongSparseArray<SegmentBuilder>();
+
+    // The last cell run of the tracks being written, guarded by mStatementLock
+    private final LongSparseArray<TrackCellBuilder> mCellBuilders =
+            new LongSparseArray<TrackCellBuilder>();
+
+    /**
+     * Database helper for creating and opening the database.
+     */
+    private static class DatabaseHelper extends SQLiteOpenHelper {
+
+        DatabaseHelper(Context context) {
+            super(context, DATABASE_NAME, null, DATABASE_VERSION);
+            setWriteAheadLoggingEnabled(true);
+        }
+
+        @Override
+        public void onConfigure(SQLiteDatabase db) {
+            /*
+             * With write-ahead logging a NORMAL sync is still safe against process
+             * death, and avoids a fsync on every committed transaction.
+             */
+            db.execSQL("PRAGMA synchronous = NORMAL");
+        }
+
+        @Override
+        public void onCreate(SQLiteDatabase db) {
+            db.execSQL(TracksColumns.CREATE_TABLE);
+            db.execSQL(TrackPointsColumns.CREATE_TABLE);
+            db.execSQL(TrackPointsColumns.CREATE_TRACKID_INDEX);
+            db.execSQL(TrackPointsColumns.CREATE_TRACKID_TIME_INDEX);
+            db.execSQL(WaypointsColumns.CREATE_TABLE);
+            db.execSQL(WaypointsColumns.CREATE_TRACKID_INDEX);
+            db.execSQL(WaypointsColumns.CREATE_TRACKID_TYPE_INDEX);
+            db.execSQL(SegmentsColumns.CREATE_TABLE);
+            db.execSQL(SegmentsColumns.CREATE_TRACKID_INDEX);
+            db.execSQL(TrackCellsColumns.CREATE_TABLE);
+            db.execSQL(TrackCellsColumns.CREATE_CELL_INDEX);
+            db.execSQL(TrackCellsColumns.CREATE_TRACKID_INDEX);
+        }
+
+        @Override
+        public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
+            Log.w(TAG, "Upgrading database from version " + oldVersion + " to " + newVersion);
+            if (oldVersion < 2) {
+                db.execSQL(SegmentsColumns.CREATE_TABLE);
+                db.execSQL(SegmentsColumns.CREATE_TRACKID_INDEX);
+                buildSegments(db);
+            }
+            if (oldVersion < 3) {
+                db.execSQL(TrackPointsColumns.CREATE_TRACKID_TIME_INDEX);
+            }
+            if (oldVersion < 4) {
+                db.execSQL(TrackCellsColumns.CREATE_TABLE);
+                db.execSQL(TrackCellsColumns.CREATE_CELL_INDEX);
+                db.execSQL(TrackCellsColumns.CREATE_TRACKID_INDEX);
+                buildCells(db);
+            }
+            if (oldVersion < 5) {
+                db.execSQL(WaypointsColumns.ADD_STATS_COLUMN);
+                db.execSQL(WaypointsColumns.CREATE_TRACKID_TYPE_INDEX);
+            }
+            if (oldVersion < 6) {
+                db.execSQL(TrackPointsColumns.ADD_RAW_LONGITUDE_COLUMN);
+                db.execSQL(TrackPointsColumns.ADD_RAW_LATITUDE_COLUMN);
+            }
+        }
+
+        /**
+         * Builds the segments of the existing tracks from their track points.
+         */
+        private static void buildSegments(SQLiteDatabase db) {
+            Cursor cursor = db.query(TrackPointsColumns.TABLE_NAME, new String[]{
+                            TrackPointsColumns._ID, TrackPointsColumns.TRACKID,
+                            TrackPointsColumns.LATITUDE, TrackPointsColumns.LONGITUDE,
+                            TrackPointsColumns.TIME, TrackPointsColumns.SPEED},
+                    null, null, null, null,
+                    TrackPointsColumns.TRACKID + ", " + TrackPointsColumns._ID);
+            try {
+                SegmentBuilder segmentBuilder = null;
+                while (cursor.moveToNext()) {
+                    long trackId = cursor.getLong(1);
+                    if (segmentBuilder == null || segmentBuilder.getTrackId() != trackId) {
+                        writeSegment(db, segmentBuilder);
+                        segmentBuilder = new SegmentBuilder(trackId);
+                    }
+                    addToSegment(db, segmentBuilder, cursor.getLong(0), cursor.getInt(2) / 1E6,
+                            cursor.getInt(3) / 1E6, cursor.getLong(4),
+                            cursor.isNull(5) ? Float.NaN : cursor.getFloat(5));
+                }
+                writeSegment(db, segmentBuilder);
+            } finally {
+                cursor.close();
+            }
+        }
+
+        /**
+         * Builds the spatial index of the existing track points.
+         */
+        private static void buildCells(SQLiteDatabase db) {
+            Cursor cursor = db.query(TrackPointsColumns.TABLE_NAME, new String[]{
+                            TrackPointsColumns._ID, TrackPointsColumns.TRACKID,
+                            TrackPointsColumns.LATITUDE, TrackPointsColumns.LONGITUDE},
+                    null, null, null, null,
+                    TrackPointsColumns.TRACKID + ", " + TrackPointsColumns._ID);
+            try {
+                TrackCellBuilder cellBuilder = null;
+                while (cursor.moveToNext()) {
+                    long trackId = cursor.getLong(1);
+                    if (cellBuilder == null || cellBuilder.getTrackId() != trackId) {
+                        writeCell(db, cellBuilder);
+                        cellBuilder = new TrackCellBuilder(trackId);
+                    }
+                    addToCell(db, cellBuilder, cursor.getLong(0), cursor.getInt(2) / 1E6,
+                            cursor.getInt(3) / 1E6);
+                }
+                writeCell(db, cellBuilder);
+            } finally {
+                cursor.close();
+            }
+        }
+    }
+
+    public TracksProvider(Context context) {
+        mDatabaseHelper = new DatabaseHelper(context.getApplicationContext());
+    }
+
+    /**
+     * Gets the database, opening or creating it if needed.
+     */
+    SQLiteDatabase getDatabase() {
+        return mDatabaseHelper.getWritableDatabase();
+    }
+
+    /**
+     * Inserts a track.
+     *
+     * @param values the track values
+     * @return the track id, or -1L if an error occurred
+     */
+    public long insertTrack(ContentValues values) {
+        return getDatabase().insert(TracksColumns.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Updates a track.
+     *
+     * @param trackId the track id
+     * @param values  the track values
+     * @return the number of updated rows
+     */
+    public int updateTrack(long trackId, ContentValues values) {
+        return getDatabase().update(TracksColumns.TABLE_NAME, values,
+                TracksColumns._ID + "=?", new String[]{Long.toString(trackId)});
+    }
+
+    /**
+     * Queries the tracks table.
+     */
+    public Cursor queryTracks(String[] projection, String selection, String[] selectionArgs,
+                              String sortOrder, String limit) {
+        return getDatabase().query(TracksColumns.TABLE_NAME, projection, selection, selectionArgs,
+                null, null, sortOrder, limit);
+    }
+
+    /**
+     * Inserts a waypoint.
+     *
+     * @param values the waypoint values
+     * @return the waypoint id, or -1L if an error occurred
+     */
+    public long insertWaypoint(ContentValues values) {
+        return getDatabase().insert(WaypointsColumns.TABLE_NAME, null, values);
+    }
+
+    /**
+     * Updates a waypoint.
+     *
+     * @param waypointId the waypoint id
+     * @param values     the waypoint values
+     * @return the number of updated rows
+     */
+    public int updateWaypoint(long waypointId, ContentValues values) {
+        return getDatabase().update(WaypointsColumns.TABLE_NAME, values,
+                WaypointsColumns._ID + "=?", new String[]{Long.toString(waypointId)});
+    }
+
+    /**
+     * Deletes a waypoint.
+     *
+     * @param waypointId the waypoint id
+     * @return the number of deleted rows
+     */
+    public int deleteWaypoint(long waypointId) {
+        return getDatabase().delete(WaypointsColumns.TABLE_NAME, WaypointsColumns._ID + "=?",
+                new String[]{Long.toString(waypointId)});
+    }
+
+    /**
+     * Queries the waypoints table.
+     */
+    public Cursor queryWaypoints(String[] projection, String selection, String[] selectionArgs,
+                                 String groupBy, String sortOrder, String limit) {
+        return getDatabase().query(WaypointsColumns.TABLE_NAME, projection, selection,
+                selectionArgs, groupBy, null, sortOrder, limit);
+    }
+
+    /**
+     * Deletes a track, together with its track points and waypoints.
+     *
+     * @param trackId the track id
+     */
+    public void deleteTrack(long trackId) {
+        synchronized (mStatementLock) {
+            SQLiteDatabase db = getDatabase();
+            String[] whereArgs = new String[]{Long.toString(trackId)};
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.TRACKID + "=?", whereArgs);
+                db.delete(WaypointsColumns.TABLE_NAME, WaypointsColumns.TRACKID + "=?", whereArgs);
+                db.delete(SegmentsColumns.TABLE_NAME, SegmentsColumns.TRACKID + "=?", whereArgs);
+                db.delete(TrackCellsColumns.TABLE_NAME, TrackCellsColumns.TRACKID + "=?",
+                        whereArgs);
+                db.delete(TracksColumns.TABLE_NAME, TracksColumns._ID + "=?", whereArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                removeBuilders(trackId);
+            }
+        }
+    }
+
+    /**
+     * Deletes all the tracks, track points and waypoints.
+     */
+    public void deleteAllTracks() {
+        synchronized (mStatementLock) {
+            SQLiteDatabase db = getDatabase();
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete(TrackPointsColumns.TABLE_NAME, null, null);
+                db.delete(WaypointsColumns.TABLE_NAME, null, null);
+                db.delete(SegmentsColumns.TABLE_NAME, null, null);
+                db.delete(TrackCellsColumns.TABLE_NAME, null, null);
+                db.delete(TracksColumns.TABLE_NAME, null, null);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                clearBuilders();
+            }
+        }
+    }
+
+    /**
+     * Deletes the track points and waypoints of a track, keeping the track row.
+     *
+     * @param trackId the track id
+     */
+    public void clearTrack(long trackId) {
+        synchronized (mStatementLock) {
+            SQLiteDatabase db = getDatabase();
+            String[] whereArgs = new String[]{Long.toString(trackId)};
+            db.beginTransactionNonExclusive();
+            try {
+                db.delete(TrackPointsColumns.TABLE_NAME, TrackPointsColumns.TRACKID + "=?", whereArgs);
+                db.delete(WaypointsColumns.TABLE_NAME, WaypointsColumns.TRACKID + "=?", whereArgs);
+                db.delete(SegmentsColumns.TABLE_NAME, SegmentsColumns.TRACKID + "=?", whereArgs);
+                db.delete(TrackCellsColumns.TABLE_NAME, TrackCellsColumns.TRACKID + "=?",
+                        whereArgs);
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                removeBuilders(trackId);
+            }
+        }
+    }
+
+    /**
+     * Runs a task in a single transaction, committed if the task doesn't throw.
+     * The inserts of the task share the transaction.
+     *
+     * @param runnable the task
+     */
+    public void runInTransaction(Runnable runnable) {
+        synchronized (mStatementLock) {
+            SQLiteDatabase db = getDatabase();
+            boolean successful = false;
+            db.beginTransactionNonExclusive();
+            try {
+                runnable.run();
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                db.endTransaction();
+                if (!successful) {
+                    // The segments and cells written by the task are rolled back
+                    clearBuilders();
+                }
+            }
+        }
+    }
+
+    /**
+     * Allocates a track point id. Track point ids are assigned here rather than
+     * by SQLite, so a point can get its id before it is written, see
+     * {@link BufferedTracksProviderUtils}.
+     *
+     * @return the track point id
+     */
+    public long allocateTrackPointId() {
+        synchronized (mStatementLock) {
+            if (mNextTrackPointId < 0) {
+                mNextTrackPointId = DatabaseUtils.longForQuery(getDatabase(),
+                        "SELECT IFNULL(MAX(" + TrackPointsColumns._ID + "), 0) + 1 FROM "
+                                + TrackPointsColumns.TABLE_NAME, null);
+            }
+            return mNextTrackPointId++;
+        }
+    }
+
+    /**
+     * Inserts a track point.
+     *
+     * @param trackId  the track id
+     * @param location the location
+     * @return the track point id, or -1L if an error occurred
+     */
+    public long insertTrackPoint(long trackId, Location location) {
+        synchronized (mStatementLock) {
+            SQLiteDatabase db = getDatabase();
+            SQLiteStatement statement = getInsertTrackPointStatement();
+            boolean successful = false;
+            db.beginTransactionNonExclusive();
+            try {
+                bindTrackPoint(statement, trackId, location, allocateTrackPointId());
+                long trackPointId = statement.executeInsert();
+                if (trackPointId != -1L) {
+                    SegmentBuilder segmentBuilder = getSegmentBuilder(db, trackId);
+                    TrackCellBuilder cellBuilder = getCellBuilder(db, trackId);
+                    addToSegment(db, segmentBuilder, trackPointId, location);
+                    addToCell(db, cellBuilder, trackPointId, location.getLatitude(),
+                            location.getLongitude());
+                    writeSegment(db, segmentBuilder);
+                    writeCell(db, cellBuilder);
+                }
+                db.setTransactionSuccessful();
+                successful = true;
+                return trackPointId;
+            } finally {
+                db.endTransaction();
+                if (!successful) {
+                    removeBuilders(trackId);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inserts multiple track points in a single transaction.
+     *
+     * @param trackId   the track id
+     * @param locations the locations
+     * @param length    the number of locations (from the beginning of the array)
+     *                  to insert
+     * @return the number of inserted track points
+     */
+    public int bulkInsertTrackPoints(long trackId, Location[] locations, int length) {
+        int inserted = 0;
+
+        // Take the statement lock first, a writer waiting on it must not hold the database
+        synchronized (mStatementLock) {
+            SQLiteDatabase db = getDatabase();
+            SQLiteStatement statement = getInsertTrackPointStatement();
+            boolean successful = false;
+            db.beginTransactionNonExclusive();
+            try {
+                SegmentBuilder segmentBuilder = getSegmentBuilder(db, trackId);
+                TrackCellBuilder cellBuilder = getCellBuilder(db, trackId);
+                for (int i = 0; i < length; i++) {
+                    bindTrackPoint(statement, trackId, locations[i], allocateTrackPointId());
+                    long trackPointId = statement.executeInsert();
+                    if (trackPointId != -1L) {
+                        addToSegment(db, segmentBuilder, trackPointId, locations[i]);
+                        addToCell(db, cellBuilder, trackPointId, locations[i].getLatitude(),
+                                locations[i].getLongitude());
+                        inserted++;
+                    }
+                }
+                writeSegment(db, segmentBuilder);
+                writeCell(db, cellBuilder);
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                db.endTransaction();
+                if (!successful) {
+                    removeBuilders(trackId);
+                }
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Inserts a range of columnar track points in a single transaction. Points
+     * with a -1L id get a new id, which is written back into the container.
+     *
+     * @param trackId     the track id
+     * @param trackPoints the track points
+     * @param offset      the index of the first point to insert
+     * @param length      the number of points to insert
+     * @return the number of inserted track points
+     */
+    public int bulkInsertTrackPoints(long trackId, TrackPoints trackPoints, int offset, int length) {
+        int inserted = 0;
+
+        synchronized (mStatementLock) {
+            SQLiteDatabase db = getDatabase();
+            SQLiteStatement statement = getInsertTrackPointStatement();
+            boolean successful = false;
+            db.beginTransactionNonExclusive();
+            try {
+                SegmentBuilder segmentBuilder = getSegmentBuilder(db, trackId);
+                TrackCellBuilder cellBuilder = getCellBuilder(db, trackId);
+                for (int i = offset; i < offset + length; i++) {
+                    if (trackPoints.getId(i) < 0) {
+                        trackPoints.setId(i, allocateTrackPointId());
+                    }
+                    bindTrackPoint(statement, trackId, trackPoints, i);
+                    long trackPointId = statement.executeInsert();
+                    trackPoints.setId(i, trackPointId);
+                    if (trackPointId != -1L) {
+                        addToSegment(db, segmentBuilder, trackPointId, trackPoints.getLatitude(i),
+                                trackPoints.getLongitude(i), trackPoints.getTime(i),
+                                trackPoints.getSpeed(i));
+                        addToCell(db, cellBuilder, trackPointId, trackPoints.getLatitude(i),
+                                trackPoints.getLongitude(i));
+                        inserted++;
+                    }
+                }
+                writeSegment(db, segmentBuilder);
+                writeCell(db, cellBuilder);
+                db.setTransactionSuccessful();
+                successful = true;
+            } finally {
+                db.endTransaction();
+                if (!successful) {
+                    removeBuilders(trackId);
+                }
+            }
+        }
+        return inserted;
+    }
+
+    /**
+     * Queries the track points table.
+     */
+    public Cursor queryTrackPoints(String[] projection, String selection, String[] selectionArgs,
+                                   String sortOrder, String limit) {
+        return getDatabase().query(TrackPointsColumns.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, sortOrder, limit);
+    }
+
+    /**
+     * Queries the segments table.
+     */
+    public Cursor querySegments(String[] projection, String selection, String[] selectionArgs,
+                                String sortOrder, String limit) {
+        return getDatabase().query(SegmentsColumns.TABLE_NAME, projection, selection,
+                selectionArgs, null, null, sortOrder, limit);
+    }
+
+    /**
+     * Runs a raw query, e.g. a join of the track cells and the track points.
+     */
+    public Cursor rawQuery(String sql, String[] selectionArgs) {
+        return getDatabase().rawQuery(sql, selectionArgs);
+    }
+
+    /**
+     * Closes the database.
+     */
+    public void close() {
+        synchronized (mStatementLock) {
+            if (mInsertTrackPointStatement != null) {
+                mInsertTrackPointStatement.close();
+                mInsertTrackPointStatement = null;
+            }
+        }
+        mDatabaseHelper.close();
+    }
+
+    /**
+     * Gets the compiled insert track point statement. Must be called holding
+     * {@link #mStatementLock}.
+     */
+    private SQLiteStatement getInsertTrackPointStatement() {
+        if (mInsertTrackPointStatement == null) {
+            mInsertTrackPointStatement = getDatabase().compileStatement(
+                    TrackPointsColumns.INSERT_STATEMENT);
+        }
+        return mInsertTrackPointStatement;
+    }
+
+    /**
+     * Gets the builder of the last segment of a track, restoring it from the
+     * database if needed. Must be called holding {@link #mStatementLock}.
+     *
+     * @param db      the database
+     * @param trackId the track id
+     */
+    private SegmentBuilder getSegmentBuilder(SQLiteDatabase db, long trackId) {
+        SegmentBuilder segmentBuilder = mSegmentBuilders.get(trackId);
+        if (segmentBuilder != null) {
+            return segmentBuilder;
+        }
+        segmentBuilder = new SegmentBuilder(trackId);
+        String trackIdArg = Long.toString(trackId);
+        Cursor cursor = db.query(SegmentsColumns.TABLE_NAME, null, SegmentsColumns.TRACKID + "=?",
+                new String[]{trackIdArg}, null, null, SegmentsColumns._ID + " DESC", "1");
+        try {
+            if (cursor.moveToFirst()) {
+                Segment segment = createSegment(cursor);
+
+                // The segment is still open if no pause or break point follows it
+                Cursor pointCursor = db.query(TrackPointsColumns.TABLE_NAME, new String[]{
+                                TrackPointsColumns._ID, TrackPointsColumns.LATITUDE,
+                                TrackPointsColumns.LONGITUDE},
+                        TrackPointsColumns.TRACKID + "=? AND " + TrackPointsColumns._ID + ">=?",
+                        new String[]{trackIdArg, Long.toString(segment.getStopId())},
+                        null, null, TrackPointsColumns._ID + " DESC", "1");
+                try {
+                    if (pointCursor.moveToFirst() && pointCursor.getLong(0) == segment.getStopId()) {
+                        segmentBuilder.restore(segment, pointCursor.getInt(1) / 1E6,
+                                pointCursor.getInt(2) / 1E6);
+                    }
+                } finally {
+                    pointCursor.close();
+                }
+            }
+        } finally {
+            cursor.close();
+        }
+        mSegmentBuilders.put(trackId, segmentBuilder);
+        return segmentBuilder;
+    }
+
+    /**
+     * Adds an inserted location to the last segment of a track.
+     */
+    private static void addToSegment(SQLiteDatabase db, SegmentBuilder segmentBuilder,
+                                     long trackPointId, Location location) {
+        addToSegment(db, segmentBuilder, trackPointId, location.getLatitude(),
+                location.getLongitude(), location.getTime(),
+                location.hasSpeed() ? location.getSpeed() : Float.NaN);
+    }
+
+    /**
+     * Adds an inserted track point to the last segment of a track. The segment
+     * is written before being closed by a pause or break point.
+     */
+    private static void addToSegment(SQLiteDatabase db, SegmentBuilder segmentBuilder,
+                                     long trackPointId, double latitude, double longitude,
+                                     long time, float speed) {
+        if (segmentBuilder.closes(latitude)) {
+            writeSegment(db, segmentBuilder);
+        }
+        segmentBuilder.add(trackPointId, latitude, longitude, time, speed);
+    }
+
+    /**
+     * Writes the last segment of a track, if changed.
+     *
+     * @param db             the database
+     * @param segmentBuilder the segment builder, can be null
+     */
+    private static void writeSegment(SQLiteDatabase db, SegmentBuilder segmentBuilder) {
+        if (segmentBuilder == null || !segmentBuilder.isDirty()) {
+            return;
+        }
+        ContentValues values = segmentBuilder.createContentValues();
+        if (segmentBuilder.getSegmentId() == -1L) {
+            segmentBuilder.setSegmentId(db.insert(SegmentsColumns.TABLE_NAME, null, values));
+        } else {
+            db.update(SegmentsColumns.TABLE_NAME, values, SegmentsColumns._ID + "=?",
+                    new String[]{Long.toString(segmentBuilder.getSegmentId())});
+        }
+        segmentBuilder.setWritten();
+    }
+
+    /**
+     * Gets the builder of the last cell run of a track, restoring it from the
+     * database if needed. Must be called holding {@link #mStatementLock}.
+     *
+     * @param db      the database
+     * @param trackId the track id
+     */
+    private TrackCellBuilder getCellBuilder(SQLiteDatabase db, long trackId) {
+        TrackCellBuilder cellBuilder = mCellBuilders.get(trackId);
+        if (cellBuilder != null) {
+            return cellBuilder;
+        }
+        cellBuilder = new TrackCellBuilder(trackId);
+        Cursor cursor = db.query(TrackCellsColumns.TABLE_NAME, new String[]{
+                        TrackCellsColumns._ID, TrackCellsColumns.CELL, TrackCellsColumns.STARTID,
+                        TrackCellsColumns.STOPID},
+                TrackCellsColumns.TRACKID + "=?", new String[]{Long.toString(trackId)},
+                null, null, TrackCellsColumns._ID + " DESC", "1");
+        try {
+            if (cursor.moveToFirst()) {
+                cellBuilder.restore(cursor.getLong(0), cursor.getLong(1), cursor.getLong(2),
+                        cursor.getLong(3));
+            }
+        } finally {
+            cursor.close();
+        }
+        mCellBuilders.put(trackId, cellBuilder);
+        return cellBuilder;
+    }
+
+    /**
+     * Adds an inserted track point to the last cell run of a track. The run is
+     * written before a point in another cell starts a new one.
+     */
+    private static void addToCell(SQLiteDatabase db, TrackCellBuilder cellBuilder,
+                                  long trackPointId, double latitude, double longitude) {
+        if (cellBuilder.starts(latitude, longitude)) {
+            writeCell(db, cellBuilder);
+        }
+        cellBuilder.add(trackPointId, latitude, longitude);
+    }
+
+    /**
+     * Writes the last cell run of a track, if changed.
+     *
+     * @param db          the database
+     * @param cellBuilder the cell builder, can be null
+     */
+    private static void writeCell(SQLiteDatabase db, TrackCellBuilder cellBuilder) {
+        if (cellBuilder == null || !cellBuilder.isDirty()) {
+            return;
+        }
+        ContentValues values = cellBuilder.createContentValues();
+        if (cellBuilder.getRowId() == -1L) {
+            cellBuilder.setRowId(db.insert(TrackCellsColumns.TABLE_NAME, null, values));
+        } else {
+            db.update(TrackCellsColumns.TABLE_NAME, values, TrackCellsColumns._ID + "=?",
+                    new String[]{Long.toString(cellBuilder.getRowId())});
+        }
+        cellBuilder.setWritten();
+    }
+
+    /**
+     * Drops the builders of a track, to be restored from the database. Must be
+     * called holding {@link #mStatementLock}.
+     */
+    private void removeBuilders(long trackId) {
+        mSegmentBuilders.remove(trackId);
+        mCellBuilders.remove(trackId);
+    }
+
+    /**
+     * Drops the builders of all the tracks. Must be called holding
+     * {@link #mStatementLock}.
+     */
+    private void clearBuilders() {
+        mSegmentBuilders.clear();
+        mCellBuilders.clear();
+    }
+
+    /**
+     * Creates a {@link Segment} from a cursor on all the columns of the segments
+     * table.
+     *
+     * @param cursor the cursor
+     */
+    static Segment createSegment(Cursor cursor) {
+        return new Segment(
+                cursor.getLong(cursor.getColumnIndexOrThrow(SegmentsColumns._ID)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(SegmentsColumns.TRACKID)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(SegmentsColumns.STARTID)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(SegmentsColumns.STOPID)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(SegmentsColumns.STARTTIME)),
+                cursor.getLong(cursor.getColumnIndexOrThrow(SegmentsColumns.STOPTIME)),
+                cursor.getInt(cursor.getColumnIndexOrThrow(SegmentsColumns.NUMPOINTS)),
+                cursor.getDouble(cursor.getColumnIndexOrThrow(SegmentsColumns.DISTANCE)),
+                cursor.getFloat(cursor.getColumnIndexOrThrow(SegmentsColumns.MAXSPEED)));
+    }
+
+    /**
+     * Binds a location to the insert track point statement.
+     *
+     * @param statement the statement
+     * @param trackId   the track id
+     * @param location  the location
+     * @param id        the track point id
+     */
+    private static void bindTrackPoint(SQLiteStatement statement, long trackId, Location location,
+                                       long id) {
+        statement.clearBindings();
+        statement.bindLong(1, trackId);
+        statement.bindLong(2, (int) (location.getLongitude() * 1E6));
+        statement.bindLong(3, (int) (location.getLatitude() * 1E6));
+        statement.bindLong(4, location.getTime());
+        if (location.hasAltitude()) {
+            statement.bindDouble(5, location.getAltitude());
+        }
+        if (location.hasAccuracy()) {
+            statement.bindDouble(6, location.getAccuracy());
+        }
+        if (location.hasSpeed()) {
+            statement.bindDouble(7, location.getSpeed());
+        }
+        if (location.hasBearing()) {
+            statement.bindDouble(8, location.getBearing());
+        }
+        if (location instanceof TrackLocation && ((TrackLocation) location).hasRawCoordinates()) {
+            TrackLocation trackLocation = (TrackLocation) location;
+            statement.bindLong(9, (int) (trackLocation.getRawLongitude() * 1E6));
+            statement.bindLong(10, (int) (trackLocation.getRawLatitude() * 1E6));
+        }
+        statement.bindLong(11, id);
+    }
+
+    /**
+     * Binds a columnar track point to the insert track point statement.
+     *
+     * @param statement   the statement
+     * @param trackId     the track id
+     * @param trackPoints the track points
+     * @param index       the point index
+     */
+    private static void bindTrackPoint(SQLiteStatement statement, long trackId,
+                                       TrackPoints trackPoints, int index) {
+        statement.clearBindings();
+        statement.bindLong(1, trackId);
+        statement.bindLong(2, (int) (trackPoints.getLongitude(index) * 1E6));
+        statement.bindLong(3, (int) (trackPoints.getLatitude(index) * 1E6));
+        statement.bindLong(4, trackPoints.getTime(index));
+        bindOptional(statement, 5, trackPoints.getAltitude(index));
+        bindOptional(statement, 6, trackPoints.getAccuracy(index));
+        bindOptional(statement, 7, trackPoints.getSpeed(index));
+        bindOptional(statement, 8, trackPoints.getBearing(index));
+        if (trackPoints.hasRawCoordinates(index)) {
+            statement.bindLong(9, (int) (trackPoints.getRawLongitude(index) * 1E6));
+            statement.bindLong(10, (int) (trackPoints.getRawLatitude(index) * 1E6));
+        }
+        statement.bindLong(11, trackPoints.getId(index));
+    }
+
+    /**
+     * Binds an optional value, left NULL when the value is NaN.
+     */
+    private static void bindOptional(SQLiteStatement statement, int index, float value) {
+        if (!Float.isNaN(value)) {
+            statement.bindDouble(index, value);
+        }
+    }
 }
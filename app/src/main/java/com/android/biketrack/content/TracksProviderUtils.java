@@ -22,6 +22,9 @@ import android.location.Location;
 import android.location.LocationManager;
 import android.net.Uri;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.Iterator;
 import java.util.List;
 
@@ -33,10 +36,10 @@ import java.util.List;
 public interface TracksProviderUtils {
 
     /**
-     * The authority (the first part of the URI) for the My Tracks content
+     * The authority (the first part of the URI) for the BikeTrack tracks
      * provider.
      */
-    public static final String AUTHORITY = "com.google.android.maps.mytracks";
+    public static final String AUTHORITY = "com.android.biketrack";
 
     /**
      * Clears a track. Removes waypoints and trackpoints. Only keeps the track id.
@@ -66,6 +69,15 @@ public interface TracksProviderUtils {
 
     public long[] getAllTrackIds();
 
+    /**
+     * Gets a page of track summaries, by increasing track id. Page through all
+     * the tracks by passing the id of the last summary of the previous page.
+     *
+     * @param afterTrackId the track id to start after, -1L for the first page
+     * @param limit        the maximum number of summaries
+     */
+    public List<TrackSummary> getTrackSummaries(long afterTrackId, int limit);
+
     /**
      * Gets the last track. Returns null if doesn't exist.
      */
@@ -102,7 +114,8 @@ public interface TracksProviderUtils {
     /**
      * Deletes a waypoint. If deleting a statistics waypoint, this will also
      * correct the next statistics waypoint after the deleted one to reflect the
-     * deletion. The generator is used to update the next statistics waypoint.
+     * deletion. Only its statistics are corrected: its description, written
+     * when it was created, is left unchanged.
      *
      * @param waypointId the waypoint id
      */
@@ -148,6 +161,24 @@ public interface TracksProviderUtils {
      */
     public int getWaypointCount(long trackId);
 
+    /**
+     * Gets a cursor on the waypoints of a track, by increasing id. The caller
+     * owns the cursor and must close it.
+     *
+     * @param trackId       the track id
+     * @param minWaypointId the minimum waypoint id, -1L to ignore
+     * @param maxWaypoints  the maximum number of waypoints, -1 for all
+     */
+    public Cursor getWaypointCursor(long trackId, long minWaypointId, int maxWaypoints);
+
+    /**
+     * Creates a {@link Waypoint} from a cursor returned by
+     * {@link #getWaypointCursor(long, long, int)}.
+     *
+     * @param cursor the cursor pointing to the waypoint
+     */
+    public Waypoint createWaypoint(Cursor cursor);
+
     /**
      * Inserts a waypoint.
      *
@@ -174,6 +205,36 @@ public interface TracksProviderUtils {
      */
     public int bulkInsertTrackPoint(Location[] locations, int length, long trackId);
 
+    /**
+     * Inserts multiple columnar track points. The ids of the inserted points are
+     * set in the container.
+     *
+     * @param trackPoints the track points
+     * @param trackId     the track id
+     * @return the number of points inserted
+     */
+    public int bulkInsertTrackPoints(TrackPoints trackPoints, long trackId);
+
+    /**
+     * Writes the points of a track, encoded with {@link TrackPointCodec}. The
+     * points are streamed, the track is never loaded as a whole.
+     *
+     * @param trackId      the track id
+     * @param outputStream the output stream, not closed
+     * @return the number of points written
+     */
+    public int writeTrackPoints(long trackId, OutputStream outputStream) throws IOException;
+
+    /**
+     * Reads points encoded with {@link TrackPointCodec} and inserts them in a
+     * track, in batches.
+     *
+     * @param trackId     the track id
+     * @param inputStream the input stream, not closed
+     * @return the number of points inserted
+     */
+    public int readTrackPoints(long trackId, InputStream inputStream) throws IOException;
+
     /**
      * Gets the first location id for a track. Returns -1L if it doesn't exist.
      *
@@ -197,6 +258,76 @@ public interface TracksProviderUtils {
      */
     public long getTrackPointId(long trackId, Location location);
 
+    /**
+     * Gets the id of the last valid track point of a track at or before a time.
+     *
+     * @param trackId the track id
+     * @param time    the time
+     * @return the track point id, -1L if none
+     */
+    public long seekToTime(long trackId, long time);
+
+    /**
+     * Creates an iterator over the track points of a track between two times,
+     * inclusive, pause and segment break points included. The track points of
+     * a track are in time order. {@link LocationIterator#close()} must be
+     * called.
+     *
+     * @param trackId         the track id
+     * @param startTime       the start time
+     * @param endTime         the end time
+     * @param locationFactory the location factory
+     */
+    public LocationIterator rangeByTime(long trackId, long startTime, long endTime,
+                                        LocationFactory locationFactory);
+
+    /**
+     * Gets the position of a track at a time, interpolated between the valid
+     * track points before and after it. Returns null if the time is outside the
+     * track or in a pause.
+     *
+     * @param trackId the track id
+     * @param time    the time
+     */
+    public Location interpolatedPositionAt(long trackId, long time);
+
+    /**
+     * Gets the ids of the tracks with a valid track point in a box, by
+     * increasing id. The box crosses the antimeridian if west is greater than
+     * east.
+     *
+     * @param south the minimum latitude
+     * @param west  the minimum longitude
+     * @param north the maximum latitude
+     * @param east  the maximum longitude
+     */
+    public long[] getTrackIdsInBox(double south, double west, double north, double east);
+
+    /**
+     * Gets the valid track points of all the tracks in a box, by increasing id.
+     * The box crosses the antimeridian if west is greater than east.
+     *
+     * @param south       the minimum latitude
+     * @param west        the minimum longitude
+     * @param north       the maximum latitude
+     * @param east        the maximum longitude
+     * @param limit       the maximum number of track points
+     * @param trackPoints the track points to append to
+     * @return the number of appended track points
+     */
+    public int getTrackPointsInBox(double south, double west, double north, double east,
+                                   int limit, TrackPoints trackPoints);
+
+    /**
+     * Gets the valid track points of all the tracks nearest to a position,
+     * nearest first. Only the track points within about 30 km are searched.
+     *
+     * @param latitude  the latitude
+     * @param longitude the longitude
+     * @param count     the maximum number of track points
+     */
+    public TrackPoints getNearestTrackPoints(double latitude, double longitude, int count);
+
     /**
      * Gets the first valid location for a track. Returns null if it doesn't
      * exist.
@@ -218,6 +349,14 @@ public interface TracksProviderUtils {
      */
     public Location getLastValidTrackPoint();
 
+    /**
+     * Gets the segments of a track, in track order. A segment is a run of valid
+     * track points between two pause or segment break points.
+     *
+     * @param trackId the track id
+     */
+    public List<Segment> getSegments(long trackId);
+
     /**
      * Creates a new read-only iterator over a given track's points. It provides a
      * lightweight way of iterating over long tracks without failing due to the
@@ -247,6 +386,28 @@ public interface TracksProviderUtils {
      */
     public Uri insertTrackPoint(Location location, long trackId);
 
+    /**
+     * Writes the changes buffered in memory, if any, to the storage.
+     */
+    public void flush();
+
+    /**
+     * Runs a task in a single transaction, committed if the task doesn't throw.
+     * The writes of the task share the transaction, e.g. to import many small
+     * tracks without a commit each.
+     *
+     * @param runnable the task
+     */
+    public void runInTransaction(Runnable runnable);
+
+    /**
+     * Sets the source of the track changes not yet given to
+     * {@link #updateTrack(Track)}, asked to write them before a track is read.
+     *
+     * @param trackUpdateSource the source, null to remove it
+     */
+    public void setTrackUpdateSource(TrackUpdateSource trackUpdateSource);
+
     /**
      * A lightweight wrapper around the original {@link Cursor} with a method to
      * clean up.
@@ -264,6 +425,21 @@ public interface TracksProviderUtils {
         public void close();
     }
 
+    /**
+     * A holder of track changes not yet written, e.g. the recording track.
+     */
+    public interface TrackUpdateSource {
+
+        /**
+         * Writes the changes of a track with {@link #updateTrack(Track)}. Called
+         * without holding any lock of the tracks provider utils, so the source
+         * must not hold its own locks while writing.
+         *
+         * @param trackId the track id, -1L for all the tracks
+         */
+        public void flushTrackUpdates(long trackId);
+    }
+
     /**
      * A factory for creating new {@link Location}.
      */
@@ -293,7 +469,7 @@ public interface TracksProviderUtils {
     public static class Factory {
 
         private static Factory instance = new Factory();
-        private static TracksProviderUtilsImpl mTrackProviderImpl = null;
+        private static TracksProviderUtils mTrackProviderImpl = null;
 
         /**
          * Creates an instance of {@link TracksProviderUtils}.
@@ -328,10 +504,13 @@ public interface TracksProviderUtils {
          * @param context the context
          */
         protected TracksProviderUtils newForContext(Context context) {
-            if (mTrackProviderImpl == null) {
-                mTrackProviderImpl = new TracksProviderUtilsImpl(context.getContentResolver());
+            synchronized (Factory.class) {
+                if (mTrackProviderImpl == null) {
+                    TracksProvider tracksProvider = new TracksProvider(context);
+                    mTrackProviderImpl = new BufferedTracksProviderUtils(
+                            new TracksProviderUtilsImpl(tracksProvider), tracksProvider);
+                }
             }
-//            TODO return new TracksProviderUtilsImpl(context.getContentResolver());
             return mTrackProviderImpl;
         }
     }
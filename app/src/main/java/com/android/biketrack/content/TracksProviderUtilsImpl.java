@@ -16,15 +16,24 @@
 
 package com.android.biketrack.content;
 
-import android.content.ContentResolver;
+import android.content.ContentUris;
+import android.content.ContentValues;
 import android.content.Context;
+import android.database.Cursor;
 import android.location.Location;
 import android.net.Uri;
+import android.util.Log;
 
 import com.android.biketrack.stats.TripStatistics;
 
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 import java.util.List;
+import java.util.NoSuchElementException;
 
 /**
  * {@link TracksProviderUtils} implementation.
@@ -37,202 +46,1613 @@ public class TracksProviderUtilsImpl implements TracksProviderUtils {
 
     private static final int MAX_LATITUDE = 90000000;
 
-    private final ContentResolver mContentResolver;
-    private int defaultCursorBatchSize = 2000;
+    private static final String[] TRACK_POINT_PROJECTION = new String[]{
+            TrackPointsColumns._ID,
+            TrackPointsColumns.LONGITUDE,
+            TrackPointsColumns.LATITUDE,
+            TrackPointsColumns.TIME,
+            TrackPointsColumns.ALTITUDE,
+            TrackPointsColumns.ACCURACY,
+            TrackPointsColumns.SPEED,
+            TrackPointsColumns.BEARING,
+            TrackPointsColumns.RAW_LONGITUDE,
+            TrackPointsColumns.RAW_LATITUDE};
 
+    private static final String[] TRACK_SUMMARY_PROJECTION = new String[]{
+            TracksColumns._ID,
+            TracksColumns.NAME,
+            TracksColumns.CATEGORY,
+            TracksColumns.STARTTIME,
+            TracksColumns.STOPTIME,
+            TracksColumns.TOTALDISTANCE,
+            TracksColumns.MOVINGTIME,
+            TracksColumns.MINLAT,
+            TracksColumns.MAXLAT,
+            TracksColumns.MINLON,
+            TracksColumns.MAXLON};
 
-    // Temporary implementation of track DB.
-    private ArrayList<Track> mTracks = new ArrayList<Track>();
+    // TRACK_POINT_PROJECTION, from the track points table joined as p
+    private static final String TRACK_POINT_JOIN_COLUMNS = "p." + TrackPointsColumns._ID
+            + ", p." + TrackPointsColumns.LONGITUDE
+            + ", p." + TrackPointsColumns.LATITUDE
+            + ", p." + TrackPointsColumns.TIME
+            + ", p." + TrackPointsColumns.ALTITUDE
+            + ", p." + TrackPointsColumns.ACCURACY
+            + ", p." + TrackPointsColumns.SPEED
+            + ", p." + TrackPointsColumns.BEARING
+            + ", p." + TrackPointsColumns.RAW_LONGITUDE
+            + ", p." + TrackPointsColumns.RAW_LATITUDE;
 
-    public TracksProviderUtilsImpl(ContentResolver contentResolver) {
-        this.mContentResolver = contentResolver;
+    // The track cells of a track point, joined as c and p
+    private static final String TRACK_CELLS_JOIN = " FROM " + TrackCellsColumns.TABLE_NAME
+            + " c JOIN " + TrackPointsColumns.TABLE_NAME + " p ON p."
+            + TrackPointsColumns.TRACKID + "=c." + TrackCellsColumns.TRACKID + " AND p."
+            + TrackPointsColumns._ID + " BETWEEN c." + TrackCellsColumns.STARTID + " AND c."
+            + TrackCellsColumns.STOPID;
 
-        Track track = new Track();
-        TripStatistics tripStatistics = track.getTripStatistics();
+    // Beyond this number of latitude bands, a box query scans the track points
+    private static final int MAX_BOX_BANDS = 200;
+
+    // The number of rings of cells searched for the nearest track points
+    private static final int MAX_NEAREST_RINGS = 30;
+
+    // The floor of the width of a cell over its height, reached at about 84
+    // degrees of latitude. Nearer to the poles, the nearest track points are
+    // approximate
+    private static final double MIN_CELL_WIDTH = 0.1;
 
-        track.setId(0);
-        track.setName("Test track");
-        track.setDescription("Test description");
-        track.setCategory("Test category");
-        track.setStartId(0);
-        //track.setStopId(100);
-        tripStatistics.setStartTime(998888);
-        tripStatistics.setStopTime(2323782);
-        track.setNumberOfPoints(10);
-        tripStatistics.setTotalDistance(100.44);
-        tripStatistics.setTotalTime(34224444);
-        tripStatistics.setMovingTime(324243);
+    private static final double METERS_PER_DEGREE = 111195.0;
+
+    // Column indexes in TRACK_POINT_PROJECTION
+    private static final int ID_INDEX = 0;
+    private static final int LONGITUDE_INDEX = 1;
+    private static final int LATITUDE_INDEX = 2;
+    private static final int TIME_INDEX = 3;
+    private static final int ALTITUDE_INDEX = 4;
+    private static final int ACCURACY_INDEX = 5;
+    private static final int SPEED_INDEX = 6;
+    private static final int BEARING_INDEX = 7;
+    private static final int RAW_LONGITUDE_INDEX = 8;
+    private static final int RAW_LATITUDE_INDEX = 9;
+
+    private final TracksProvider mTracksProvider;
+    private final TrackIndex mTrackIndex = new TrackIndex();
+    private final TrackTailCache mTailCache = new TrackTailCache();
+    private final WaypointCounters mWaypointCounters = new WaypointCounters();
+    private volatile TrackUpdateSource mTrackUpdateSource;
+    private int defaultCursorBatchSize = 2000;
+
+    public TracksProviderUtilsImpl(TracksProvider tracksProvider) {
+        this.mTracksProvider = tracksProvider;
+    }
 
-        mTracks.add(track);
+    /**
+     * Sets the number of track points read per query by the iterators and
+     * written per transaction by {@link #readTrackPoints(long, InputStream)}.
+     *
+     * @param defaultCursorBatchSize the batch size
+     */
+    public void setDefaultCursorBatchSize(int defaultCursorBatchSize) {
+        if (defaultCursorBatchSize <= 0) {
+            throw new IllegalArgumentException("defaultCursorBatchSize must be positive");
+        }
+        this.defaultCursorBatchSize = defaultCursorBatchSize;
     }
 
     @Override
-    public void clearTrack(Context context, long trackId) {
-        //deleteTrackPointsAndWaypoints(context, trackId);
-        Track track = new Track();
-        track.setId(trackId);
-        updateTrack(track);
+    public void clearTrack(Context context, final long trackId) {
+        // A reader never sees the points deleted but the track not reset
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                mTracksProvider.clearTrack(trackId);
+                Track track = new Track();
+                track.setId(trackId);
+                updateTrack(track);
+            }
+        });
+        mTailCache.invalidate(trackId);
+        mWaypointCounters.invalidate(trackId);
     }
 
     @Override
     public void deleteAllTracks(Context context) {
-        mTracks.clear();
+        mTracksProvider.deleteAllTracks();
+        mTrackIndex.removeAll();
+        mTailCache.invalidateAll();
+        mWaypointCounters.invalidateAll();
     }
 
     @Override
     public void deleteTrack(Context context, long trackId) {
-        mTracks.remove((int) trackId);
+        mTracksProvider.deleteTrack(trackId);
+        mTrackIndex.remove(trackId);
+        mTailCache.invalidate(trackId);
+        mWaypointCounters.invalidate(trackId);
     }
 
     @Override
     public List<Track> getAllTracks() {
-        return mTracks.subList(0, mTracks.size() - 1);
+        flushTrackUpdates(-1L);
+        return getTrackIndex().getAll();
     }
 
-    public long[] getAllTrackIds() { // TODO
-        long[] ids = new long[mTracks.size()];
+    @Override
+    public long[] getAllTrackIds() {
+        return getTrackIndex().getIds();
+    }
 
-        for (int i = 0; i < mTracks.size(); i++) {
-            ids[i] = mTracks.get(i).getId();
+    @Override
+    public List<TrackSummary> getTrackSummaries(long afterTrackId, int limit) {
+        flushTrackUpdates(-1L);
+        ArrayList<TrackSummary> trackSummaries = new ArrayList<TrackSummary>();
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryTracks(TRACK_SUMMARY_PROJECTION,
+                    TracksColumns._ID + ">?", new String[]{Long.toString(afterTrackId)},
+                    TracksColumns._ID, Integer.toString(limit));
+            if (cursor != null) {
+                trackSummaries.ensureCapacity(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    trackSummaries.add(createTrackSummary(cursor));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
         }
-
-        return ids;
+        return trackSummaries;
     }
 
     @Override
     public Track getLastTrack() {
-        return  mTracks.get(mTracks.size() - 1);
+        flushTrackUpdates(-1L);
+        return getTrackIndex().getLast();
     }
 
     @Override
     public Track getTrack(long trackId) {
-        if (trackId >= 0 && trackId < mTracks.size()) {
-            return mTracks.get((int) trackId);
+        if (trackId < 0) {
+            return null;
         }
-        return null;
+        flushTrackUpdates(trackId);
+        return getTrackIndex().get(trackId);
     }
 
     @Override
     public Uri insertTrack(Track track) {
-        track.setId(mTracks.size());
-        mTracks.add(track);
-        return Uri.parse("http://example.com/foo/bar/" + track.getId());
+        long trackId = mTracksProvider.insertTrack(createContentValues(track));
+        if (trackId != -1L) {
+            Track insertedTrack = track.copyWithoutTrackPoints();
+            insertedTrack.setId(trackId);
+            mTrackIndex.put(insertedTrack);
+        }
+        return ContentUris.withAppendedId(TracksColumns.CONTENT_URI, trackId);
     }
 
     @Override
     public void updateTrack(Track track) {
-        mTracks.set((int) track.getId(), track);
+        if (mTracksProvider.updateTrack(track.getId(), createContentValues(track)) > 0) {
+            mTrackIndex.put(track);
+        }
     }
 
     @Override
-    public void deleteWaypoint(Context context, long waypointId) {
+    public void deleteWaypoint(Context context, final long waypointId) {
+        final Waypoint deletedWaypoint = getWaypoint(waypointId);
+        if (deletedWaypoint == null) {
+            return;
+        }
+        runInTransaction(new Runnable() {
+            @Override
+            public void run() {
+                /*
+                 * The statistics of a statistics waypoint cover the points since the
+                 * previous one: the next one takes over the deleted points. Its
+                 * description is left as written on creation, there is no generator
+                 * of statistics descriptions to write it again.
+                 */
+                if (deletedWaypoint.getType() == Waypoint.WaypointType.STATISTICS
+                        && deletedWaypoint.getTripStatistics() != null) {
+                    Waypoint nextWaypoint = findWaypoint(WaypointsColumns.TRACKID + "=? AND "
+                                    + WaypointsColumns.TYPE + "=? AND " + WaypointsColumns._ID + ">?",
+                            new String[]{Long.toString(deletedWaypoint.getTrackId()),
+                                    Integer.toString(Waypoint.WaypointType.STATISTICS.ordinal()),
+                                    Long.toString(waypointId)}, WaypointsColumns._ID);
+                    if (nextWaypoint != null && nextWaypoint.getTripStatistics() != null) {
+                        nextWaypoint.getTripStatistics().merge(deletedWaypoint.getTripStatistics());
+                        mTracksProvider.updateWaypoint(nextWaypoint.getId(),
+                                createContentValues(nextWaypoint));
+                    }
+                }
+                mTracksProvider.deleteWaypoint(waypointId);
+            }
+        });
+        mWaypointCounters.invalidate(deletedWaypoint.getTrackId());
     }
 
     @Override
     public long getFirstWaypointId(long trackId) {
-        return 0;
+        return trackId < 0 ? -1L : getWaypointCounts(trackId).getFirstId();
     }
 
     @Override
     public Waypoint getLastWaypoint(long trackId, Waypoint.WaypointType waypointType) {
-        return null;
+        if (trackId < 0) {
+            return null;
+        }
+        long waypointId = getWaypointCounts(trackId).getLastId(waypointType);
+        return waypointId == -1L ? null : getWaypoint(waypointId);
     }
 
     @Override
     public int getNextWaypointNumber(long trackId, Waypoint.WaypointType waypointType) {
-        return 0;
+        if (trackId < 0) {
+            return -1;
+        }
+        int count = getWaypointCounts(trackId).getCount(waypointType);
+        /*
+         * For statistics markers, the first marker is for the track statistics, so
+         * return the count as the next user visible number. For waypoint markers,
+         * the first marker starts at 1.
+         */
+        return waypointType == Waypoint.WaypointType.STATISTICS ? count : count + 1;
     }
 
     @Override
     public Waypoint getWaypoint(long waypointId) {
-        return null;
+        if (waypointId < 0) {
+            return null;
+        }
+        return findWaypoint(WaypointsColumns._ID + "=?",
+                new String[]{Long.toString(waypointId)}, null);
     }
 
     @Override
     public int getWaypointCount(long trackId) {
-        return 0;
+        return trackId < 0 ? 0 : getWaypointCounts(trackId).getCount();
+    }
+
+    @Override
+    public Cursor getWaypointCursor(long trackId, long minWaypointId, int maxWaypoints) {
+        String selection;
+        String[] selectionArgs;
+        if (minWaypointId >= 0) {
+            selection = WaypointsColumns.TRACKID + "=? AND " + WaypointsColumns._ID + ">=?";
+            selectionArgs = new String[]{Long.toString(trackId), Long.toString(minWaypointId)};
+        } else {
+            selection = WaypointsColumns.TRACKID + "=?";
+            selectionArgs = new String[]{Long.toString(trackId)};
+        }
+        return mTracksProvider.queryWaypoints(null, selection, selectionArgs, null,
+                WaypointsColumns._ID, maxWaypoints >= 0 ? Integer.toString(maxWaypoints) : null);
     }
 
     @Override
     public Uri insertWaypoint(Waypoint waypoint) {
-        return null;
+        waypoint.setId(-1L);
+        long waypointId = mTracksProvider.insertWaypoint(createContentValues(waypoint));
+        if (waypointId != -1L) {
+            waypoint.setId(waypointId);
+            mWaypointCounters.add(waypoint.getTrackId(), waypoint.getType(), waypointId);
+        }
+        return ContentUris.withAppendedId(WaypointsColumns.CONTENT_URI, waypointId);
     }
 
     @Override
     public boolean updateWaypoint(Waypoint waypoint) {
-        return false;
+        Waypoint previousWaypoint = getWaypoint(waypoint.getId());
+        boolean updated = mTracksProvider.updateWaypoint(waypoint.getId(),
+                createContentValues(waypoint)) == 1;
+        if (updated && previousWaypoint != null
+                && (previousWaypoint.getTrackId() != waypoint.getTrackId()
+                || previousWaypoint.getType() != waypoint.getType())) {
+            mWaypointCounters.invalidate(previousWaypoint.getTrackId());
+            mWaypointCounters.invalidate(waypoint.getTrackId());
+        }
+        return updated;
     }
 
     @Override
     public int bulkInsertTrackPoint(Location[] locations, int length, long trackId) {
-        return 0;
+        if (length == -1) {
+            length = locations.length;
+        }
+        int inserted = mTracksProvider.bulkInsertTrackPoints(trackId, locations, length);
+
+        // The ids of the inserted points are not known
+        mTailCache.invalidate(trackId);
+        return inserted;
+    }
+
+    @Override
+    public int bulkInsertTrackPoints(TrackPoints trackPoints, long trackId) {
+        int inserted = mTracksProvider.bulkInsertTrackPoints(trackId, trackPoints, 0,
+                trackPoints.size());
+        mTailCache.add(trackId, trackPoints, 0, trackPoints.size());
+        return inserted;
+    }
+
+    @Override
+    public int writeTrackPoints(long trackId, OutputStream outputStream) throws IOException {
+        final Location location = DEFAULT_LOCATION_FACTORY.createLocation();
+        TrackPointCodec.Encoder encoder = new TrackPointCodec.Encoder(outputStream, true, true);
+        LocationIterator iterator = getTrackPointLocationIterator(trackId, -1L, false,
+                new LocationFactory() {
+                    @Override
+                    public Location createLocation() {
+                        return location;
+                    }
+                });
+        try {
+            while (iterator.hasNext()) {
+                encoder.write(iterator.next());
+            }
+        } finally {
+            iterator.close();
+        }
+        encoder.finish();
+        return encoder.getCount();
+    }
+
+    @Override
+    public int readTrackPoints(long trackId, InputStream inputStream) throws IOException {
+        TrackPointCodec.Decoder decoder = new TrackPointCodec.Decoder(inputStream);
+        TrackPoints trackPoints = new TrackPoints(defaultCursorBatchSize);
+        int inserted = 0;
+        while (decoder.read(trackPoints)) {
+            if (trackPoints.size() == defaultCursorBatchSize) {
+                inserted += bulkInsertTrackPoints(trackPoints, trackId);
+                trackPoints.clear();
+            }
+        }
+        if (!trackPoints.isEmpty()) {
+            inserted += bulkInsertTrackPoints(trackPoints, trackId);
+        }
+        return inserted;
     }
 
     @Override
     public long getFirstTrackPointId(long trackId) {
-        return 0;
+        return findTrackPointId(trackId, TrackPointsColumns._ID);
     }
 
     @Override
     public long getLastTrackPointId(long trackId) {
-        return 0;
+        if (trackId < 0) {
+            return -1L;
+        }
+        long lastTrackPointId = mTailCache.getLastTrackPointId(trackId);
+        if (lastTrackPointId != TrackTailCache.NOT_CACHED) {
+            return lastTrackPointId;
+        }
+        return seedTail(trackId);
     }
 
     @Override
     public long getTrackPointId(long trackId, Location location) {
-        return 0;
+        if (trackId < 0 || location == null) {
+            return -1L;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryTrackPoints(new String[]{TrackPointsColumns._ID},
+                    TrackPointsColumns.TRACKID + "=? AND " + TrackPointsColumns.TIME + "=? AND "
+                            + TrackPointsColumns.LATITUDE + "=? AND "
+                            + TrackPointsColumns.LONGITUDE + "=?",
+                    new String[]{Long.toString(trackId), Long.toString(location.getTime()),
+                            Integer.toString((int) (location.getLatitude() * 1E6)),
+                            Integer.toString((int) (location.getLongitude() * 1E6))},
+                    null, "1");
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return -1L;
+    }
+
+    @Override
+    public long[] getTrackIdsInBox(double south, double west, double north, double east) {
+        ArrayList<String> args = new ArrayList<String>();
+        String cellSelection = getBoxCellSelection(south, west, north, east, args);
+        String sql;
+        if (cellSelection != null) {
+            sql = "SELECT DISTINCT c." + TrackCellsColumns.TRACKID + TRACK_CELLS_JOIN
+                    + " WHERE (" + cellSelection + ") AND " + getBoxSelection("p.", args,
+                    south, west, north, east) + " ORDER BY c." + TrackCellsColumns.TRACKID;
+        } else {
+            sql = "SELECT DISTINCT " + TrackPointsColumns.TRACKID + " FROM "
+                    + TrackPointsColumns.TABLE_NAME + " WHERE " + getBoxSelection("", args,
+                    south, west, north, east) + " ORDER BY " + TrackPointsColumns.TRACKID;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.rawQuery(sql, args.toArray(new String[args.size()]));
+            if (cursor == null) {
+                return new long[0];
+            }
+            long[] ids = new long[cursor.getCount()];
+            for (int i = 0; cursor.moveToNext(); i++) {
+                ids[i] = cursor.getLong(0);
+            }
+            return ids;
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    @Override
+    public int getTrackPointsInBox(double south, double west, double north, double east,
+                                   int limit, TrackPoints trackPoints) {
+        ArrayList<String> args = new ArrayList<String>();
+        String cellSelection = getBoxCellSelection(south, west, north, east, args);
+        String sql;
+        if (cellSelection != null) {
+            sql = "SELECT " + TRACK_POINT_JOIN_COLUMNS + TRACK_CELLS_JOIN + " WHERE ("
+                    + cellSelection + ") AND " + getBoxSelection("p.", args, south, west, north,
+                    east) + " ORDER BY p." + TrackPointsColumns._ID;
+        } else {
+            sql = "SELECT " + TRACK_POINT_JOIN_COLUMNS + " FROM " + TrackPointsColumns.TABLE_NAME
+                    + " p WHERE " + getBoxSelection("p.", args, south, west, north, east)
+                    + " ORDER BY p." + TrackPointsColumns._ID;
+        }
+        sql += " LIMIT " + limit;
+        int size = trackPoints.size();
+        appendTrackPoints(mTracksProvider.rawQuery(sql, args.toArray(new String[args.size()])),
+                trackPoints);
+        return trackPoints.size() - size;
+    }
+
+    @Override
+    public TrackPoints getNearestTrackPoints(double latitude, double longitude, int count) {
+        if (count <= 0) {
+            return new TrackPoints(0);
+        }
+        TrackPoints candidates = new TrackPoints(Math.max(count, 16));
+        float[] results = new float[1];
+        float[] distances = new float[Math.max(count, 16)];
+        long latitudeIndex = TrackCellBuilder.getLatitudeIndex(latitude);
+        long longitudeIndex = TrackCellBuilder.getLongitudeIndex(longitude);
+        double metersPerRing = TrackCellBuilder.CELL_SIZE * METERS_PER_DEGREE
+                * Math.max(Math.cos(Math.toRadians(latitude)), MIN_CELL_WIDTH);
+
+        // Search the rings of cells around the cell of the position, until the
+        // nearest points found are nearer than the unsearched cells
+        for (int ring = 0; ring <= MAX_NEAREST_RINGS; ring++) {
+            ArrayList<String> args = new ArrayList<String>();
+            String cellSelection = getRingCellSelection(latitudeIndex, longitudeIndex, ring, args);
+            int size = candidates.size();
+            appendTrackPoints(mTracksProvider.rawQuery("SELECT " + TRACK_POINT_JOIN_COLUMNS
+                    + TRACK_CELLS_JOIN + " WHERE (" + cellSelection + ") AND p."
+                    + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE,
+                    args.toArray(new String[args.size()])), candidates);
+            if (distances.length < candidates.size()) {
+                float[] newDistances = new float[Math.max(candidates.size(), 2 * distances.length)];
+                System.arraycopy(distances, 0, newDistances, 0, size);
+                distances = newDistances;
+            }
+            for (int i = size; i < candidates.size(); i++) {
+                Location.distanceBetween(latitude, longitude, candidates.getLatitude(i),
+                        candidates.getLongitude(i), results);
+                distances[i] = results[0];
+            }
+            if (candidates.size() >= count
+                    && getNthSmallest(distances, candidates.size(), count) <= ring * metersPerRing) {
+                break;
+            }
+        }
+
+        // Sort the candidates by distance
+        int size = candidates.size();
+        Integer[] order = new Integer[size];
+        for (int i = 0; i < size; i++) {
+            order[i] = i;
+        }
+        final float[] candidateDistances = distances;
+        Arrays.sort(order, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer lhs, Integer rhs) {
+                return Float.compare(candidateDistances[lhs], candidateDistances[rhs]);
+            }
+        });
+        TrackPoints nearest = new TrackPoints(Math.min(count, size));
+        for (int i = 0; i < size && i < count; i++) {
+            nearest.addAll(candidates, order[i], 1);
+        }
+        return nearest;
+    }
+
+    @Override
+    public long seekToTime(long trackId, long time) {
+        TrackPoints trackPoints = new TrackPoints(1);
+        findValidTrackPointByTime(trackId, time, true, trackPoints);
+        return trackPoints.isEmpty() ? -1L : trackPoints.getId(0);
+    }
+
+    @Override
+    public LocationIterator rangeByTime(long trackId, long startTime, long endTime,
+                                        LocationFactory locationFactory) {
+        final long startId = findTrackPointIdByTime(trackId, startTime, false);
+        final long endId = findTrackPointIdByTime(trackId, endTime, true);
+        if (startId == -1L || endId == -1L || startId > endId) {
+            // An iterator starting after the last point is empty
+            return getTrackPointLocationIterator(trackId, Long.MAX_VALUE, false, locationFactory);
+        }
+        final LocationIterator locationIterator = getTrackPointLocationIterator(trackId, startId,
+                false, locationFactory);
+        return new LocationIterator() {
+
+            // The next location, read ahead to stop at endId
+            private Location next;
+            private long nextId = -1L;
+            private long lastId = -1L;
+            private boolean done = false;
+
+            @Override
+            public boolean hasNext() {
+                if (next != null) {
+                    return true;
+                }
+                if (done || !locationIterator.hasNext()) {
+                    return false;
+                }
+                Location location = locationIterator.next();
+                if (locationIterator.getLocationId() > endId) {
+                    done = true;
+                    return false;
+                }
+                next = location;
+                nextId = locationIterator.getLocationId();
+                return true;
+            }
+
+            @Override
+            public Location next() {
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                Location location = next;
+                next = null;
+                lastId = nextId;
+                return location;
+            }
+
+            @Override
+            public long getLocationId() {
+                return lastId;
+            }
+
+            @Override
+            public void close() {
+                locationIterator.close();
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    @Override
+    public Location interpolatedPositionAt(long trackId, long time) {
+        TrackPoints trackPoints = new TrackPoints(2);
+        findValidTrackPointByTime(trackId, time, true, trackPoints);
+        findValidTrackPointByTime(trackId, time, false, trackPoints);
+        if (trackPoints.size() < 2) {
+            return null;
+        }
+        Location location = DEFAULT_LOCATION_FACTORY.createLocation();
+        long beforeId = trackPoints.getId(0);
+        long afterId = trackPoints.getId(1);
+        if (beforeId == afterId) {
+            return trackPoints.getLocation(0, location);
+        }
+
+        // No interpolation across a pause or a segment break
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryTrackPoints(new String[]{TrackPointsColumns._ID},
+                    TrackPointsColumns.TRACKID + "=? AND " + TrackPointsColumns._ID + ">? AND "
+                            + TrackPointsColumns._ID + "<? AND "
+                            + TrackPointsColumns.LATITUDE + ">" + MAX_LATITUDE,
+                    new String[]{Long.toString(trackId),
+                            Long.toString(Math.min(beforeId, afterId)),
+                            Long.toString(Math.max(beforeId, afterId))},
+                    null, "1");
+            if (cursor != null && cursor.moveToFirst()) {
+                return null;
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+
+        long beforeTime = trackPoints.getTime(0);
+        long afterTime = trackPoints.getTime(1);
+        double ratio = afterTime == beforeTime ? 0.0
+                : (double) (time - beforeTime) / (afterTime - beforeTime);
+        trackPoints.getLocation(0, location);
+        location.setLatitude(interpolate(trackPoints.getLatitude(0), trackPoints.getLatitude(1),
+                ratio));
+        location.setLongitude(interpolate(trackPoints.getLongitude(0),
+                trackPoints.getLongitude(1), ratio));
+        float altitude0 = trackPoints.getAltitude(0);
+        float altitude1 = trackPoints.getAltitude(1);
+        if (!Float.isNaN(altitude0) && !Float.isNaN(altitude1)) {
+            location.setAltitude(interpolate(altitude0, altitude1, ratio));
+        }
+        location.setTime(time);
+        return location;
     }
 
     @Override
     public Location getFirstValidTrackPoint(long trackId) {
-        return null;
+        return findTrackPoint(TrackPointsColumns.TRACKID + "=? AND "
+                        + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE,
+                new String[]{Long.toString(trackId)}, TrackPointsColumns._ID);
     }
 
     @Override
     public Location getLastValidTrackPoint(long trackId) {
-        return null;
+        if (trackId < 0) {
+            return null;
+        }
+        Location location = DEFAULT_LOCATION_FACTORY.createLocation();
+        long trackPointId = mTailCache.getLastValidTrackPoint(trackId, location);
+        if (trackPointId != TrackTailCache.NOT_CACHED) {
+            return trackPointId == -1L ? null : location;
+        }
+        TrackPoints validTrackPoints = new TrackPoints(TrackTailCache.CAPACITY);
+        seedTail(trackId, validTrackPoints);
+        if (validTrackPoints.isEmpty()) {
+            return null;
+        }
+        return validTrackPoints.getLocation(validTrackPoints.size() - 1,
+                DEFAULT_LOCATION_FACTORY.createLocation());
     }
 
     @Override
     public Location getLastValidTrackPoint() {
-        return null;
+        Location location = DEFAULT_LOCATION_FACTORY.createLocation();
+        long trackPointId = mTailCache.getLastValidTrackPoint(location);
+        if (trackPointId != TrackTailCache.NOT_CACHED) {
+            return trackPointId == -1L ? null : location;
+        }
+        int modCount = mTailCache.getLastValidModCount();
+        TrackPoints trackPoints = new TrackPoints(1);
+        findTrackPoints(TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE, null,
+                TrackPointsColumns._ID + " DESC", 1, trackPoints);
+        mTailCache.seedLastValid(trackPoints, modCount);
+        return trackPoints.isEmpty() ? null : trackPoints.getLocation(0, location);
     }
 
     @Override
-    public LocationIterator getTrackPointLocationIterator(final long trackId, long startTrackPointId, boolean descending, final LocationFactory locationFactory) {
+    public List<Segment> getSegments(long trackId) {
+        ArrayList<Segment> segments = new ArrayList<Segment>();
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.querySegments(null, SegmentsColumns.TRACKID + "=?",
+                    new String[]{Long.toString(trackId)}, SegmentsColumns._ID, null);
+            if (cursor != null) {
+                segments.ensureCapacity(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    segments.add(TracksProvider.createSegment(cursor));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return segments;
+    }
+
+    @Override
+    public LocationIterator getTrackPointLocationIterator(final long trackId, long startTrackPointId,
+                                                          final boolean descending,
+                                                          final LocationFactory locationFactory) {
         if (locationFactory == null) {
             throw new IllegalArgumentException("locationFactory is null");
         }
+        // The points inserted after the iterator is created are not returned, so
+        // a track still recording is read as a consistent snapshot
+        final long maxTrackPointId = getLastTrackPointId(trackId);
+
+        // The exclusive bound of the first window
+        final long firstBound;
+        if (descending) {
+            firstBound = (startTrackPointId >= 0
+                    ? Math.min(startTrackPointId, maxTrackPointId) : maxTrackPointId) + 1;
+        } else {
+            firstBound = startTrackPointId >= 0 ? startTrackPointId - 1 : -1L;
+        }
+        final int batchSize = defaultCursorBatchSize;
+
         return new LocationIterator() {
 
-            private int currentIndex = 0;
+            // The points of the current window not yet returned. Each window is
+            // read by a short keyset query past the last returned id, so no
+            // cursor is kept open, the writer is never blocked by the reader and
+            // memory stays bounded by the batch size.
+            private final TrackPoints page = new TrackPoints(batchSize);
+            private int pageIndex = 0;
+            private long bound = firstBound;
+            private boolean done = maxTrackPointId == -1L;
+            private long lastTrackPointId = -1L;
 
             @Override
             public boolean hasNext() {
-                return currentIndex < mTracks.get((int)trackId).getLocations().size() && mTracks.get((int)trackId).getLocations().get(currentIndex) != null;
+                if (pageIndex < page.size()) {
+                    return true;
+                }
+                if (done) {
+                    return false;
+                }
+                page.clear();
+                pageIndex = 0;
+                if (descending) {
+                    findTrackPoints(TrackPointsColumns.TRACKID + "=? AND "
+                                    + TrackPointsColumns._ID + "<?",
+                            new String[]{Long.toString(trackId), Long.toString(bound)},
+                            TrackPointsColumns._ID + " DESC", batchSize, page);
+                } else {
+                    findTrackPoints(TrackPointsColumns.TRACKID + "=? AND " + TrackPointsColumns._ID
+                                    + ">? AND " + TrackPointsColumns._ID + "<=?",
+                            new String[]{Long.toString(trackId), Long.toString(bound),
+                                    Long.toString(maxTrackPointId)},
+                            TrackPointsColumns._ID, batchSize, page);
+                }
+                if (page.size() < batchSize) {
+                    done = true;
+                }
+                if (page.isEmpty()) {
+                    return false;
+                }
+                bound = page.getId(page.size() - 1);
+                return true;
             }
 
             @Override
             public Location next() {
-                Location location = locationFactory.createLocation();
-                location = mTracks.get((int)trackId).getLocations().get(currentIndex++);
-                return location;
+                if (!hasNext()) {
+                    throw new NoSuchElementException();
+                }
+                lastTrackPointId = page.getId(pageIndex);
+                // Fills the location of the factory in place, it may be reused
+                return page.getLocation(pageIndex++, locationFactory.createLocation());
             }
 
             @Override
             public long getLocationId() {
-                return currentIndex;
+                return lastTrackPointId;
             }
 
             @Override
             public void close() {
+                done = true;
+                page.clear();
+                pageIndex = 0;
+            }
+
+            @Override
+            public void remove() {
+                throw new UnsupportedOperationException();
             }
         };
     }
 
     @Override
     public Uri insertTrackPoint(Location location, long trackId) {
-        int locID = mTracks.get((int) trackId).addLocation(location);
-        return Uri.parse("http://example.com/foo/bar/" + locID);
+        long trackPointId = mTracksProvider.insertTrackPoint(trackId, location);
+        if (trackPointId != -1L) {
+            TrackPoints trackPoints = new TrackPoints(1);
+            trackPoints.add(trackPointId, location);
+            mTailCache.add(trackId, trackPoints, 0, 1);
+        }
+        return ContentUris.withAppendedId(TrackPointsColumns.CONTENT_URI, trackPointId);
+    }
+
+    @Override
+    public void flush() {
+        // Nothing is buffered, everything is written immediately
+    }
+
+    @Override
+    public void runInTransaction(Runnable runnable) {
+        try {
+            mTracksProvider.runInTransaction(runnable);
+        } catch (RuntimeException e) {
+            /*
+             * The caches were updated by the writes of the task, now rolled back.
+             * A rollback is rare and the task may have written to any track, so
+             * all of them are read again from the database.
+             */
+            mTrackIndex.invalidate();
+            mTailCache.invalidateAll();
+            mWaypointCounters.invalidateAll();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setTrackUpdateSource(TrackUpdateSource trackUpdateSource) {
+        mTrackUpdateSource = trackUpdateSource;
+    }
+
+    /**
+     * Asks the track update source, if any, to write the changes of a track.
+     *
+     * @param trackId the track id, -1L for all the tracks
+     */
+    private void flushTrackUpdates(long trackId) {
+        TrackUpdateSource trackUpdateSource = mTrackUpdateSource;
+        if (trackUpdateSource != null) {
+            trackUpdateSource.flushTrackUpdates(trackId);
+        }
+    }
+
+    /**
+     * Gets the track index, loading it from the database on first use.
+     */
+    private TrackIndex getTrackIndex() {
+        if (mTrackIndex.isLoaded()) {
+            return mTrackIndex;
+        }
+        int modCount = mTrackIndex.getModCount();
+        ArrayList<Track> tracks = new ArrayList<Track>();
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryTracks(null, null, null, TracksColumns._ID, null);
+            if (cursor != null) {
+                tracks.ensureCapacity(cursor.getCount());
+                while (cursor.moveToNext()) {
+                    tracks.add(createTrack(cursor));
+                }
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        mTrackIndex.load(tracks, modCount);
+        if (!mTrackIndex.isLoaded()) {
+            // Changed while loading, retry
+            return getTrackIndex();
+        }
+        return mTrackIndex;
+    }
+
+    /**
+     * Gets the waypoint counters of a track, loading them with a single grouped
+     * query on the track id and type index if needed.
+     *
+     * @param trackId the track id
+     */
+    private WaypointCounters.Counts getWaypointCounts(long trackId) {
+        WaypointCounters.Counts counts = mWaypointCounters.get(trackId);
+        while (counts == null) {
+            int modCount = mWaypointCounters.getModCount();
+            WaypointCounters.Counts readCounts = new WaypointCounters.Counts();
+            Cursor cursor = null;
+            try {
+                cursor = mTracksProvider.queryWaypoints(new String[]{WaypointsColumns.TYPE,
+                                "COUNT(*)", "MIN(" + WaypointsColumns._ID + ")",
+                                "MAX(" + WaypointsColumns._ID + ")"},
+                        WaypointsColumns.TRACKID + "=?", new String[]{Long.toString(trackId)},
+                        WaypointsColumns.TYPE, null, null);
+                if (cursor != null) {
+                    Waypoint.WaypointType[] types = Waypoint.WaypointType.values();
+                    while (cursor.moveToNext()) {
+                        int type = cursor.getInt(0);
+                        if (type >= 0 && type < types.length) {
+                            readCounts.add(types[type], cursor.getInt(1), cursor.getLong(2),
+                                    cursor.getLong(3));
+                        }
+                    }
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+            mWaypointCounters.load(trackId, readCounts, modCount);
+
+            // Null if changed while loading, then retry
+            counts = mWaypointCounters.get(trackId);
+        }
+        return counts;
+    }
+
+    /**
+     * Finds the first waypoint of a selection, null if none.
+     */
+    private Waypoint findWaypoint(String selection, String[] selectionArgs, String sortOrder) {
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryWaypoints(null, selection, selectionArgs, null,
+                    sortOrder, "1");
+            if (cursor != null && cursor.moveToFirst()) {
+                return createWaypoint(cursor);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Finds the first track point id of a track in a given order. Returns -1L if
+     * not found.
+     */
+    private long findTrackPointId(long trackId, String sortOrder) {
+        if (trackId < 0) {
+            return -1L;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryTrackPoints(new String[]{TrackPointsColumns._ID},
+                    TrackPointsColumns.TRACKID + "=?", new String[]{Long.toString(trackId)},
+                    sortOrder, "1");
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Finds the valid track point of a track closest to a time, on one side.
+     *
+     * @param trackId     the track id
+     * @param time        the time
+     * @param before      true for the last point at or before the time, false
+     *                    for the first point at or after it
+     * @param trackPoints the track points to append to
+     */
+    private void findValidTrackPointByTime(long trackId, long time, boolean before,
+                                           TrackPoints trackPoints) {
+        if (trackId < 0) {
+            return;
+        }
+        findTrackPoints(TrackPointsColumns.TRACKID + "=? AND " + TrackPointsColumns.TIME
+                        + (before ? "<=?" : ">=?") + " AND "
+                        + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE,
+                new String[]{Long.toString(trackId), Long.toString(time)},
+                TrackPointsColumns.TIME + (before ? " DESC, " : ", ") + TrackPointsColumns._ID
+                        + (before ? " DESC" : ""), 1, trackPoints);
+    }
+
+    /**
+     * Finds the id of the track point of a track closest to a time, on one side,
+     * pause and segment break points included. Returns -1L if not found.
+     *
+     * @param trackId the track id
+     * @param time    the time
+     * @param before  true for the last point at or before the time, false for
+     *                the first point at or after it
+     */
+    private long findTrackPointIdByTime(long trackId, long time, boolean before) {
+        if (trackId < 0) {
+            return -1L;
+        }
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryTrackPoints(new String[]{TrackPointsColumns._ID},
+                    TrackPointsColumns.TRACKID + "=? AND " + TrackPointsColumns.TIME
+                            + (before ? "<=?" : ">=?"),
+                    new String[]{Long.toString(trackId), Long.toString(time)},
+                    TrackPointsColumns.TIME + (before ? " DESC, " : ", ")
+                            + TrackPointsColumns._ID + (before ? " DESC" : ""), "1");
+            if (cursor != null && cursor.moveToFirst()) {
+                return cursor.getLong(0);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+        return -1L;
+    }
+
+    /**
+     * Gets the selection of the cells of a box, as ranges of cells of each
+     * latitude band, two ranges when the box crosses the antimeridian. Returns
+     * null if the box has too many bands.
+     *
+     * @param args the selection arguments to append to
+     */
+    private static String getBoxCellSelection(double south, double west, double north,
+                                              double east, List<String> args) {
+        long southIndex = TrackCellBuilder.getLatitudeIndex(Math.max(south, -90));
+        long northIndex = TrackCellBuilder.getLatitudeIndex(Math.min(north, 90));
+        if (northIndex - southIndex >= MAX_BOX_BANDS) {
+            return null;
+        }
+        long westIndex = TrackCellBuilder.getLongitudeIndex(Math.max(west, -180));
+        long eastIndex = TrackCellBuilder.getLongitudeIndex(Math.min(east, 180));
+        long maxLongitudeIndex = TrackCellBuilder.getLongitudeIndex(180);
+        StringBuilder selection = new StringBuilder();
+        for (long band = southIndex; band <= northIndex; band++) {
+            if (west <= east) {
+                appendCellRange(selection, args, TrackCellBuilder.getCell(band, westIndex),
+                        TrackCellBuilder.getCell(band, eastIndex));
+            } else {
+                appendCellRange(selection, args, TrackCellBuilder.getCell(band, westIndex),
+                        TrackCellBuilder.getCell(band, maxLongitudeIndex));
+                appendCellRange(selection, args, TrackCellBuilder.getCell(band, 0),
+                        TrackCellBuilder.getCell(band, eastIndex));
+            }
+        }
+        return selection.toString();
+    }
+
+    /**
+     * Gets the selection of the cells of a ring around a cell: the cell itself
+     * for ring 0, then the border of a square of 2 * ring + 1 cells. The
+     * longitude columns wrap around the antimeridian.
+     *
+     * @param args the selection arguments to append to
+     */
+    private static String getRingCellSelection(long latitudeIndex, long longitudeIndex, int ring,
+                                               List<String> args) {
+        long maxLatitudeIndex = TrackCellBuilder.getLatitudeIndex(90);
+        long maxLongitudeIndex = TrackCellBuilder.getLongitudeIndex(180);
+        long longitudeCells = maxLongitudeIndex + 1;
+        long westIndex = wrapLongitudeIndex(longitudeIndex - ring, longitudeCells);
+        long eastIndex = wrapLongitudeIndex(longitudeIndex + ring, longitudeCells);
+        StringBuilder selection = new StringBuilder();
+        for (long band = latitudeIndex - ring; band <= latitudeIndex + ring; band++) {
+            if (band < 0 || band > maxLatitudeIndex) {
+                continue;
+            }
+            if (band == latitudeIndex - ring || band == latitudeIndex + ring) {
+                if (2 * ring + 1 >= longitudeCells) {
+                    appendCellRange(selection, args, TrackCellBuilder.getCell(band, 0),
+                            TrackCellBuilder.getCell(band, maxLongitudeIndex));
+                } else if (westIndex <= eastIndex) {
+                    appendCellRange(selection, args, TrackCellBuilder.getCell(band, westIndex),
+                            TrackCellBuilder.getCell(band, eastIndex));
+                } else {
+                    appendCellRange(selection, args, TrackCellBuilder.getCell(band, westIndex),
+                            TrackCellBuilder.getCell(band, maxLongitudeIndex));
+                    appendCellRange(selection, args, TrackCellBuilder.getCell(band, 0),
+                            TrackCellBuilder.getCell(band, eastIndex));
+                }
+            } else {
+                long cell = TrackCellBuilder.getCell(band, westIndex);
+                appendCellRange(selection, args, cell, cell);
+                if (eastIndex != westIndex) {
+                    cell = TrackCellBuilder.getCell(band, eastIndex);
+                    appendCellRange(selection, args, cell, cell);
+                }
+            }
+        }
+        // An empty selection matches nothing
+        return selection.length() > 0 ? selection.toString() : "0";
+    }
+
+    /**
+     * Wraps a longitude column around the antimeridian.
+     */
+    private static long wrapLongitudeIndex(long longitudeIndex, long longitudeCells) {
+        long index = longitudeIndex % longitudeCells;
+        return index < 0 ? index + longitudeCells : index;
+    }
+
+    private static void appendCellRange(StringBuilder selection, List<String> args, long from,
+                                        long to) {
+        if (selection.length() > 0) {
+            selection.append(" OR ");
+        }
+        selection.append("c.").append(TrackCellsColumns.CELL).append(" BETWEEN ? AND ?");
+        args.add(Long.toString(from));
+        args.add(Long.toString(to));
+    }
+
+    /**
+     * Gets the selection of the track points in a box. A box crossing the
+     * antimeridian, with west greater than east, selects both sides of it.
+     *
+     * @param prefix the track points table prefix
+     * @param args   the selection arguments to append to
+     */
+    private static String getBoxSelection(String prefix, List<String> args, double south,
+                                          double west, double north, double east) {
+        args.add(Integer.toString((int) (south * 1E6)));
+        args.add(Integer.toString((int) (Math.min(north, 90) * 1E6)));
+        args.add(Integer.toString((int) (west * 1E6)));
+        args.add(Integer.toString((int) (east * 1E6)));
+        String longitudeSelection = west <= east
+                ? prefix + TrackPointsColumns.LONGITUDE + " BETWEEN ? AND ?"
+                : "(" + prefix + TrackPointsColumns.LONGITUDE + ">=? OR " + prefix
+                        + TrackPointsColumns.LONGITUDE + "<=?)";
+        return prefix + TrackPointsColumns.LATITUDE + " BETWEEN ? AND ? AND "
+                + longitudeSelection;
+    }
+
+    /**
+     * Gets the n-th smallest of the first values of an array.
+     */
+    private static float getNthSmallest(float[] values, int length, int n) {
+        float[] sorted = Arrays.copyOf(values, length);
+        Arrays.sort(sorted);
+        return sorted[n - 1];
+    }
+
+    private static double interpolate(double value0, double value1, double ratio) {
+        return value0 + (value1 - value0) * ratio;
+    }
+
+    /**
+     * Finds the first track point matching a selection. Returns null if not
+     * found.
+     */
+    private Location findTrackPoint(String selection, String[] selectionArgs, String sortOrder) {
+        TrackPoints trackPoints = new TrackPoints(1);
+        findTrackPoints(selection, selectionArgs, sortOrder, 1, trackPoints);
+        return trackPoints.isEmpty() ? null
+                : trackPoints.getLocation(0, DEFAULT_LOCATION_FACTORY.createLocation());
+    }
+
+    /**
+     * Finds the first track points matching a selection.
+     *
+     * @param limit       the maximum number of track points
+     * @param trackPoints the track points to append to
+     */
+    private void findTrackPoints(String selection, String[] selectionArgs, String sortOrder,
+                                 int limit, TrackPoints trackPoints) {
+        Cursor cursor = null;
+        try {
+            cursor = mTracksProvider.queryTrackPoints(TRACK_POINT_PROJECTION, selection,
+                    selectionArgs, sortOrder, Integer.toString(limit));
+            while (cursor != null && cursor.moveToNext()) {
+                readTrackPoint(cursor, trackPoints);
+            }
+        } finally {
+            if (cursor != null) {
+                cursor.close();
+            }
+        }
+    }
+
+    /**
+     * Reads the tail of a track from the database and seeds the tail cache.
+     *
+     * @param trackId the track id
+     * @return the last track point id, -1L if none
+     */
+    private long seedTail(long trackId) {
+        return seedTail(trackId, new TrackPoints(TrackTailCache.CAPACITY));
+    }
+
+    /**
+     * Reads the tail of a track from the database and seeds the tail cache.
+     *
+     * @param trackId          the track id
+     * @param validTrackPoints the container to read the last valid track points
+     *                         into, oldest first
+     * @return the last track point id, -1L if none
+     */
+    private long seedTail(long trackId, TrackPoints validTrackPoints) {
+        int modCount = mTailCache.getModCount(trackId);
+        long lastTrackPointId = findTrackPointId(trackId, TrackPointsColumns._ID + " DESC");
+
+        // Read newest first, then reverse
+        TrackPoints trackPoints = new TrackPoints(TrackTailCache.CAPACITY);
+        findTrackPoints(TrackPointsColumns.TRACKID + "=? AND "
+                        + TrackPointsColumns.LATITUDE + "<=" + MAX_LATITUDE,
+                new String[]{Long.toString(trackId)}, TrackPointsColumns._ID + " DESC",
+                TrackTailCache.CAPACITY, trackPoints);
+        validTrackPoints.clear();
+        for (int i = trackPoints.size() - 1; i >= 0; i--) {
+            validTrackPoints.addAll(trackPoints, i, 1);
+        }
+
+        mTailCache.seed(trackId, lastTrackPointId, validTrackPoints, modCount);
+        return lastTrackPointId;
+    }
+
+    /**
+     * Appends all the track points of a cursor on {@link #TRACK_POINT_PROJECTION}
+     * rows, and closes it.
+     *
+     * @param cursor      the cursor, can be null
+     * @param trackPoints the track points to append to
+     */
+    private static void appendTrackPoints(Cursor cursor, TrackPoints trackPoints) {
+        if (cursor == null) {
+            return;
+        }
+        try {
+            trackPoints.ensureCapacity(trackPoints.size() + cursor.getCount());
+            while (cursor.moveToNext()) {
+                readTrackPoint(cursor, trackPoints);
+            }
+        } finally {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Appends a track point from a cursor positioned on a
+     * {@link #TRACK_POINT_PROJECTION} row.
+     *
+     * @param cursor      the cursor
+     * @param trackPoints the track points to append to
+     */
+    private static void readTrackPoint(Cursor cursor, TrackPoints trackPoints) {
+        int index = trackPoints.add(cursor.getLong(ID_INDEX),
+                ((double) cursor.getInt(LATITUDE_INDEX)) / 1E6,
+                ((double) cursor.getInt(LONGITUDE_INDEX)) / 1E6,
+                cursor.getLong(TIME_INDEX),
+                cursor.isNull(ALTITUDE_INDEX) ? Float.NaN : cursor.getFloat(ALTITUDE_INDEX),
+                cursor.isNull(ACCURACY_INDEX) ? Float.NaN : cursor.getFloat(ACCURACY_INDEX),
+                cursor.isNull(SPEED_INDEX) ? Float.NaN : cursor.getFloat(SPEED_INDEX),
+                cursor.isNull(BEARING_INDEX) ? Float.NaN : cursor.getFloat(BEARING_INDEX));
+        if (!cursor.isNull(RAW_LATITUDE_INDEX) && !cursor.isNull(RAW_LONGITUDE_INDEX)) {
+            trackPoints.setRawCoordinates(index,
+                    ((double) cursor.getInt(RAW_LATITUDE_INDEX)) / 1E6,
+                    ((double) cursor.getInt(RAW_LONGITUDE_INDEX)) / 1E6);
+        }
+    }
+
+    /**
+     * Creates a {@link TrackSummary} from a cursor positioned on a
+     * {@link #TRACK_SUMMARY_PROJECTION} row.
+     *
+     * @param cursor the cursor
+     */
+    private static TrackSummary createTrackSummary(Cursor cursor) {
+        boolean hasBounds = !cursor.isNull(7) && !cursor.isNull(8) && !cursor.isNull(9)
+                && !cursor.isNull(10);
+        return new TrackSummary(cursor.getLong(0),
+                cursor.isNull(1) ? "" : cursor.getString(1),
+                cursor.isNull(2) ? "" : cursor.getString(2),
+                cursor.isNull(3) ? -1L : cursor.getLong(3),
+                cursor.isNull(4) ? -1L : cursor.getLong(4),
+                cursor.isNull(5) ? 0.0 : cursor.getDouble(5),
+                cursor.isNull(6) ? 0L : cursor.getLong(6),
+                hasBounds,
+                hasBounds ? cursor.getInt(7) : 0,
+                hasBounds ? cursor.getInt(8) : 0,
+                hasBounds ? cursor.getInt(9) : 0,
+                hasBounds ? cursor.getInt(10) : 0);
+    }
+
+    /**
+     * Creates a {@link Track} from a cursor on the tracks table.
+     *
+     * @param cursor the cursor pointing to the track
+     */
+    private static Track createTrack(Cursor cursor) {
+        int idIndex = cursor.getColumnIndexOrThrow(TracksColumns._ID);
+        int nameIndex = cursor.getColumnIndexOrThrow(TracksColumns.NAME);
+        int descriptionIndex = cursor.getColumnIndexOrThrow(TracksColumns.DESCRIPTION);
+        int categoryIndex = cursor.getColumnIndexOrThrow(TracksColumns.CATEGORY);
+        int startIdIndex = cursor.getColumnIndexOrThrow(TracksColumns.STARTID);
+        int stopIdIndex = cursor.getColumnIndexOrThrow(TracksColumns.STOPID);
+        int startTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.STARTTIME);
+        int stopTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.STOPTIME);
+        int numPointsIndex = cursor.getColumnIndexOrThrow(TracksColumns.NUMPOINTS);
+        int totalDistanceIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALDISTANCE);
+        int totalTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.TOTALTIME);
+        int movingTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MOVINGTIME);
+        int minLatIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINLAT);
+        int maxLatIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXLAT);
+        int minLonIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINLON);
+        int maxLonIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXLON);
+        int maxSpeedIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXSPEED);
+        int minElevationIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINELEVATION);
+        int maxElevationIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXELEVATION);
+        int elevationGainIndex = cursor.getColumnIndexOrThrow(TracksColumns.ELEVATIONGAIN);
+        int minGradeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MINGRADE);
+        int maxGradeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MAXGRADE);
+        int iconIndex = cursor.getColumnIndexOrThrow(TracksColumns.ICON);
+        int driveIdIndex = cursor.getColumnIndexOrThrow(TracksColumns.DRIVEID);
+        int modifiedTimeIndex = cursor.getColumnIndexOrThrow(TracksColumns.MODIFIEDTIME);
+        int sharedWithMeIndex = cursor.getColumnIndexOrThrow(TracksColumns.SHAREDWITHME);
+        int sharedOwnerIndex = cursor.getColumnIndexOrThrow(TracksColumns.SHAREDOWNER);
+        int calorieIndex = cursor.getColumnIndexOrThrow(TracksColumns.CALORIE);
+
+        Track track = new Track();
+        TripStatistics tripStatistics = track.getTripStatistics();
+        if (!cursor.isNull(idIndex)) {
+            track.setId(cursor.getLong(idIndex));
+        }
+        if (!cursor.isNull(nameIndex)) {
+            track.setName(cursor.getString(nameIndex));
+        }
+        if (!cursor.isNull(descriptionIndex)) {
+            track.setDescription(cursor.getString(descriptionIndex));
+        }
+        if (!cursor.isNull(categoryIndex)) {
+            track.setCategory(cursor.getString(categoryIndex));
+        }
+        if (!cursor.isNull(startIdIndex)) {
+            track.setStartId(cursor.getLong(startIdIndex));
+        }
+        if (!cursor.isNull(stopIdIndex)) {
+            track.setStopId(cursor.getLong(stopIdIndex));
+        }
+        if (!cursor.isNull(startTimeIndex)) {
+            tripStatistics.setStartTime(cursor.getLong(startTimeIndex));
+        }
+        if (!cursor.isNull(stopTimeIndex)) {
+            tripStatistics.setStopTime(cursor.getLong(stopTimeIndex));
+        }
+        if (!cursor.isNull(numPointsIndex)) {
+            track.setNumberOfPoints(cursor.getInt(numPointsIndex));
+        }
+        if (!cursor.isNull(totalDistanceIndex)) {
+            tripStatistics.setTotalDistance(cursor.getFloat(totalDistanceIndex));
+        }
+        if (!cursor.isNull(totalTimeIndex)) {
+            tripStatistics.setTotalTime(cursor.getLong(totalTimeIndex));
+        }
+        if (!cursor.isNull(movingTimeIndex)) {
+            tripStatistics.setMovingTime(cursor.getLong(movingTimeIndex));
+        }
+        if (!cursor.isNull(minLatIndex) && !cursor.isNull(maxLatIndex)
+                && !cursor.isNull(minLonIndex) && !cursor.isNull(maxLonIndex)) {
+            int bottom = cursor.getInt(minLatIndex);
+            int top = cursor.getInt(maxLatIndex);
+            int left = cursor.getInt(minLonIndex);
+            int right = cursor.getInt(maxLonIndex);
+            tripStatistics.setBounds(left, top, right, bottom);
+        }
+        if (!cursor.isNull(maxSpeedIndex)) {
+            tripStatistics.setMaxSpeed(cursor.getFloat(maxSpeedIndex));
+        }
+        if (!cursor.isNull(minElevationIndex)) {
+            tripStatistics.setMinElevation(cursor.getFloat(minElevationIndex));
+        }
+        if (!cursor.isNull(maxElevationIndex)) {
+            tripStatistics.setMaxElevation(cursor.getFloat(maxElevationIndex));
+        }
+        if (!cursor.isNull(elevationGainIndex)) {
+            tripStatistics.setTotalElevationGain(cursor.getFloat(elevationGainIndex));
+        }
+        if (!cursor.isNull(minGradeIndex)) {
+            tripStatistics.setMinGrade(cursor.getFloat(minGradeIndex));
+        }
+        if (!cursor.isNull(maxGradeIndex)) {
+            tripStatistics.setMaxGrade(cursor.getFloat(maxGradeIndex));
+        }
+        if (!cursor.isNull(iconIndex)) {
+            track.setIcon(cursor.getString(iconIndex));
+        }
+        if (!cursor.isNull(driveIdIndex)) {
+            track.setDriveId(cursor.getString(driveIdIndex));
+        }
+        if (!cursor.isNull(modifiedTimeIndex)) {
+            track.setModifiedTime(cursor.getLong(modifiedTimeIndex));
+        }
+        if (!cursor.isNull(sharedWithMeIndex)) {
+            track.setSharedWithMe(cursor.getInt(sharedWithMeIndex) == 1);
+        }
+        if (!cursor.isNull(sharedOwnerIndex)) {
+            track.setSharedOwner(cursor.getString(sharedOwnerIndex));
+        }
+        if (!cursor.isNull(calorieIndex)) {
+            tripStatistics.setCalorie(cursor.getFloat(calorieIndex));
+        }
+        return track;
+    }
+
+    @Override
+    public Waypoint createWaypoint(Cursor cursor) {
+        int idIndex = cursor.getColumnIndexOrThrow(WaypointsColumns._ID);
+        int nameIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.NAME);
+        int descriptionIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.DESCRIPTION);
+        int categoryIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.CATEGORY);
+        int iconIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.ICON);
+        int trackIdIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.TRACKID);
+        int typeIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.TYPE);
+        int lengthIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.LENGTH);
+        int durationIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.DURATION);
+        int startIdIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.STARTID);
+        int stopIdIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.STOPID);
+        int longitudeIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.LONGITUDE);
+        int latitudeIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.LATITUDE);
+        int timeIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.TIME);
+        int altitudeIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.ALTITUDE);
+        int accuracyIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.ACCURACY);
+        int speedIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.SPEED);
+        int bearingIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.BEARING);
+        int photoUrlIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.PHOTOURL);
+        int statsIndex = cursor.getColumnIndexOrThrow(WaypointsColumns.STATS);
+
+        Waypoint waypoint = new Waypoint();
+        if (!cursor.isNull(idIndex)) {
+            waypoint.setId(cursor.getLong(idIndex));
+        }
+        if (!cursor.isNull(nameIndex)) {
+            waypoint.setName(cursor.getString(nameIndex));
+        }
+        if (!cursor.isNull(descriptionIndex)) {
+            waypoint.setDescription(cursor.getString(descriptionIndex));
+        }
+        if (!cursor.isNull(categoryIndex)) {
+            waypoint.setCategory(cursor.getString(categoryIndex));
+        }
+        if (!cursor.isNull(iconIndex)) {
+            waypoint.setIcon(cursor.getString(iconIndex));
+        }
+        if (!cursor.isNull(trackIdIndex)) {
+            waypoint.setTrackId(cursor.getLong(trackIdIndex));
+        }
+        if (!cursor.isNull(typeIndex)) {
+            int type = cursor.getInt(typeIndex);
+            if (type >= 0 && type < Waypoint.WaypointType.values().length) {
+                waypoint.setType(Waypoint.WaypointType.values()[type]);
+            }
+        }
+        if (!cursor.isNull(lengthIndex)) {
+            waypoint.setLength(cursor.getFloat(lengthIndex));
+        }
+        if (!cursor.isNull(durationIndex)) {
+            waypoint.setDuration(cursor.getLong(durationIndex));
+        }
+        if (!cursor.isNull(startIdIndex)) {
+            waypoint.setStartId(cursor.getLong(startIdIndex));
+        }
+        if (!cursor.isNull(stopIdIndex)) {
+            waypoint.setStopId(cursor.getLong(stopIdIndex));
+        }
+
+        Location location = new Location("");
+        if (!cursor.isNull(longitudeIndex) && !cursor.isNull(latitudeIndex)) {
+            location.setLongitude(cursor.getInt(longitudeIndex) / 1E6);
+            location.setLatitude(cursor.getInt(latitudeIndex) / 1E6);
+        }
+        if (!cursor.isNull(timeIndex)) {
+            location.setTime(cursor.getLong(timeIndex));
+        }
+        if (!cursor.isNull(altitudeIndex)) {
+            location.setAltitude(cursor.getFloat(altitudeIndex));
+        }
+        if (!cursor.isNull(accuracyIndex)) {
+            location.setAccuracy(cursor.getFloat(accuracyIndex));
+        }
+        if (!cursor.isNull(speedIndex)) {
+            location.setSpeed(cursor.getFloat(speedIndex));
+        }
+        if (!cursor.isNull(bearingIndex)) {
+            location.setBearing(cursor.getFloat(bearingIndex));
+        }
+        waypoint.setLocation(location);
+
+        if (!cursor.isNull(photoUrlIndex)) {
+            waypoint.setPhotoUrl(cursor.getString(photoUrlIndex));
+        }
+        if (!cursor.isNull(statsIndex)) {
+            try {
+                waypoint.setTripStatistics(TripStatistics.fromByteArray(cursor.getBlob(statsIndex)));
+            } catch (IllegalArgumentException e) {
+                Log.w(TAG, "Invalid statistics for waypoint " + waypoint.getId(), e);
+            }
+        }
+        return waypoint;
+    }
+
+    /**
+     * Creates the {@link ContentValues} for a {@link Waypoint}. The waypoint id
+     * is only set if the waypoint already has one.
+     *
+     * @param waypoint the waypoint
+     */
+    private static ContentValues createContentValues(Waypoint waypoint) {
+        ContentValues values = new ContentValues();
+
+        // Value < 0 indicates no id is available
+        if (waypoint.getId() >= 0) {
+            values.put(WaypointsColumns._ID, waypoint.getId());
+        }
+        values.put(WaypointsColumns.NAME, waypoint.getName());
+        values.put(WaypointsColumns.DESCRIPTION, waypoint.getDescription());
+        values.put(WaypointsColumns.CATEGORY, waypoint.getCategory());
+        values.put(WaypointsColumns.ICON, waypoint.getIcon());
+        values.put(WaypointsColumns.TRACKID, waypoint.getTrackId());
+        values.put(WaypointsColumns.TYPE, waypoint.getType().ordinal());
+        values.put(WaypointsColumns.LENGTH, waypoint.getLength());
+        values.put(WaypointsColumns.DURATION, waypoint.getDuration());
+        values.put(WaypointsColumns.STARTID, waypoint.getStartId());
+        values.put(WaypointsColumns.STOPID, waypoint.getStopId());
+
+        Location location = waypoint.getLocation();
+        if (location != null) {
+            values.put(WaypointsColumns.LONGITUDE, (int) (location.getLongitude() * 1E6));
+            values.put(WaypointsColumns.LATITUDE, (int) (location.getLatitude() * 1E6));
+            values.put(WaypointsColumns.TIME, location.getTime());
+            if (location.hasAltitude()) {
+                values.put(WaypointsColumns.ALTITUDE, location.getAltitude());
+            }
+            if (location.hasAccuracy()) {
+                values.put(WaypointsColumns.ACCURACY, location.getAccuracy());
+            }
+            if (location.hasSpeed()) {
+                values.put(WaypointsColumns.SPEED, location.getSpeed());
+            }
+            if (location.hasBearing()) {
+                values.put(WaypointsColumns.BEARING, location.getBearing());
+            }
+        }
+        values.put(WaypointsColumns.PHOTOURL, waypoint.getPhotoUrl());
+
+        TripStatistics tripStatistics = waypoint.getTripStatistics();
+        if (tripStatistics != null) {
+            values.put(WaypointsColumns.STATS, tripStatistics.toByteArray());
+        } else {
+            values.putNull(WaypointsColumns.STATS);
+        }
+        return values;
+    }
+
+    /**
+     * Creates the {@link ContentValues} for a {@link Track}. The track id is
+     * only set if the track already has one.
+     *
+     * @param track the track
+     */
+    private static ContentValues createContentValues(Track track) {
+        ContentValues values = new ContentValues();
+        TripStatistics tripStatistics = track.getTripStatistics();
+
+        // Value < 0 indicates no id is available
+        if (track.getId() >= 0) {
+            values.put(TracksColumns._ID, track.getId());
+        }
+        values.put(TracksColumns.NAME, track.getName());
+        values.put(TracksColumns.DESCRIPTION, track.getDescription());
+        values.put(TracksColumns.CATEGORY, track.getCategory());
+        values.put(TracksColumns.STARTID, track.getStartId());
+        values.put(TracksColumns.STOPID, track.getStopId());
+        values.put(TracksColumns.STARTTIME, tripStatistics.getStartTime());
+        values.put(TracksColumns.STOPTIME, tripStatistics.getStopTime());
+        values.put(TracksColumns.NUMPOINTS, track.getNumberOfPoints());
+        values.put(TracksColumns.TOTALDISTANCE, tripStatistics.getTotalDistance());
+        values.put(TracksColumns.TOTALTIME, tripStatistics.getTotalTime());
+        values.put(TracksColumns.MOVINGTIME, tripStatistics.getMovingTime());
+        if (tripStatistics.getBottomDegrees() <= tripStatistics.getTopDegrees()) {
+            values.put(TracksColumns.MINLAT, tripStatistics.getBottom());
+            values.put(TracksColumns.MAXLAT, tripStatistics.getTop());
+            values.put(TracksColumns.MINLON, tripStatistics.getLeft());
+            values.put(TracksColumns.MAXLON, tripStatistics.getRight());
+        } else {
+            // No bounds yet
+            values.putNull(TracksColumns.MINLAT);
+            values.putNull(TracksColumns.MAXLAT);
+            values.putNull(TracksColumns.MINLON);
+            values.putNull(TracksColumns.MAXLON);
+        }
+        values.put(TracksColumns.MAXSPEED, tripStatistics.getMaxSpeed());
+        values.put(TracksColumns.MINELEVATION, tripStatistics.getMinElevation());
+        values.put(TracksColumns.MAXELEVATION, tripStatistics.getMaxElevation());
+        values.put(TracksColumns.ELEVATIONGAIN, tripStatistics.getTotalElevationGain());
+        values.put(TracksColumns.MINGRADE, tripStatistics.getMinGrade());
+        values.put(TracksColumns.MAXGRADE, tripStatistics.getMaxGrade());
+        values.put(TracksColumns.ICON, track.getIcon());
+        values.put(TracksColumns.DRIVEID, track.getDriveId());
+        values.put(TracksColumns.MODIFIEDTIME, track.getModifiedTime());
+        values.put(TracksColumns.SHAREDWITHME, track.isSharedWithMe());
+        values.put(TracksColumns.SHAREDOWNER, track.getSharedOwner());
+        values.put(TracksColumns.CALORIE, tripStatistics.getCalorie());
+        return values;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,168 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.util.LongSparseArray;
+
+/**
+ * In memory counters of the waypoints of the tracks: the number of waypoints
+ * of each type and the first and last waypoint ids, so that numbering a new
+ * marker doesn't count the waypoints of the track.
+ * <p>
+ * The counters of a track are loaded from the database on its first lookup,
+ * then kept up to date by the inserts. As in {@link TrackIndex}, loading runs
+ * without holding the lock and is dropped if the counters changed meanwhile.
+ * A delete just drops the counters of its track, to be loaded again.
+ */
+class WaypointCounters {
+
+    private static final int TYPES = Waypoint.WaypointType.values().length;
+
+    /**
+     * The counters of a track.
+     */
+    static class Counts {
+
+        private final int[] counts = new int[TYPES];
+        private final long[] lastIds = new long[TYPES];
+        private long firstId = -1L;
+
+        Counts() {
+            for (int i = 0; i < TYPES; i++) {
+                lastIds[i] = -1L;
+            }
+        }
+
+        Counts(Counts other) {
+            System.arraycopy(other.counts, 0, counts, 0, TYPES);
+            System.arraycopy(other.lastIds, 0, lastIds, 0, TYPES);
+            firstId = other.firstId;
+        }
+
+        /**
+         * Adds waypoints of a type, e.g. read by a grouped query.
+         *
+         * @param type    the waypoint type
+         * @param count   the number of waypoints
+         * @param firstId the smallest waypoint id
+         * @param lastId  the largest waypoint id
+         */
+        void add(Waypoint.WaypointType type, int count, long firstId, long lastId) {
+            counts[type.ordinal()] += count;
+            lastIds[type.ordinal()] = Math.max(lastIds[type.ordinal()], lastId);
+            if (this.firstId == -1L || firstId < this.firstId) {
+                this.firstId = firstId;
+            }
+        }
+
+        int getCount(Waypoint.WaypointType type) {
+            return counts[type.ordinal()];
+        }
+
+        int getCount() {
+            int count = 0;
+            for (int i = 0; i < TYPES; i++) {
+                count += counts[i];
+            }
+            return count;
+        }
+
+        /**
+         * Gets the last waypoint id of a type, -1L if none.
+         */
+        long getLastId(Waypoint.WaypointType type) {
+            return lastIds[type.ordinal()];
+        }
+
+        /**
+         * Gets the first waypoint id of any type, -1L if none.
+         */
+        long getFirstId() {
+            return firstId;
+        }
+    }
+
+    private final LongSparseArray<Counts> tracks = new LongSparseArray<Counts>();
+
+    // Incremented by every change, see load
+    private int modCount = 0;
+
+    /**
+     * Gets the counters of a track, null if not loaded. The returned counters
+     * must not be changed.
+     *
+     * @param trackId the track id
+     */
+    synchronized Counts get(long trackId) {
+        return tracks.get(trackId);
+    }
+
+    /**
+     * Gets the modification count, to be passed to {@link #load(long, Counts, int)}.
+     */
+    synchronized int getModCount() {
+        return modCount;
+    }
+
+    /**
+     * Loads the counters of a track.
+     *
+     * @param trackId      the track id
+     * @param counts       the counters, read from the database
+     * @param readModCount the modification count before reading the database
+     */
+    synchronized void load(long trackId, Counts counts, int readModCount) {
+        if (readModCount == modCount) {
+            tracks.put(trackId, counts);
+        }
+    }
+
+    /**
+     * Adds an inserted waypoint.
+     *
+     * @param trackId    the track id
+     * @param type       the waypoint type
+     * @param waypointId the waypoint id
+     */
+    synchronized void add(long trackId, Waypoint.WaypointType type, long waypointId) {
+        modCount++;
+        Counts counts = tracks.get(trackId);
+        if (counts != null) {
+            // Copied, as the callers may still read the previous counters
+            Counts newCounts = new Counts(counts);
+            newCounts.add(type, 1, waypointId, waypointId);
+            tracks.put(trackId, newCounts);
+        }
+    }
+
+    /**
+     * Drops the counters of a track.
+     *
+     * @param trackId the track id
+     */
+    synchronized void invalidate(long trackId) {
+        modCount++;
+        tracks.remove(trackId);
+    }
+
+    /**
+     * Drops the counters of all the tracks.
+     */
+    synchronized void invalidateAll() {
+        modCount++;
+        tracks.clear();
+    }
+}
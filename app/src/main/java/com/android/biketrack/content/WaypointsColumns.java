@@ -0,0 +1,98 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.net.Uri;
+import android.provider.BaseColumns;
+
+/**
+ * Constants for the waypoints table.
+ * <p>
+ * Taken from MyTracks Google application source code.
+ */
+public interface WaypointsColumns extends BaseColumns {
+
+    public static final String TABLE_NAME = "waypoints";
+
+    /**
+     * Waypoints provider uri.
+     */
+    public static final Uri CONTENT_URI = Uri.parse(
+            "content://" + TracksProviderUtils.AUTHORITY + "/" + TABLE_NAME);
+
+    /**
+     * Waypoint id sort order.
+     */
+    public static final String DEFAULT_SORT_ORDER = _ID;
+
+    // Columns
+    public static final String NAME = "name"; // waypoint name
+    public static final String DESCRIPTION = "description"; // waypoint description
+    public static final String CATEGORY = "category"; // waypoint category
+    public static final String ICON = "icon"; // waypoint icon
+    public static final String TRACKID = "trackid"; // track id
+    public static final String TYPE = "type"; // type
+    public static final String LENGTH = "length"; // length of the track (without smoothing)
+    public static final String DURATION = "duration"; // total duration of the track (not from the last waypoint)
+    public static final String STARTID = "startid"; // start track point id
+    public static final String STOPID = "stopid"; // stop track point id
+    public static final String LONGITUDE = "longitude"; // longitude
+    public static final String LATITUDE = "latitude"; // latitude
+    public static final String TIME = "time"; // time
+    public static final String ALTITUDE = "elevation"; // altitude
+    public static final String ACCURACY = "accuracy"; // accuracy
+    public static final String SPEED = "speed"; // speed
+    public static final String BEARING = "bearing"; // bearing
+    public static final String PHOTOURL = "photoUrl"; // photo url
+    public static final String STATS = "stats"; // statistics, see TripStatistics#toByteArray
+
+    public static final String CREATE_TABLE = "CREATE TABLE " + TABLE_NAME + " ("
+            + _ID + " INTEGER PRIMARY KEY AUTOINCREMENT, "
+            + NAME + " STRING, "
+            + DESCRIPTION + " STRING, "
+            + CATEGORY + " STRING, "
+            + ICON + " STRING, "
+            + TRACKID + " INTEGER, "
+            + TYPE + " INTEGER, "
+            + LENGTH + " FLOAT, "
+            + DURATION + " INTEGER, "
+            + STARTID + " INTEGER, "
+            + STOPID + " INTEGER, "
+            + LONGITUDE + " INTEGER, "
+            + LATITUDE + " INTEGER, "
+            + TIME + " INTEGER, "
+            + ALTITUDE + " FLOAT, "
+            + ACCURACY + " FLOAT, "
+            + SPEED + " FLOAT, "
+            + BEARING + " FLOAT, "
+            + PHOTOURL + " STRING, "
+            + STATS + " BLOB"
+            + ");";
+
+    public static final String CREATE_TRACKID_INDEX = "CREATE INDEX "
+            + TABLE_NAME + "_" + TRACKID + "_index ON " + TABLE_NAME + "(" + TRACKID + ");";
+
+    /**
+     * Index of the waypoints of a type of a track, by id (implicit in the
+     * index), for the last waypoint and the waypoint counts.
+     */
+    public static final String CREATE_TRACKID_TYPE_INDEX = "CREATE INDEX "
+            + TABLE_NAME + "_" + TRACKID + "_" + TYPE + "_index ON " + TABLE_NAME + "("
+            + TRACKID + ", " + TYPE + ");";
+
+    public static final String ADD_STATS_COLUMN = "ALTER TABLE " + TABLE_NAME + " ADD "
+            + STATS + " BLOB;";
+}
@@ -0,0 +1,177 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.backup;
+
+import android.location.Location;
+import android.location.LocationManager;
+
+import com.android.biketrack.stats.TripStatistics;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+
+/**
+ * The backup file format, written by {@link TrackBackupWriter} and read by
+ * {@link TrackBackupRestorer}.
+ * <p>
+ * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by the
+ * chunks of a {@link ChunkOutputStream}. The chunked data is a sequence of
+ * records, each starting with its type:
+ * <ul>
+ * <li>{@link #RECORD_TRACK}: the track fields and statistics, the track
+ * points encoded by a {@link com.android.biketrack.content.TrackPointCodec},
+ * then the waypoints, each preceded by {@link #RECORD_WAYPOINT}, and
+ * {@link #RECORD_END}. The waypoints refer to the track points by their index
+ * in the track, as the ids change on restore.</li>
+ * <li>{@link #RECORD_END}: the end of the backup, followed by the number of
+ * tracks.</li>
+ * </ul>
+ */
+final class BackupFormat {
+
+  /**
+   * The backup file extension.
+   */
+  static final String EXTENSION = "btbk";
+
+  static final int MAGIC = 0x4254424B; // "BTBK"
+  static final int VERSION = 2;
+
+  // Version 1 backups don't have the raw coordinates of the track points
+  static final int VERSION_1 = 1;
+
+  static final int RECORD_END = 0;
+  static final int RECORD_TRACK = 1;
+  static final int RECORD_WAYPOINT = 2;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private BackupFormat() {}
+
+  /**
+   * Writes a string, possibly null.
+   */
+  static void writeString(DataOutputStream outputStream, String value) throws IOException {
+    if (value == null) {
+      outputStream.writeInt(-1);
+      return;
+    }
+    byte[] bytes = value.getBytes(UTF_8);
+    outputStream.writeInt(bytes.length);
+    outputStream.write(bytes);
+  }
+
+  /**
+   * Reads a string written by {@link #writeString}.
+   */
+  static String readString(DataInputStream inputStream) throws IOException {
+    int length = inputStream.readInt();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > ChunkOutputStream.CHUNK_SIZE * 16) {
+      throw new IOException("Invalid string length " + length);
+    }
+    byte[] bytes = new byte[length];
+    inputStream.readFully(bytes);
+    return new String(bytes, UTF_8);
+  }
+
+  /**
+   * Writes trip statistics, possibly null.
+   */
+  static void writeTripStatistics(DataOutputStream outputStream, TripStatistics tripStatistics)
+      throws IOException {
+    if (tripStatistics == null) {
+      outputStream.writeInt(-1);
+      return;
+    }
+    byte[] bytes = tripStatistics.toByteArray();
+    outputStream.writeInt(bytes.length);
+    outputStream.write(bytes);
+  }
+
+  /**
+   * Reads trip statistics written by {@link #writeTripStatistics}.
+   */
+  static TripStatistics readTripStatistics(DataInputStream inputStream) throws IOException {
+    int length = inputStream.readInt();
+    if (length == -1) {
+      return null;
+    }
+    if (length < 0 || length > 1024) {
+      throw new IOException("Invalid statistics length " + length);
+    }
+    byte[] bytes = new byte[length];
+    inputStream.readFully(bytes);
+    try {
+      return TripStatistics.fromByteArray(bytes);
+    } catch (IllegalArgumentException e) {
+      throw new IOException(e.getMessage());
+    }
+  }
+
+  /**
+   * Writes a location, possibly null. NaN optional values are not set.
+   */
+  static void writeLocation(DataOutputStream outputStream, Location location)
+      throws IOException {
+    outputStream.writeBoolean(location != null);
+    if (location == null) {
+      return;
+    }
+    outputStream.writeDouble(location.getLatitude());
+    outputStream.writeDouble(location.getLongitude());
+    outputStream.writeLong(location.getTime());
+    outputStream.writeFloat(location.hasAltitude() ? (float) location.getAltitude() : Float.NaN);
+    outputStream.writeFloat(location.hasAccuracy() ? location.getAccuracy() : Float.NaN);
+    outputStream.writeFloat(location.hasSpeed() ? location.getSpeed() : Float.NaN);
+    outputStream.writeFloat(location.hasBearing() ? location.getBearing() : Float.NaN);
+  }
+
+  /**
+   * Reads a location written by {@link #writeLocation}.
+   */
+  static Location readLocation(DataInputStream inputStream) throws IOException {
+    if (!inputStream.readBoolean()) {
+      return null;
+    }
+    Location location = new Location(LocationManager.GPS_PROVIDER);
+    location.setLatitude(inputStream.readDouble());
+    location.setLongitude(inputStream.readDouble());
+    location.setTime(inputStream.readLong());
+    float altitude = inputStream.readFloat();
+    if (!Float.isNaN(altitude)) {
+      location.setAltitude(altitude);
+    }
+    float accuracy = inputStream.readFloat();
+    if (!Float.isNaN(accuracy)) {
+      location.setAccuracy(accuracy);
+    }
+    float speed = inputStream.readFloat();
+    if (!Float.isNaN(speed)) {
+      location.setSpeed(speed);
+    }
+    float bearing = inputStream.readFloat();
+    if (!Float.isNaN(bearing)) {
+      location.setBearing(bearing);
+    }
+    return location;
+  }
+}
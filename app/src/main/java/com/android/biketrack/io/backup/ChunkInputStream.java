@@ -0,0 +1,184 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.backup;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+
+/**
+ * Input stream reading the chunks written by {@link ChunkOutputStream}.
+ * <p>
+ * The chunks are read ahead in the reading thread, and inflated and checked
+ * by an executor, so that several chunks are verified in parallel while the
+ * reader uses the data of the current one. At most {@code readAhead} chunks
+ * are in memory. A chunk not matching its CRC fails the read with an
+ * {@link IOException}.
+ */
+class ChunkInputStream extends InputStream {
+
+  private final DataInputStream inputStream;
+  private final ExecutorService executorService;
+  private final int readAhead;
+  private final ArrayDeque<Future<byte[]>> chunks = new ArrayDeque<Future<byte[]>>();
+
+  // The number of chunks read, for the error messages
+  private int chunkCount = 0;
+  private boolean lastChunkRead = false;
+
+  // The data of the current chunk
+  private byte[] data = new byte[0];
+  private int position = 0;
+
+  /**
+   * Constructor.
+   *
+   * @param inputStream the input stream, closed by {@link #close()}
+   * @param executorService the executor verifying the chunks
+   * @param readAhead the number of chunks verified ahead
+   */
+  ChunkInputStream(InputStream inputStream, ExecutorService executorService, int readAhead) {
+    this.inputStream = new DataInputStream(inputStream);
+    this.executorService = executorService;
+    this.readAhead = Math.max(1, readAhead);
+  }
+
+  @Override
+  public int read() throws IOException {
+    if (position == data.length && !nextChunk()) {
+      return -1;
+    }
+    return data[position++] & 0xFF;
+  }
+
+  @Override
+  public int read(byte[] b, int off, int len) throws IOException {
+    if (len == 0) {
+      return 0;
+    }
+    if (position == data.length && !nextChunk()) {
+      return -1;
+    }
+    int count = Math.min(len, data.length - position);
+    System.arraycopy(data, position, b, off, count);
+    position += count;
+    return count;
+  }
+
+  @Override
+  public int available() {
+    return data.length - position;
+  }
+
+  @Override
+  public void close() throws IOException {
+    for (Future<byte[]> chunk : chunks) {
+      chunk.cancel(false);
+    }
+    chunks.clear();
+    inputStream.close();
+  }
+
+  /**
+   * Moves to the next chunk with data.
+   *
+   * @return false if the last chunk was read
+   */
+  private boolean nextChunk() throws IOException {
+    do {
+      while (!lastChunkRead && chunks.size() < readAhead) {
+        readChunk();
+      }
+      Future<byte[]> chunk = chunks.poll();
+      if (chunk == null) {
+        return false;
+      }
+      try {
+        data = chunk.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted");
+      } catch (ExecutionException e) {
+        if (e.getCause() instanceof IOException) {
+          throw (IOException) e.getCause();
+        }
+        throw new IOException(e.getCause());
+      }
+      position = 0;
+    } while (data.length == 0);
+    return true;
+  }
+
+  /**
+   * Reads the next chunk, and submits its verification.
+   */
+  private void readChunk() throws IOException {
+    final int length = inputStream.readInt();
+    final int compressedLength = inputStream.readInt();
+    final int crcValue = inputStream.readInt();
+    if (length == 0) {
+      lastChunkRead = true;
+      return;
+    }
+    if (length < 0 || length > ChunkOutputStream.CHUNK_SIZE || compressedLength < 0
+        || compressedLength > 2 * ChunkOutputStream.CHUNK_SIZE) {
+      throw new IOException("Invalid chunk " + chunkCount);
+    }
+    final byte[] compressed = new byte[compressedLength];
+    inputStream.readFully(compressed);
+    final int index = chunkCount++;
+    chunks.add(executorService.submit(new Callable<byte[]>() {
+      @Override
+      public byte[] call() throws IOException {
+        byte[] chunkData = new byte[length];
+        Inflater inflater = new Inflater();
+        try {
+          inflater.setInput(compressed);
+          int inflated = 0;
+          while (inflated < length && !inflater.finished()) {
+            int count = inflater.inflate(chunkData, inflated, length - inflated);
+            if (count == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+              break;
+            }
+            inflated += count;
+          }
+          if (inflated != length || !inflater.finished()) {
+            throw new IOException("Truncated chunk " + index);
+          }
+        } catch (DataFormatException e) {
+          throw new IOException("Corrupted chunk " + index, e);
+        } finally {
+          inflater.end();
+        }
+        CRC32 crc = new CRC32();
+        crc.update(chunkData, 0, length);
+        if ((int) crc.getValue() != crcValue) {
+          throw new IOException("Invalid checksum of chunk " + index);
+        }
+        return chunkData;
+      }
+    }));
+  }
+}
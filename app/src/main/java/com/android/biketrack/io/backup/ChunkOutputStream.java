@@ -0,0 +1,151 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.backup;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+
+/**
+ * Output stream writing its data as a sequence of independently compressed
+ * chunks, read back by {@link ChunkInputStream}. Each chunk is written as:
+ * <ul>
+ * <li>the length of the data, an int, 0 for the last chunk</li>
+ * <li>the length of the compressed data, an int</li>
+ * <li>the CRC-32 of the data, an int</li>
+ * <li>the data, deflated</li>
+ * </ul>
+ * The chunks can be checked and inflated in parallel, and a corrupted chunk
+ * is detected before its data is used. At most one chunk is buffered, and the
+ * last one is written by {@link #finish()}.
+ */
+class ChunkOutputStream extends OutputStream {
+
+  /**
+   * The maximum length of the data of a chunk.
+   */
+  static final int CHUNK_SIZE = 64 * 1024;
+
+  private final DataOutputStream outputStream;
+  private final byte[] buffer = new byte[CHUNK_SIZE];
+  private final Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+  private final CRC32 crc = new CRC32();
+  private byte[] compressed = new byte[CHUNK_SIZE + CHUNK_SIZE / 8];
+  private int length = 0;
+  private boolean finished = false;
+  private boolean closed = false;
+
+  /**
+   * Constructor.
+   *
+   * @param outputStream the output stream, closed by {@link #close()}
+   */
+  ChunkOutputStream(OutputStream outputStream) {
+    this.outputStream = new DataOutputStream(outputStream);
+  }
+
+  @Override
+  public void write(int b) throws IOException {
+    if (length == CHUNK_SIZE) {
+      writeChunk();
+    }
+    buffer[length++] = (byte) b;
+  }
+
+  @Override
+  public void write(byte[] b, int off, int len) throws IOException {
+    while (len > 0) {
+      if (length == CHUNK_SIZE) {
+        writeChunk();
+      }
+      int count = Math.min(len, CHUNK_SIZE - length);
+      System.arraycopy(b, off, buffer, length, count);
+      length += count;
+      off += count;
+      len -= count;
+    }
+  }
+
+  /**
+   * Flushes the chunks written so far. The buffered data is kept for the next
+   * chunk, so that flushing doesn't cut small chunks.
+   */
+  @Override
+  public void flush() throws IOException {
+    outputStream.flush();
+  }
+
+  /**
+   * Writes the buffered data and the last chunk, and flushes the underlying
+   * stream, e.g. to sync it before closing.
+   */
+  void finish() throws IOException {
+    if (finished) {
+      return;
+    }
+    finished = true;
+    if (length > 0) {
+      writeChunk();
+    }
+    outputStream.writeInt(0);
+    outputStream.writeInt(0);
+    outputStream.writeInt(0);
+    outputStream.flush();
+  }
+
+  /**
+   * Finishes the chunks, if not done yet, then closes the underlying stream.
+   */
+  @Override
+  public void close() throws IOException {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    try {
+      finish();
+    } finally {
+      deflater.end();
+      outputStream.close();
+    }
+  }
+
+  private void writeChunk() throws IOException {
+    crc.reset();
+    crc.update(buffer, 0, length);
+    deflater.reset();
+    deflater.setInput(buffer, 0, length);
+    deflater.finish();
+    int compressedLength = 0;
+    while (!deflater.finished()) {
+      if (compressedLength == compressed.length) {
+        byte[] newCompressed = new byte[compressed.length * 2];
+        System.arraycopy(compressed, 0, newCompressed, 0, compressedLength);
+        compressed = newCompressed;
+      }
+      compressedLength += deflater.deflate(compressed, compressedLength,
+          compressed.length - compressedLength);
+    }
+    outputStream.writeInt(length);
+    outputStream.writeInt(compressedLength);
+    outputStream.writeInt((int) crc.getValue());
+    outputStream.write(compressed, 0, compressedLength);
+    length = 0;
+  }
+}
@@ -0,0 +1,313 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.backup;
+
+import android.content.ContentUris;
+import android.content.Context;
+import android.util.Log;
+
+import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackPointCodec;
+import com.android.biketrack.content.TrackPoints;
+import com.android.biketrack.content.TracksProviderUtils;
+import com.android.biketrack.content.Waypoint;
+import com.android.biketrack.stats.TripStatistics;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Restores the tracks of a backup file written by {@link TrackBackupWriter}.
+ * <p>
+ * The file is read sequentially, while a few threads inflate and check the
+ * next chunks. The tracks are restored one at a time, their points inserted
+ * in batches of {@link #BATCH_SIZE}, so the memory used doesn't depend on the
+ * size of the backup. The restored tracks are added to the existing ones, and
+ * deleted again if the backup turns out to be invalid.
+ */
+public class TrackBackupRestorer {
+
+  private static final String TAG = TrackBackupRestorer.class.getSimpleName();
+
+  // The number of track points inserted per transaction
+  private static final int BATCH_SIZE = 1000;
+
+  private final Context context;
+  private final TracksProviderUtils tracksProviderUtils;
+  private final int numberOfThreads;
+
+  // The new ids of the points of the current track, as runs of consecutive ids
+  private int[] runIndexes = new int[16];
+  private long[] runIds = new long[16];
+  private int runCount;
+
+  // The number of valid points of the current track, without the segment separators
+  private int validNumberOfPoints;
+
+  public TrackBackupRestorer(Context context, TracksProviderUtils tracksProviderUtils) {
+    this.context = context;
+    this.tracksProviderUtils = tracksProviderUtils;
+    this.numberOfThreads = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors()));
+  }
+
+  /**
+   * Gets the backup files of a directory, the newest first.
+   *
+   * @param directory the directory, e.g.
+   *          {@link TrackBackupWriter#getBackupsDirectory()}
+   */
+  public static File[] getBackupFiles(File directory) {
+    File[] files = directory.listFiles(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return name.endsWith("." + BackupFormat.EXTENSION);
+      }
+    });
+    if (files == null) {
+      return new File[0];
+    }
+    Arrays.sort(files, new Comparator<File>() {
+      @Override
+      public int compare(File file1, File file2) {
+        long modified1 = file1.lastModified();
+        long modified2 = file2.lastModified();
+        return modified1 < modified2 ? 1 : (modified1 == modified2 ? 0 : -1);
+      }
+    });
+    return files;
+  }
+
+  /**
+   * Restores the tracks of a backup file. Blocks until done, so must be called
+   * from a background thread. Nothing is restored if the file is not valid.
+   *
+   * @param file the backup file
+   * @return the ids of the restored tracks, empty if unsuccessful
+   */
+  public long[] restoreBackup(File file) {
+    List<Long> trackIds = new ArrayList<Long>();
+    ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+    InputStream inputStream = null;
+    boolean successful = false;
+    try {
+      inputStream = new FileInputStream(file);
+      DataInputStream header = new DataInputStream(inputStream);
+      if (header.readInt() != BackupFormat.MAGIC) {
+        throw new IOException("Not a backup file");
+      }
+      int version = header.readInt();
+      if (version != BackupFormat.VERSION && version != BackupFormat.VERSION_1) {
+        throw new IOException("Unsupported backup version " + version);
+      }
+      inputStream = new ChunkInputStream(
+          new BufferedInputStream(inputStream, ChunkOutputStream.CHUNK_SIZE), executorService,
+          2 * numberOfThreads);
+      DataInputStream dataInputStream = new DataInputStream(
+          new BufferedInputStream(inputStream));
+
+      int record;
+      while ((record = dataInputStream.readUnsignedByte()) == BackupFormat.RECORD_TRACK) {
+        restoreTrack(dataInputStream, trackIds);
+      }
+      if (record != BackupFormat.RECORD_END) {
+        throw new IOException("Invalid record " + record);
+      }
+      int count = dataInputStream.readInt();
+      if (count != trackIds.size()) {
+        throw new IOException("Expected " + count + " tracks, found " + trackIds.size());
+      }
+      successful = true;
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to restore the backup " + file, e);
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Invalid value in the backup " + file, e);
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Restore interrupted");
+      Thread.currentThread().interrupt();
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          Log.e(TAG, "Unable to close the backup " + file, e);
+        }
+      }
+      executorService.shutdownNow();
+    }
+
+    if (!successful) {
+      for (long trackId : trackIds) {
+        tracksProviderUtils.deleteTrack(context, trackId);
+      }
+      return new long[0];
+    }
+    long[] result = new long[trackIds.size()];
+    for (int i = 0; i < result.length; i++) {
+      result[i] = trackIds.get(i);
+    }
+    return result;
+  }
+
+  /**
+   * Restores a track record. The track id is added to the restored ids as soon
+   * as the track is inserted, so that it's deleted if the record is invalid.
+   */
+  private void restoreTrack(DataInputStream inputStream, List<Long> trackIds)
+      throws IOException, InterruptedException {
+    Track track = new Track();
+    track.setName(BackupFormat.readString(inputStream));
+    track.setDescription(BackupFormat.readString(inputStream));
+    track.setCategory(BackupFormat.readString(inputStream));
+    track.setIcon(BackupFormat.readString(inputStream));
+    track.setDriveId(BackupFormat.readString(inputStream));
+    track.setModifiedTime(inputStream.readLong());
+    track.setSharedWithMe(inputStream.readBoolean());
+    track.setSharedOwner(BackupFormat.readString(inputStream));
+    TripStatistics tripStatistics = BackupFormat.readTripStatistics(inputStream);
+    if (tripStatistics != null) {
+      track.setTripStatistics(tripStatistics);
+    }
+
+    long trackId = ContentUris.parseId(tracksProviderUtils.insertTrack(track));
+    if (trackId < 0) {
+      throw new IOException("Unable to insert the track");
+    }
+    trackIds.add(trackId);
+    track.setId(trackId);
+
+    int numberOfPoints = restoreTrackPoints(inputStream, trackId);
+    if (numberOfPoints > 0) {
+      track.setStartId(getTrackPointId(0));
+      track.setStopId(getTrackPointId(numberOfPoints - 1));
+    }
+    track.setNumberOfPoints(validNumberOfPoints);
+    tracksProviderUtils.updateTrack(track);
+
+    int record;
+    while ((record = inputStream.readUnsignedByte()) == BackupFormat.RECORD_WAYPOINT) {
+      restoreWaypoint(inputStream, trackId, numberOfPoints);
+    }
+    if (record != BackupFormat.RECORD_END) {
+      throw new IOException("Invalid record " + record);
+    }
+  }
+
+  /**
+   * Restores the track points of a track, and notes their new ids. Counts the
+   * valid ones in {@link #validNumberOfPoints}.
+   *
+   * @return the number of track points, segment separators included
+   */
+  private int restoreTrackPoints(DataInputStream inputStream, long trackId)
+      throws IOException, InterruptedException {
+    runCount = 0;
+    validNumberOfPoints = 0;
+    int count = 0;
+    TrackPointCodec.Decoder decoder = new TrackPointCodec.Decoder(inputStream);
+    TrackPoints trackPoints = new TrackPoints(BATCH_SIZE);
+    boolean hasNext;
+    do {
+      hasNext = decoder.read(trackPoints);
+      if (trackPoints.size() == BATCH_SIZE || (!hasNext && !trackPoints.isEmpty())) {
+        if (Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+        if (tracksProviderUtils.bulkInsertTrackPoints(trackPoints, trackId)
+            != trackPoints.size()) {
+          throw new IOException("Unable to insert the track points");
+        }
+        for (int i = 0; i < trackPoints.size(); i++) {
+          addTrackPointId(count + i, trackPoints.getId(i));
+          if (trackPoints.isValid(i)) {
+            validNumberOfPoints++;
+          }
+        }
+        count += trackPoints.size();
+        trackPoints.clear();
+      }
+    } while (hasNext);
+    return count;
+  }
+
+  private void restoreWaypoint(DataInputStream inputStream, long trackId, int numberOfPoints)
+      throws IOException {
+    Waypoint waypoint = new Waypoint();
+    waypoint.setTrackId(trackId);
+    waypoint.setName(BackupFormat.readString(inputStream));
+    waypoint.setDescription(BackupFormat.readString(inputStream));
+    waypoint.setCategory(BackupFormat.readString(inputStream));
+    waypoint.setIcon(BackupFormat.readString(inputStream));
+    int type = inputStream.readUnsignedByte();
+    if (type >= Waypoint.WaypointType.values().length) {
+      throw new IOException("Invalid waypoint type " + type);
+    }
+    waypoint.setType(Waypoint.WaypointType.values()[type]);
+    waypoint.setLength(inputStream.readDouble());
+    waypoint.setDuration(inputStream.readLong());
+    int startIndex = inputStream.readInt();
+    int stopIndex = inputStream.readInt();
+    if (startIndex >= numberOfPoints || stopIndex >= numberOfPoints) {
+      throw new IOException("Invalid waypoint track point index");
+    }
+    waypoint.setStartId(startIndex < 0 ? -1L : getTrackPointId(startIndex));
+    waypoint.setStopId(stopIndex < 0 ? -1L : getTrackPointId(stopIndex));
+    waypoint.setLocation(BackupFormat.readLocation(inputStream));
+    waypoint.setTripStatistics(BackupFormat.readTripStatistics(inputStream));
+    waypoint.setPhotoUrl(BackupFormat.readString(inputStream));
+    tracksProviderUtils.insertWaypoint(waypoint);
+  }
+
+  /**
+   * Notes the new id of a track point, in the order of the track.
+   */
+  private void addTrackPointId(int index, long trackPointId) {
+    if (runCount > 0
+        && runIds[runCount - 1] + (index - runIndexes[runCount - 1]) == trackPointId) {
+      return;
+    }
+    if (runCount == runIndexes.length) {
+      runIndexes = Arrays.copyOf(runIndexes, runCount * 2);
+      runIds = Arrays.copyOf(runIds, runCount * 2);
+    }
+    runIndexes[runCount] = index;
+    runIds[runCount] = trackPointId;
+    runCount++;
+  }
+
+  /**
+   * Gets the new id of the track point at an index of the current track.
+   */
+  private long getTrackPointId(int index) {
+    int i = Arrays.binarySearch(runIndexes, 0, runCount, index);
+    if (i < 0) {
+      // The run starting before the index
+      i = -i - 2;
+    }
+    return runIds[i] + (index - runIndexes[i]);
+  }
+}
@@ -0,0 +1,315 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.backup;
+
+import android.database.Cursor;
+import android.location.Location;
+import android.util.Log;
+
+import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackPointCodec;
+import com.android.biketrack.content.TracksProviderUtils;
+import com.android.biketrack.content.TracksProviderUtils.LocationFactory;
+import com.android.biketrack.content.TracksProviderUtils.LocationIterator;
+import com.android.biketrack.content.Waypoint;
+import com.android.biketrack.utils.FileUtils;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Locale;
+
+/**
+ * Writes all the tracks, with their points and waypoints, to a single backup
+ * file in the {@link BackupFormat}, restored by {@link TrackBackupRestorer}.
+ * <p>
+ * The tracks are read one at a time, their points through a
+ * {@link LocationIterator} and their waypoints in pages, and written through a
+ * {@link ChunkOutputStream}, so the memory used doesn't depend on the number
+ * or size of the tracks. The file is written under a temporary name and
+ * renamed once complete.
+ */
+public class TrackBackupWriter {
+
+  private static final String TAG = TrackBackupWriter.class.getSimpleName();
+
+  // The number of waypoints read per query
+  private static final int WAYPOINT_PAGE_SIZE = 1000;
+
+  private final TracksProviderUtils tracksProviderUtils;
+
+  // The ids of the track points referred by the waypoints of the current track, sorted
+  private long[] referencedIds = new long[16];
+  private int referencedCount;
+
+  // The index in the track of each referenced id, -1 if not found
+  private int[] referencedIndexes = new int[16];
+
+  public TrackBackupWriter(TracksProviderUtils tracksProviderUtils) {
+    this.tracksProviderUtils = tracksProviderUtils;
+  }
+
+  /**
+   * Gets the default backups directory, {@link FileUtils#BACKUPS_DIR}.
+   */
+  public static File getBackupsDirectory() {
+    return new File(FileUtils.getPath(FileUtils.BACKUPS_DIR));
+  }
+
+  /**
+   * Writes a backup of all the tracks to a new file of a directory. Blocks
+   * until done, so must be called from a background thread.
+   *
+   * @param directory the directory
+   * @return the backup file, null if unsuccessful
+   */
+  public File writeBackup(File directory) {
+    if (!FileUtils.ensureDirectoryExists(directory)) {
+      Log.e(TAG, "Unable to create the directory " + directory);
+      return null;
+    }
+    String name = "backup-" + new SimpleDateFormat("yyyyMMdd-HHmmss", Locale.US).format(new Date());
+    File file = new File(directory,
+        FileUtils.buildUniqueFileName(directory, name, BackupFormat.EXTENSION));
+    File temporaryFile = new File(directory, file.getName() + ".tmp");
+
+    boolean successful = false;
+    try {
+      writeBackup(new FileOutputStream(temporaryFile));
+      successful = temporaryFile.renameTo(file);
+      if (!successful) {
+        Log.e(TAG, "Unable to rename " + temporaryFile);
+      }
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to write the backup", e);
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Backup interrupted");
+      Thread.currentThread().interrupt();
+    } finally {
+      if (!successful && temporaryFile.exists() && !temporaryFile.delete()) {
+        Log.e(TAG, "Unable to delete " + temporaryFile);
+      }
+    }
+    return successful ? file : null;
+  }
+
+  /**
+   * Writes a backup of all the tracks to a file output stream, synced and
+   * closed when done.
+   *
+   * @param fileOutputStream the file output stream
+   */
+  private void writeBackup(FileOutputStream fileOutputStream)
+      throws IOException, InterruptedException {
+    DataOutputStream header = new DataOutputStream(fileOutputStream);
+    ChunkOutputStream chunkOutputStream = new ChunkOutputStream(
+        new BufferedOutputStream(fileOutputStream, ChunkOutputStream.CHUNK_SIZE));
+    try {
+      header.writeInt(BackupFormat.MAGIC);
+      header.writeInt(BackupFormat.VERSION);
+
+      DataOutputStream outputStream = new DataOutputStream(
+          new BufferedOutputStream(chunkOutputStream));
+      int count = 0;
+      for (long trackId : tracksProviderUtils.getAllTrackIds()) {
+        Track track = tracksProviderUtils.getTrack(trackId);
+        if (track != null) {
+          writeTrack(outputStream, track);
+          count++;
+        }
+      }
+      outputStream.writeByte(BackupFormat.RECORD_END);
+      outputStream.writeInt(count);
+      outputStream.flush();
+      chunkOutputStream.finish();
+      fileOutputStream.getFD().sync();
+    } finally {
+      chunkOutputStream.close();
+    }
+  }
+
+  private void writeTrack(DataOutputStream outputStream, Track track)
+      throws IOException, InterruptedException {
+    outputStream.writeByte(BackupFormat.RECORD_TRACK);
+    BackupFormat.writeString(outputStream, track.getName());
+    BackupFormat.writeString(outputStream, track.getDescription());
+    BackupFormat.writeString(outputStream, track.getCategory());
+    BackupFormat.writeString(outputStream, track.getIcon());
+    BackupFormat.writeString(outputStream, track.getDriveId());
+    outputStream.writeLong(track.getModifiedTime());
+    outputStream.writeBoolean(track.isSharedWithMe());
+    BackupFormat.writeString(outputStream, track.getSharedOwner());
+    BackupFormat.writeTripStatistics(outputStream, track.getTripStatistics());
+
+    loadReferencedIds(track.getId());
+    writeTrackPoints(outputStream, track.getId());
+    writeWaypoints(outputStream, track.getId());
+    outputStream.writeByte(BackupFormat.RECORD_END);
+  }
+
+  /**
+   * Loads the ids of the track points referred by the waypoints of a track.
+   */
+  private void loadReferencedIds(long trackId) {
+    referencedCount = 0;
+    long minWaypointId = -1L;
+    int count;
+    do {
+      count = 0;
+      Cursor cursor = null;
+      try {
+        cursor = tracksProviderUtils.getWaypointCursor(trackId, minWaypointId,
+            WAYPOINT_PAGE_SIZE);
+        while (cursor != null && cursor.moveToNext()) {
+          count++;
+          Waypoint waypoint = tracksProviderUtils.createWaypoint(cursor);
+          minWaypointId = waypoint.getId() + 1;
+          addReferencedId(waypoint.getStartId());
+          addReferencedId(waypoint.getStopId());
+        }
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+    } while (count == WAYPOINT_PAGE_SIZE);
+
+    // Sorted and without duplicates, for the lookups
+    Arrays.sort(referencedIds, 0, referencedCount);
+    int unique = 0;
+    for (int i = 0; i < referencedCount; i++) {
+      if (unique == 0 || referencedIds[i] != referencedIds[unique - 1]) {
+        referencedIds[unique++] = referencedIds[i];
+      }
+    }
+    referencedCount = unique;
+    if (referencedIndexes.length < referencedCount) {
+      referencedIndexes = new int[referencedIds.length];
+    }
+    Arrays.fill(referencedIndexes, 0, referencedCount, -1);
+  }
+
+  private void addReferencedId(long trackPointId) {
+    if (trackPointId < 0) {
+      return;
+    }
+    if (referencedCount == referencedIds.length) {
+      referencedIds = Arrays.copyOf(referencedIds, referencedCount * 2);
+    }
+    referencedIds[referencedCount++] = trackPointId;
+  }
+
+  /**
+   * Writes the track points, and notes the index of the referenced ones.
+   */
+  private void writeTrackPoints(DataOutputStream outputStream, long trackId)
+      throws IOException, InterruptedException {
+    final Location location = TracksProviderUtils.DEFAULT_LOCATION_FACTORY.createLocation();
+    // Lossless, unlike the packed encoding of the track exports, with the raw coordinates
+    TrackPointCodec.Encoder encoder = new TrackPointCodec.Encoder(outputStream, false, true);
+    LocationIterator iterator = tracksProviderUtils.getTrackPointLocationIterator(trackId, -1L,
+        false, new LocationFactory() {
+          @Override
+          public Location createLocation() {
+            return location;
+          }
+        });
+    try {
+      int index = 0;
+      while (iterator.hasNext()) {
+        encoder.write(iterator.next());
+        if (referencedCount > 0) {
+          int i = Arrays.binarySearch(referencedIds, 0, referencedCount,
+              iterator.getLocationId());
+          if (i >= 0) {
+            referencedIndexes[i] = index;
+          }
+        }
+        index++;
+        if ((index & 0xFFF) == 0 && Thread.interrupted()) {
+          throw new InterruptedException();
+        }
+      }
+    } finally {
+      iterator.close();
+    }
+    encoder.finish();
+  }
+
+  /**
+   * Writes the waypoints, with the indexes of their start and stop points.
+   */
+  private void writeWaypoints(DataOutputStream outputStream, long trackId)
+      throws IOException, InterruptedException {
+    long minWaypointId = -1L;
+    int count;
+    do {
+      count = 0;
+      Cursor cursor = null;
+      try {
+        cursor = tracksProviderUtils.getWaypointCursor(trackId, minWaypointId,
+            WAYPOINT_PAGE_SIZE);
+        while (cursor != null && cursor.moveToNext()) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          count++;
+          Waypoint waypoint = tracksProviderUtils.createWaypoint(cursor);
+          minWaypointId = waypoint.getId() + 1;
+          writeWaypoint(outputStream, waypoint);
+        }
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
+      }
+    } while (count == WAYPOINT_PAGE_SIZE);
+  }
+
+  private void writeWaypoint(DataOutputStream outputStream, Waypoint waypoint)
+      throws IOException {
+    outputStream.writeByte(BackupFormat.RECORD_WAYPOINT);
+    BackupFormat.writeString(outputStream, waypoint.getName());
+    BackupFormat.writeString(outputStream, waypoint.getDescription());
+    BackupFormat.writeString(outputStream, waypoint.getCategory());
+    BackupFormat.writeString(outputStream, waypoint.getIcon());
+    outputStream.writeByte(waypoint.getType().ordinal());
+    outputStream.writeDouble(waypoint.getLength());
+    outputStream.writeLong(waypoint.getDuration());
+    outputStream.writeInt(getReferencedIndex(waypoint.getStartId()));
+    outputStream.writeInt(getReferencedIndex(waypoint.getStopId()));
+    BackupFormat.writeLocation(outputStream, waypoint.getLocation());
+    BackupFormat.writeTripStatistics(outputStream, waypoint.getTripStatistics());
+    BackupFormat.writeString(outputStream, waypoint.getPhotoUrl());
+  }
+
+  /**
+   * Gets the index in the track of a referenced track point, -1 if none.
+   */
+  private int getReferencedIndex(long trackPointId) {
+    if (trackPointId < 0) {
+      return -1;
+    }
+    int i = Arrays.binarySearch(referencedIds, 0, referencedCount, trackPointId);
+    return i >= 0 ? referencedIndexes[i] : -1;
+  }
+}
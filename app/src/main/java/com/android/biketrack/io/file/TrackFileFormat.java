@@ -4,11 +4,15 @@ import android.content.Context;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import com.android.biketrack.content.TracksProviderUtils;
 import com.android.biketrack.io.file.exporter.CsvTrackWriter;
 import com.android.biketrack.io.file.exporter.GpxTrackWriter;
 import com.android.biketrack.io.file.exporter.KmlTrackWriter;
 import com.android.biketrack.io.file.exporter.TcxTrackWriter;
 import com.android.biketrack.io.file.exporter.TrackWriter;
+import com.android.biketrack.io.file.importer.GpxTrackImporter;
+import com.android.biketrack.io.file.importer.TcxTrackImporter;
+import com.android.biketrack.io.file.importer.TrackImporter;
 
 import java.util.Locale;
 
@@ -27,6 +31,11 @@ public enum TrackFileFormat implements Parcelable {
     public TrackWriter newTrackWriter(Context context, boolean multiple, boolean playTrack) {
       return new GpxTrackWriter(context);
     }
+
+  @Override
+    public TrackImporter newTrackImporter(TracksProviderUtils tracksProviderUtils) {
+      return new GpxTrackImporter(tracksProviderUtils);
+    }
   },
   CSV {
   @Override
@@ -39,6 +48,11 @@ public enum TrackFileFormat implements Parcelable {
     public TrackWriter newTrackWriter(Context context, boolean multiple, boolean playTrack) {
       return new TcxTrackWriter(context);
     }
+
+  @Override
+    public TrackImporter newTrackImporter(TracksProviderUtils tracksProviderUtils) {
+      return new TcxTrackImporter(tracksProviderUtils);
+    }
   };
 
   @Override
@@ -72,6 +86,16 @@ public enum TrackFileFormat implements Parcelable {
    */
   public abstract TrackWriter newTrackWriter(Context context, boolean multiple, boolean playTrack);
 
+  /**
+   * Creates a new track importer for the format. Returns null if the format
+   * can't be imported.
+   *
+   * @param tracksProviderUtils the tracks provider utils
+   */
+  public TrackImporter newTrackImporter(TracksProviderUtils tracksProviderUtils) {
+    return null;
+  }
+
   /**
    * Returns the mime type for each format.
    */
@@ -16,13 +16,15 @@
 
 package com.android.biketrack.io.file.exporter;
 
+import android.database.Cursor;
 import android.location.Location;
 import android.util.Log;
 
+import com.android.biketrack.content.Segment;
 import com.android.biketrack.content.Track;
 import com.android.biketrack.content.TrackLocation;
 import com.android.biketrack.content.TracksProviderUtils;
-import com.android.biketrack.utils.LocationUtils;
+import com.android.biketrack.content.Waypoint;
 
 import java.io.OutputStream;
 
@@ -38,10 +40,14 @@ public class FileTrackExporter implements TrackExporter {
 
   private static final String TAG = FileTrackExporter.class.getSimpleName();
 
+  // The number of waypoints read per query
+  private static final int WAYPOINT_PAGE_SIZE = 1000;
+
   private final TracksProviderUtils tracksProviderUtils;
   private final Track[] tracks;
   private final TrackWriter trackWriter;
   private final TrackExporterListener trackExporterListener;
+  private boolean useRawCoordinates = false;
 
   /**
    * Constructor.
@@ -59,6 +65,17 @@ public class FileTrackExporter implements TrackExporter {
     this.trackExporterListener = trackExporterListener;
   }
 
+  /**
+   * Sets whether to write the raw coordinates of the smoothed track points
+   * instead of the smoothed ones. The track points not smoothed are written
+   * as they are.
+   *
+   * @param useRawCoordinates true to write the raw coordinates
+   */
+  public void setUseRawCoordinates(boolean useRawCoordinates) {
+    this.useRawCoordinates = useRawCoordinates;
+  }
+
   @Override
   public boolean writeTrack(OutputStream outputStream) {
     try {
@@ -84,122 +101,116 @@ public class FileTrackExporter implements TrackExporter {
   }
 
   /**
-   * Writes the waypoints.
+   * Writes the waypoints, streamed in pages of {@link #WAYPOINT_PAGE_SIZE} from
+   * a single query each.
    */
   private void writeWaypoints(Track track) throws InterruptedException {
-    /*
-     * TODO: Stream through the waypoints in chunks. I am leaving the number of
-     * waypoints very high which should not be a problem because we don't try to
-     * load them into objects all at the same time.
-     */
-
-    /*boolean hasWaypoints = false;
-    Cursor cursor = null;
-    try {
-      cursor = tracksProviderUtils.getWaypointCursor(
-          track.getId(), -1L, Constants.MAX_LOADED_WAYPOINTS_POINTS);
-      if (cursor != null && cursor.moveToFirst()) {
-        *//*
-         * Yes, this will skip the first waypoint and that is intentional as the
-         * first waypoint holds the stats for the track.
-         *//*
-        while (cursor.moveToNext()) {
+    boolean hasWaypoints = false;
+    long firstWaypointId = tracksProviderUtils.getFirstWaypointId(track.getId());
+    long minWaypointId = -1L;
+    int count;
+    do {
+      count = 0;
+      Cursor cursor = null;
+      try {
+        cursor = tracksProviderUtils.getWaypointCursor(
+            track.getId(), minWaypointId, WAYPOINT_PAGE_SIZE);
+        while (cursor != null && cursor.moveToNext()) {
           if (Thread.interrupted()) {
             throw new InterruptedException();
           }
+          count++;
+          Waypoint waypoint = tracksProviderUtils.createWaypoint(cursor);
+          minWaypointId = waypoint.getId() + 1;
+
+          // A first statistics waypoint holds the stats for the track
+          if (waypoint.getId() == firstWaypointId
+              && waypoint.getType() == Waypoint.WaypointType.STATISTICS) {
+            continue;
+          }
           if (!hasWaypoints) {
             trackWriter.writeBeginWaypoints(track);
             hasWaypoints = true;
           }
-          Waypoint waypoint = tracksProviderUtils.createWaypoint(cursor);
           trackWriter.writeWaypoint(waypoint);
         }
+      } finally {
+        if (cursor != null) {
+          cursor.close();
+        }
       }
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
-    }
+    } while (count == WAYPOINT_PAGE_SIZE);
     if (hasWaypoints) {
       trackWriter.writeEndWaypoints();
-    }*/
+    }
   }
 
   /**
-   * Writes the locations.
+   * Writes the locations, one segment at a time. A segment of a single location
+   * is not written.
    */
   private void writeLocations(Track track, long offset) throws InterruptedException {
     boolean wroteTrack = false;
-    boolean wroteSegment = false;
-    boolean isLastLocationValid = false;
     TrackWriterLocationFactory locationFactory = new TrackWriterLocationFactory();
     int locationNumber = 0;
-    TracksProviderUtils.LocationIterator locationIterator = null;
-
-    try {
-      locationIterator = tracksProviderUtils.getTrackPointLocationIterator(
-          track.getId(), -1L, false, locationFactory);
 
-      while (locationIterator.hasNext()) {
-        if (Thread.interrupted()) {
-          throw new InterruptedException();
-        }
-        Location location = locationIterator.next();
+    for (Segment segment : tracksProviderUtils.getSegments(track.getId())) {
+      if (segment.getNumberOfPoints() < 2) {
+        locationNumber += segment.getNumberOfPoints();
+        continue;
+      }
+      boolean wroteSegment = false;
+      TracksProviderUtils.LocationIterator locationIterator = null;
+      try {
+        locationIterator = tracksProviderUtils.getTrackPointLocationIterator(
+            track.getId(), segment.getStartId(), false, locationFactory);
 
-        setLocationTime(location, offset);
-        locationNumber++;
+        while (locationIterator.hasNext()) {
+          if (Thread.interrupted()) {
+            throw new InterruptedException();
+          }
+          Location location = locationIterator.next();
+          if (locationIterator.getLocationId() > segment.getStopId()) {
+            break;
+          }
 
-        boolean isLocationValid = LocationUtils.isValidLocation(location);
-        boolean isSegmentValid = isLocationValid && isLastLocationValid;
-        if (!wroteTrack && isSegmentValid) {
-          // Found the first two consecutive locations that are valid
-          trackWriter.writeBeginTrack(track, locationFactory.lastLocation);
-          wroteTrack = true;
-        }
+          setLocationTime(location, offset);
+          setLocationCoordinates(location);
+          locationNumber++;
 
-        if (isSegmentValid) {
+          if (!wroteTrack) {
+            trackWriter.writeBeginTrack(track, location);
+            wroteTrack = true;
+          }
           if (!wroteSegment) {
-            // Start a segment
             trackWriter.writeOpenSegment();
             wroteSegment = true;
-
-            // Write the previous location, which we had previously skipped
-            trackWriter.writeLocation(locationFactory.lastLocation);
           }
-
-          // Write the current location
           trackWriter.writeLocation(location);
           if (trackExporterListener != null) {
             trackExporterListener.onProgressUpdate(locationNumber, track.getNumberOfPoints());
           }
-        } else {
-          if (wroteSegment) {
-            trackWriter.writeCloseSegment();
-            wroteSegment = false;
-          }
         }
-        locationFactory.swapLocations();
-        isLastLocationValid = isLocationValid;
+      } finally {
+        if (locationIterator != null) {
+          locationIterator.close();
+        }
       }
-
       if (wroteSegment) {
         trackWriter.writeCloseSegment();
-        wroteSegment = false;
-      }
-      if (wroteTrack) {
-        Location lastValidTrackPoint = tracksProviderUtils.getLastValidTrackPoint(track.getId());
-        setLocationTime(lastValidTrackPoint, offset);
-        trackWriter.writeEndTrack(track, lastValidTrackPoint);
-      } else {
-        // Write an empty track
-        trackWriter.writeBeginTrack(track, null);
-        trackWriter.writeEndTrack(track, null);
-      }
-    } finally {
-      if (locationIterator != null) {
-        locationIterator.close();
       }
     }
+
+    if (wroteTrack) {
+      Location lastValidTrackPoint = tracksProviderUtils.getLastValidTrackPoint(track.getId());
+      setLocationTime(lastValidTrackPoint, offset);
+      setLocationCoordinates(lastValidTrackPoint);
+      trackWriter.writeEndTrack(track, lastValidTrackPoint);
+    } else {
+      // Write an empty track
+      trackWriter.writeBeginTrack(track, null);
+      trackWriter.writeEndTrack(track, null);
+    }
   }
 
   /**
@@ -215,29 +226,35 @@ public class FileTrackExporter implements TrackExporter {
   }
 
   /**
-   * Track writer location factory. Keeping the last two locations.
+   * Sets the raw coordinates of a smoothed location as its coordinates, if
+   * the raw coordinates are to be written.
    * 
+   * @param location the location
+   */
+  private void setLocationCoordinates(Location location) {
+    if (useRawCoordinates && location instanceof TrackLocation
+        && ((TrackLocation) location).hasRawCoordinates()) {
+      TrackLocation trackLocation = (TrackLocation) location;
+      trackLocation.setLatitude(trackLocation.getRawLatitude());
+      trackLocation.setLongitude(trackLocation.getRawLongitude());
+    }
+  }
+
+  /**
+   * Track writer location factory. Reuses a single location, the track writer
+   * doesn't keep the written locations.
+   *
    * @author Jimmy Shih
    */
   private class TrackWriterLocationFactory implements TracksProviderUtils.LocationFactory {
-    Location currentLocation;
-    Location lastLocation;
+    Location location;
 
     @Override
     public Location createLocation() {
-      if (currentLocation == null) {
-        currentLocation = new TrackLocation("");
-      }
-      return currentLocation;
-    }
-
-    public void swapLocations() {
-      Location tempLocation = lastLocation;
-      lastLocation = currentLocation;
-      currentLocation = tempLocation;
-      if (currentLocation != null) {
-        currentLocation.reset();
+      if (location == null) {
+        location = new TrackLocation("");
       }
+      return location;
     }
   }
 }
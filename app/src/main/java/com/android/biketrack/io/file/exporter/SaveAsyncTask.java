@@ -23,6 +23,7 @@ import android.util.Log;
 
 import com.android.biketrack.R;
 import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackSummary;
 import com.android.biketrack.content.TracksProviderUtils;
 import com.android.biketrack.io.file.TrackFileFormat;
 import com.android.biketrack.ui.activity.SaveActivity;
@@ -34,6 +35,7 @@ import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.util.List;
 
 /**
  * Async Task to save tracks to the external storage.
@@ -44,6 +46,9 @@ public class SaveAsyncTask extends AsyncTask<Void, Integer, Boolean> {
 
     private static final String TAG = SaveAsyncTask.class.getSimpleName();
 
+    // The number of track summaries read at a time by saveAllTracks
+    private static final int SUMMARY_PAGE_SIZE = 100;
+
     private SaveActivity saveActivity;
     private final long[] trackIds;
     private final TrackFileFormat trackFileFormat;
@@ -127,8 +132,7 @@ public class SaveAsyncTask extends AsyncTask<Void, Integer, Boolean> {
             }
 
             if (trackIds.length == 1 && trackIds[0] == -1L) {
-                //TODO return saveAllTracks();
-                return null;
+                return saveAllTracks();
             } else {
                 totalCount = 1;
                 Track[] tracks = new Track[trackIds.length];
@@ -209,6 +213,8 @@ public class SaveAsyncTask extends AsyncTask<Void, Integer, Boolean> {
         tracksProviderUtils, fileTrackExporter, tracks, context)
         : fileTrackExporter;*/
 
+        fileTrackExporter.setUseRawCoordinates(PreferencesUtils.getBoolean(context,
+                R.string.prefkey_export_raw, PreferencesUtils.EXPORT_RAW_COORDINATES_DEFAULT));
         trackExporter = fileTrackExporter;
 
         String fileName = FileUtils.buildUniqueFileName(directory, track.getName(), trackFileFormat.getExtension());
@@ -240,33 +246,29 @@ public class SaveAsyncTask extends AsyncTask<Void, Integer, Boolean> {
         }
     }
 
-    /*  *//**
-     * TODO Saves all the tracks.
-     *//*
-  private Boolean saveAllTracks() {
-    Cursor cursor = null;
-    try {
-      cursor = tracksProviderUtils.getTrackCursor(null, null, TracksColumns._ID);
-      if (cursor == null) {
-        return false;
-      }
-      totalCount = cursor.getCount();
-      for (int i = 0; i < totalCount; i++) {
-        if (isCancelled()) {
-          return false;
-        }
-        cursor.moveToPosition(i);
-        Track track = tracksProviderUtils.createTrack(cursor);
-        if (track != null && saveTracks(new Track[] { track })) {
-          successCount++;
-        }
-        publishProgress(i + 1, totalCount);
-      }
-      return true;
-    } finally {
-      if (cursor != null) {
-        cursor.close();
-      }
+    /**
+     * Saves all the tracks, one file per track. The tracks are listed by pages
+     * of summaries, so memory doesn't grow with the number of tracks.
+     */
+    private Boolean saveAllTracks() {
+        totalCount = tracksProviderUtils.getAllTrackIds().length;
+        int count = 0;
+        long afterTrackId = -1L;
+        List<TrackSummary> trackSummaries;
+        do {
+            trackSummaries = tracksProviderUtils.getTrackSummaries(afterTrackId, SUMMARY_PAGE_SIZE);
+            for (TrackSummary trackSummary : trackSummaries) {
+                if (isCancelled()) {
+                    return false;
+                }
+                Track track = tracksProviderUtils.getTrack(trackSummary.getId());
+                if (track != null && saveTracks(new Track[]{track})) {
+                    successCount++;
+                }
+                publishProgress(++count, totalCount);
+                afterTrackId = trackSummary.getId();
+            }
+        } while (trackSummaries.size() == SUMMARY_PAGE_SIZE);
+        return true;
     }
-  }*/
 }
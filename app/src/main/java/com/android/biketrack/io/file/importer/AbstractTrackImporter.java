@@ -0,0 +1,360 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+import android.location.Location;
+import android.util.Log;
+import android.util.Xml;
+
+import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackPoints;
+import com.android.biketrack.content.TracksProviderUtils;
+import com.android.biketrack.service.location.TrackRecordingService;
+import com.android.biketrack.stats.TripStatistics;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+
+/**
+ * Base class of the XML track importers. The document is read with a pull
+ * parser, one element at a time, so a file of any size is imported in
+ * constant memory: the subclasses handle the elements and call
+ * {@link #startTrack()}, {@link #startSegment()}, {@link #addTrackPoint} and
+ * {@link #endTrack()}.
+ * <p>
+ * The tracks are written to a {@link TrackStore}: by {@link #importFile}
+ * right away, with the track points inserted in batches of
+ * {@link #BATCH_SIZE}, one transaction each. The statistics of the track are
+ * computed as the points are added. A segment break point separates the
+ * segments of a track.
+ */
+public abstract class AbstractTrackImporter implements TrackImporter {
+
+  private static final String TAG = AbstractTrackImporter.class.getSimpleName();
+
+  // The number of track points inserted per transaction
+  private static final int BATCH_SIZE = 1000;
+
+  // Below this speed, in meters/second, the time between two points is not moving time
+  private static final double MIN_MOVING_SPEED = 0.5;
+
+  private final TracksProviderUtils tracksProviderUtils;
+  private final ArrayList<TrackStore.ImportedTrack> importedTracks =
+      new ArrayList<TrackStore.ImportedTrack>();
+  private final StringBuilder text = new StringBuilder();
+  private final float[] results = new float[1];
+
+  // The store of the current import, and the reason it failed
+  private TrackStore trackStore;
+  private String errorMessage;
+
+  // The current track, null if none, and its points not written yet
+  private Track track;
+  private TrackStore.ImportedTrack importedTrack;
+  private TrackPoints trackPoints;
+
+  // True if the current segment has a valid point, the last one
+  private boolean hasLastPoint;
+  private double lastLatitude;
+  private double lastLongitude;
+  private long lastTime;
+  private float lastAltitude;
+
+  protected AbstractTrackImporter(TracksProviderUtils tracksProviderUtils) {
+    this.tracksProviderUtils = tracksProviderUtils;
+  }
+
+  @Override
+  public long[] importFile(InputStream inputStream) {
+    if (!importFile(inputStream, new DirectTrackStore(tracksProviderUtils))) {
+      return new long[0];
+    }
+    int count = 0;
+    long[] ids = new long[importedTracks.size()];
+    for (TrackStore.ImportedTrack each : importedTracks) {
+      // Tracks without points are deleted
+      if (each.id != -1L) {
+        ids[count++] = each.id;
+      }
+    }
+    long[] trackIds = new long[count];
+    System.arraycopy(ids, 0, trackIds, 0, count);
+    return trackIds;
+  }
+
+  /**
+   * Imports the tracks of an input stream into a store. If the stream is not
+   * valid, the tracks written so far are deleted from the store.
+   *
+   * @param inputStream the input stream
+   * @param store the store
+   * @return true if successful, otherwise see {@link #getErrorMessage()}
+   */
+  boolean importFile(InputStream inputStream, TrackStore store) {
+    trackStore = store;
+    errorMessage = null;
+    importedTracks.clear();
+    try {
+      XmlPullParser parser = Xml.newPullParser();
+      parser.setFeature(XmlPullParser.FEATURE_PROCESS_NAMESPACES, true);
+      parser.setInput(inputStream, null);
+      int eventType = parser.getEventType();
+      while (eventType != XmlPullParser.END_DOCUMENT) {
+        switch (eventType) {
+          case XmlPullParser.START_TAG:
+            if (Thread.interrupted()) {
+              throw new InterruptedException();
+            }
+            text.setLength(0);
+            onStartElement(parser.getName(), parser);
+            break;
+          case XmlPullParser.TEXT:
+            text.append(parser.getText());
+            break;
+          case XmlPullParser.END_TAG:
+            onEndElement(parser.getName(), text.toString().trim());
+            text.setLength(0);
+            break;
+          default:
+            break;
+        }
+        eventType = parser.next();
+      }
+      if (track != null) {
+        throw new XmlPullParserException("Unterminated track");
+      }
+      return true;
+    } catch (XmlPullParserException e) {
+      Log.e(TAG, "Unable to parse the file", e);
+      errorMessage = e.getMessage();
+    } catch (IllegalArgumentException e) {
+      Log.e(TAG, "Invalid value in the file", e);
+      errorMessage = e.getMessage();
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read the file", e);
+      errorMessage = e.getMessage();
+    } catch (InterruptedException e) {
+      Log.d(TAG, "Import interrupted");
+      errorMessage = "Interrupted";
+      Thread.currentThread().interrupt();
+    }
+    cleanImport();
+    return false;
+  }
+
+  /**
+   * Gets the reason the last import failed, null if it didn't.
+   */
+  String getErrorMessage() {
+    return errorMessage;
+  }
+
+  /**
+   * Called on the start of an element.
+   *
+   * @param name the local name of the element
+   * @param parser the parser, positioned on the start tag, for the attributes
+   */
+  protected abstract void onStartElement(String name, XmlPullParser parser)
+      throws XmlPullParserException;
+
+  /**
+   * Called on the end of an element.
+   *
+   * @param name the local name of the element
+   * @param text the trimmed text of the element
+   */
+  protected abstract void onEndElement(String name, String text)
+      throws XmlPullParserException;
+
+  /**
+   * Returns true if a track is started.
+   */
+  protected boolean isInTrack() {
+    return track != null;
+  }
+
+  /**
+   * Starts a track. The track row is written first, then its points.
+   */
+  protected void startTrack() throws XmlPullParserException {
+    if (track != null) {
+      throw new XmlPullParserException("Nested track");
+    }
+    track = new Track();
+    importedTrack = new TrackStore.ImportedTrack();
+    importedTracks.add(importedTrack);
+    trackStore.insertTrack(importedTrack);
+    trackPoints = new TrackPoints(BATCH_SIZE);
+    hasLastPoint = false;
+  }
+
+  /**
+   * Sets the name of the current track.
+   */
+  protected void setTrackName(String name) {
+    track.setName(name);
+  }
+
+  /**
+   * Sets the description of the current track.
+   */
+  protected void setTrackDescription(String description) {
+    track.setDescription(description);
+  }
+
+  /**
+   * Sets the category of the current track.
+   */
+  protected void setTrackCategory(String category) {
+    track.setCategory(category);
+  }
+
+  /**
+   * Starts a segment of the current track. A segment break point ends the
+   * previous segment, if it has points.
+   */
+  protected void startSegment() throws XmlPullParserException {
+    if (track == null) {
+      throw new XmlPullParserException("Segment outside of a track");
+    }
+    if (hasLastPoint) {
+      addPoint(TrackRecordingService.PAUSE_LATITUDE, 0.0, lastTime, Float.NaN, Float.NaN);
+      hasLastPoint = false;
+    }
+  }
+
+  /**
+   * Adds a track point to the current segment.
+   *
+   * @param latitude the latitude
+   * @param longitude the longitude
+   * @param time the time, 0 if unknown
+   * @param altitude the altitude, NaN if unknown
+   * @param speed the speed, NaN if unknown
+   */
+  protected void addTrackPoint(double latitude, double longitude, long time, float altitude,
+      float speed) throws XmlPullParserException {
+    if (track == null) {
+      throw new XmlPullParserException("Track point outside of a track");
+    }
+    if (Math.abs(latitude) > 90 || Math.abs(longitude) > 180) {
+      throw new XmlPullParserException("Invalid track point: " + latitude + ", " + longitude);
+    }
+    updateTripStatistics(latitude, longitude, time, altitude, speed);
+    addPoint(latitude, longitude, time, altitude, speed);
+  }
+
+  /**
+   * Ends the current track: writes the remaining points and updates the track
+   * row. A track without points is deleted.
+   */
+  protected void endTrack() throws XmlPullParserException {
+    if (track == null) {
+      throw new XmlPullParserException("Unstarted track");
+    }
+    flushTrackPoints();
+    trackStore.updateTrack(importedTrack, track);
+    track = null;
+    importedTrack = null;
+    trackPoints = null;
+  }
+
+  /**
+   * Parses a double, e.g. a coordinate.
+   *
+   * @throws IllegalArgumentException if not a number
+   */
+  protected static double parseDouble(String text) {
+    return Double.parseDouble(text);
+  }
+
+  private void addPoint(double latitude, double longitude, long time, float altitude,
+      float speed) {
+    trackPoints.add(-1L, latitude, longitude, time, altitude, Float.NaN, speed, Float.NaN);
+    if (trackPoints.size() == BATCH_SIZE) {
+      flushTrackPoints();
+    }
+  }
+
+  private void flushTrackPoints() {
+    if (trackPoints.isEmpty()) {
+      return;
+    }
+
+    // Owned by the store from now on
+    trackStore.insertTrackPoints(importedTrack, trackPoints);
+    trackPoints = new TrackPoints(BATCH_SIZE);
+  }
+
+  private void updateTripStatistics(double latitude, double longitude, long time,
+      float altitude, float speed) {
+    TripStatistics tripStatistics = track.getTripStatistics();
+    if (time > 0) {
+      if (tripStatistics.getStartTime() == -1L || time < tripStatistics.getStartTime()) {
+        tripStatistics.setStartTime(time);
+      }
+      if (time > tripStatistics.getStopTime()) {
+        tripStatistics.setStopTime(time);
+      }
+      tripStatistics.setTotalTime(tripStatistics.getStopTime() - tripStatistics.getStartTime());
+    }
+    tripStatistics.updateLatitudeExtremities(latitude);
+    tripStatistics.updateLongitudeExtremities(longitude);
+    if (!Float.isNaN(altitude)) {
+      tripStatistics.updateElevationExtremities(altitude);
+    }
+    if (!Float.isNaN(speed) && speed > tripStatistics.getMaxSpeed()) {
+      tripStatistics.setMaxSpeed(speed);
+    }
+
+    if (hasLastPoint) {
+      Location.distanceBetween(lastLatitude, lastLongitude, latitude, longitude, results);
+      double distance = results[0];
+      tripStatistics.addTotalDistance(distance);
+      long elapsed = time - lastTime;
+      if (lastTime > 0 && elapsed > 0 && distance * 1000.0 / elapsed >= MIN_MOVING_SPEED) {
+        tripStatistics.addMovingTime(elapsed);
+      }
+      if (!Float.isNaN(altitude) && !Float.isNaN(lastAltitude) && altitude > lastAltitude) {
+        tripStatistics.addTotalElevationGain(altitude - lastAltitude);
+      }
+    }
+    hasLastPoint = true;
+    lastLatitude = latitude;
+    lastLongitude = longitude;
+    lastTime = time;
+    lastAltitude = altitude;
+  }
+
+  /**
+   * Deletes the tracks imported so far.
+   */
+  private void cleanImport() {
+    track = null;
+    importedTrack = null;
+    trackPoints = null;
+    for (TrackStore.ImportedTrack each : importedTracks) {
+      trackStore.deleteTrack(each);
+    }
+    importedTracks.clear();
+  }
+}
@@ -0,0 +1,561 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+import android.database.sqlite.SQLiteException;
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.android.biketrack.content.BufferedTracksProviderUtils;
+import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackPoints;
+import com.android.biketrack.content.TracksProviderUtils;
+import com.android.biketrack.io.file.TrackFileFormat;
+import com.android.biketrack.utils.FileUtils;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Imports all the GPX and TCX files of a directory, e.g. of
+ * {@link FileUtils#IMPORT_DIR}.
+ * <p>
+ * The files are parsed in parallel by a few worker threads, each parsing one
+ * file at a time. The writes of the parsers go through a bounded queue to a
+ * single writer, the thread calling {@link #run()}, which commits them in
+ * large transactions. The queue holds at most {@link #QUEUE_CAPACITY} batches
+ * of track points, so the memory used doesn't depend on the number or size of
+ * the files.
+ * <p>
+ * The run is resumable: a journal in the directory records the tracks
+ * inserted for each file, written before their transaction commits, the
+ * commit of each transaction, and the files whose tracks are all committed. A
+ * new run skips the files done and deletes the committed tracks of the files
+ * left incomplete by an interrupted run, then imports these files again.
+ */
+public class BulkTrackImporter {
+
+  private static final String TAG = BulkTrackImporter.class.getSimpleName();
+
+  /**
+   * The journal file name, in the imported directory.
+   */
+  public static final String JOURNAL_FILE_NAME = ".biketrack_import";
+
+  // Journal lines: a track inserted for a file, the commit of the tracks before, and a file done
+  private static final String JOURNAL_TRACK = "S";
+  private static final String JOURNAL_COMMIT = "C";
+  private static final String JOURNAL_DONE = "D";
+
+  // The number of writes waiting for the writer, each with at most one batch of points
+  private static final int QUEUE_CAPACITY = 64;
+
+  /*
+   * The maximum number of track points and of writes committed per transaction.
+   * A recording flushing its buffer waits for the transaction, so it is kept to
+   * a fraction of a second.
+   */
+  private static final int MAX_TRANSACTION_POINTS = 5000;
+  private static final int MAX_TRANSACTION_WRITES = 100;
+
+  private final TracksProviderUtils tracksProviderUtils;
+  private final File directory;
+  private final TrackImportListener trackImportListener;
+  private final int numberOfThreads;
+
+  private final BlockingQueue<Write> queue = new ArrayBlockingQueue<Write>(QUEUE_CAPACITY);
+  private boolean started = false;
+
+  /**
+   * Constructor.
+   *
+   * @param tracksProviderUtils the tracks provider utils
+   * @param directory the directory of the files
+   * @param trackImportListener the listener, can be null
+   */
+  public BulkTrackImporter(TracksProviderUtils tracksProviderUtils, File directory,
+      TrackImportListener trackImportListener) {
+    // Not through the buffer, whose lock would block the recording for each transaction
+    this.tracksProviderUtils = tracksProviderUtils instanceof BufferedTracksProviderUtils
+        ? ((BufferedTracksProviderUtils) tracksProviderUtils).getUnbufferedTracksProviderUtils()
+        : tracksProviderUtils;
+    this.directory = directory;
+    this.trackImportListener = trackImportListener;
+
+    // The writer needs a core too
+    this.numberOfThreads = Math.max(1, Math.min(4,
+        Runtime.getRuntime().availableProcessors() - 1));
+  }
+
+  /**
+   * Imports the files of the directory not imported yet. Blocks until done,
+   * so must be called from a background thread. Interrupting the thread
+   * cancels the import, to be resumed by the next run of a new importer.
+   *
+   * @return true if all the files are imported
+   * @throws IllegalStateException if already run
+   */
+  public boolean run() {
+    synchronized (this) {
+      if (started) {
+        throw new IllegalStateException("Already run");
+      }
+      started = true;
+    }
+    String[] fileNames = directory.list(new FilenameFilter() {
+      @Override
+      public boolean accept(File dir, String name) {
+        return getTrackFileFormat(name) != null;
+      }
+    });
+    if (fileNames == null) {
+      Log.e(TAG, "Unable to list " + directory);
+      return false;
+    }
+    Arrays.sort(fileNames);
+
+    File journalFile = new File(directory, JOURNAL_FILE_NAME);
+    Set<String> doneFileNames = new HashSet<String>();
+    try {
+      resume(journalFile, doneFileNames);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to read the journal", e);
+      return false;
+    }
+    final List<String> pendingFileNames = new ArrayList<String>();
+    for (String fileName : fileNames) {
+      if (!doneFileNames.contains(fileName)) {
+        pendingFileNames.add(fileName);
+      }
+    }
+    int doneFiles = fileNames.length - pendingFileNames.size();
+    if (pendingFileNames.isEmpty()) {
+      onProgressUpdate(doneFiles, fileNames.length, 0.0);
+      return true;
+    }
+
+    FileOutputStream journalOutputStream = null;
+    ExecutorService executorService = Executors.newFixedThreadPool(numberOfThreads);
+    try {
+      journalOutputStream = new FileOutputStream(journalFile, true);
+      Writer journal = new OutputStreamWriter(journalOutputStream, "UTF-8");
+
+      // Each worker parses the next pending file until none is left
+      final AtomicInteger nextFile = new AtomicInteger();
+      for (int i = 0; i < numberOfThreads; i++) {
+        executorService.execute(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              int index;
+              while (!Thread.currentThread().isInterrupted()
+                  && (index = nextFile.getAndIncrement()) < pendingFileNames.size()) {
+                importFile(pendingFileNames.get(index));
+              }
+            } finally {
+              enqueue(new WorkerDone());
+            }
+          }
+        });
+      }
+      return write(journal, journalOutputStream, doneFiles, fileNames.length);
+    } catch (IOException e) {
+      Log.e(TAG, "Unable to write the journal", e);
+      return false;
+    } finally {
+      executorService.shutdownNow();
+      try {
+        executorService.awaitTermination(10, TimeUnit.SECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      queue.clear();
+      if (journalOutputStream != null) {
+        try {
+          journalOutputStream.close();
+        } catch (IOException e) {
+          Log.e(TAG, "Unable to close the journal", e);
+        }
+      }
+    }
+  }
+
+  /**
+   * Reads the journal of the previous runs: gets the files done, and deletes
+   * the committed tracks of the files not done.
+   * <p>
+   * The tracks journaled by a transaction without a commit line were rolled
+   * back, or committed just before an interruption. Rolled back, their ids are
+   * given again to later tracks, e.g. a recording, so these tracks are never
+   * deleted: the journal is cut before them, and at worst a track committed
+   * just before an interruption is left as a duplicate of its file, imported
+   * again.
+   */
+  private void resume(File journalFile, Set<String> doneFileNames) throws IOException {
+    if (!journalFile.exists()) {
+      return;
+    }
+    Map<String, List<Long>> startedTrackIds = new HashMap<String, List<Long>>();
+    List<String[]> uncommittedTracks = new ArrayList<String[]>();
+    long length = 0L;
+    long committedLength = 0L;
+    BufferedReader reader = new BufferedReader(
+        new InputStreamReader(new FileInputStream(journalFile), "UTF-8"));
+    try {
+      String line;
+      while ((line = reader.readLine()) != null) {
+        length += line.getBytes("UTF-8").length + 1;
+        String[] fields = line.split(" ", 3);
+        if (fields.length == 3 && JOURNAL_TRACK.equals(fields[0])) {
+          uncommittedTracks.add(fields);
+        } else if (fields.length == 1 && JOURNAL_COMMIT.equals(fields[0])) {
+          for (String[] trackFields : uncommittedTracks) {
+            List<Long> trackIds = startedTrackIds.get(trackFields[2]);
+            if (trackIds == null) {
+              trackIds = new ArrayList<Long>();
+              startedTrackIds.put(trackFields[2], trackIds);
+            }
+            try {
+              trackIds.add(Long.parseLong(trackFields[1]));
+            } catch (NumberFormatException e) {
+              Log.w(TAG, "Invalid journal line for " + trackFields[2]);
+            }
+          }
+          uncommittedTracks.clear();
+          committedLength = length;
+        } else if (fields.length == 2 && JOURNAL_DONE.equals(fields[0])) {
+          doneFileNames.add(fields[1]);
+          startedTrackIds.remove(fields[1]);
+          committedLength = length;
+        }
+      }
+    } finally {
+      reader.close();
+    }
+
+    // The next commit line must not cover the tracks of an uncommitted transaction
+    if (committedLength < journalFile.length()) {
+      RandomAccessFile randomAccessFile = new RandomAccessFile(journalFile, "rw");
+      try {
+        randomAccessFile.setLength(committedLength);
+      } finally {
+        randomAccessFile.close();
+      }
+    }
+
+    // Committed, deleting an already deleted track is harmless
+    for (List<Long> trackIds : startedTrackIds.values()) {
+      for (long trackId : trackIds) {
+        tracksProviderUtils.deleteTrack(null, trackId);
+      }
+    }
+  }
+
+  /**
+   * Parses a file, in a worker thread.
+   */
+  private void importFile(String fileName) {
+    FileState fileState = new FileState(fileName);
+    TrackFileFormat trackFileFormat = getTrackFileFormat(fileName);
+    AbstractTrackImporter trackImporter = trackFileFormat == null ? null
+        : (AbstractTrackImporter) trackFileFormat.newTrackImporter(tracksProviderUtils);
+    if (trackImporter == null) {
+      fileState.errorMessage = "Unsupported format";
+      enqueue(fileState);
+      return;
+    }
+    InputStream inputStream = null;
+    try {
+      inputStream = new BufferedInputStream(new FileInputStream(new File(directory, fileName)));
+      if (!trackImporter.importFile(inputStream, new QueuedTrackStore(fileState))) {
+        fileState.errorMessage = trackImporter.getErrorMessage();
+      }
+    } catch (IOException e) {
+      fileState.errorMessage = e.getMessage();
+    } catch (RuntimeException e) {
+      // Its tracks are deleted by the next run
+      Log.e(TAG, "Unable to import " + fileName, e);
+      fileState.errorMessage = e.toString();
+    } finally {
+      if (inputStream != null) {
+        try {
+          inputStream.close();
+        } catch (IOException e) {
+          Log.e(TAG, "Unable to close " + fileName, e);
+        }
+      }
+    }
+
+    // After all the writes of the file
+    enqueue(fileState);
+  }
+
+  /**
+   * Writes the queued writes, in the calling thread, until all the workers are
+   * done.
+   *
+   * @return true if all the files are imported
+   */
+  private boolean write(final Writer journal, final FileOutputStream journalOutputStream,
+      int doneFiles, int numberOfFiles) throws IOException {
+    final DirectTrackStore trackStore = new DirectTrackStore(tracksProviderUtils);
+    final ArrayList<Write> writes = new ArrayList<Write>();
+    long startTime = SystemClock.elapsedRealtime();
+    long numberOfPoints = 0;
+    int doneWorkers = 0;
+    boolean successful = true;
+    while (doneWorkers < numberOfThreads) {
+      // Takes all the writes available, up to the transaction size
+      writes.clear();
+      int transactionPoints = 0;
+      try {
+        writes.add(queue.take());
+      } catch (InterruptedException e) {
+        Log.d(TAG, "Import interrupted");
+        Thread.currentThread().interrupt();
+        return false;
+      }
+      transactionPoints += writes.get(0).getNumberOfPoints();
+      Write write;
+      while (transactionPoints < MAX_TRANSACTION_POINTS
+          && writes.size() < MAX_TRANSACTION_WRITES && (write = queue.poll()) != null) {
+        writes.add(write);
+        transactionPoints += write.getNumberOfPoints();
+      }
+
+      final IOException[] journalException = new IOException[1];
+      try {
+        tracksProviderUtils.runInTransaction(new Runnable() {
+          @Override
+          public void run() {
+            try {
+              for (Write each : writes) {
+                each.write(trackStore, journal);
+              }
+
+              // The tracks are in the journal before they are committed
+              journal.flush();
+              journalOutputStream.getFD().sync();
+            } catch (IOException e) {
+              journalException[0] = e;
+              throw new SQLiteException("Unable to write the journal");
+            }
+          }
+        });
+      } catch (SQLiteException e) {
+        if (journalException[0] != null) {
+          throw journalException[0];
+        }
+        // The journaled tracks of the transaction have no commit line, the next run ignores them
+        Log.e(TAG, "Unable to write the tracks", e);
+        return false;
+      }
+      numberOfPoints += transactionPoints;
+
+      // Committed, the files done can be skipped by the next run
+      journal.write(JOURNAL_COMMIT + "\n");
+      for (Write each : writes) {
+        if (each instanceof WorkerDone) {
+          doneWorkers++;
+        } else if (each instanceof FileState) {
+          FileState fileState = (FileState) each;
+          doneFiles++;
+          if (fileState.errorMessage == null) {
+            journal.write(JOURNAL_DONE + " " + fileState.fileName + "\n");
+          } else {
+            successful = false;
+            if (trackImportListener != null) {
+              trackImportListener.onFileError(fileState.fileName, fileState.errorMessage);
+            }
+          }
+        }
+      }
+      journal.flush();
+      long elapsed = SystemClock.elapsedRealtime() - startTime;
+      onProgressUpdate(doneFiles, numberOfFiles,
+          elapsed > 0 ? numberOfPoints * 1000.0 / elapsed : 0.0);
+    }
+    return successful;
+  }
+
+  private void onProgressUpdate(int number, int max, double pointsPerSecond) {
+    if (trackImportListener != null) {
+      trackImportListener.onProgressUpdate(number, max, pointsPerSecond);
+    }
+  }
+
+  /**
+   * Queues a write for the writer, from a worker thread. Once the worker is
+   * interrupted the writes are dropped, the import stops at the next element.
+   */
+  private void enqueue(Write write) {
+    try {
+      queue.put(write);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Gets the track file format of a file name, null if it can't be imported.
+   */
+  private static TrackFileFormat getTrackFileFormat(String fileName) {
+    String extension = FileUtils.getExtension(fileName);
+    if (extension == null) {
+      return null;
+    }
+    for (TrackFileFormat trackFileFormat : TrackFileFormat.values()) {
+      if (trackFileFormat.getExtension().equals(extension.toLowerCase(Locale.US))) {
+        return trackFileFormat.newTrackImporter(null) != null ? trackFileFormat : null;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * A write queued for the writer.
+   */
+  private abstract static class Write {
+
+    /**
+     * Gets the number of track points written.
+     */
+    int getNumberOfPoints() {
+      return 0;
+    }
+
+    /**
+     * Writes, in the writer thread.
+     *
+     * @param trackStore the store
+     * @param journal the journal
+     */
+    abstract void write(TrackStore trackStore, Writer journal) throws IOException;
+  }
+
+  /**
+   * The end of a file, queued after all its writes.
+   */
+  private static class FileState extends Write {
+
+    private final String fileName;
+
+    // The reason the file was not imported, null if it was
+    private String errorMessage;
+
+    FileState(String fileName) {
+      this.fileName = fileName;
+    }
+
+    @Override
+    void write(TrackStore trackStore, Writer journal) {
+      // Recorded once committed
+    }
+  }
+
+  /**
+   * The end of a worker, queued once no file is left.
+   */
+  private static class WorkerDone extends Write {
+
+    @Override
+    void write(TrackStore trackStore, Writer journal) {}
+  }
+
+  /**
+   * {@link TrackStore} queuing the writes of a file for the writer.
+   */
+  private class QueuedTrackStore implements TrackStore {
+
+    private final FileState fileState;
+
+    QueuedTrackStore(FileState fileState) {
+      this.fileState = fileState;
+    }
+
+    @Override
+    public void insertTrack(final ImportedTrack importedTrack) {
+      enqueue(new Write() {
+        @Override
+        void write(TrackStore trackStore, Writer journal) throws IOException {
+          trackStore.insertTrack(importedTrack);
+          journal.write(JOURNAL_TRACK + " " + importedTrack.id + " " + fileState.fileName + "\n");
+        }
+      });
+    }
+
+    @Override
+    public void insertTrackPoints(final ImportedTrack importedTrack,
+        final TrackPoints trackPoints) {
+      enqueue(new Write() {
+        @Override
+        int getNumberOfPoints() {
+          return trackPoints.size();
+        }
+
+        @Override
+        void write(TrackStore trackStore, Writer journal) {
+          trackStore.insertTrackPoints(importedTrack, trackPoints);
+        }
+      });
+    }
+
+    @Override
+    public void updateTrack(final ImportedTrack importedTrack, final Track track) {
+      enqueue(new Write() {
+        @Override
+        void write(TrackStore trackStore, Writer journal) {
+          trackStore.updateTrack(importedTrack, track);
+        }
+      });
+    }
+
+    @Override
+    public void deleteTrack(final ImportedTrack importedTrack) {
+      enqueue(new Write() {
+        @Override
+        void write(TrackStore trackStore, Writer journal) {
+          trackStore.deleteTrack(importedTrack);
+        }
+      });
+    }
+  }
+}
@@ -0,0 +1,89 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+import android.content.ContentUris;
+import android.database.sqlite.SQLiteException;
+
+import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackPoints;
+import com.android.biketrack.content.TracksProviderUtils;
+
+/**
+ * {@link TrackStore} writing to the {@link TracksProviderUtils} right away,
+ * in the calling thread.
+ */
+class DirectTrackStore implements TrackStore {
+
+  private final TracksProviderUtils tracksProviderUtils;
+
+  DirectTrackStore(TracksProviderUtils tracksProviderUtils) {
+    this.tracksProviderUtils = tracksProviderUtils;
+  }
+
+  @Override
+  public void insertTrack(ImportedTrack importedTrack) {
+    long trackId = ContentUris.parseId(tracksProviderUtils.insertTrack(new Track()));
+    if (trackId == -1L) {
+      throw new SQLiteException("Unable to insert the track");
+    }
+    importedTrack.id = trackId;
+  }
+
+  @Override
+  public void insertTrackPoints(ImportedTrack importedTrack, TrackPoints trackPoints) {
+    if (importedTrack.id == -1L || trackPoints.isEmpty()) {
+      return;
+    }
+    tracksProviderUtils.bulkInsertTrackPoints(trackPoints, importedTrack.id);
+    if (importedTrack.startId == -1L) {
+      importedTrack.startId = trackPoints.getId(0);
+    }
+    importedTrack.stopId = trackPoints.getId(trackPoints.size() - 1);
+
+    // The segment separators are not track points of the track
+    for (int i = 0; i < trackPoints.size(); i++) {
+      if (trackPoints.isValid(i)) {
+        importedTrack.numberOfPoints++;
+      }
+    }
+  }
+
+  @Override
+  public void updateTrack(ImportedTrack importedTrack, Track track) {
+    if (importedTrack.id == -1L) {
+      return;
+    }
+    if (importedTrack.startId == -1L) {
+      deleteTrack(importedTrack);
+      return;
+    }
+    track.setId(importedTrack.id);
+    track.setStartId(importedTrack.startId);
+    track.setStopId(importedTrack.stopId);
+    track.setNumberOfPoints(importedTrack.numberOfPoints);
+    tracksProviderUtils.updateTrack(track);
+  }
+
+  @Override
+  public void deleteTrack(ImportedTrack importedTrack) {
+    if (importedTrack.id != -1L) {
+      tracksProviderUtils.deleteTrack(null, importedTrack.id);
+      importedTrack.id = -1L;
+    }
+  }
+}
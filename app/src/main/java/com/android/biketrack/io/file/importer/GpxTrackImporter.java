@@ -0,0 +1,109 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+import com.android.biketrack.content.TracksProviderUtils;
+import com.android.biketrack.utils.StringUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Imports the tracks of a GPX file: each trk element is a track, and each
+ * trkseg element a segment. Routes and waypoints are not imported.
+ */
+public class GpxTrackImporter extends AbstractTrackImporter {
+
+  private static final String TAG_TRACK = "trk";
+  private static final String TAG_SEGMENT = "trkseg";
+  private static final String TAG_TRACK_POINT = "trkpt";
+  private static final String TAG_NAME = "name";
+  private static final String TAG_DESCRIPTION = "desc";
+  private static final String TAG_TYPE = "type";
+  private static final String TAG_ALTITUDE = "ele";
+  private static final String TAG_TIME = "time";
+  private static final String TAG_SPEED = "speed";
+
+  private static final String ATTRIBUTE_LATITUDE = "lat";
+  private static final String ATTRIBUTE_LONGITUDE = "lon";
+
+  // The current track point, valid between its start and end tags
+  private boolean inTrackPoint;
+  private double latitude;
+  private double longitude;
+  private long time;
+  private float altitude;
+  private float speed;
+
+  public GpxTrackImporter(TracksProviderUtils tracksProviderUtils) {
+    super(tracksProviderUtils);
+  }
+
+  @Override
+  protected void onStartElement(String name, XmlPullParser parser)
+      throws XmlPullParserException {
+    if (TAG_TRACK.equals(name)) {
+      startTrack();
+    } else if (TAG_SEGMENT.equals(name)) {
+      if (isInTrack()) {
+        startSegment();
+      }
+    } else if (TAG_TRACK_POINT.equals(name)) {
+      if (!isInTrack()) {
+        return;
+      }
+      String latitudeValue = parser.getAttributeValue(null, ATTRIBUTE_LATITUDE);
+      String longitudeValue = parser.getAttributeValue(null, ATTRIBUTE_LONGITUDE);
+      if (latitudeValue == null || longitudeValue == null) {
+        throw new XmlPullParserException("Track point without coordinates", parser, null);
+      }
+      inTrackPoint = true;
+      latitude = parseDouble(latitudeValue);
+      longitude = parseDouble(longitudeValue);
+      time = 0L;
+      altitude = Float.NaN;
+      speed = Float.NaN;
+    }
+  }
+
+  @Override
+  protected void onEndElement(String name, String text) throws XmlPullParserException {
+    if (!isInTrack()) {
+      return;
+    }
+    if (inTrackPoint) {
+      if (TAG_TRACK_POINT.equals(name)) {
+        inTrackPoint = false;
+        addTrackPoint(latitude, longitude, time, altitude, speed);
+      } else if (TAG_ALTITUDE.equals(name) && text.length() > 0) {
+        altitude = (float) parseDouble(text);
+      } else if (TAG_TIME.equals(name) && text.length() > 0) {
+        time = StringUtils.getTime(text);
+      } else if (TAG_SPEED.equals(name) && text.length() > 0) {
+        speed = (float) parseDouble(text);
+      }
+    } else if (TAG_TRACK.equals(name)) {
+      endTrack();
+    } else if (TAG_NAME.equals(name)) {
+      setTrackName(text);
+    } else if (TAG_DESCRIPTION.equals(name)) {
+      setTrackDescription(text);
+    } else if (TAG_TYPE.equals(name)) {
+      setTrackCategory(text);
+    }
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+import com.android.biketrack.content.TracksProviderUtils;
+import com.android.biketrack.utils.StringUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+/**
+ * Imports the activities of a TCX file: each Activity element is a track, and
+ * each Track element of its laps a segment. Track points without a position,
+ * e.g. heart rate only, are not imported.
+ */
+public class TcxTrackImporter extends AbstractTrackImporter {
+
+  private static final String TAG_ACTIVITY = "Activity";
+  private static final String TAG_ID = "Id";
+  private static final String TAG_NOTES = "Notes";
+  private static final String TAG_TRACK = "Track";
+  private static final String TAG_TRACK_POINT = "Trackpoint";
+  private static final String TAG_TIME = "Time";
+  private static final String TAG_LATITUDE = "LatitudeDegrees";
+  private static final String TAG_LONGITUDE = "LongitudeDegrees";
+  private static final String TAG_ALTITUDE = "AltitudeMeters";
+  private static final String TAG_SPEED = "Speed";
+
+  private static final String ATTRIBUTE_SPORT = "Sport";
+
+  // The current track point, valid between its start and end tags
+  private boolean inTrackPoint;
+  private double latitude;
+  private double longitude;
+  private long time;
+  private float altitude;
+  private float speed;
+
+  public TcxTrackImporter(TracksProviderUtils tracksProviderUtils) {
+    super(tracksProviderUtils);
+  }
+
+  @Override
+  protected void onStartElement(String name, XmlPullParser parser)
+      throws XmlPullParserException {
+    if (TAG_ACTIVITY.equals(name)) {
+      startTrack();
+      String sport = parser.getAttributeValue(null, ATTRIBUTE_SPORT);
+      if (sport != null) {
+        setTrackCategory(sport);
+      }
+    } else if (TAG_TRACK.equals(name)) {
+      if (isInTrack()) {
+        startSegment();
+      }
+    } else if (TAG_TRACK_POINT.equals(name)) {
+      inTrackPoint = isInTrack();
+      latitude = Double.NaN;
+      longitude = Double.NaN;
+      time = 0L;
+      altitude = Float.NaN;
+      speed = Float.NaN;
+    }
+  }
+
+  @Override
+  protected void onEndElement(String name, String text) throws XmlPullParserException {
+    if (!isInTrack()) {
+      return;
+    }
+    if (inTrackPoint) {
+      if (TAG_TRACK_POINT.equals(name)) {
+        inTrackPoint = false;
+        if (!Double.isNaN(latitude) && !Double.isNaN(longitude)) {
+          addTrackPoint(latitude, longitude, time, altitude, speed);
+        }
+      } else if (text.length() == 0) {
+        return;
+      } else if (TAG_LATITUDE.equals(name)) {
+        latitude = parseDouble(text);
+      } else if (TAG_LONGITUDE.equals(name)) {
+        longitude = parseDouble(text);
+      } else if (TAG_ALTITUDE.equals(name)) {
+        altitude = (float) parseDouble(text);
+      } else if (TAG_TIME.equals(name)) {
+        time = StringUtils.getTime(text);
+      } else if (TAG_SPEED.equals(name)) {
+        speed = (float) parseDouble(text);
+      }
+    } else if (TAG_ACTIVITY.equals(name)) {
+      endTrack();
+    } else if (TAG_ID.equals(name)) {
+      setTrackName(text);
+    } else if (TAG_NOTES.equals(name)) {
+      setTrackDescription(text);
+    }
+  }
+}
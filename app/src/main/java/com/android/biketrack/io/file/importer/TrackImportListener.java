@@ -0,0 +1,43 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+/**
+ * Listener of a {@link BulkTrackImporter}, called from its writer thread.
+ */
+public interface TrackImportListener {
+
+  /**
+   * Called to update progress.
+   *
+   * @param number the number of files imported or failed, including the ones
+   *          imported by a previous run
+   * @param max the number of files
+   * @param pointsPerSecond the number of track points written per second by
+   *          this run
+   */
+  public void onProgressUpdate(int number, int max, double pointsPerSecond);
+
+  /**
+   * Called when a file can't be imported. Its tracks are not kept, and it is
+   * imported again by the next run.
+   *
+   * @param fileName the file name
+   * @param message the reason
+   */
+  public void onFileError(String fileName, String message);
+}
@@ -0,0 +1,35 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+import java.io.InputStream;
+
+/**
+ * Track importer, the counterpart of
+ * {@link com.android.biketrack.io.file.exporter.TrackExporter}.
+ */
+public interface TrackImporter {
+
+  /**
+   * Imports the tracks of an input stream. Nothing is imported if the stream
+   * is not valid.
+   *
+   * @param inputStream the input stream
+   * @return the ids of the imported tracks, empty if unsuccessful
+   */
+  public long[] importFile(InputStream inputStream);
+}
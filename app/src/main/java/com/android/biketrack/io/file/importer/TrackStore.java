@@ -0,0 +1,73 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package com.android.biketrack.io.file.importer;
+
+import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackPoints;
+
+/**
+ * Where an {@link AbstractTrackImporter} writes the tracks it parses. The
+ * writes of a track are made in order, but may be deferred, e.g. to a writer
+ * thread: the objects passed are owned by the store after the call.
+ */
+interface TrackStore {
+
+  /**
+   * The state of a track being written, only accessed by the store.
+   */
+  class ImportedTrack {
+
+    // The track id, -1L if not inserted or deleted
+    long id = -1L;
+    long startId = -1L;
+    long stopId = -1L;
+
+    // The number of valid track points, without the segment separators
+    int numberOfPoints = 0;
+  }
+
+  /**
+   * Inserts an empty track.
+   *
+   * @param importedTrack the imported track, to set the id of
+   */
+  void insertTrack(ImportedTrack importedTrack);
+
+  /**
+   * Inserts track points of a track.
+   *
+   * @param importedTrack the imported track
+   * @param trackPoints the track points
+   */
+  void insertTrackPoints(ImportedTrack importedTrack, TrackPoints trackPoints);
+
+  /**
+   * Updates a track with its name, statistics, etc. once all its points are
+   * inserted. A track without points is deleted instead.
+   *
+   * @param importedTrack the imported track
+   * @param track the track
+   */
+  void updateTrack(ImportedTrack importedTrack, Track track);
+
+  /**
+   * Deletes a track, e.g. when the file is not valid.
+   *
+   * @param importedTrack the imported track
+   */
+  void deleteTrack(ImportedTrack importedTrack);
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import android.location.Location;
+
+/**
+ * The fix going through a {@link FixFilterChain}, with the recording state the
+ * stages decide on, and how the fix is recorded. Reused for every fix.
+ */
+public class FixContext {
+
+    private Location mLocation;
+    private Location mLastLocation;
+    private Location mLastValidTrackPoint;
+    private boolean mSegmentHasLocation;
+    private boolean mIdle;
+
+    // Distance from the last valid track point, computed on first use
+    private float mDistance;
+    private boolean mHasDistance;
+
+    // How the fix is recorded
+    private boolean mInsertLastLocation;
+    private boolean mSplitSegment;
+
+    /**
+     * Resets the context for a new fix.
+     *
+     * @param location            the fix
+     * @param lastLocation        the last fix kept, null if none in this segment
+     * @param lastValidTrackPoint the last valid track point of the segment, can
+     *                            be null
+     * @param segmentHasLocation  true if the segment has a recorded fix
+     * @param idle                true if idle
+     */
+    void reset(Location location, Location lastLocation, Location lastValidTrackPoint,
+               boolean segmentHasLocation, boolean idle) {
+        mLocation = location;
+        mLastLocation = lastLocation;
+        mLastValidTrackPoint = lastValidTrackPoint;
+        mSegmentHasLocation = segmentHasLocation;
+        mIdle = idle;
+        mHasDistance = false;
+        mInsertLastLocation = false;
+        mSplitSegment = false;
+    }
+
+    /**
+     * Gets the fix.
+     */
+    public Location getLocation() {
+        return mLocation;
+    }
+
+    /**
+     * Gets the last fix kept, null if none in this segment.
+     */
+    public Location getLastLocation() {
+        return mLastLocation;
+    }
+
+    /**
+     * Gets the last valid track point of the segment, null if none.
+     */
+    public Location getLastValidTrackPoint() {
+        return mLastValidTrackPoint;
+    }
+
+    /**
+     * Returns true if the segment has a recorded fix.
+     */
+    public boolean segmentHasLocation() {
+        return mSegmentHasLocation;
+    }
+
+    /**
+     * Gets the distance in meters from the last valid track point. Must not be
+     * called without a last valid track point.
+     */
+    public float getDistanceToLastValidTrackPoint() {
+        if (!mHasDistance) {
+            mDistance = mLocation.distanceTo(mLastValidTrackPoint);
+            mHasDistance = true;
+        }
+        return mDistance;
+    }
+
+    public boolean isIdle() {
+        return mIdle;
+    }
+
+    public void setIdle(boolean idle) {
+        mIdle = idle;
+    }
+
+    /**
+     * Returns true if the last fix is recorded before the fix, to end the
+     * previous stretch at its last position.
+     */
+    public boolean insertLastLocation() {
+        return mInsertLastLocation;
+    }
+
+    public void setInsertLastLocation(boolean insertLastLocation) {
+        mInsertLastLocation = insertLastLocation;
+    }
+
+    /**
+     * Returns true if a new segment starts with the fix.
+     */
+    public boolean splitSegment() {
+        return mSplitSegment;
+    }
+
+    public void setSplitSegment(boolean splitSegment) {
+        mSplitSegment = splitSegment;
+    }
+}
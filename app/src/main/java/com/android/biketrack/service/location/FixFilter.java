@@ -0,0 +1,58 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+/**
+ * A stage of the {@link FixFilterChain} deciding which fixes are recorded.
+ * The stages see the fix and the recording state through a
+ * {@link FixContext}: the gates reject the unusable fixes, then the first
+ * stage deciding to record the fix ends the chain.
+ */
+public interface FixFilter {
+
+    /**
+     * The decision of a stage.
+     */
+    enum Result {
+        /**
+         * The next stage decides. A fix passing all the stages is not recorded,
+         * but kept as the last fix.
+         */
+        PASS,
+
+        /**
+         * The fix is discarded.
+         */
+        REJECT,
+
+        /**
+         * The fix is recorded, as set in the {@link FixContext}.
+         */
+        RECORD
+    }
+
+    /**
+     * Gets the name of the stage, for the metrics.
+     */
+    String getName();
+
+    /**
+     * Decides on a fix.
+     *
+     * @param context the fix and the recording state
+     */
+    Result filter(FixContext context);
+}
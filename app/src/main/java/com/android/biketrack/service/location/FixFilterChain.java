@@ -0,0 +1,132 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A chain of {@link FixFilter} stages deciding which fixes are recorded, with
+ * the metrics of each stage: the number of fixes passed, rejected and
+ * recorded, and the time spent. Used on the recording thread only.
+ */
+public class FixFilterChain {
+
+    private final FixFilter[] mFilters;
+    private final long[] mPassed;
+    private final long[] mRejected;
+    private final long[] mRecorded;
+    private final long[] mNanos;
+
+    /**
+     * Constructor.
+     *
+     * @param filters the stages, in order
+     */
+    public FixFilterChain(List<FixFilter> filters) {
+        mFilters = filters.toArray(new FixFilter[filters.size()]);
+        mPassed = new long[mFilters.length];
+        mRejected = new long[mFilters.length];
+        mRecorded = new long[mFilters.length];
+        mNanos = new long[mFilters.length];
+    }
+
+    /**
+     * Runs a fix through the stages, until one rejects or records it.
+     *
+     * @param context the fix and the recording state
+     * @return {@link FixFilter.Result#PASS} if no stage rejected or recorded it
+     */
+    public FixFilter.Result filter(FixContext context) {
+        for (int i = 0; i < mFilters.length; i++) {
+            long start = System.nanoTime();
+            FixFilter.Result result = mFilters[i].filter(context);
+            mNanos[i] += System.nanoTime() - start;
+            switch (result) {
+                case REJECT:
+                    mRejected[i]++;
+                    return result;
+                case RECORD:
+                    mRecorded[i]++;
+                    return result;
+                default:
+                    mPassed[i]++;
+                    break;
+            }
+        }
+        return FixFilter.Result.PASS;
+    }
+
+    /**
+     * Gets the number of stages.
+     */
+    public int size() {
+        return mFilters.length;
+    }
+
+    /**
+     * Gets a stage.
+     *
+     * @param index the stage index
+     */
+    public FixFilter get(int index) {
+        return mFilters[index];
+    }
+
+    /**
+     * Gets the number of fixes a stage passed to the next one.
+     */
+    public long getPassedCount(int index) {
+        return mPassed[index];
+    }
+
+    /**
+     * Gets the number of fixes a stage rejected.
+     */
+    public long getRejectedCount(int index) {
+        return mRejected[index];
+    }
+
+    /**
+     * Gets the number of fixes a stage decided to record.
+     */
+    public long getRecordedCount(int index) {
+        return mRecorded[index];
+    }
+
+    /**
+     * Gets the total time spent in a stage, in nanoseconds.
+     */
+    public long getNanos(int index) {
+        return mNanos[index];
+    }
+
+    /**
+     * Gets the metrics of the stages, one line each, e.g. to log them.
+     */
+    public List<String> getMetrics() {
+        List<String> metrics = new ArrayList<String>(mFilters.length);
+        for (int i = 0; i < mFilters.length; i++) {
+            long count = mPassed[i] + mRejected[i] + mRecorded[i];
+            metrics.add(String.format(Locale.US,
+                    "%s: %d passed, %d rejected, %d recorded, %d ns/fix",
+                    mFilters[i].getName(), mPassed[i], mRejected[i], mRecorded[i],
+                    count == 0 ? 0 : mNanos[i] / count));
+        }
+        return metrics;
+    }
+}
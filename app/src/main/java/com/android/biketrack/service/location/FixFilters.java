@@ -0,0 +1,414 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import android.location.Location;
+
+import com.android.biketrack.content.TrackLocation;
+import com.android.biketrack.utils.LocationUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The {@link FixFilter} stages of the recording, and the default chain.
+ */
+public final class FixFilters {
+
+    /**
+     * The maximum speed between two fixes, in meters per second, above which
+     * the fix is a position jump.
+     */
+    public static final float MAX_SPEED = 60.0f;
+
+    /**
+     * The standard deviation of the acceleration of a bike, in meters per
+     * second squared, the process noise of the smoothing.
+     */
+    public static final double ACCELERATION_NOISE = 2.0;
+
+    private FixFilters() {
+    }
+
+    /**
+     * Creates the default chain of the recording.
+     *
+     * @param minAccuracy       the worst accepted accuracy, in meters
+     * @param distanceInterval  the minimum distance between recorded fixes, in
+     *                          meters
+     * @param maxSegmentDistance the distance from the last track point above
+     *                          which a new segment starts, in meters
+     */
+    public static FixFilterChain createDefaultChain(int minAccuracy, int distanceInterval,
+                                                    int maxSegmentDistance) {
+        List<FixFilter> filters = new ArrayList<FixFilter>();
+        filters.add(new ValidLocationFilter());
+        filters.add(new AccuracyFilter(minAccuracy));
+        filters.add(new DuplicateTimeFilter());
+        filters.add(new SpeedOutlierFilter(MAX_SPEED));
+        filters.add(new KalmanSmoother(ACCELERATION_NOISE));
+        filters.add(new Segmenter(maxSegmentDistance));
+        filters.add(new DistanceDecimator(distanceInterval));
+        filters.add(new IdleDetector(TrackRecordingService.MAX_NO_MOVEMENT_SPEED));
+        return new FixFilterChain(filters);
+    }
+
+    /**
+     * Rejects the fixes without valid coordinates.
+     */
+    public static class ValidLocationFilter implements FixFilter {
+
+        @Override
+        public String getName() {
+            return "valid";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            return LocationUtils.isValidLocation(context.getLocation()) ? Result.PASS : Result.REJECT;
+        }
+    }
+
+    /**
+     * Rejects the fixes without an accuracy better than a minimum.
+     */
+    public static class AccuracyFilter implements FixFilter {
+
+        private final int mMinAccuracy;
+
+        /**
+         * @param minAccuracy the worst accepted accuracy, in meters
+         */
+        public AccuracyFilter(int minAccuracy) {
+            mMinAccuracy = minAccuracy;
+        }
+
+        @Override
+        public String getName() {
+            return "accuracy";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            Location location = context.getLocation();
+            return location.hasAccuracy() && location.getAccuracy() < mMinAccuracy
+                    ? Result.PASS : Result.REJECT;
+        }
+    }
+
+    /**
+     * Rejects the fixes not after the last fix, e.g. delivered twice.
+     */
+    public static class DuplicateTimeFilter implements FixFilter {
+
+        @Override
+        public String getName() {
+            return "duplicate time";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            Location lastLocation = context.getLastLocation();
+            return lastLocation != null && context.getLocation().getTime() <= lastLocation.getTime()
+                    ? Result.REJECT : Result.PASS;
+        }
+    }
+
+    /**
+     * Rejects the fixes too far from the last fix for the time between them,
+     * position jumps. After a few rejects in a row the fix is accepted, as the
+     * last fix was the wrong one.
+     */
+    public static class SpeedOutlierFilter implements FixFilter {
+
+        private static final int MAX_CONSECUTIVE_REJECTS = 3;
+
+        private final float mMaxSpeed;
+        private int mConsecutiveRejects = 0;
+
+        /**
+         * @param maxSpeed the maximum speed, in meters per second
+         */
+        public SpeedOutlierFilter(float maxSpeed) {
+            mMaxSpeed = maxSpeed;
+        }
+
+        @Override
+        public String getName() {
+            return "speed outlier";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            Location lastLocation = context.getLastLocation();
+            if (lastLocation == null || !LocationUtils.isValidLocation(lastLocation)) {
+                mConsecutiveRejects = 0;
+                return Result.PASS;
+            }
+            Location location = context.getLocation();
+            long time = location.getTime() - lastLocation.getTime();
+            if (time > 0 && location.distanceTo(lastLocation) * 1000.0f / time > mMaxSpeed
+                    && mConsecutiveRejects < MAX_CONSECUTIVE_REJECTS) {
+                mConsecutiveRejects++;
+                return Result.REJECT;
+            }
+            mConsecutiveRejects = 0;
+            return Result.PASS;
+        }
+    }
+
+    /**
+     * Smooths the coordinates of the fixes with a constant velocity Kalman
+     * filter, the accuracy of a fix being its measurement noise. The original
+     * coordinates are kept as the raw coordinates of a {@link TrackLocation}.
+     * <p>
+     * The filter works on the east and north meters from the first fix. The two
+     * axes are independent and share the same time steps and noise, so they
+     * share the same covariance: the state is a few primitive fields and
+     * smoothing a fix doesn't allocate. The filter restarts at the start of a
+     * segment and after a gap in the fixes.
+     */
+    public static class KalmanSmoother implements FixFilter {
+
+        // Beyond this time between fixes, the velocity is meaningless
+        private static final long MAX_GAP = 60000L;
+
+        // The variance of the velocity of the first fix, (10 m/s)^2
+        private static final double INITIAL_VELOCITY_VARIANCE = 100.0;
+
+        private static final double METERS_PER_DEGREE = 111195.0;
+
+        private final double mAccelerationVariance;
+
+        private boolean mStarted = false;
+        private long mLastTime;
+
+        // The first fix, origin of the local coordinates
+        private double mOriginLatitude;
+        private double mOriginLongitude;
+        private double mMetersPerDegreeLongitude;
+
+        // The east and north positions in meters, and velocities in m/s
+        private double mEast;
+        private double mEastVelocity;
+        private double mNorth;
+        private double mNorthVelocity;
+
+        // The covariance of the position and velocity of one axis
+        private double mPositionVariance;
+        private double mCovariance;
+        private double mVelocityVariance;
+
+        /**
+         * @param accelerationNoise the standard deviation of the acceleration,
+         *                          in meters per second squared
+         */
+        public KalmanSmoother(double accelerationNoise) {
+            mAccelerationVariance = accelerationNoise * accelerationNoise;
+        }
+
+        @Override
+        public String getName() {
+            return "kalman";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            Location location = context.getLocation();
+            double latitude = location.getLatitude();
+            double longitude = location.getLongitude();
+            long time = location.getTime();
+            double variance = (double) location.getAccuracy() * location.getAccuracy();
+
+            if (!mStarted || context.getLastLocation() == null || !context.segmentHasLocation()
+                    || time <= mLastTime || time - mLastTime > MAX_GAP) {
+                start(latitude, longitude, time, variance);
+                return Result.PASS;
+            }
+
+            // Predict
+            double dt = (time - mLastTime) / 1000.0;
+            double dt2 = dt * dt;
+            mEast += mEastVelocity * dt;
+            mNorth += mNorthVelocity * dt;
+            mPositionVariance += dt * (2.0 * mCovariance + dt * mVelocityVariance)
+                    + mAccelerationVariance * dt2 * dt2 / 4.0;
+            mCovariance += dt * mVelocityVariance + mAccelerationVariance * dt2 * dt / 2.0;
+            mVelocityVariance += mAccelerationVariance * dt2;
+
+            // Update with the fix
+            double innovationVariance = mPositionVariance + variance;
+            double positionGain = mPositionVariance / innovationVariance;
+            double velocityGain = mCovariance / innovationVariance;
+            double eastInnovation = wrapLongitude(longitude - mOriginLongitude)
+                    * mMetersPerDegreeLongitude - mEast;
+            double northInnovation = (latitude - mOriginLatitude) * METERS_PER_DEGREE - mNorth;
+            mEast += positionGain * eastInnovation;
+            mEastVelocity += velocityGain * eastInnovation;
+            mNorth += positionGain * northInnovation;
+            mNorthVelocity += velocityGain * northInnovation;
+            mVelocityVariance -= velocityGain * mCovariance;
+            mCovariance *= 1.0 - positionGain;
+            mPositionVariance *= 1.0 - positionGain;
+            mLastTime = time;
+
+            if (location instanceof TrackLocation) {
+                ((TrackLocation) location).setRawCoordinates(latitude, longitude);
+            }
+            location.setLatitude(mOriginLatitude + mNorth / METERS_PER_DEGREE);
+            location.setLongitude(wrapLongitude(mOriginLongitude + mEast / mMetersPerDegreeLongitude));
+            return Result.PASS;
+        }
+
+        /**
+         * Wraps a longitude, or a difference of longitudes, into [-180, 180), so
+         * that a track across the antimeridian stays continuous.
+         */
+        private static double wrapLongitude(double longitude) {
+            if (longitude >= -180.0 && longitude < 180.0) {
+                return longitude;
+            }
+            double wrapped = (longitude + 180.0) % 360.0;
+            return (wrapped < 0.0 ? wrapped + 360.0 : wrapped) - 180.0;
+        }
+
+        /**
+         * Restarts the filter at a fix, left unchanged.
+         */
+        private void start(double latitude, double longitude, long time, double variance) {
+            mStarted = true;
+            mLastTime = time;
+            mOriginLatitude = latitude;
+            mOriginLongitude = longitude;
+            mMetersPerDegreeLongitude = METERS_PER_DEGREE * Math.cos(Math.toRadians(latitude));
+            mEast = 0.0;
+            mEastVelocity = 0.0;
+            mNorth = 0.0;
+            mNorthVelocity = 0.0;
+            mPositionVariance = variance;
+            mCovariance = 0.0;
+            mVelocityVariance = INITIAL_VELOCITY_VARIANCE;
+        }
+    }
+
+    /**
+     * Records the first fix of a segment, and starts a new segment with the fixes
+     * too far from the last track point.
+     */
+    public static class Segmenter implements FixFilter {
+
+        private final int mMaxSegmentDistance;
+
+        /**
+         * @param maxSegmentDistance the distance from the last track point above
+         *                           which a new segment starts, in meters
+         */
+        public Segmenter(int maxSegmentDistance) {
+            mMaxSegmentDistance = maxSegmentDistance;
+        }
+
+        @Override
+        public String getName() {
+            return "segmenter";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            /*
+             * Always record the first fix of a segment. Without a last valid track
+             * point, which should not happen, just record the fix.
+             */
+            if (!context.segmentHasLocation()
+                    || !LocationUtils.isValidLocation(context.getLastValidTrackPoint())) {
+                return Result.RECORD;
+            }
+            if (context.getDistanceToLastValidTrackPoint() > mMaxSegmentDistance) {
+                context.setInsertLastLocation(true);
+                context.setSplitSegment(true);
+                context.setIdle(false);
+                return Result.RECORD;
+            }
+            return Result.PASS;
+        }
+    }
+
+    /**
+     * Records the fixes far enough from the last track point.
+     */
+    public static class DistanceDecimator implements FixFilter {
+
+        private final int mDistanceInterval;
+
+        /**
+         * @param distanceInterval the minimum distance between recorded fixes, in
+         *                         meters
+         */
+        public DistanceDecimator(int distanceInterval) {
+            mDistanceInterval = distanceInterval;
+        }
+
+        @Override
+        public String getName() {
+            return "distance";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            if (context.getDistanceToLastValidTrackPoint() >= mDistanceInterval) {
+                context.setInsertLastLocation(true);
+                context.setIdle(false);
+                return Result.RECORD;
+            }
+            return Result.PASS;
+        }
+    }
+
+    /**
+     * Records the fixes where the user stops or starts moving.
+     */
+    public static class IdleDetector implements FixFilter {
+
+        private final double mMaxIdleSpeed;
+
+        /**
+         * @param maxIdleSpeed the speed up to which the user is idle, in meters per
+         *                     second
+         */
+        public IdleDetector(double maxIdleSpeed) {
+            mMaxIdleSpeed = maxIdleSpeed;
+        }
+
+        @Override
+        public String getName() {
+            return "idle";
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            Location location = context.getLocation();
+            if (!location.hasSpeed()) {
+                return Result.PASS;
+            }
+            boolean idle = location.getSpeed() < mMaxIdleSpeed;
+            if (idle == context.isIdle()) {
+                return Result.PASS;
+            }
+            context.setInsertLastLocation(true);
+            context.setIdle(idle);
+            return Result.RECORD;
+        }
+    }
+}
@@ -0,0 +1,268 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import android.location.Location;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded single producer, single consumer queue of the location fixes sent
+ * by {@link LocationUpdatesService} to {@link TrackRecordingService}, in the
+ * same process.
+ * <p>
+ * The fixes are copied into preallocated primitive arrays, so offering a fix
+ * allocates nothing, and the two sides only share the read and write
+ * positions: neither side ever blocks or locks. The producer is the thread of
+ * the location callbacks, the consumer the recording thread, woken up by
+ * {@link Consumer#onFixesAvailable()} once per batch of fixes.
+ * <p>
+ * When the queue is full, the offered fixes are dropped: the queued fixes are
+ * older but already ordered, and the recording thread is behind anyway. The
+ * dropped fixes and the maximum depth are counted. Fixes offered without a
+ * consumer are ignored, rather than delivered late when a consumer attaches.
+ */
+class FixQueue {
+
+    /**
+     * The consumer of the fixes.
+     */
+    interface Consumer {
+
+        /**
+         * Called on the producer thread when fixes are available, at most once
+         * until the consumer calls {@link #endDrain()}. Must not block, e.g. post
+         * a drain of the queue to the consumer thread.
+         */
+        void onFixesAvailable();
+    }
+
+    // About 4 minutes of fixes at one per second
+    private static final int CAPACITY = 256;
+
+    private static final FixQueue INSTANCE = new FixQueue(CAPACITY);
+
+    private final int mMask;
+    private final double[] mLatitudes;
+    private final double[] mLongitudes;
+    private final double[] mAltitudes;
+    private final long[] mTimes;
+    private final long[] mElapsedRealtimeNanos;
+    private final float[] mAccuracies;
+    private final float[] mSpeeds;
+    private final float[] mBearings;
+
+    // The position of the next fix to read, written by the consumer only
+    private final AtomicLong mHead = new AtomicLong();
+
+    // The position of the next fix to write, written by the producer only
+    private final AtomicLong mTail = new AtomicLong();
+
+    // True from the signal of the consumer until it ends its drain
+    private final AtomicBoolean mSignalled = new AtomicBoolean();
+
+    private volatile Consumer mConsumer;
+
+    // Written by the producer only
+    private volatile long mDroppedCount;
+    private volatile int mMaxDepth;
+
+    /**
+     * Gets the queue of the process.
+     */
+    static FixQueue getInstance() {
+        return INSTANCE;
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the capacity, a power of 2
+     */
+    FixQueue(int capacity) {
+        if (capacity <= 0 || (capacity & (capacity - 1)) != 0) {
+            throw new IllegalArgumentException("The capacity must be a power of 2: " + capacity);
+        }
+        mMask = capacity - 1;
+        mLatitudes = new double[capacity];
+        mLongitudes = new double[capacity];
+        mAltitudes = new double[capacity];
+        mTimes = new long[capacity];
+        mElapsedRealtimeNanos = new long[capacity];
+        mAccuracies = new float[capacity];
+        mSpeeds = new float[capacity];
+        mBearings = new float[capacity];
+    }
+
+    /**
+     * Attaches the consumer, or detaches it if null. The fixes queued before
+     * are dropped. Called on the consumer thread, or when no drain runs.
+     *
+     * @param consumer the consumer
+     */
+    void setConsumer(Consumer consumer) {
+        mConsumer = null;
+        mHead.set(mTail.get());
+        mSignalled.set(false);
+        mConsumer = consumer;
+    }
+
+    /**
+     * Offers a fix. Called on the producer thread.
+     *
+     * @param location the fix, copied
+     * @return false if dropped, because the queue is full or has no consumer
+     */
+    boolean offer(Location location) {
+        Consumer consumer = mConsumer;
+        if (consumer == null) {
+            return false;
+        }
+        long tail = mTail.get();
+        if (tail - mHead.get() > mMask) {
+            mDroppedCount++;
+            signal(consumer);
+            return false;
+        }
+        write((int) tail & mMask, location);
+        publish(consumer, tail + 1);
+        return true;
+    }
+
+    /**
+     * Offers a batch of fixes, e.g. buffered by the location provider. The
+     * batch is published at once, with a single signal, so the consumer handles
+     * it in one drain. Called on the producer thread.
+     *
+     * @param locations the fixes, copied
+     * @return the number of fixes queued, the others are dropped
+     */
+    int offerAll(List<Location> locations) {
+        Consumer consumer = mConsumer;
+        if (consumer == null || locations.isEmpty()) {
+            return 0;
+        }
+        long tail = mTail.get();
+        long free = mMask + 1 - (tail - mHead.get());
+        int count = (int) Math.min(free, locations.size());
+        for (int i = 0; i < count; i++) {
+            write((int) (tail + i) & mMask, locations.get(i));
+        }
+        mDroppedCount += locations.size() - count;
+        publish(consumer, tail + count);
+        return count;
+    }
+
+    /**
+     * Publishes the fixes written up to a position, after their fields, and
+     * signals the consumer.
+     */
+    private void publish(Consumer consumer, long tail) {
+        mTail.lazySet(tail);
+        int depth = (int) (tail - mHead.get());
+        if (depth > mMaxDepth) {
+            mMaxDepth = depth;
+        }
+        signal(consumer);
+    }
+
+    private void write(int index, Location location) {
+        mLatitudes[index] = location.getLatitude();
+        mLongitudes[index] = location.getLongitude();
+        mAltitudes[index] = location.hasAltitude() ? location.getAltitude() : Double.NaN;
+        mTimes[index] = location.getTime();
+        mElapsedRealtimeNanos[index] = location.getElapsedRealtimeNanos();
+        mAccuracies[index] = location.hasAccuracy() ? location.getAccuracy() : Float.NaN;
+        mSpeeds[index] = location.hasSpeed() ? location.getSpeed() : Float.NaN;
+        mBearings[index] = location.hasBearing() ? location.getBearing() : Float.NaN;
+    }
+
+    /**
+     * Reads the next fix. Called on the consumer thread.
+     *
+     * @param location the location to set, not reset first
+     * @return false if the queue is empty
+     */
+    boolean poll(Location location) {
+        long head = mHead.get();
+        if (head == mTail.get()) {
+            return false;
+        }
+
+        int index = (int) head & mMask;
+        location.setLatitude(mLatitudes[index]);
+        location.setLongitude(mLongitudes[index]);
+        location.setTime(mTimes[index]);
+        location.setElapsedRealtimeNanos(mElapsedRealtimeNanos[index]);
+        if (!Double.isNaN(mAltitudes[index])) {
+            location.setAltitude(mAltitudes[index]);
+        }
+        if (!Float.isNaN(mAccuracies[index])) {
+            location.setAccuracy(mAccuracies[index]);
+        }
+        if (!Float.isNaN(mSpeeds[index])) {
+            location.setSpeed(mSpeeds[index]);
+        }
+        if (!Float.isNaN(mBearings[index])) {
+            location.setBearing(mBearings[index]);
+        }
+
+        // Frees the slot, after reading it
+        mHead.lazySet(head + 1);
+        return true;
+    }
+
+    /**
+     * Ends a drain of the queue, once {@link #poll(Location)} returned false.
+     * Called on the consumer thread.
+     *
+     * @return true if fixes were offered meanwhile without a signal, to be
+     * drained too
+     */
+    boolean endDrain() {
+        mSignalled.set(false);
+        return mHead.get() != mTail.get() && mSignalled.compareAndSet(false, true);
+    }
+
+    /**
+     * Gets the number of queued fixes.
+     */
+    int getDepth() {
+        return (int) (mTail.get() - mHead.get());
+    }
+
+    /**
+     * Gets the maximum number of queued fixes so far.
+     */
+    int getMaxDepth() {
+        return mMaxDepth;
+    }
+
+    /**
+     * Gets the number of fixes dropped because the queue was full.
+     */
+    long getDroppedCount() {
+        return mDroppedCount;
+    }
+
+    private void signal(Consumer consumer) {
+        if (mSignalled.compareAndSet(false, true)) {
+            consumer.onFixesAvailable();
+        }
+    }
+}
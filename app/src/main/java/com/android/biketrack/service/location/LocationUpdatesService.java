@@ -54,6 +54,7 @@ import java.io.FileWriter;
 import java.io.IOException;
 import java.text.DateFormat;
 import java.util.Date;
+import java.util.List;
 
 import static com.android.biketrack.utils.LocationUtils.getLocationText;
 import static com.android.biketrack.utils.LocationUtils.getLocationTitle;
@@ -99,6 +100,12 @@ public class LocationUpdatesService extends Service {
      */
     private static final int FASTEST_UPDATE_INTERVAL = 15;
 
+    /**
+     * The maximum time, in minutes, the location updates are buffered by the provider and
+     * delivered in batches. 0 to deliver each update right away.
+     */
+    static final int BATCH_INTERVAL = 0;
+
     /**
      * The identifier for the notification displayed for the foreground service.
      */
@@ -144,6 +151,9 @@ public class LocationUpdatesService extends Service {
             } else if (key.equals(getString(R.string.prefkey_fast_up))){
                 int fastestUpdate = sharedPreferences.getInt(key, FASTEST_UPDATE_INTERVAL);
                 mLocationRequest.setFastestInterval((long) fastestUpdate * 1000);
+            } else if (key.equals(getString(R.string.prefkey_batch_int))){
+                int batchInterval = sharedPreferences.getInt(key, BATCH_INTERVAL);
+                mLocationRequest.setMaxWaitTime((long) batchInterval * 60 * 1000);
             }
         }
     };
@@ -159,7 +169,7 @@ public class LocationUpdatesService extends Service {
             @Override
             public void onLocationResult(LocationResult locationResult) {
                 super.onLocationResult(locationResult);
-                onNewLocation(locationResult.getLastLocation());
+                onNewLocations(locationResult.getLocations());
             }
         };
 
@@ -338,12 +348,25 @@ public class LocationUpdatesService extends Service {
         }
     }
 
-    private void onNewLocation(Location location) {
-        Log.i(TAG, "New location: " + location);
+    /**
+     * Handles the locations of a result, a batch of them if they were buffered by the provider.
+     */
+    private void onNewLocations(List<Location> locations) {
+        if (locations.isEmpty()) {
+            return;
+        }
+        Location location = locations.get(locations.size() - 1);
+        Log.i(TAG, "New locations: " + locations.size() + ", last: " + location);
 
         mLocation = location;
 
-        // Notify anyone listening for broadcasts about the new location.
+        // Hand the fixes to the recording at once, without going through the main looper
+        int queued = FixQueue.getInstance().offerAll(locations);
+        if (queued < locations.size()) {
+            Log.w(TAG, "Dropped locations: " + (locations.size() - queued));
+        }
+
+        // Notify the UI listening for broadcasts about the new location.
         Intent intent = new Intent(ACTION_BROADCAST);
         intent.putExtra(EXTRA_LOCATION, location);
         LocalBroadcastManager.getInstance(getApplicationContext()).sendBroadcast(intent);
@@ -353,7 +376,15 @@ public class LocationUpdatesService extends Service {
             mNotificationManager.notify(NOTIFICATION_ID, getNotification());
         }
 
-        appendLog(DateFormat.getDateTimeInstance().format(new Date()) + ": " + getLocationText(location), LOCATION_FILE);
+        StringBuilder text = new StringBuilder();
+        for (Location each : locations) {
+            if (text.length() > 0) {
+                text.append('\n');
+            }
+            text.append(DateFormat.getDateTimeInstance().format(new Date(each.getTime())))
+                    .append(": ").append(getLocationText(each));
+        }
+        appendLog(text.toString(), LOCATION_FILE);
     }
 
     /**
@@ -367,6 +398,10 @@ public class LocationUpdatesService extends Service {
 
         mLocationRequest.setInterval((long) updateInt * 1000);
         mLocationRequest.setFastestInterval((long) fastestUpdate * 1000);
+
+        // Batched updates let the GNSS chip buffer the fixes while the CPU sleeps
+        int batchInterval = PreferencesUtils.getInt(this, R.string.prefkey_batch_int, BATCH_INTERVAL);
+        mLocationRequest.setMaxWaitTime((long) batchInterval * 60 * 1000);
         mLocationRequest.setPriority(LocationRequest.PRIORITY_HIGH_ACCURACY);
     }
 
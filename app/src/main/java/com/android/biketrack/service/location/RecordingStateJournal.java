@@ -0,0 +1,409 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import android.content.Context;
+import android.location.Location;
+import android.location.LocationManager;
+import android.util.Log;
+
+import com.android.biketrack.content.TrackLocation;
+import com.android.biketrack.stats.TripStatistics;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Journal of the in-memory state of the {@link TrackRecordingService}, so a
+ * recording can be restarted exactly where it was when the process is killed.
+ * <p>
+ * The file is memory mapped and holds two fixed-size slots, written in turn.
+ * Each checkpoint has a sequence number and a CRC, so a checkpoint torn by the
+ * death of the process is ignored and the previous one is restored. A
+ * checkpoint is a copy into the mapped buffer and a restore reads two slots:
+ * both take constant time whatever the length of the track.
+ * <p>
+ * This class is not thread safe.
+ */
+public class RecordingStateJournal {
+
+    private static final String TAG = RecordingStateJournal.class.getSimpleName();
+
+    private static final String FILE_NAME = "recording.journal";
+
+    private static final int MAGIC = 0x42545253; // BTRS
+    private static final int VERSION = 3;
+
+    // Header layout
+    private static final int MAGIC_OFFSET = 0;
+    private static final int VERSION_OFFSET = 4;
+    static final int HEADER_SIZE = 16;
+
+    // Slot layout
+    private static final int SEQUENCE_OFFSET = 0;
+    private static final int CHECKPOINT_TIME_OFFSET = 8;
+    private static final int TRACK_ID_OFFSET = 16;
+    private static final int FLAGS_OFFSET = 24;
+    private static final int LOCATION_OFFSET = 28;
+    private static final int STATISTICS_OFFSET = 84;
+    private static final int CRC_OFFSET = 204;
+    static final int SLOT_SIZE = 208;
+
+    private static final int FILE_SIZE = HEADER_SIZE + 2 * SLOT_SIZE;
+
+    // Flags
+    private static final int PAUSED = 0x01;
+    private static final int SEGMENT_HAS_LOCATION = 0x02;
+    private static final int IDLE = 0x04;
+    private static final int HAS_LAST_LOCATION = 0x08;
+    private static final int HAS_TRIP_STATISTICS = 0x10;
+    private static final int HAS_BOUNDS = 0x20;
+    private static final int HAS_RAW_COORDINATES = 0x40;
+
+    private final File file;
+    private RandomAccessFile randomAccessFile;
+    private FileChannel fileChannel;
+    private MappedByteBuffer buffer;
+
+    // The slot being built, reused by each checkpoint
+    private final ByteBuffer slot = ByteBuffer.allocate(SLOT_SIZE);
+    private final CRC32 crc32 = new CRC32();
+
+    // The sequence number of the last checkpoint
+    private long sequence = 0;
+
+    // The restored state
+    private long checkpointTime;
+    private long trackId = -1L;
+    private int flags;
+    private final TrackLocation lastLocation = new TrackLocation(LocationManager.GPS_PROVIDER);
+    private final TripStatistics tripStatistics = new TripStatistics();
+
+    private RecordingStateJournal(File file) {
+        this.file = file;
+    }
+
+    /**
+     * Opens the journal, creating it if it doesn't exist.
+     *
+     * @param context the context
+     */
+    public static RecordingStateJournal open(Context context) throws IOException {
+        return open(new File(context.getFilesDir(), FILE_NAME));
+    }
+
+    /**
+     * Opens a journal file, creating it if it doesn't exist.
+     *
+     * @param file the file
+     */
+    static RecordingStateJournal open(File file) throws IOException {
+        RecordingStateJournal journal = new RecordingStateJournal(file);
+        try {
+            journal.map();
+        } catch (IOException e) {
+            journal.close();
+            throw e;
+        }
+        return journal;
+    }
+
+    /**
+     * Writes a checkpoint of the recording state.
+     *
+     * @param trackId            the recording track id
+     * @param paused             true if the recording is paused
+     * @param segmentHasLocation true if the current segment has a location
+     * @param idle               true if idle
+     * @param lastLocation       the last location, can be null
+     * @param tripStatistics     the trip statistics of the track, can be null
+     */
+    public void checkpoint(long trackId, boolean paused, boolean segmentHasLocation, boolean idle,
+                           Location lastLocation, TripStatistics tripStatistics) {
+        int newFlags = (paused ? PAUSED : 0)
+                | (segmentHasLocation ? SEGMENT_HAS_LOCATION : 0)
+                | (idle ? IDLE : 0)
+                | (lastLocation != null ? HAS_LAST_LOCATION : 0)
+                | (tripStatistics != null ? HAS_TRIP_STATISTICS : 0)
+                | (tripStatistics != null && tripStatistics.hasBounds() ? HAS_BOUNDS : 0)
+                | (lastLocation instanceof TrackLocation
+                && ((TrackLocation) lastLocation).hasRawCoordinates() ? HAS_RAW_COORDINATES : 0);
+
+        slot.clear();
+        slot.putLong(SEQUENCE_OFFSET, sequence + 1);
+        slot.putLong(CHECKPOINT_TIME_OFFSET, System.currentTimeMillis());
+        slot.putLong(TRACK_ID_OFFSET, trackId);
+        slot.putInt(FLAGS_OFFSET, newFlags);
+        if (lastLocation != null) {
+            writeLocation(lastLocation);
+        }
+        if (tripStatistics != null) {
+            writeTripStatistics(tripStatistics);
+        }
+        crc32.reset();
+        crc32.update(slot.array(), 0, CRC_OFFSET);
+        slot.putInt(CRC_OFFSET, (int) crc32.getValue());
+
+        sequence++;
+        buffer.position(getSlotOffset(sequence));
+        buffer.put(slot.array(), 0, SLOT_SIZE);
+    }
+
+    /**
+     * Restores the last complete checkpoint. The state is available through the
+     * getters.
+     *
+     * @return false if there is no checkpoint
+     */
+    public boolean restore() {
+        int offset = -1;
+        long maxSequence = 0;
+        for (int i = 0; i < 2; i++) {
+            int slotOffset = HEADER_SIZE + i * SLOT_SIZE;
+            long slotSequence = buffer.getLong(slotOffset + SEQUENCE_OFFSET);
+            if (slotSequence > maxSequence && isValid(slotOffset)) {
+                maxSequence = slotSequence;
+                offset = slotOffset;
+            }
+        }
+        if (offset < 0) {
+            return false;
+        }
+        sequence = maxSequence;
+        buffer.position(offset);
+        buffer.get(slot.array(), 0, SLOT_SIZE);
+
+        checkpointTime = slot.getLong(CHECKPOINT_TIME_OFFSET);
+        trackId = slot.getLong(TRACK_ID_OFFSET);
+        flags = slot.getInt(FLAGS_OFFSET);
+        if (hasLastLocation()) {
+            readLocation(lastLocation);
+        }
+        if ((flags & HAS_TRIP_STATISTICS) != 0) {
+            readTripStatistics(tripStatistics);
+        }
+        return true;
+    }
+
+    /**
+     * Clears the journal, when the recording ends.
+     */
+    public void clear() {
+        for (int i = 0; i < 2; i++) {
+            buffer.putLong(HEADER_SIZE + i * SLOT_SIZE + SEQUENCE_OFFSET, 0L);
+        }
+        sequence = 0;
+        trackId = -1L;
+    }
+
+    /**
+     * Forces the journal to the storage. Not needed to survive the death of the
+     * process, only a power loss.
+     */
+    public void sync() {
+        if (buffer != null) {
+            buffer.force();
+        }
+    }
+
+    /**
+     * Closes the journal.
+     */
+    public void close() {
+        if (buffer != null) {
+            buffer.force();
+            buffer = null;
+        }
+        try {
+            if (fileChannel != null) {
+                fileChannel.close();
+            }
+            if (randomAccessFile != null) {
+                randomAccessFile.close();
+            }
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to close " + file, e);
+        } finally {
+            fileChannel = null;
+            randomAccessFile = null;
+        }
+    }
+
+    /**
+     * Gets the wall clock time of the restored checkpoint.
+     */
+    public long getCheckpointTime() {
+        return checkpointTime;
+    }
+
+    public long getTrackId() {
+        return trackId;
+    }
+
+    public boolean isPaused() {
+        return (flags & PAUSED) != 0;
+    }
+
+    public boolean segmentHasLocation() {
+        return (flags & SEGMENT_HAS_LOCATION) != 0;
+    }
+
+    public boolean isIdle() {
+        return (flags & IDLE) != 0;
+    }
+
+    /**
+     * Gets the restored last location, with its raw coordinates if it was
+     * smoothed, null if none.
+     */
+    public TrackLocation getLastLocation() {
+        return hasLastLocation() ? new TrackLocation(lastLocation, null) : null;
+    }
+
+    /**
+     * Gets the restored trip statistics, null if none.
+     */
+    public TripStatistics getTripStatistics() {
+        return (flags & HAS_TRIP_STATISTICS) != 0 ? new TripStatistics(tripStatistics) : null;
+    }
+
+    private boolean hasLastLocation() {
+        return (flags & HAS_LAST_LOCATION) != 0;
+    }
+
+    private int getSlotOffset(long sequence) {
+        return HEADER_SIZE + (int) (sequence % 2) * SLOT_SIZE;
+    }
+
+    private boolean isValid(int offset) {
+        buffer.position(offset);
+        buffer.get(slot.array(), 0, SLOT_SIZE);
+        crc32.reset();
+        crc32.update(slot.array(), 0, CRC_OFFSET);
+        return slot.getInt(CRC_OFFSET) == (int) crc32.getValue();
+    }
+
+    /**
+     * Maps the journal file, initializing the header of a new file.
+     */
+    private void map() throws IOException {
+        randomAccessFile = new RandomAccessFile(file, "rw");
+        fileChannel = randomAccessFile.getChannel();
+        boolean exists = fileChannel.size() >= FILE_SIZE;
+        buffer = fileChannel.map(FileChannel.MapMode.READ_WRITE, 0, FILE_SIZE);
+        if (exists && buffer.getInt(MAGIC_OFFSET) == MAGIC
+                && buffer.getInt(VERSION_OFFSET) == VERSION) {
+            return;
+        }
+        if (exists) {
+            Log.w(TAG, "Resetting invalid journal " + file);
+        }
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(VERSION_OFFSET, VERSION);
+        clear();
+    }
+
+    private void writeLocation(Location location) {
+        int offset = LOCATION_OFFSET;
+        slot.putDouble(offset, location.getLatitude());
+        slot.putDouble(offset + 8, location.getLongitude());
+        slot.putLong(offset + 16, location.getTime());
+        slot.putFloat(offset + 24, location.hasAltitude() ? (float) location.getAltitude() : Float.NaN);
+        slot.putFloat(offset + 28, location.hasAccuracy() ? location.getAccuracy() : Float.NaN);
+        slot.putFloat(offset + 32, location.hasSpeed() ? location.getSpeed() : Float.NaN);
+        slot.putFloat(offset + 36, location.hasBearing() ? location.getBearing() : Float.NaN);
+        if ((slot.getInt(FLAGS_OFFSET) & HAS_RAW_COORDINATES) != 0) {
+            TrackLocation trackLocation = (TrackLocation) location;
+            slot.putDouble(offset + 40, trackLocation.getRawLatitude());
+            slot.putDouble(offset + 48, trackLocation.getRawLongitude());
+        }
+    }
+
+    private void readLocation(TrackLocation location) {
+        int offset = LOCATION_OFFSET;
+        location.reset();
+        location.setLatitude(slot.getDouble(offset));
+        location.setLongitude(slot.getDouble(offset + 8));
+        location.setTime(slot.getLong(offset + 16));
+        float altitude = slot.getFloat(offset + 24);
+        if (!Float.isNaN(altitude)) {
+            location.setAltitude(altitude);
+        }
+        float accuracy = slot.getFloat(offset + 28);
+        if (!Float.isNaN(accuracy)) {
+            location.setAccuracy(accuracy);
+        }
+        float speed = slot.getFloat(offset + 32);
+        if (!Float.isNaN(speed)) {
+            location.setSpeed(speed);
+        }
+        float bearing = slot.getFloat(offset + 36);
+        if (!Float.isNaN(bearing)) {
+            location.setBearing(bearing);
+        }
+        if ((flags & HAS_RAW_COORDINATES) != 0) {
+            location.setRawCoordinates(slot.getDouble(offset + 40), slot.getDouble(offset + 48));
+        }
+    }
+
+    private void writeTripStatistics(TripStatistics tripStatistics) {
+        int offset = STATISTICS_OFFSET;
+        slot.putLong(offset, tripStatistics.getStartTime());
+        slot.putLong(offset + 8, tripStatistics.getStopTime());
+        slot.putLong(offset + 16, tripStatistics.getTotalTime());
+        slot.putLong(offset + 24, tripStatistics.getMovingTime());
+        slot.putDouble(offset + 32, tripStatistics.getTotalDistance());
+        slot.putDouble(offset + 40, tripStatistics.getMaxSpeed());
+        slot.putDouble(offset + 48, tripStatistics.getMinElevation());
+        slot.putDouble(offset + 56, tripStatistics.getMaxElevation());
+        slot.putDouble(offset + 64, tripStatistics.getTotalElevationGain());
+        slot.putDouble(offset + 72, tripStatistics.getMinGrade());
+        slot.putDouble(offset + 80, tripStatistics.getMaxGrade());
+        slot.putDouble(offset + 88, tripStatistics.getBottomDegrees());
+        slot.putDouble(offset + 96, tripStatistics.getTopDegrees());
+        slot.putDouble(offset + 104, tripStatistics.getLeftDegrees());
+        slot.putDouble(offset + 112, tripStatistics.getRightDegrees());
+    }
+
+    private void readTripStatistics(TripStatistics tripStatistics) {
+        int offset = STATISTICS_OFFSET;
+        tripStatistics.setStartTime(slot.getLong(offset));
+        tripStatistics.setStopTime(slot.getLong(offset + 8));
+        tripStatistics.setTotalTime(slot.getLong(offset + 16));
+        tripStatistics.setMovingTime(slot.getLong(offset + 24));
+        tripStatistics.setTotalDistance(slot.getDouble(offset + 32));
+        tripStatistics.setMaxSpeed(slot.getDouble(offset + 40));
+        tripStatistics.setMinElevation(slot.getDouble(offset + 48));
+        tripStatistics.setMaxElevation(slot.getDouble(offset + 56));
+        tripStatistics.setTotalElevationGain(slot.getDouble(offset + 64));
+        tripStatistics.setMinGrade(slot.getDouble(offset + 72));
+        tripStatistics.setMaxGrade(slot.getDouble(offset + 80));
+
+        // The bounds are set as they were, the empty bounds of a trip without
+        // locations are not a box
+        if ((flags & HAS_BOUNDS) != 0) {
+            tripStatistics.setBoundsDegrees(slot.getDouble(offset + 104), slot.getDouble(offset + 96),
+                    slot.getDouble(offset + 112), slot.getDouble(offset + 88));
+        } else {
+            tripStatistics.resetBounds();
+        }
+    }
+}
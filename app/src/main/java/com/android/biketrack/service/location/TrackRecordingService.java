@@ -16,10 +16,8 @@
 package com.android.biketrack.service.location;
 
 import android.app.Service;
-import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
-import android.content.IntentFilter;
 import android.content.SharedPreferences;
 import android.content.SharedPreferences.OnSharedPreferenceChangeListener;
 import android.database.sqlite.SQLiteException;
@@ -28,28 +26,32 @@ import android.location.LocationManager;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.IBinder;
+import android.os.PowerManager;
 import android.os.PowerManager.WakeLock;
 import android.support.annotation.VisibleForTesting;
-import android.support.v4.content.LocalBroadcastManager;
 import android.util.Log;
 
 import com.android.biketrack.Constants;
 import com.android.biketrack.R;
 import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackLocation;
+import com.android.biketrack.content.TrackPointLog;
 import com.android.biketrack.content.TracksProvider;
 import com.android.biketrack.content.TracksProviderUtils;
 import com.android.biketrack.sensor.BluetoothSensorManager;
 import com.android.biketrack.sensor.Sensor;
 import com.android.biketrack.sensor.SensorManager;
+import com.android.biketrack.stats.TripStatistics;
 import com.android.biketrack.utils.LocationUtils;
 import com.android.biketrack.utils.PreferencesUtils;
 import com.android.biketrack.utils.SystemUtils;
 import com.android.biketrack.utils.UnitConversions;
 import com.android.biketrack.utils.track.TrackNameUtils;
 
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
+import java.io.IOException;
+import java.util.ArrayList;
 
 /**
  * A background service that registers a location listener and records track
@@ -83,25 +85,51 @@ public class TrackRecordingService extends Service {
     // 1 minute in milliseconds
     private static final long ONE_MINUTE = (long) (UnitConversions.MIN_TO_S * UnitConversions.S_TO_MS);
 
+    // Interval between the syncs of the track point log to the storage
+    private static final long TRACK_POINT_LOG_SYNC_INTERVAL = 10 * ONE_SECOND;
+
+    // Interval between the writes of the recording track changes
+    private static final long TRACK_SESSION_FLUSH_INTERVAL = 30 * ONE_SECOND;
+
+    // Maximum time the CPU is kept awake to record a batch of fixes
+    private static final long DRAIN_WAKE_LOCK_TIMEOUT = 10 * ONE_SECOND;
+
     @VisibleForTesting
     static final int MAX_AUTO_RESUME_TRACK_RETRY_ATTEMPTS = 3;
 
     // The following variables are set in onCreate:
-    private LocationReceiver mLocationReceiver;
-    private ExecutorService executorService;
+    private FixQueue fixQueue;
     private Context context;
     private TracksProviderUtils tracksProviderUtils;
+
+    // The recording thread, which owns the recording state, and its handler
+    private HandlerThread recordingThread;
     private Handler handler;
     //private MyTracksLocationManager myTracksLocationManager;
     private SharedPreferences sharedPreferences;
-    private long recordingTrackId;
-    private boolean recordingTrackPaused;
+    // Written on the recording thread, read on any
+    private volatile long recordingTrackId;
+    private volatile boolean recordingTrackPaused;
     private LocationListenerPolicy locationListenerPolicy;
     private int recordingDistanceInterval;
     private int maxRecordingDistance;
     private int recordingGpsAccuracy;
     private int autoResumeTrackTimeout;
     private long currentRecordingInterval;
+    private boolean recordingLog;
+
+    // True if the fixes are delivered in batches, read on the fix producer thread
+    private volatile boolean batchedRecording;
+
+    // Keeps the CPU awake while recording a batch of fixes
+    private WakeLock drainWakeLock;
+
+    // The stages deciding which fixes are recorded, see updatePreferences
+    private FixFilterChain fixFilterChain;
+    private final FixContext fixContext = new FixContext();
+
+    // The fixes of the batch being recorded, replayed one by one if it rolls back
+    private final ArrayList<Location> batchFixes = new ArrayList<Location>();
 
     // The following variables are set when recording:
     private WakeLock wakeLock;
@@ -110,6 +138,19 @@ public class TrackRecordingService extends Service {
     private boolean currentSegmentHasLocation;
     private boolean isIdle; // true if idle
 
+    // Log of the recording track points, null if they go straight to the provider
+    private TrackPointLog trackPointLog;
+    private Location lastValidLogTrackPoint;
+
+    // The recording track, null until read
+    private TrackSession trackSession;
+
+    // Journal of the recording state, null if it can't be opened
+    private RecordingStateJournal recordingStateJournal;
+
+    // True until a restarted track records a location
+    private boolean resetAutoResumeRetries;
+
     private final IBinder binder = new LocalBinder();
 
     /**
@@ -129,77 +170,187 @@ public class TrackRecordingService extends Service {
     private final OnSharedPreferenceChangeListener
             sharedPreferenceChangeListener = new OnSharedPreferenceChangeListener() {
         @Override
-        public void onSharedPreferenceChanged(SharedPreferences preferences, String key) {
-            if (key == null || key.equals(PreferencesUtils.getKey(context, R.string.recording_track_id_key))) {
-                long trackId = PreferencesUtils.getLong(context, R.string.recording_track_id_key);
-                /*
-                 * Only through the TrackRecordingService can one stop a recording
-                 * and set the recordingTrackId to -1L.
-                 */
-                if (trackId != PreferencesUtils.RECORDING_TRACK_ID_DEFAULT) {
-                    recordingTrackId = trackId;
+        public void onSharedPreferenceChanged(SharedPreferences preferences, final String key) {
+            // Read on the recording thread, with the rest of the recording state
+            handler.post(new Runnable() {
+                @Override
+                public void run() {
+                    updatePreferences(key);
                 }
+            });
+        }
+    };
+
+    /**
+     * Updates the recording preferences. Runs on the recording thread.
+     *
+     * @param key the key of the changed preference, null for all
+     */
+    private void updatePreferences(String key) {
+        if (key == null || key.equals(PreferencesUtils.getKey(context, R.string.recording_track_id_key))) {
+            long trackId = PreferencesUtils.getLong(context, R.string.recording_track_id_key);
+            /*
+             * Only through the TrackRecordingService can one stop a recording
+             * and set the recordingTrackId to -1L.
+             */
+            if (trackId != PreferencesUtils.RECORDING_TRACK_ID_DEFAULT) {
+                recordingTrackId = trackId;
             }
-           /* if (key == null || key.equals(
-                    PreferencesUtils.getKey(context, R.string.recording_track_paused_key))) {
-                recordingTrackPaused = PreferencesUtils.getBoolean(context,
-                        R.string.recording_track_paused_key,
-                        PreferencesUtils.RECORDING_TRACK_PAUSED_DEFAULT);
-            }*/
-            if (key == null || key.equals(
-                    PreferencesUtils.getKey(context, R.string.min_recording_interval_key))) {
-                int minRecordingInterval = PreferencesUtils.getInt(context,
-                        R.string.min_recording_interval_key,
-                        PreferencesUtils.MIN_RECORDING_INTERVAL_DEFAULT);
-                switch (minRecordingInterval) {
-                    case PreferencesUtils.MIN_RECORDING_INTERVAL_ADAPT_BATTERY_LIFE:
-                        // Choose battery life over moving time accuracy.
-                        locationListenerPolicy = new AdaptiveLocationListenerPolicy(
-                                30 * ONE_SECOND, 5 * ONE_MINUTE, 5);
-                        break;
-                    case PreferencesUtils.MIN_RECORDING_INTERVAL_ADAPT_ACCURACY:
-                        // Get all the updates.
-                        locationListenerPolicy = new AdaptiveLocationListenerPolicy(
-                                ONE_SECOND, 30 * ONE_SECOND, 0);
-                        break;
-                    default:
-                        locationListenerPolicy = new AbsoluteLocationListenerPolicy(
-                                minRecordingInterval * ONE_SECOND);
-                }
+        }
+       /* if (key == null || key.equals(
+                PreferencesUtils.getKey(context, R.string.recording_track_paused_key))) {
+            recordingTrackPaused = PreferencesUtils.getBoolean(context,
+                    R.string.recording_track_paused_key,
+                    PreferencesUtils.RECORDING_TRACK_PAUSED_DEFAULT);
+        }*/
+        if (key == null || key.equals(
+                PreferencesUtils.getKey(context, R.string.min_recording_interval_key))) {
+            int minRecordingInterval = PreferencesUtils.getInt(context,
+                    R.string.min_recording_interval_key,
+                    PreferencesUtils.MIN_RECORDING_INTERVAL_DEFAULT);
+            switch (minRecordingInterval) {
+                case PreferencesUtils.MIN_RECORDING_INTERVAL_ADAPT_BATTERY_LIFE:
+                    // Choose battery life over moving time accuracy.
+                    locationListenerPolicy = new AdaptiveLocationListenerPolicy(
+                            30 * ONE_SECOND, 5 * ONE_MINUTE, 5);
+                    break;
+                case PreferencesUtils.MIN_RECORDING_INTERVAL_ADAPT_ACCURACY:
+                    // Get all the updates.
+                    locationListenerPolicy = new AdaptiveLocationListenerPolicy(
+                            ONE_SECOND, 30 * ONE_SECOND, 0);
+                    break;
+                default:
+                    locationListenerPolicy = new AbsoluteLocationListenerPolicy(
+                            minRecordingInterval * ONE_SECOND);
+            }
+        }
+        if (key == null || key.equals(
+                PreferencesUtils.getKey(context, R.string.recording_distance_interval_key))) {
+            recordingDistanceInterval = PreferencesUtils.getInt(context,
+                    R.string.recording_distance_interval_key,
+                    PreferencesUtils.RECORDING_DISTANCE_INTERVAL_DEFAULT);
+        }
+        if (key == null || key.equals(
+                PreferencesUtils.getKey(context, R.string.max_recording_distance_key))) {
+            maxRecordingDistance = PreferencesUtils.getInt(context,
+                    R.string.max_recording_distance_key,
+                    PreferencesUtils.MAX_RECORDING_DISTANCE_DEFAULT);
+        }
+        if (key == null || key.equals(
+                PreferencesUtils.getKey(context, R.string.recording_gps_accuracy_key))) {
+            recordingGpsAccuracy = PreferencesUtils.getInt(context,
+                    R.string.recording_gps_accuracy_key,
+                    PreferencesUtils.RECORDING_GPS_ACCURACY_DEFAULT);
+        }
+        if (key == null || key.equals(
+                PreferencesUtils.getKey(context, R.string.auto_resume_track_timeout_key))) {
+            autoResumeTrackTimeout = PreferencesUtils.getInt(context,
+                    R.string.auto_resume_track_timeout_key,
+                    PreferencesUtils.AUTO_RESUME_TRACK_TIMEOUT_DEFAULT);
+        }
+        if (key == null || key.equals(
+                PreferencesUtils.getKey(context, R.string.recording_log_key))) {
+            recordingLog = PreferencesUtils.getBoolean(context, R.string.recording_log_key,
+                    PreferencesUtils.RECORDING_LOG_DEFAULT);
+        }
+        if (key == null
+                || key.equals(PreferencesUtils.getKey(context, R.string.recording_gps_accuracy_key))
+                || key.equals(PreferencesUtils.getKey(context, R.string.recording_distance_interval_key))
+                || key.equals(PreferencesUtils.getKey(context, R.string.max_recording_distance_key))) {
+            logFixFilterMetrics();
+            fixFilterChain = FixFilters.createDefaultChain(recordingGpsAccuracy,
+                    recordingDistanceInterval, maxRecordingDistance);
+        }
+        if (key == null || key.equals(PreferencesUtils.getKey(context, R.string.prefkey_batch_int))) {
+            batchedRecording = PreferencesUtils.getInt(context, R.string.prefkey_batch_int,
+                    LocationUpdatesService.BATCH_INTERVAL) > 0;
+            if (isRecording() && !isPaused() && key != null) {
+                updateWakeLock();
             }
-            if (key == null || key.equals(
-                    PreferencesUtils.getKey(context, R.string.recording_distance_interval_key))) {
-                recordingDistanceInterval = PreferencesUtils.getInt(context,
-                        R.string.recording_distance_interval_key,
-                        PreferencesUtils.RECORDING_DISTANCE_INTERVAL_DEFAULT);
+        }
+    }
+
+    private final Runnable syncTrackPointLogRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (trackPointLog != null) {
+                trackPointLog.sync();
+                handler.postDelayed(this, TRACK_POINT_LOG_SYNC_INTERVAL);
             }
-            if (key == null || key.equals(
-                    PreferencesUtils.getKey(context, R.string.max_recording_distance_key))) {
-                maxRecordingDistance = PreferencesUtils.getInt(context,
-                        R.string.max_recording_distance_key,
-                        PreferencesUtils.MAX_RECORDING_DISTANCE_DEFAULT);
+        }
+    };
+
+    private final Runnable flushTrackSessionRunnable = new Runnable() {
+        @Override
+        public void run() {
+            if (trackSession != null) {
+                trackSession.flush();
             }
-            if (key == null || key.equals(
-                    PreferencesUtils.getKey(context, R.string.recording_gps_accuracy_key))) {
-                recordingGpsAccuracy = PreferencesUtils.getInt(context,
-                        R.string.recording_gps_accuracy_key,
-                        PreferencesUtils.RECORDING_GPS_ACCURACY_DEFAULT);
+            if (isRecording() && !isPaused()) {
+                handler.postDelayed(this, TRACK_SESSION_FLUSH_INTERVAL);
             }
         }
     };
 
     /**
-     * Receiver for broadcasts sent by {@link LocationUpdatesService}.
+     * Drains the {@link FixQueue} filled by {@link LocationUpdatesService}, on
+     * the recording thread.
      */
-    private class LocationReceiver extends BroadcastReceiver {
+    private final Runnable drainFixesRunnable = new Runnable() {
         @Override
-        public void onReceive(Context context, Intent intent) {
-            Location location = intent.getParcelableExtra(LocationUpdatesService.EXTRA_LOCATION);
-            if (location != null) {
-                onLocationChangedAsync(location);
+        public void run() {
+            boolean more;
+            do {
+                // A batch of fixes is written in a single transaction
+                if (fixQueue.getDepth() > 1) {
+                    try {
+                        tracksProviderUtils.runInTransaction(drainFixQueueRunnable);
+                    } catch (RuntimeException e) {
+                        Log.e(TAG, "Unable to record a batch of fixes, rolled back.", e);
+                        discardRecordingChanges();
+                        replayFixes();
+                    }
+                    batchFixes.clear();
+                } else {
+                    drainFixQueue(false);
+                }
+
+                /*
+                 * Released before ending the drain: once ended, a new batch acquires
+                 * the wake lock again for its own drain. If the drain goes on
+                 * instead, no new batch did.
+                 */
+                if (drainWakeLock.isHeld()) {
+                    drainWakeLock.release();
+                }
+                more = fixQueue.endDrain();
+                if (more && batchedRecording) {
+                    drainWakeLock.acquire(DRAIN_WAKE_LOCK_TIMEOUT);
+                }
+            } while (more);
+        }
+    };
+
+    private final Runnable drainFixQueueRunnable = new Runnable() {
+        @Override
+        public void run() {
+            // A failed fix aborts the transaction of the batch
+            drainFixQueue(true);
+        }
+    };
+
+    private final FixQueue.Consumer fixConsumer = new FixQueue.Consumer() {
+        @Override
+        public void onFixesAvailable() {
+            // Without the recording wake lock, the CPU may sleep before the drain
+            if (batchedRecording) {
+                drainWakeLock.acquire(DRAIN_WAKE_LOCK_TIMEOUT);
+            }
+            if (!handler.post(drainFixesRunnable)) {
+                Log.w(TAG, "Fixes available after shutdown.");
             }
         }
-    }
+    };
 
 /*    private LocationListener locationListener = new LocationListener() {
         @Override
@@ -257,14 +408,15 @@ public class TrackRecordingService extends Service {
     @Override
     public void onCreate() {
         super.onCreate();
-        executorService = Executors.newSingleThreadExecutor();
         context = this;
         tracksProviderUtils = TracksProviderUtils.Factory.get(this);
-        handler = new Handler();
-        mLocationReceiver = new LocationReceiver();
-
-        LocalBroadcastManager.getInstance(this).registerReceiver(mLocationReceiver,
-                new IntentFilter(LocationUpdatesService.ACTION_BROADCAST));
+        recordingThread = new HandlerThread(TAG);
+        recordingThread.start();
+        handler = new Handler(recordingThread.getLooper());
+        fixQueue = FixQueue.getInstance();
+        PowerManager powerManager = (PowerManager) getSystemService(Context.POWER_SERVICE);
+        drainWakeLock = powerManager.newWakeLock(PowerManager.PARTIAL_WAKE_LOCK, TAG + ":drain");
+        drainWakeLock.setReferenceCounted(false);
 
 //        myTracksLocationManager = new MyTracksLocationManager(this, handler.getLooper(), true);
         sharedPreferences = getSharedPreferences(Constants.SETTINGS_FILE_NAME, Context.MODE_PRIVATE);
@@ -273,18 +425,46 @@ public class TrackRecordingService extends Service {
         // onSharedPreferenceChanged might not set recordingTrackId.
         recordingTrackId = PreferencesUtils.RECORDING_TRACK_ID_DEFAULT;
 
-        // Require voiceExecutor and splitExecutor to be created.
-        sharedPreferenceChangeListener.onSharedPreferenceChanged(sharedPreferences, null);
-
 //        handler.post(registerLocationRunnable);
 
+        // The storage is only touched on the recording thread
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                restoreRecording();
+            }
+        });
+    }
+
+    /**
+     * Restores the recording state left by a previous instance of the service.
+     * Runs on the recording thread, then starts taking the fixes.
+     */
+    private void restoreRecording() {
+        updatePreferences(null);
+
+        // Rebuild the tracks left in a track point log by a killed process
+        mergeTrackPointLogs();
+
+        try {
+            recordingStateJournal = RecordingStateJournal.open(this);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the recording state journal.", e);
+            recordingStateJournal = null;
+        }
+
         /*
          * Try to restart the previous recording track in case the service has been
          * restarted by the system, which can sometimes happen.
          */
-        Track track = tracksProviderUtils.getTrack(recordingTrackId);
+        Track track = getRecordingTrack();
         if (track != null) {
-            restartTrack(track);
+            if (shouldResumeTrack(track)) {
+                restartTrack(track);
+            } else {
+                Log.i(TAG, "Not resuming track " + track.getId() + ", ending it.");
+                endCurrentTrackAsync();
+            }
         } else {
             if (isRecording()) {
                 Log.w(TAG, "track is null, but recordingTrackId not -1L. " + recordingTrackId);
@@ -292,6 +472,7 @@ public class TrackRecordingService extends Service {
             }
             showNotification(false);
         }
+        fixQueue.setConsumer(fixConsumer);
     }
 
     /*
@@ -326,35 +507,60 @@ public class TrackRecordingService extends Service {
 
     @Override
     public void onDestroy() {
-        if (sensorManager != null) {
-//            SensorManagerFactory.releaseSystemSensorManager();
-            sensorManager = null;
-        }
-
         // Reverse order from onCreate
         showNotification(false);
 
 //        handler.removeCallbacks(registerLocationRunnable);
 //        unregisterLocationListener();
 
-        // unregister sharedPreferences before shutting down splitExecutor and voiceExecutor
+        // unregister sharedPreferences before shutting down the recording thread
         sharedPreferences.unregisterOnSharedPreferenceChangeListener(sharedPreferenceChangeListener);
 
 //        myTracksLocationManager.close();
 //        myTracksLocationManager = null;
-        tracksProviderUtils = null;
-
-        // This should be the next to last operation
-        releaseWakeLock();
 
         /*
-         * Shutdown the executorService last to avoid sending events to a dead
-         * executor.
+         * Release the recording state on the recording thread, after the fixes and
+         * commands already queued, then stop the thread.
          */
-        executorService.shutdown();
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                releaseRecording();
+            }
+        });
+        recordingThread.quitSafely();
         super.onDestroy();
     }
 
+    /**
+     * Releases the recording state. Runs on the recording thread.
+     */
+    private void releaseRecording() {
+        fixQueue.setConsumer(null);
+        Log.i(TAG, "Fix queue: " + fixQueue.getDroppedCount() + " dropped, "
+                + fixQueue.getMaxDepth() + " max depth.");
+        logFixFilterMetrics();
+
+        if (sensorManager != null) {
+//            SensorManagerFactory.releaseSystemSensorManager();
+            sensorManager = null;
+        }
+        closeTrackPointLog();
+        closeTrackSession();
+        if (recordingStateJournal != null) {
+            recordingStateJournal.close();
+            recordingStateJournal = null;
+        }
+        tracksProviderUtils.flush();
+
+        // This should be the last operation
+        releaseWakeLock();
+        if (drainWakeLock.isHeld()) {
+            drainWakeLock.release();
+        }
+    }
+
     /**
      * Returns true if the service is recording.
      */
@@ -477,15 +683,11 @@ public class TrackRecordingService extends Service {
     }*/
 
     /**
-     * Returns true if should resume.
+     * Returns true if should resume a track left recording by a killed process.
+     *
+     * @param track the track
      */
-/*    private boolean shouldResumeTrack() {
-        Track track = tracksProviderUtils.getTrack(recordingTrackId);
-
-        if (track == null) {
-            Log.d(TAG, "Not resuming. Track is null.");
-            return false;
-        }
+    private boolean shouldResumeTrack(Track track) {
         int retries = PreferencesUtils.getInt(this, R.string.auto_resume_track_current_retry_key,
                 PreferencesUtils.AUTO_RESUME_TRACK_CURRENT_RETRY_DEFAULT);
         if (retries >= MAX_AUTO_RESUME_TRACK_RETRY_ATTEMPTS) {
@@ -502,24 +704,39 @@ public class TrackRecordingService extends Service {
             return true;
         }
 
-        if (track.getTripStatistics() == null) {
-            Log.d(TAG, "Not resuming. No trip statistics.");
+        if (recordingStateJournal == null || !recordingStateJournal.restore()
+                || recordingStateJournal.getTrackId() != track.getId()) {
+            Log.d(TAG, "Not resuming. No recording state.");
             return false;
         }
-        long stopTime = track.getTripStatistics().getStopTime();
-        return stopTime > 0
-                && (System.currentTimeMillis() - stopTime) <= autoResumeTrackTimeout * ONE_MINUTE;
-    }*/
+
+        // A paused track stays paused, however long ago it was paused
+        if (recordingStateJournal.isPaused()) {
+            return true;
+        }
+        long checkpointTime = recordingStateJournal.getCheckpointTime();
+        return (System.currentTimeMillis() - checkpointTime) <= autoResumeTrackTimeout * ONE_MINUTE;
+    }
 
     /**
-     * Starts a new track.
-     *
-     * @return the track id
+     * Starts a new track, on the recording thread.
+     */
+    public void startNewTrack() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                startNewTrackAsync();
+            }
+        });
+    }
+
+    /**
+     * Starts a new track. Runs on the recording thread.
      */
-    public long startNewTrack() {
+    private void startNewTrackAsync() {
         if (isRecording()) {
             Log.d(TAG, "Ignore startNewTrack. Already recording.");
-            return -1L;
+            return;
         }
         long now = System.currentTimeMillis();
 
@@ -530,7 +747,7 @@ public class TrackRecordingService extends Service {
 
         // Update shared preferences
         updateRecordingState(trackId, false);
-//        PreferencesUtils.setInt(this, R.string.auto_resume_track_current_retry_key, 0);
+        PreferencesUtils.setInt(this, R.string.auto_resume_track_current_retry_key, 0);
 
         // Update database
         track.setId(trackId);
@@ -545,24 +762,61 @@ public class TrackRecordingService extends Service {
 //        insertWaypoint(WaypointCreationRequest.DEFAULT_START_TRACK);
 
         startRecording(true);
-        return trackId;
+        checkpointRecordingState(track);
     }
 
     /**
-     * Restart a track.
+     * Restart a track. Runs on the recording thread.
      *
      * @param track the track
      */
-    public void restartTrack(Track track) {
+    private void restartTrack(Track track) {
         Log.d(TAG, "Restarting track: " + track.getId());
+        resetAutoResumeRetries = true;
 
-        startRecording(true);
+        if (recordingStateJournal == null || !recordingStateJournal.restore()
+                || recordingStateJournal.getTrackId() != track.getId()) {
+            startRecording(true);
+            return;
+        }
+
+        // The track update with these statistics may not have been written
+        TripStatistics tripStatistics = recordingStateJournal.getTripStatistics();
+        if (tripStatistics != null
+                && tripStatistics.getStopTime() > track.getTripStatistics().getStopTime()) {
+            trackSession.setTripStatistics(tripStatistics);
+            trackSession.flush();
+        }
+
+        if (recordingStateJournal.isPaused()) {
+            recordingTrackPaused = true;
+            showNotification(false);
+            return;
+        }
+
+        startRecording(false);
+        lastLocation = recordingStateJournal.getLastLocation();
+        currentSegmentHasLocation = recordingStateJournal.segmentHasLocation();
+        isIdle = recordingStateJournal.isIdle();
+        Log.i(TAG, "Restored recording state of track " + track.getId());
     }
 
     /**
-     * Resumes current track.
+     * Resumes current track, on the recording thread.
      */
     public void resumeCurrentTrack() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                resumeCurrentTrackAsync();
+            }
+        });
+    }
+
+    /**
+     * Resumes current track. Runs on the recording thread.
+     */
+    private void resumeCurrentTrackAsync() {
         if (!isRecording() || !isPaused()) {
             Log.d(TAG, "Ignore resumeCurrentTrack. Not recording or not paused.");
             return;
@@ -573,7 +827,7 @@ public class TrackRecordingService extends Service {
 //        PreferencesUtils.setBoolean(this, R.string.recording_track_paused_key, false);
 
         // Update database
-        Track track = tracksProviderUtils.getTrack(recordingTrackId);
+        Track track = getRecordingTrack();
         if (track != null) {
             Location resume = new Location(LocationManager.GPS_PROVIDER);
             resume.setLongitude(0);
@@ -583,6 +837,7 @@ public class TrackRecordingService extends Service {
         }
 
         startRecording(false);
+        checkpointRecordingState(track);
     }
 
     /**
@@ -601,6 +856,17 @@ public class TrackRecordingService extends Service {
         currentSegmentHasLocation = false;
         isIdle = false;
 
+        if (trackPointLog == null
+                && (recordingLog || TrackPointLog.exists(this, recordingTrackId))) {
+            openTrackPointLog(recordingTrackId);
+        }
+        if (trackPointLog != null) {
+            handler.removeCallbacks(syncTrackPointLogRunnable);
+            handler.postDelayed(syncTrackPointLogRunnable, TRACK_POINT_LOG_SYNC_INTERVAL);
+        }
+        handler.removeCallbacks(flushTrackSessionRunnable);
+        handler.postDelayed(flushTrackSessionRunnable, TRACK_SESSION_FLUSH_INTERVAL);
+
         startGps();
 //        sendTrackBroadcast(trackStarted ? R.string.track_started_broadcast_action
 //                : R.string.track_resumed_broadcast_action, recordingTrackId);
@@ -610,15 +876,27 @@ public class TrackRecordingService extends Service {
      * Starts gps.
      */
     private void startGps() {
-        wakeLock = SystemUtils.acquireWakeLock(this, wakeLock);
+        updateWakeLock();
 //        registerLocationListener();
         showNotification(true);
     }
 
     /**
-     * Ends the current track.
+     * Ends the current track, on the recording thread.
      */
     public void endCurrentTrack() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                endCurrentTrackAsync();
+            }
+        });
+    }
+
+    /**
+     * Ends the current track. Runs on the recording thread.
+     */
+    private void endCurrentTrackAsync() {
         if (!isRecording()) {
             Log.d(TAG, "Ignore endCurrentTrack. Not recording.");
             return;
@@ -627,18 +905,23 @@ public class TrackRecordingService extends Service {
         // Need to remember the recordingTrackId before setting it to -1L
         long trackId = recordingTrackId;
         boolean paused = recordingTrackPaused;
+        Track track = getRecordingTrack();
 
         // Update shared preferences
         updateRecordingState(PreferencesUtils.RECORDING_TRACK_ID_DEFAULT, true);
 
         // Update database
-        Track track = tracksProviderUtils.getTrack(trackId);
         if (track != null) {
 
             // If not paused, add the last location
             if (!paused) {
                 insertLocation(track, lastLocation, getLastValidTrackPointInCurrentSegment(trackId));
+            }
 
+            // Move the logged track points to the provider
+            mergeTrackPointLog(track);
+
+            if (!paused) {
                 // Update the recording track time
                 updateRecordingTrack(track, tracksProviderUtils.getLastTrackPointId(trackId), false);
             }
@@ -653,13 +936,30 @@ public class TrackRecordingService extends Service {
 
             // Activity tipe: case DetectedActivity.ON_BICYCLE
         }
+        closeTrackSession();
+        tracksProviderUtils.flush();
+        if (recordingStateJournal != null) {
+            recordingStateJournal.clear();
+        }
         endRecording(true, trackId);
     }
 
     /**
-     * Pauses the current track.
+     * Pauses the current track, on the recording thread.
      */
     public void pauseCurrentTrack() {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                pauseCurrentTrackAsync();
+            }
+        });
+    }
+
+    /**
+     * Pauses the current track. Runs on the recording thread.
+     */
+    private void pauseCurrentTrackAsync() {
         if (!isRecording() || isPaused()) {
             Log.d(TAG, "Ignore pauseCurrentTrack. Not recording or paused.");
             return;
@@ -670,7 +970,7 @@ public class TrackRecordingService extends Service {
 //        PreferencesUtils.setBoolean(this, R.string.recording_track_paused_key, true);
 
         // Update database
-        Track track = tracksProviderUtils.getTrack(recordingTrackId);
+        Track track = getRecordingTrack();
         if (track != null) {
             insertLocation(track, lastLocation, getLastValidTrackPointInCurrentSegment(track.getId()));
 
@@ -680,8 +980,13 @@ public class TrackRecordingService extends Service {
             pause.setTime(System.currentTimeMillis());
             insertLocation(track, pause, null);
         }
+        if (trackSession != null) {
+            trackSession.flush();
+        }
+        tracksProviderUtils.flush();
 
         endRecording(false, recordingTrackId);
+        checkpointRecordingState(track);
     }
 
     /**
@@ -699,6 +1004,13 @@ public class TrackRecordingService extends Service {
         }
         lastLocation = null;
 
+        // The log stays open while paused, the track isn't merged yet
+        handler.removeCallbacks(syncTrackPointLogRunnable);
+        handler.removeCallbacks(flushTrackSessionRunnable);
+        if (trackPointLog != null) {
+            trackPointLog.sync();
+        }
+
 //        sendTrackBroadcast(trackStopped ? R.string.track_stopped_broadcast_action
 //                : R.string.track_paused_broadcast_action, trackId);
         stopGps(trackStopped);
@@ -718,6 +1030,36 @@ public class TrackRecordingService extends Service {
         }
     }
 
+    /**
+     * Gets the recording track, kept in memory by the track session. Returns null
+     * if not recording or the track doesn't exist.
+     */
+    private Track getRecordingTrack() {
+        if (trackSession != null && trackSession.getTrackId() == recordingTrackId) {
+            return trackSession.getTrack();
+        }
+        closeTrackSession();
+        Track track = tracksProviderUtils.getTrack(recordingTrackId);
+        if (track == null) {
+            return null;
+        }
+        trackSession = new TrackSession(tracksProviderUtils, track);
+        tracksProviderUtils.setTrackUpdateSource(trackSession);
+        return track;
+    }
+
+    /**
+     * Writes the changes of the track session, if any, and closes it.
+     */
+    private void closeTrackSession() {
+        handler.removeCallbacks(flushTrackSessionRunnable);
+        if (trackSession != null) {
+            tracksProviderUtils.setTrackUpdateSource(null);
+            trackSession.flush();
+            trackSession = null;
+        }
+    }
+
     /**
      * Gets the last valid track point in the current segment. Returns null if not
      * available.
@@ -728,9 +1070,97 @@ public class TrackRecordingService extends Service {
         if (!currentSegmentHasLocation) {
             return null;
         }
+        if (trackPointLog != null) {
+            // Reuse the same location, the caller doesn't keep it across fixes
+            if (lastValidLogTrackPoint == null) {
+                lastValidLogTrackPoint = new Location(LocationManager.GPS_PROVIDER);
+            }
+            return trackPointLog.getLastValidLocation(lastValidLogTrackPoint)
+                    ? lastValidLogTrackPoint : null;
+        }
         return tracksProviderUtils.getLastValidTrackPoint(trackId);
     }
 
+    /**
+     * Opens the track point log of a track. On failure, the track points go
+     * straight to the provider.
+     *
+     * @param trackId the track id
+     */
+    private void openTrackPointLog(long trackId) {
+        try {
+            trackPointLog = TrackPointLog.open(this, trackId);
+        } catch (IOException e) {
+            Log.e(TAG, "Unable to open the track point log, using the provider.", e);
+            trackPointLog = null;
+        }
+    }
+
+    /**
+     * Closes the track point log, if open, leaving it to be merged later.
+     */
+    private void closeTrackPointLog() {
+        handler.removeCallbacks(syncTrackPointLogRunnable);
+        if (trackPointLog != null) {
+            trackPointLog.close();
+            trackPointLog = null;
+        }
+    }
+
+    /**
+     * Moves the points of the track point log of a track, if any, to the
+     * provider and deletes the log. Updates the track.
+     *
+     * @param track the track
+     */
+    private void mergeTrackPointLog(Track track) {
+        TrackPointLog log = null;
+        if (trackPointLog != null && trackPointLog.getTrackId() == track.getId()) {
+            handler.removeCallbacks(syncTrackPointLogRunnable);
+            log = trackPointLog;
+            trackPointLog = null;
+        } else if (TrackPointLog.exists(this, track.getId())) {
+            try {
+                log = TrackPointLog.open(this, track.getId());
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to open the track point log of track " + track.getId(), e);
+            }
+        }
+        if (log == null) {
+            return;
+        }
+        if (trackSession != null && trackSession.getTrack() == track) {
+            trackSession.mergeTrackPointLog(log);
+        } else {
+            log.mergeInto(tracksProviderUtils, track);
+            tracksProviderUtils.updateTrack(track);
+        }
+        log.delete();
+        Log.i(TAG, "Merged track point log of track " + track.getId());
+    }
+
+    /**
+     * Merges the track point logs of the tracks not being recorded, left behind
+     * when the process was killed. Logs of deleted tracks are dropped.
+     */
+    private void mergeTrackPointLogs() {
+        for (long trackId : TrackPointLog.getTrackIds(this)) {
+            if (trackId == recordingTrackId) {
+                continue;
+            }
+            Track track = tracksProviderUtils.getTrack(trackId);
+            if (track != null) {
+                mergeTrackPointLog(track);
+            } else {
+                try {
+                    TrackPointLog.open(this, trackId).delete();
+                } catch (IOException e) {
+                    Log.e(TAG, "Unable to delete the track point log of track " + trackId, e);
+                }
+            }
+        }
+    }
+
     /**
      * Updates the recording states.
      *
@@ -744,6 +1174,28 @@ public class TrackRecordingService extends Service {
 //        PreferencesUtils.setBoolean(this, R.string.recording_track_paused_key, recordingTrackPaused);
     }
 
+    /**
+     * Writes a checkpoint of the recording state to the journal.
+     *
+     * @param track the recording track, can be null
+     */
+    private void checkpointRecordingState(Track track) {
+        if (resetAutoResumeRetries && !recordingTrackPaused && lastLocation != null) {
+            // The restarted track is recording again
+            PreferencesUtils.setInt(this, R.string.auto_resume_track_current_retry_key, 0);
+            resetAutoResumeRetries = false;
+        }
+        if (recordingStateJournal == null) {
+            return;
+        }
+        recordingStateJournal.checkpoint(recordingTrackId, recordingTrackPaused,
+                currentSegmentHasLocation, isIdle, lastLocation,
+                track != null ? track.getTripStatistics() : null);
+        if (recordingTrackPaused) {
+            recordingStateJournal.sync();
+        }
+    }
+
     /**
      * Called when location changed.
      *
@@ -756,28 +1208,26 @@ public class TrackRecordingService extends Service {
                 return;
             }
 
-            Track track = tracksProviderUtils.getTrack(recordingTrackId);
+            Track track = getRecordingTrack();
             if (track == null) {
                 Log.w(TAG, "Ignore onLocationChangedAsync. No track.");
                 return;
             }
 
-            if (!LocationUtils.isValidLocation(location)) {
-                Log.w(TAG, "Ignore onLocationChangedAsync. location is invalid.");
-                return;
-            }
-
-            if (!location.hasAccuracy() || location.getAccuracy() >= recordingGpsAccuracy) {
-                Log.d(TAG, "Ignore onLocationChangedAsync. Poor accuracy.");
-                return;
-            }
-
             // Fix for phones that do not set the time field
             if (location.getTime() == 0L) {
                 location.setTime(System.currentTimeMillis());
             }
 
             Location lastValidTrackPoint = getLastValidTrackPointInCurrentSegment(track.getId());
+            fixContext.reset(location, lastLocation, lastValidTrackPoint, currentSegmentHasLocation,
+                    isIdle);
+            FixFilter.Result result = fixFilterChain.filter(fixContext);
+            if (result == FixFilter.Result.REJECT) {
+                Log.d(TAG, "Ignore onLocationChangedAsync. Rejected fix.");
+                return;
+            }
+
             long idleTime = 0L;
             if (lastValidTrackPoint != null && location.getTime() > lastValidTrackPoint.getTime()) {
                 idleTime = location.getTime() - lastValidTrackPoint.getTime();
@@ -787,52 +1237,25 @@ public class TrackRecordingService extends Service {
 //                registerLocationListener();
             }
 
-            // Always insert the first segment location
-            if (!currentSegmentHasLocation) {
+            isIdle = fixContext.isIdle();
+            if (result == FixFilter.Result.RECORD) {
+                if (fixContext.insertLastLocation()) {
+                    insertLocation(track, lastLocation, lastValidTrackPoint);
+                }
+                if (fixContext.splitSegment()) {
+                    Location pause = new Location(LocationManager.GPS_PROVIDER);
+                    pause.setLongitude(0);
+                    pause.setLatitude(PAUSE_LATITUDE);
+                    pause.setTime(lastLocation.getTime());
+                    insertLocation(track, pause, null);
+                }
                 insertLocation(track, location, null);
                 currentSegmentHasLocation = true;
-                lastLocation = location;
-                return;
-            }
-
-            if (!LocationUtils.isValidLocation(lastValidTrackPoint)) {
-                /*
-                 * Should not happen. The current segment should have a location. Just
-                 * insert the current location.
-                 */
-                insertLocation(track, location, null);
-                lastLocation = location;
-                return;
-            }
-
-            double distanceToLastTrackLocation = location.distanceTo(lastValidTrackPoint);
-            if (distanceToLastTrackLocation > maxRecordingDistance) {
-                insertLocation(track, lastLocation, lastValidTrackPoint);
-
-                Location pause = new Location(LocationManager.GPS_PROVIDER);
-                pause.setLongitude(0);
-                pause.setLatitude(PAUSE_LATITUDE);
-                pause.setTime(lastLocation.getTime());
-                insertLocation(track, pause, null);
-
-                insertLocation(track, location, null);
-                isIdle = false;
-            } else if (distanceToLastTrackLocation >= recordingDistanceInterval) {
-                insertLocation(track, lastLocation, lastValidTrackPoint);
-                insertLocation(track, location, null);
-                isIdle = false;
-            } else if (!isIdle && location.hasSpeed() && location.getSpeed() < MAX_NO_MOVEMENT_SPEED) {
-                insertLocation(track, lastLocation, lastValidTrackPoint);
-                insertLocation(track, location, null);
-                isIdle = true;
-            } else if (isIdle && location.hasSpeed() && location.getSpeed() >= MAX_NO_MOVEMENT_SPEED) {
-                insertLocation(track, lastLocation, lastValidTrackPoint);
-                insertLocation(track, location, null);
-                isIdle = false;
             } else {
                 Log.d(TAG, "Not recording location, idle");
             }
             lastLocation = location;
+            checkpointRecordingState(track);
         } catch (Error e) {
             Log.e(TAG, "Error in onLocationChangedAsync", e);
             throw e;
@@ -842,6 +1265,83 @@ public class TrackRecordingService extends Service {
         }
     }
 
+    /**
+     * Records the fixes of the {@link FixQueue}.
+     *
+     * @param abortOnError true to stop at the first failed fix, throwing its
+     *                     exception; false to log it and go on
+     */
+    private void drainFixQueue(boolean abortOnError) {
+        // A new location per fix, kept as the last location
+        Location location = new TrackLocation(LocationManager.GPS_PROVIDER);
+        while (fixQueue.poll(location)) {
+            if (abortOnError) {
+                // Polled fixes can't be polled again, kept to replay them
+                batchFixes.add(location);
+            }
+            try {
+                onLocationChangedAsync(location);
+            } catch (RuntimeException e) {
+                // Logged by onLocationChangedAsync
+                if (abortOnError) {
+                    throw e;
+                }
+            }
+            location = new TrackLocation(LocationManager.GPS_PROVIDER);
+        }
+    }
+
+    /**
+     * Records again the fixes of a rolled back batch, one by one without a
+     * transaction, so only the failed fixes are lost. The fixes are given back
+     * their raw coordinates, the smoother starting over with the segment.
+     */
+    private void replayFixes() {
+        for (int i = 0; i < batchFixes.size(); i++) {
+            Location location = batchFixes.get(i);
+            if (location instanceof TrackLocation
+                    && ((TrackLocation) location).hasRawCoordinates()) {
+                TrackLocation trackLocation = (TrackLocation) location;
+                location.setLatitude(trackLocation.getRawLatitude());
+                location.setLongitude(trackLocation.getRawLongitude());
+                trackLocation.removeRawCoordinates();
+            }
+            try {
+                onLocationChangedAsync(location);
+            } catch (RuntimeException e) {
+                // Logged by onLocationChangedAsync
+            }
+        }
+    }
+
+    /**
+     * Drops the in memory changes of a rolled back batch of fixes. The track
+     * is read again from the provider, and the next fix starts over as the
+     * first of its segment. The journal is written again, its last checkpoint
+     * was taken inside the rolled back transaction.
+     */
+    private void discardRecordingChanges() {
+        if (trackSession != null) {
+            tracksProviderUtils.setTrackUpdateSource(null);
+            trackSession = null;
+        }
+        lastLocation = null;
+        currentSegmentHasLocation = false;
+        checkpointRecordingState(getRecordingTrack());
+    }
+
+    /**
+     * Logs the metrics of the fix filter stages, if any.
+     */
+    private void logFixFilterMetrics() {
+        if (fixFilterChain == null) {
+            return;
+        }
+        for (String metrics : fixFilterChain.getMetrics()) {
+            Log.i(TAG, "Fix filter " + metrics);
+        }
+    }
+
     /**
      * Inserts a location.
      *
@@ -860,6 +1360,19 @@ public class TrackRecordingService extends Service {
             return;
         }
 
+        if (trackPointLog != null) {
+            try {
+                // The track is updated when the log is merged
+                trackPointLog.append(location);
+                sendTrackBroadcast(R.string.track_update_broadcast_action, track.getId());
+                return;
+            } catch (IOException e) {
+                Log.e(TAG, "Unable to append to the track point log, using the provider.", e);
+                // Keep the track points in order
+                mergeTrackPointLog(track);
+            }
+        }
+
         try {
             Uri uri = tracksProviderUtils.insertTrackPoint(location, track.getId());
             long trackPointId = Long.parseLong(uri.getLastPathSegment());
@@ -886,6 +1399,11 @@ public class TrackRecordingService extends Service {
      * @param increaseNumberOfPoints true to increase the number of points
      */
     private void updateRecordingTrack(Track track, long lastTrackPointId, boolean increaseNumberOfPoints) {
+        if (trackSession != null && trackSession.getTrack() == track) {
+            trackSession.update(lastTrackPointId, increaseNumberOfPoints);
+            return;
+        }
+
         if (lastTrackPointId >= 0) {
             if (track.getStartId() < 0) {
                 track.setStartId(lastTrackPointId);
@@ -895,7 +1413,6 @@ public class TrackRecordingService extends Service {
         if (increaseNumberOfPoints) {
             track.setNumberOfPoints(track.getNumberOfPoints() + 1);
         }
-
         tracksProviderUtils.updateTrack(track);
     }
 
@@ -936,6 +1453,18 @@ public class TrackRecordingService extends Service {
         myTracksLocationManager.removeLocationUpdates(locationListener);
     }*/
 
+    /**
+     * Keeps the CPU awake while recording, unless the fixes are delivered in
+     * batches: each batch then keeps it awake until recorded.
+     */
+    private void updateWakeLock() {
+        if (batchedRecording) {
+            releaseWakeLock();
+        } else {
+            wakeLock = SystemUtils.acquireWakeLock(this, wakeLock);
+        }
+    }
+
     /**
      * Releases the wake lock.
      */
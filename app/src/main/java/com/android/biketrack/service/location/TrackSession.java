@@ -0,0 +1,157 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import com.android.biketrack.content.Track;
+import com.android.biketrack.content.TrackPointLog;
+import com.android.biketrack.content.TracksProviderUtils;
+import com.android.biketrack.stats.TripStatistics;
+
+/**
+ * The recording track, kept in memory by the {@link TrackRecordingService}.
+ * Changes to the track (start id, stop id, number of points, statistics) are
+ * only marked dirty, and written by {@link #flush()}: on a timer, on pause or
+ * end, or when another component reads the track through
+ * {@link TracksProviderUtils}.
+ * <p>
+ * Every change to the track goes through the session, under its lock, so a
+ * {@link #flush()} from another thread never copies a half updated track.
+ * <p>
+ * The session lock is never held while writing: the recording thread takes it
+ * inside the transactions of the provider, so taking the provider locks under
+ * it would deadlock.
+ */
+class TrackSession implements TracksProviderUtils.TrackUpdateSource {
+
+    private final TracksProviderUtils tracksProviderUtils;
+    private final Track track;
+    private boolean dirty = false;
+
+    // Orders the writes of concurrent flushes, taken before the session lock
+    private final Object flushLock = new Object();
+
+    /**
+     * Constructor.
+     *
+     * @param tracksProviderUtils the tracks provider utils
+     * @param track               the recording track, as read from the provider
+     */
+    TrackSession(TracksProviderUtils tracksProviderUtils, Track track) {
+        this.tracksProviderUtils = tracksProviderUtils;
+        this.track = track;
+    }
+
+    long getTrackId() {
+        return track.getId();
+    }
+
+    /**
+     * Gets the recording track, to read it only: change it through the session.
+     */
+    Track getTrack() {
+        return track;
+    }
+
+    /**
+     * Updates the start id, stop id and number of points of the track after a
+     * track point insert. Done under the lock of the session, so a
+     * {@link #flush()} from another thread never writes a half updated track.
+     *
+     * @param lastTrackPointId       the last track point id
+     * @param increaseNumberOfPoints true to increase the number of points
+     */
+    synchronized void update(long lastTrackPointId, boolean increaseNumberOfPoints) {
+        if (lastTrackPointId >= 0) {
+            if (track.getStartId() < 0) {
+                track.setStartId(lastTrackPointId);
+            }
+            track.setStopId(lastTrackPointId);
+        }
+        if (increaseNumberOfPoints) {
+            track.setNumberOfPoints(track.getNumberOfPoints() + 1);
+        }
+        dirty = true;
+    }
+
+    /**
+     * Sets the trip statistics of the track.
+     *
+     * @param tripStatistics the trip statistics
+     */
+    synchronized void setTripStatistics(TripStatistics tripStatistics) {
+        track.setTripStatistics(tripStatistics);
+        dirty = true;
+    }
+
+    /**
+     * Merges a track point log into the provider and updates the start id, stop
+     * id and number of points of the track. The log is merged into a copy of the
+     * track without the session lock, since the merge writes to the provider.
+     * Call it from the recording thread only, the one updating the track.
+     *
+     * @param trackPointLog the track point log of the track
+     */
+    void mergeTrackPointLog(TrackPointLog trackPointLog) {
+        Track merged;
+        synchronized (this) {
+            merged = track.copyWithoutTrackPoints();
+        }
+        trackPointLog.mergeInto(tracksProviderUtils, merged);
+        synchronized (this) {
+            track.setStartId(merged.getStartId());
+            track.setStopId(merged.getStopId());
+            track.setNumberOfPoints(merged.getNumberOfPoints());
+            dirty = true;
+        }
+    }
+
+    /**
+     * Marks the track as changed.
+     */
+    private synchronized void markDirty() {
+        dirty = true;
+    }
+
+    /**
+     * Writes the track if changed. The track is copied under the session lock
+     * and written after releasing it.
+     */
+    void flush() {
+        synchronized (flushLock) {
+            Track snapshot;
+            synchronized (this) {
+                if (!dirty) {
+                    return;
+                }
+                snapshot = track.copyWithoutTrackPoints();
+                dirty = false;
+            }
+            try {
+                tracksProviderUtils.updateTrack(snapshot);
+            } catch (RuntimeException e) {
+                markDirty();
+                throw e;
+            }
+        }
+    }
+
+    @Override
+    public void flushTrackUpdates(long trackId) {
+        if (trackId == -1L || trackId == track.getId()) {
+            flush();
+        }
+    }
+}
@@ -19,6 +19,8 @@ package com.android.biketrack.stats;
 import android.os.Parcel;
 import android.os.Parcelable;
 
+import java.nio.ByteBuffer;
+
 /**
  * Statistical data about a trip. The data in this class should be filled out by
  * TripStatisticsBuilder.
@@ -27,6 +29,10 @@ import android.os.Parcelable;
  */
 public class TripStatistics implements Parcelable {
 
+    // The version and size of the toByteArray encoding
+    private static final byte ENCODING_VERSION = 1;
+    private static final int ENCODED_SIZE = 1 + 4 * 8 + 5 * 8 + 7 * 4;
+
     // The trip start time. This is the system time, might not match the GPs time.
     private long startTime = -1L;
 
@@ -316,6 +322,35 @@ public class TripStatistics implements Parcelable {
         longitudeExtremities.set(leftE6 / 1E6, rightE6 / 1E6);
     }
 
+    /**
+     * Sets the bounding box for this trip, in signed degrees.
+     *
+     * @param leftDegrees the leftmost longitude reached
+     * @param topDegrees the topmost latitude reached
+     * @param rightDegrees the rightmost longitude reached
+     * @param bottomDegrees the bottommost latitude reached
+     */
+    public void setBoundsDegrees(double leftDegrees, double topDegrees, double rightDegrees,
+                                 double bottomDegrees) {
+        latitudeExtremities.set(bottomDegrees, topDegrees);
+        longitudeExtremities.set(leftDegrees, rightDegrees);
+    }
+
+    /**
+     * Resets the bounding box, as for a trip without locations.
+     */
+    public void resetBounds() {
+        latitudeExtremities.reset();
+        longitudeExtremities.reset();
+    }
+
+    /**
+     * Returns true if the bounding box has been set by at least one location.
+     */
+    public boolean hasBounds() {
+        return latitudeExtremities.hasData() && longitudeExtremities.hasData();
+    }
+
     /**
      * Updates a new latitude value.
      *
@@ -569,6 +604,65 @@ public class TripStatistics implements Parcelable {
         dest.writeDouble(calorie);
     }
 
+    /**
+     * Encodes the statistics in a compact binary form, e.g. to be stored in a
+     * database blob. Unlike a {@link Parcel}, the layout is stable across
+     * platform versions. The extremities other than the bounds are stored as
+     * floats.
+     */
+    public byte[] toByteArray() {
+        ByteBuffer buffer = ByteBuffer.allocate(ENCODED_SIZE);
+        buffer.put(ENCODING_VERSION);
+        buffer.putLong(startTime);
+        buffer.putLong(stopTime);
+        buffer.putLong(totalTime);
+        buffer.putLong(movingTime);
+        buffer.putDouble(totalDistance);
+        buffer.putDouble(latitudeExtremities.getMin());
+        buffer.putDouble(latitudeExtremities.getMax());
+        buffer.putDouble(longitudeExtremities.getMin());
+        buffer.putDouble(longitudeExtremities.getMax());
+        buffer.putFloat((float) maxSpeed);
+        buffer.putFloat((float) elevationExtremities.getMin());
+        buffer.putFloat((float) elevationExtremities.getMax());
+        buffer.putFloat((float) totalElevationGain);
+        buffer.putFloat((float) gradeExtremities.getMin());
+        buffer.putFloat((float) gradeExtremities.getMax());
+        buffer.putFloat((float) calorie);
+        return buffer.array();
+    }
+
+    /**
+     * Decodes statistics encoded by {@link #toByteArray()}.
+     *
+     * @param bytes the encoded statistics
+     * @throws IllegalArgumentException if the bytes are not valid statistics
+     */
+    public static TripStatistics fromByteArray(byte[] bytes) {
+        if (bytes == null || bytes.length != ENCODED_SIZE || bytes[0] != ENCODING_VERSION) {
+            throw new IllegalArgumentException("Invalid encoded statistics");
+        }
+        ByteBuffer buffer = ByteBuffer.wrap(bytes, 1, bytes.length - 1);
+        TripStatistics data = new TripStatistics();
+        data.startTime = buffer.getLong();
+        data.stopTime = buffer.getLong();
+        data.totalTime = buffer.getLong();
+        data.movingTime = buffer.getLong();
+        data.totalDistance = buffer.getDouble();
+        double minLat = buffer.getDouble();
+        data.latitudeExtremities.set(minLat, buffer.getDouble());
+        double minLong = buffer.getDouble();
+        data.longitudeExtremities.set(minLong, buffer.getDouble());
+        data.maxSpeed = buffer.getFloat();
+        double minElev = buffer.getFloat();
+        data.elevationExtremities.set(minElev, buffer.getFloat());
+        data.totalElevationGain = buffer.getFloat();
+        double minGrade = buffer.getFloat();
+        data.gradeExtremities.set(minGrade, buffer.getFloat());
+        data.calorie = buffer.getFloat();
+        return data;
+    }
+
     /**
      * Adds calorie value.
      *
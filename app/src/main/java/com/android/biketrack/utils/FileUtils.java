@@ -39,6 +39,11 @@ public class FileUtils {
      */
     public static final String BACKUPS_DIR = "backups";
 
+    /**
+     * The bulk import directory under the My Tracks external storage directory.
+     */
+    public static final String IMPORT_DIR = "import";
+
     /**
      * The My Tracks external storage directory.
      */
@@ -68,6 +68,7 @@ public class PreferencesUtils {
     public static final String EXPORT_EXTERNAL_STORAGE_FORMAT_DEFAULT = TrackFileFormat.KML.name();
     public static final boolean EXPORT_GOOGLE_FUSION_TABLES_PUBLIC_DEFAULT = false;
     public static final boolean EXPORT_GOOGLE_MAPS_PUBLIC_DEFAULT = false;
+    public static final boolean EXPORT_RAW_COORDINATES_DEFAULT = false;
 
     // Value for split_frequency_key and voice_frequency_key
     public static final int FREQUENCY_OFF = 0;
@@ -89,6 +90,8 @@ public class PreferencesUtils {
     public static final int RECORDING_GPS_ACCURACY_EXCELLENT = 10;
     public static final int RECORDING_GPS_ACCURACY_POOR = 2000;
 
+    public static final boolean RECORDING_LOG_DEFAULT = false;
+
     public static final long RECORDING_TRACK_ID_DEFAULT = -1L;
     public static final boolean RECORDING_TRACK_PAUSED_DEFAULT = true;
     public static final long SELECTED_TRACK_ID_DEFAULT = -1L;
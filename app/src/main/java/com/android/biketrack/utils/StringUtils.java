@@ -76,4 +76,90 @@ public class StringUtils {
     public static String formatDateTimeIso8601(long time) {
         return ISO_8601_DATE_TIME_FORMAT.format(time);
     }
+
+    /**
+     * Gets the time from an ISO 8601 date time string, e.g. the time of a GPX or
+     * TCX track point: "yyyy-MM-dd'T'HH:mm:ss", optionally followed by a
+     * fraction of second and by "Z" or a "+hh:mm" offset. Without a zone the
+     * time is in UTC. Unlike a {@link SimpleDateFormat}, can be called from
+     * several threads and doesn't allocate, for importing large files.
+     *
+     * @param xmlDateTime the date time string
+     * @return the time in milliseconds since the epoch
+     * @throws IllegalArgumentException if the string is not a date time
+     */
+    public static long getTime(String xmlDateTime) {
+        String text = xmlDateTime.trim();
+        if (text.length() < 19 || text.charAt(4) != '-' || text.charAt(7) != '-'
+                || (text.charAt(10) != 'T' && text.charAt(10) != ' ')
+                || text.charAt(13) != ':' || text.charAt(16) != ':') {
+            throw new IllegalArgumentException("Invalid date time: " + xmlDateTime);
+        }
+        int year = parseDigits(text, 0, 4);
+        int month = parseDigits(text, 5, 7);
+        int day = parseDigits(text, 8, 10);
+        int hour = parseDigits(text, 11, 13);
+        int minute = parseDigits(text, 14, 16);
+        int second = parseDigits(text, 17, 19);
+        if (month < 1 || month > 12 || day < 1 || day > 31 || hour > 24 || minute > 59
+                || second > 60) {
+            throw new IllegalArgumentException("Invalid date time: " + xmlDateTime);
+        }
+
+        int index = 19;
+        long millis = 0;
+        if (index < text.length() && text.charAt(index) == '.') {
+            index++;
+            int start = index;
+            long scale = 100;
+            while (index < text.length() && Character.isDigit(text.charAt(index))) {
+                millis += (text.charAt(index) - '0') * scale;
+                scale /= 10;
+                index++;
+            }
+            if (index == start) {
+                throw new IllegalArgumentException("Invalid date time: " + xmlDateTime);
+            }
+        }
+        int offsetMinutes = 0;
+        if (index < text.length()) {
+            char zone = text.charAt(index);
+            if (zone == 'Z' && index + 1 == text.length()) {
+                index++;
+            } else if ((zone == '+' || zone == '-') && index + 6 == text.length()
+                    && text.charAt(index + 3) == ':') {
+                offsetMinutes = parseDigits(text, index + 1, index + 3) * 60
+                        + parseDigits(text, index + 4, index + 6);
+                if (zone == '-') {
+                    offsetMinutes = -offsetMinutes;
+                }
+                index += 6;
+            } else {
+                throw new IllegalArgumentException("Invalid date time: " + xmlDateTime);
+            }
+        }
+
+        // Days since the epoch of the proleptic Gregorian date
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+        long days = era * 146097L + dayOfEra - 719468;
+
+        long seconds = days * 86400L + hour * 3600L + (minute - offsetMinutes) * 60L + second;
+        return seconds * 1000L + millis;
+    }
+
+    private static int parseDigits(String text, int start, int end) {
+        int value = 0;
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+            if (c < '0' || c > '9') {
+                throw new IllegalArgumentException("Invalid date time: " + text);
+            }
+            value = value * 10 + c - '0';
+        }
+        return value;
+    }
 }
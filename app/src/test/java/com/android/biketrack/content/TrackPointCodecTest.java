@@ -0,0 +1,245 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link TrackPointCodec}.
+ */
+public class TrackPointCodecTest {
+
+    private static final double E7_DELTA = 1E-7;
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        trackPoints.add(-1L, 45.0703393, 7.6868565, 1500000000000L, 239.4f, 4.5f, 5.25f, 90.5f);
+        trackPoints.add(-1L, 45.0703512, 7.6869001, 1500000001000L, 239.1f, 3.75f, 5.5f, 91.0f);
+        // A jump back in time and a large move
+        trackPoints.add(-1L, -33.8688197, 151.2092955, 1499999990500L, -12.3f, 100.0f, 0.0f,
+                359.9f);
+        // No optional values
+        trackPoints.add(-1L, -33.8688, 151.2093, 1499999991500L, Float.NaN, Float.NaN, Float.NaN,
+                Float.NaN);
+
+        TrackPoints decoded = decode(encode(trackPoints, false, false));
+
+        assertEquals(trackPoints.size(), decoded.size());
+        for (int i = 0; i < trackPoints.size(); i++) {
+            assertEquals(-1L, decoded.getId(i));
+            assertEquals(trackPoints.getLatitude(i), decoded.getLatitude(i), E7_DELTA);
+            assertEquals(trackPoints.getLongitude(i), decoded.getLongitude(i), E7_DELTA);
+            assertEquals(trackPoints.getTime(i), decoded.getTime(i));
+            assertEquals(trackPoints.getAltitude(i), decoded.getAltitude(i), 0.05f);
+            // Unpacked floats are exact
+            assertEquals(trackPoints.getAccuracy(i), decoded.getAccuracy(i), 0.0f);
+            assertEquals(trackPoints.getSpeed(i), decoded.getSpeed(i), 0.0f);
+            assertEquals(trackPoints.getBearing(i), decoded.getBearing(i), 0.0f);
+        }
+    }
+
+    @Test
+    public void testPacked() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        trackPoints.add(-1L, 45.0, 7.0, 1000L, Float.NaN, 4.56f, 5.678f, 123.46f);
+        trackPoints.add(-1L, 45.0, 7.0, 2000L, Float.NaN, Float.NaN, 2.0f, Float.NaN);
+        trackPoints.add(-1L, 45.0, 7.0, 3000L, Float.NaN, 3.0f, Float.NaN, Float.NaN);
+        // Beyond the packed ranges
+        trackPoints.add(-1L, 45.0, 7.0, 4000L, Float.NaN, 5000.0f, 1000.0f, Float.NaN);
+
+        TrackPoints decoded = decode(encode(trackPoints, true, false));
+
+        assertEquals(4, decoded.size());
+        assertEquals(4.6f, decoded.getAccuracy(0), 1E-4f);
+        assertEquals(5.68f, decoded.getSpeed(0), 1E-4f);
+        assertEquals(123.5f, decoded.getBearing(0), 1E-4f);
+        assertTrue(Float.isNaN(decoded.getAccuracy(1)));
+        assertEquals(2.0f, decoded.getSpeed(1), 1E-4f);
+        assertTrue(Float.isNaN(decoded.getBearing(1)));
+        assertEquals(3.0f, decoded.getAccuracy(2), 1E-4f);
+        assertTrue(Float.isNaN(decoded.getSpeed(2)));
+        assertEquals(3276.7f, decoded.getAccuracy(3), 1E-2f);
+        assertEquals(655.35f, decoded.getSpeed(3), 1E-2f);
+    }
+
+    @Test
+    public void testSteadyRateTakesFewBytes() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        for (int i = 0; i < 100; i++) {
+            trackPoints.add(-1L, 45.0 + i * 1E-5, 7.0 + i * 1E-5, 1500000000000L + i * 1000L,
+                    Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+        }
+
+        byte[] bytes = encode(trackPoints, true, false);
+
+        // After the first point: the flags, two 2-byte coordinate deltas and a
+        // 1-byte time delta of delta
+        assertTrue("Encoded in " + bytes.length + " bytes", bytes.length < 100 * 6 + 32);
+        TrackPoints decoded = decode(bytes);
+        assertEquals(100, decoded.size());
+        assertEquals(1500000099000L, decoded.getTime(99));
+        assertEquals(45.00099, decoded.getLatitude(99), E7_DELTA);
+    }
+
+    @Test
+    public void testSegmentSeparator() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        trackPoints.add(-1L, 45.0, 7.0, 1000L, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+        trackPoints.add(-1L, 100.0, 0.0, 2000L, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+        trackPoints.add(-1L, 45.1, 7.1, 3000L, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+
+        TrackPoints decoded = decode(encode(trackPoints, true, false));
+
+        assertEquals(3, decoded.size());
+        assertTrue(decoded.isValid(0));
+        assertFalse(decoded.isValid(1));
+        assertEquals(100.0, decoded.getLatitude(1), E7_DELTA);
+        assertTrue(decoded.isValid(2));
+    }
+
+    @Test
+    public void testRawCoordinates() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        trackPoints.add(-1L, 45.0703393, 7.6868565, 1000L, Float.NaN, 5.0f, Float.NaN, Float.NaN);
+        trackPoints.setRawCoordinates(0, 45.0703412, 7.6868501);
+        // Not smoothed
+        trackPoints.add(-1L, 45.0703512, 7.6869001, 2000L, Float.NaN, 5.0f, Float.NaN, Float.NaN);
+        trackPoints.add(-1L, 45.0703601, 7.6869103, 3000L, Float.NaN, 5.0f, Float.NaN, Float.NaN);
+        trackPoints.setRawCoordinates(2, 45.0704, 7.6868);
+
+        TrackPoints decoded = decode(encode(trackPoints, true, true));
+
+        assertEquals(3, decoded.size());
+        assertTrue(decoded.hasRawCoordinates(0));
+        assertEquals(45.0703412, decoded.getRawLatitude(0), E7_DELTA);
+        assertEquals(7.6868501, decoded.getRawLongitude(0), E7_DELTA);
+        assertEquals(45.0703393, decoded.getLatitude(0), E7_DELTA);
+        assertFalse(decoded.hasRawCoordinates(1));
+        assertTrue(decoded.hasRawCoordinates(2));
+        assertEquals(45.0704, decoded.getRawLatitude(2), E7_DELTA);
+        assertEquals(7.6868, decoded.getRawLongitude(2), E7_DELTA);
+        assertEquals(45.0703601, decoded.getLatitude(2), E7_DELTA);
+    }
+
+    @Test
+    public void testRawCoordinatesNotWritten() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        trackPoints.add(-1L, 45.0, 7.0, 1000L, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+        trackPoints.setRawCoordinates(0, 45.1, 7.1);
+        trackPoints.add(-1L, 45.2, 7.2, 2000L, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+
+        TrackPoints decoded = decode(encode(trackPoints, true, false));
+
+        assertEquals(2, decoded.size());
+        assertFalse(decoded.hasRawCoordinates(0));
+        assertEquals(45.0, decoded.getLatitude(0), E7_DELTA);
+        assertEquals(45.2, decoded.getLatitude(1), E7_DELTA);
+    }
+
+    @Test
+    public void testVersion1() throws IOException {
+        // Version 1, packed, then a point with only coordinates and time
+        byte[] bytes = new byte[]{1, 1, 0, 2, 4, 6, (byte) 0x80};
+
+        TrackPoints decoded = decode(bytes);
+
+        assertEquals(1, decoded.size());
+        assertEquals(1E-7, decoded.getLatitude(0), 1E-9);
+        assertEquals(2E-7, decoded.getLongitude(0), 1E-9);
+        assertEquals(3L, decoded.getTime(0));
+        assertFalse(decoded.hasRawCoordinates(0));
+    }
+
+    @Test
+    public void testEmbeddedStream() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        trackPoints.add(-1L, 45.0, 7.0, 1000L, Float.NaN, Float.NaN, Float.NaN, Float.NaN);
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        TrackPointCodec.Encoder encoder = new TrackPointCodec.Encoder(outputStream, false);
+        encoder.write(trackPoints, 0);
+        encoder.finish();
+        assertEquals(1, encoder.getCount());
+        outputStream.write(42);
+
+        ByteArrayInputStream inputStream = new ByteArrayInputStream(outputStream.toByteArray());
+        TrackPointCodec.Decoder decoder = new TrackPointCodec.Decoder(inputStream);
+        TrackPoints decoded = new TrackPoints();
+        assertTrue(decoder.read(decoded));
+        assertFalse(decoder.read(decoded));
+        assertFalse(decoder.read(decoded));
+
+        // The end of the points is the last byte read
+        assertEquals(42, inputStream.read());
+    }
+
+    @Test
+    public void testUnsupportedVersion() {
+        try {
+            new TrackPointCodec.Decoder(new ByteArrayInputStream(new byte[]{99, 0}));
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testTruncatedStream() throws IOException {
+        TrackPoints trackPoints = new TrackPoints();
+        trackPoints.add(-1L, 45.0, 7.0, 1000L, 200.0f, 5.0f, Float.NaN, Float.NaN);
+        byte[] bytes = encode(trackPoints, false, false);
+        byte[] truncated = new byte[bytes.length - 3];
+        System.arraycopy(bytes, 0, truncated, 0, truncated.length);
+
+        try {
+            decode(truncated);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] encode(TrackPoints trackPoints, boolean packed, boolean rawCoordinates)
+            throws IOException {
+        ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+        TrackPointCodec.Encoder encoder = new TrackPointCodec.Encoder(outputStream, packed,
+                rawCoordinates);
+        for (int i = 0; i < trackPoints.size(); i++) {
+            encoder.write(trackPoints, i);
+        }
+        encoder.finish();
+        return outputStream.toByteArray();
+    }
+
+    private static TrackPoints decode(byte[] bytes) throws IOException {
+        TrackPointCodec.Decoder decoder = new TrackPointCodec.Decoder(
+                new ByteArrayInputStream(bytes));
+        TrackPoints trackPoints = new TrackPoints();
+        while (decoder.read(trackPoints)) {
+            // Reads all the points
+        }
+        return trackPoints;
+    }
+}
@@ -0,0 +1,319 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.content;
+
+import android.location.Location;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link TrackPointLog}.
+ */
+public class TrackPointLogTest {
+
+    private static final long TRACK_ID = 7L;
+
+    /**
+     * A location keeping its coordinates and time in the local unit tests,
+     * where the methods of the Android {@link Location} only return default
+     * values.
+     */
+    private static class StoredLocation extends TrackLocation {
+
+        private final double latitude;
+        private final double longitude;
+        private final long time;
+
+        StoredLocation(double latitude, double longitude, long time) {
+            super("test");
+            this.latitude = latitude;
+            this.longitude = longitude;
+            this.time = time;
+        }
+
+        @Override
+        public double getLatitude() {
+            return latitude;
+        }
+
+        @Override
+        public double getLongitude() {
+            return longitude;
+        }
+
+        @Override
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * The track points part of the tracks provider utils, the points being
+     * kept in memory. A bulk insert can fail before or after its commit.
+     */
+    private static class TrackPointStore implements InvocationHandler {
+
+        private final TrackPoints trackPoints = new TrackPoints();
+        private boolean failBeforeCommit = false;
+        private boolean failAfterCommit = false;
+        private int insertCount = 0;
+
+        TracksProviderUtils getTracksProviderUtils() {
+            return (TracksProviderUtils) Proxy.newProxyInstance(
+                    TracksProviderUtils.class.getClassLoader(),
+                    new Class<?>[]{TracksProviderUtils.class}, this);
+        }
+
+        @Override
+        public Object invoke(Object proxy, Method method, Object[] args) {
+            String name = method.getName();
+            if (name.equals("bulkInsertTrackPoints")) {
+                return bulkInsertTrackPoints((TrackPoints) args[0]);
+            } else if (name.equals("getFirstTrackPointId")) {
+                return trackPoints.isEmpty() ? -1L : 1L;
+            } else if (name.equals("getLastTrackPointId")) {
+                return trackPoints.isEmpty() ? -1L : (long) trackPoints.size();
+            } else if (name.equals("getTrackPointLocationIterator")) {
+                return getLocationIterator((Long) args[1]);
+            }
+            throw new UnsupportedOperationException(name);
+        }
+
+        private int bulkInsertTrackPoints(TrackPoints batch) {
+            if (failBeforeCommit) {
+                throw new IllegalStateException("Rolled back");
+            }
+            insertCount++;
+            for (int i = 0; i < batch.size(); i++) {
+                batch.setId(i, trackPoints.size() + 1);
+                trackPoints.addAll(batch, i, 1);
+            }
+            if (failAfterCommit) {
+                throw new IllegalStateException("Killed after the commit");
+            }
+            return batch.size();
+        }
+
+        private TracksProviderUtils.LocationIterator getLocationIterator(final long trackPointId) {
+            return new TracksProviderUtils.LocationIterator() {
+                private boolean hasNext = trackPointId >= 1 && trackPointId <= trackPoints.size();
+
+                @Override
+                public long getLocationId() {
+                    return trackPointId;
+                }
+
+                @Override
+                public void close() {
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return hasNext;
+                }
+
+                @Override
+                public Location next() {
+                    hasNext = false;
+                    int index = (int) trackPointId - 1;
+                    return new StoredLocation(trackPoints.getLatitude(index),
+                            trackPoints.getLongitude(index), trackPoints.getTime(index));
+                }
+
+                @Override
+                public void remove() {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+    }
+
+    private final TrackPointStore store = new TrackPointStore();
+    private final TracksProviderUtils tracksProviderUtils = store.getTracksProviderUtils();
+    private final Track track = new Track();
+    private File file;
+    private TrackPointLog trackPointLog;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("track", ".log");
+        file.delete();
+        trackPointLog = TrackPointLog.open(file, TRACK_ID);
+        track.setStartId(-1L);
+        track.setStopId(-1L);
+    }
+
+    @After
+    public void tearDown() {
+        trackPointLog.delete();
+    }
+
+    @Test
+    public void testAppendAndMerge() throws IOException {
+        trackPointLog.append(new StoredLocation(45.0, 7.0, 1000L));
+        StoredLocation smoothed = new StoredLocation(45.001, 7.0, 2000L);
+        smoothed.setRawCoordinates(45.0012, 7.0002);
+        trackPointLog.append(smoothed);
+        // A segment separator
+        trackPointLog.append(new StoredLocation(100.0, 0.0, 2000L));
+        trackPointLog.append(new StoredLocation(45.002, 7.0, 3000L));
+        assertEquals(4, trackPointLog.size());
+
+        reopen();
+        assertEquals(4, trackPointLog.size());
+        trackPointLog.mergeInto(tracksProviderUtils, track);
+        assertEquals(4, store.trackPoints.size());
+        assertEquals(1L, track.getStartId());
+        assertEquals(4L, track.getStopId());
+        assertEquals(3, track.getNumberOfPoints());
+        assertFalse(store.trackPoints.hasRawCoordinates(0));
+        assertTrue(store.trackPoints.hasRawCoordinates(1));
+        assertEquals(45.0012, store.trackPoints.getRawLatitude(1), 0.0);
+        assertEquals(7.0002, store.trackPoints.getRawLongitude(1), 0.0);
+        assertEquals(3000L, store.trackPoints.getTime(3));
+
+        // The merged points are not merged again
+        reopen();
+        trackPointLog.mergeInto(tracksProviderUtils, track);
+        assertEquals(1, store.insertCount);
+        assertEquals(4, store.trackPoints.size());
+    }
+
+    @Test
+    public void testResumeCommittedMerge() throws IOException {
+        trackPointLog.append(new StoredLocation(45.0, 7.0, 1000L));
+        trackPointLog.append(new StoredLocation(45.001, 7.0, 2000L));
+
+        // The process dies after the commit, before the batch is counted
+        store.failAfterCommit = true;
+        try {
+            trackPointLog.mergeInto(tracksProviderUtils, track);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        store.failAfterCommit = false;
+
+        reopen();
+        Track restartedTrack = new Track();
+        restartedTrack.setStartId(-1L);
+        restartedTrack.setStopId(-1L);
+        trackPointLog.mergeInto(tracksProviderUtils, restartedTrack);
+        assertEquals(1, store.insertCount);
+        assertEquals(2, store.trackPoints.size());
+        assertEquals(1L, restartedTrack.getStartId());
+        assertEquals(2L, restartedTrack.getStopId());
+        assertEquals(2, restartedTrack.getNumberOfPoints());
+
+        // New points are merged after the resumed batch
+        trackPointLog.append(new StoredLocation(45.002, 7.0, 3000L));
+        trackPointLog.mergeInto(tracksProviderUtils, restartedTrack);
+        assertEquals(3, store.trackPoints.size());
+        assertEquals(3L, restartedTrack.getStopId());
+        assertEquals(3, restartedTrack.getNumberOfPoints());
+    }
+
+    @Test
+    public void testResumeRolledBackMerge() throws IOException {
+        trackPointLog.append(new StoredLocation(45.0, 7.0, 1000L));
+        trackPointLog.append(new StoredLocation(45.001, 7.0, 2000L));
+
+        // The batch is rolled back, it is inserted again by the next merge
+        store.failBeforeCommit = true;
+        try {
+            trackPointLog.mergeInto(tracksProviderUtils, track);
+            fail();
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        store.failBeforeCommit = false;
+
+        reopen();
+        trackPointLog.mergeInto(tracksProviderUtils, track);
+        assertEquals(2, store.trackPoints.size());
+        assertEquals(2, track.getNumberOfPoints());
+    }
+
+    @Test
+    public void testVersion1Log() throws IOException {
+        trackPointLog.delete();
+
+        // A version 1 log: records without the raw coordinates
+        ByteBuffer byteBuffer = ByteBuffer.allocate(32 + 2 * 40);
+        byteBuffer.putInt(0x42544c47).putInt(1).putLong(TRACK_ID).putInt(2).putInt(0).putInt(0)
+                .putInt(0);
+        for (int i = 0; i < 2; i++) {
+            byteBuffer.putDouble(45.0 + i * 0.001).putDouble(7.0).putLong(1000L * (i + 1))
+                    .putFloat(Float.NaN).putFloat(5.0f).putFloat(Float.NaN).putFloat(Float.NaN);
+        }
+        FileOutputStream fileOutputStream = new FileOutputStream(file);
+        try {
+            fileOutputStream.write(byteBuffer.array());
+        } finally {
+            fileOutputStream.close();
+        }
+
+        trackPointLog = TrackPointLog.open(file, TRACK_ID);
+        assertEquals(2, trackPointLog.size());
+
+        // Appended in the version of the log, the raw coordinates are dropped
+        StoredLocation smoothed = new StoredLocation(45.002, 7.0, 3000L);
+        smoothed.setRawCoordinates(45.0022, 7.0002);
+        trackPointLog.append(smoothed);
+
+        reopen();
+        assertEquals(3, trackPointLog.size());
+        trackPointLog.mergeInto(tracksProviderUtils, track);
+        assertEquals(3, store.trackPoints.size());
+        assertEquals(45.001, store.trackPoints.getLatitude(1), 0.0);
+        assertEquals(2000L, store.trackPoints.getTime(1));
+        assertEquals(5.0f, store.trackPoints.getAccuracy(1), 0.0f);
+        assertEquals(45.002, store.trackPoints.getLatitude(2), 0.0);
+        assertFalse(store.trackPoints.hasRawCoordinates(2));
+    }
+
+    @Test
+    public void testInvalidLog() throws IOException {
+        trackPointLog.close();
+        try {
+            TrackPointLog.open(file, TRACK_ID + 1);
+            fail();
+        } catch (IOException e) {
+            // Expected
+        }
+        trackPointLog = TrackPointLog.open(file, TRACK_ID);
+    }
+
+    private void reopen() throws IOException {
+        trackPointLog.close();
+        trackPointLog = TrackPointLog.open(file, TRACK_ID);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.io.backup;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link ChunkOutputStream} and {@link ChunkInputStream}.
+ */
+public class ChunkStreamTest {
+
+  // The size of the header of a chunk: length, compressed length and CRC
+  private static final int CHUNK_HEADER_SIZE = 12;
+
+  private final ExecutorService executorService = Executors.newFixedThreadPool(3);
+
+  @After
+  public void tearDown() {
+    executorService.shutdownNow();
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+    byte[] data = createData(3 * ChunkOutputStream.CHUNK_SIZE + 1000);
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ChunkOutputStream chunkOutputStream = new ChunkOutputStream(outputStream);
+    chunkOutputStream.write(data[0]);
+    chunkOutputStream.write(data, 1, 99);
+    chunkOutputStream.flush();
+    chunkOutputStream.write(data, 100, data.length - 100);
+    chunkOutputStream.close();
+
+    assertEquals(4, countChunks(outputStream.toByteArray()));
+    for (int readAhead = 1; readAhead <= 4; readAhead++) {
+      ChunkInputStream chunkInputStream = new ChunkInputStream(
+          new ByteArrayInputStream(outputStream.toByteArray()), executorService, readAhead);
+      byte[] read = new byte[data.length];
+      assertEquals(data.length, readFully(chunkInputStream, read));
+      assertEquals(-1, chunkInputStream.read());
+      chunkInputStream.close();
+      assertArrayEquals(data, read);
+    }
+  }
+
+  @Test
+  public void testEmpty() throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    new ChunkOutputStream(outputStream).close();
+
+    ChunkInputStream chunkInputStream = new ChunkInputStream(
+        new ByteArrayInputStream(outputStream.toByteArray()), executorService, 2);
+    assertEquals(-1, chunkInputStream.read());
+    chunkInputStream.close();
+  }
+
+  @Test
+  public void testInvalidChecksum() throws IOException {
+    byte[] chunks = writeChunks(createData(3 * ChunkOutputStream.CHUNK_SIZE));
+
+    // Flip a bit of the CRC of the second chunk
+    int offset = CHUNK_HEADER_SIZE + ByteBuffer.wrap(chunks).getInt(4) + 8;
+    chunks[offset] ^= 0x01;
+
+    assertCorrupted(chunks, "Invalid checksum of chunk 1");
+  }
+
+  @Test
+  public void testCorruptedData() throws IOException {
+    byte[] chunks = writeChunks(createData(3 * ChunkOutputStream.CHUNK_SIZE));
+
+    // Overwrite the compressed data of the second chunk
+    int offset = CHUNK_HEADER_SIZE + ByteBuffer.wrap(chunks).getInt(4);
+    int compressedLength = ByteBuffer.wrap(chunks).getInt(offset + 4);
+    for (int i = 0; i < compressedLength; i++) {
+      chunks[offset + CHUNK_HEADER_SIZE + i] = (byte) 0xFF;
+    }
+
+    assertCorrupted(chunks, "chunk 1");
+  }
+
+  /**
+   * Checks that the chunks before a corrupted chunk are read, then that the
+   * corrupted chunk is detected, whatever the number of chunks verified ahead.
+   */
+  private void assertCorrupted(byte[] chunks, String message) throws IOException {
+    for (int readAhead = 1; readAhead <= 4; readAhead++) {
+      ChunkInputStream chunkInputStream = new ChunkInputStream(
+          new ByteArrayInputStream(chunks), executorService, readAhead);
+      byte[] read = new byte[ChunkOutputStream.CHUNK_SIZE];
+      assertEquals(ChunkOutputStream.CHUNK_SIZE, readFully(chunkInputStream, read));
+      try {
+        chunkInputStream.read();
+        fail();
+      } catch (IOException e) {
+        assertTrue(e.getMessage(), e.getMessage().endsWith(message));
+      }
+      chunkInputStream.close();
+    }
+  }
+
+  /**
+   * Creates compressible data, not too repetitive.
+   */
+  private static byte[] createData(int length) {
+    Random random = new Random(42L);
+    byte[] data = new byte[length];
+    for (int i = 0; i < length; i++) {
+      data[i] = (byte) (i % 251 + random.nextInt(4));
+    }
+    return data;
+  }
+
+  private static byte[] writeChunks(byte[] data) throws IOException {
+    ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+    ChunkOutputStream chunkOutputStream = new ChunkOutputStream(outputStream);
+    chunkOutputStream.write(data, 0, data.length);
+    chunkOutputStream.close();
+    return outputStream.toByteArray();
+  }
+
+  /**
+   * Counts the chunks with data.
+   */
+  private static int countChunks(byte[] chunks) {
+    ByteBuffer byteBuffer = ByteBuffer.wrap(chunks);
+    int count = 0;
+    while (byteBuffer.getInt(byteBuffer.position()) != 0) {
+      int compressedLength = byteBuffer.getInt(byteBuffer.position() + 4);
+      byteBuffer.position(byteBuffer.position() + CHUNK_HEADER_SIZE + compressedLength);
+      count++;
+    }
+    return count;
+  }
+
+  private static int readFully(ChunkInputStream chunkInputStream, byte[] b) throws IOException {
+    int total = 0;
+    while (total < b.length) {
+      int count = chunkInputStream.read(b, total, b.length - total);
+      if (count < 0) {
+        break;
+      }
+      total += count;
+    }
+    return total;
+  }
+}
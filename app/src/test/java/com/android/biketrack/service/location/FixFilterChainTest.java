@@ -0,0 +1,103 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link FixFilterChain}.
+ */
+public class FixFilterChainTest {
+
+    /**
+     * A stage returning the results it is given, in turn.
+     */
+    private static class ScriptedFilter implements FixFilter {
+
+        private final String name;
+        private final Result[] results;
+        private int calls = 0;
+
+        ScriptedFilter(String name, Result... results) {
+            this.name = name;
+            this.results = results;
+        }
+
+        @Override
+        public String getName() {
+            return name;
+        }
+
+        @Override
+        public Result filter(FixContext context) {
+            return results[calls++ % results.length];
+        }
+    }
+
+    private final FixContext context = new FixContext();
+
+    @Test
+    public void testStopsAtRejectOrRecord() {
+        ScriptedFilter gate = new ScriptedFilter("gate", FixFilter.Result.PASS,
+                FixFilter.Result.REJECT, FixFilter.Result.PASS);
+        ScriptedFilter recorder = new ScriptedFilter("recorder", FixFilter.Result.RECORD,
+                FixFilter.Result.PASS);
+        ScriptedFilter last = new ScriptedFilter("last", FixFilter.Result.PASS);
+        FixFilterChain chain = new FixFilterChain(Arrays.<FixFilter>asList(gate, recorder, last));
+
+        assertEquals(FixFilter.Result.RECORD, filter(chain));
+        assertEquals(FixFilter.Result.REJECT, filter(chain));
+        assertEquals(FixFilter.Result.PASS, filter(chain));
+
+        assertEquals(3, gate.calls);
+        assertEquals(2, recorder.calls);
+        assertEquals(1, last.calls);
+
+        assertEquals(3, chain.size());
+        assertSame(recorder, chain.get(1));
+        assertEquals(2L, chain.getPassedCount(0));
+        assertEquals(1L, chain.getRejectedCount(0));
+        assertEquals(0L, chain.getRecordedCount(0));
+        assertEquals(1L, chain.getPassedCount(1));
+        assertEquals(1L, chain.getRecordedCount(1));
+        assertEquals(1L, chain.getPassedCount(2));
+    }
+
+    @Test
+    public void testMetrics() {
+        FixFilterChain chain = new FixFilterChain(Arrays.<FixFilter>asList(
+                new ScriptedFilter("gate", FixFilter.Result.REJECT),
+                new ScriptedFilter("unused", FixFilter.Result.PASS)));
+        filter(chain);
+
+        List<String> metrics = chain.getMetrics();
+        assertEquals(2, metrics.size());
+        assertTrue(metrics.get(0), metrics.get(0).startsWith("gate: 0 passed, 1 rejected, 0 recorded"));
+        assertEquals("unused: 0 passed, 0 rejected, 0 recorded, 0 ns/fix", metrics.get(1));
+    }
+
+    private FixFilter.Result filter(FixFilterChain chain) {
+        context.reset(new TestLocation(45.0, 7.0, 1000L, 5.0f), null, null, false, false);
+        return chain.filter(context);
+    }
+}
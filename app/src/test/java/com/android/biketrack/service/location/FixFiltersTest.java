@@ -0,0 +1,239 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of the stages of {@link FixFilters}.
+ */
+public class FixFiltersTest {
+
+    // About 11 meters of latitude
+    private static final double TEN_METERS = 1E-4;
+
+    private final FixContext context = new FixContext();
+
+    @Test
+    public void testDefaultChain() {
+        FixFilterChain chain = FixFilters.createDefaultChain(50, 20, 200);
+
+        assertEquals(8, chain.size());
+        assertEquals("valid", chain.get(0).getName());
+        assertEquals("idle", chain.get(chain.size() - 1).getName());
+    }
+
+    @Test
+    public void testValidLocationFilter() {
+        FixFilter filter = new FixFilters.ValidLocationFilter();
+
+        context.reset(new TestLocation(91.0, 7.0, 1000L, 5.0f), null, null, false, false);
+        assertEquals(FixFilter.Result.REJECT, filter.filter(context));
+        context.reset(new TestLocation(45.0, 181.0, 1000L, 5.0f), null, null, false, false);
+        assertEquals(FixFilter.Result.REJECT, filter.filter(context));
+        context.reset(new TestLocation(45.0, 7.0, 1000L, 5.0f), null, null, false, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+    }
+
+    @Test
+    public void testAccuracyFilter() {
+        FixFilter filter = new FixFilters.AccuracyFilter(50);
+
+        context.reset(new TestLocation(45.0, 7.0, 1000L, Float.NaN), null, null, false, false);
+        assertEquals(FixFilter.Result.REJECT, filter.filter(context));
+        context.reset(new TestLocation(45.0, 7.0, 1000L, 50.0f), null, null, false, false);
+        assertEquals(FixFilter.Result.REJECT, filter.filter(context));
+        context.reset(new TestLocation(45.0, 7.0, 1000L, 10.0f), null, null, false, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+    }
+
+    @Test
+    public void testDuplicateTimeFilter() {
+        FixFilter filter = new FixFilters.DuplicateTimeFilter();
+        TestLocation lastLocation = new TestLocation(45.0, 7.0, 1000L, 5.0f);
+
+        context.reset(new TestLocation(45.0, 7.0, 1000L, 5.0f), lastLocation, null, true, false);
+        assertEquals(FixFilter.Result.REJECT, filter.filter(context));
+        context.reset(new TestLocation(45.0, 7.0, 2000L, 5.0f), lastLocation, null, true, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+        context.reset(new TestLocation(45.0, 7.0, 500L, 5.0f), null, null, false, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+    }
+
+    @Test
+    public void testSpeedOutlierFilter() {
+        FixFilter filter = new FixFilters.SpeedOutlierFilter(FixFilters.MAX_SPEED);
+        TestLocation lastLocation = new TestLocation(45.0, 7.0, 0L, 5.0f);
+
+        // A kilometer in a second, accepted after a few rejects in a row
+        for (int i = 0; i < 3; i++) {
+            context.reset(new TestLocation(45.0 + 100 * TEN_METERS, 7.0, 1000L, 5.0f),
+                    lastLocation, null, true, false);
+            assertEquals(FixFilter.Result.REJECT, filter.filter(context));
+        }
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+
+        context.reset(new TestLocation(45.0 + TEN_METERS, 7.0, 1000L, 5.0f), lastLocation, null,
+                true, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+    }
+
+    @Test
+    public void testKalmanSmootherKeepsFirstFix() {
+        FixFilter filter = new FixFilters.KalmanSmoother(FixFilters.ACCELERATION_NOISE);
+        TestLocation location = new TestLocation(45.0, 7.0, 1000L, 10.0f);
+
+        context.reset(location, null, null, false, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+        assertEquals(45.0, location.getLatitude(), 0.0);
+        assertEquals(7.0, location.getLongitude(), 0.0);
+        assertFalse(location.hasRawCoordinates());
+    }
+
+    @Test
+    public void testKalmanSmootherSmoothsNoise() {
+        FixFilter filter = new FixFilters.KalmanSmoother(FixFilters.ACCELERATION_NOISE);
+        double metersPerDegreeLongitude = 111195.0 * Math.cos(Math.toRadians(45.0));
+        TestLocation lastLocation = null;
+        double rawError = 0.0;
+        double smoothedError = 0.0;
+
+        // Going north at 5 m/s, with 8 m of noise east and west in turn
+        for (int i = 0; i < 30; i++) {
+            double latitude = 45.0 + i * 5.0 / 111195.0;
+            double noise = (i % 2 == 0 ? 8.0 : -8.0) / metersPerDegreeLongitude;
+            TestLocation location = new TestLocation(latitude, 7.0 + noise, 1000L * i, 10.0f);
+            context.reset(location, lastLocation, null, lastLocation != null, false);
+            assertEquals(FixFilter.Result.PASS, filter.filter(context));
+            if (i >= 10) {
+                assertTrue(location.hasRawCoordinates());
+                assertEquals(latitude, location.getRawLatitude(), 0.0);
+                assertEquals(7.0 + noise, location.getRawLongitude(), 0.0);
+                rawError += Math.abs(location.getRawLongitude() - 7.0) * metersPerDegreeLongitude;
+                smoothedError += Math.abs(location.getLongitude() - 7.0) * metersPerDegreeLongitude;
+
+                // The smoothed fix follows the motion
+                assertEquals(latitude, location.getLatitude(), 5.0 / 111195.0);
+            }
+            lastLocation = location;
+        }
+        assertTrue("Smoothed error " + smoothedError + ", raw error " + rawError,
+                smoothedError < rawError / 2);
+    }
+
+    @Test
+    public void testKalmanSmootherRestartsAfterGap() {
+        FixFilter filter = new FixFilters.KalmanSmoother(FixFilters.ACCELERATION_NOISE);
+        TestLocation lastLocation = new TestLocation(45.0, 7.0, 1000L, 10.0f);
+        context.reset(lastLocation, null, null, false, false);
+        filter.filter(context);
+
+        // Two minutes later, far away
+        TestLocation location = new TestLocation(45.01, 7.01, 121000L, 10.0f);
+        context.reset(location, lastLocation, null, true, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+        assertEquals(45.01, location.getLatitude(), 0.0);
+        assertEquals(7.01, location.getLongitude(), 0.0);
+        assertFalse(location.hasRawCoordinates());
+    }
+
+    @Test
+    public void testKalmanSmootherAcrossAntimeridian() {
+        FixFilter filter = new FixFilters.KalmanSmoother(FixFilters.ACCELERATION_NOISE);
+        double metersPerDegreeLongitude = 111195.0 * Math.cos(Math.toRadians(-17.0));
+        TestLocation lastLocation = null;
+
+        // Going east at 5 m/s, crossing the antimeridian after 50 m
+        for (int i = 0; i < 20; i++) {
+            double longitude = 180.0 + (i * 5.0 - 50.0) / metersPerDegreeLongitude;
+            if (longitude >= 180.0) {
+                longitude -= 360.0;
+            }
+            TestLocation location = new TestLocation(-17.0, longitude, 1000L * i, 5.0f);
+            context.reset(location, lastLocation, null, lastLocation != null, false);
+            assertEquals(FixFilter.Result.PASS, filter.filter(context));
+            assertTrue(location.getLongitude() >= -180.0 && location.getLongitude() < 180.0);
+            assertEquals(0.0, location.distanceTo(new TestLocation(-17.0, longitude, 0L, 5.0f)), 5.0);
+            lastLocation = location;
+        }
+        assertTrue(lastLocation.getLongitude() < 0.0);
+    }
+
+    @Test
+    public void testSegmenter() {
+        FixFilter filter = new FixFilters.Segmenter(200);
+        TestLocation lastValidTrackPoint = new TestLocation(45.0, 7.0, 0L, 5.0f);
+
+        // The first fix of a segment
+        context.reset(new TestLocation(45.0, 7.0, 1000L, 5.0f), null, lastValidTrackPoint, false,
+                false);
+        assertEquals(FixFilter.Result.RECORD, filter.filter(context));
+        assertFalse(context.splitSegment());
+
+        context.reset(new TestLocation(45.0 + TEN_METERS, 7.0, 1000L, 5.0f), null,
+                lastValidTrackPoint, true, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+
+        context.reset(new TestLocation(45.0 + 30 * TEN_METERS, 7.0, 1000L, 5.0f), null,
+                lastValidTrackPoint, true, true);
+        assertEquals(FixFilter.Result.RECORD, filter.filter(context));
+        assertTrue(context.splitSegment());
+        assertTrue(context.insertLastLocation());
+        assertFalse(context.isIdle());
+    }
+
+    @Test
+    public void testDistanceDecimator() {
+        FixFilter filter = new FixFilters.DistanceDecimator(20);
+        TestLocation lastValidTrackPoint = new TestLocation(45.0, 7.0, 0L, 5.0f);
+
+        context.reset(new TestLocation(45.0 + TEN_METERS, 7.0, 1000L, 5.0f), null,
+                lastValidTrackPoint, true, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+
+        context.reset(new TestLocation(45.0 + 3 * TEN_METERS, 7.0, 1000L, 5.0f), null,
+                lastValidTrackPoint, true, true);
+        assertEquals(FixFilter.Result.RECORD, filter.filter(context));
+        assertTrue(context.insertLastLocation());
+        assertFalse(context.splitSegment());
+        assertFalse(context.isIdle());
+    }
+
+    @Test
+    public void testIdleDetector() {
+        FixFilter filter = new FixFilters.IdleDetector(TrackRecordingService.MAX_NO_MOVEMENT_SPEED);
+        TestLocation location = new TestLocation(45.0, 7.0, 1000L, 5.0f);
+
+        context.reset(location, null, null, true, false);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+
+        location.setSpeed(0.1f);
+        assertEquals(FixFilter.Result.RECORD, filter.filter(context));
+        assertTrue(context.isIdle());
+        assertTrue(context.insertLastLocation());
+
+        context.reset(location, null, null, true, true);
+        assertEquals(FixFilter.Result.PASS, filter.filter(context));
+
+        location.setSpeed(5.0f);
+        assertEquals(FixFilter.Result.RECORD, filter.filter(context));
+        assertFalse(context.isIdle());
+    }
+}
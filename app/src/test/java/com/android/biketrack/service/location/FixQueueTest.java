@@ -0,0 +1,173 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import android.location.Location;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link FixQueue}.
+ */
+public class FixQueueTest {
+
+    private static final double DELTA = 1E-9;
+
+    private final FixQueue fixQueue = new FixQueue(4);
+    private int signals = 0;
+
+    private final FixQueue.Consumer consumer = new FixQueue.Consumer() {
+        @Override
+        public void onFixesAvailable() {
+            signals++;
+        }
+    };
+
+    @Test
+    public void testOfferAndPoll() {
+        fixQueue.setConsumer(consumer);
+        TestLocation location = new TestLocation(45.0, 7.0, 1000L, 5.0f);
+        location.setSpeed(3.5f);
+        location.setElapsedRealtimeNanos(42L);
+
+        assertTrue(fixQueue.offer(location));
+        assertTrue(fixQueue.offer(new TestLocation(45.1, 7.1, 2000L, Float.NaN)));
+        assertEquals(1, signals);
+        assertEquals(2, fixQueue.getDepth());
+
+        TestLocation polled = new TestLocation();
+        assertTrue(fixQueue.poll(polled));
+        assertEquals(45.0, polled.getLatitude(), DELTA);
+        assertEquals(7.0, polled.getLongitude(), DELTA);
+        assertEquals(1000L, polled.getTime());
+        assertEquals(42L, polled.getElapsedRealtimeNanos());
+        assertEquals(5.0f, polled.getAccuracy(), 0.0f);
+        assertEquals(3.5f, polled.getSpeed(), 0.0f);
+        assertFalse(polled.hasAltitude());
+        assertFalse(polled.hasBearing());
+
+        // The location is not reset by the queue
+        polled.reset();
+        assertTrue(fixQueue.poll(polled));
+        assertEquals(45.1, polled.getLatitude(), DELTA);
+        assertFalse(polled.hasAccuracy());
+        assertFalse(fixQueue.poll(polled));
+        assertFalse(fixQueue.endDrain());
+
+        // A new fix signals again after the drain
+        assertTrue(fixQueue.offer(location));
+        assertEquals(2, signals);
+    }
+
+    @Test
+    public void testWraparound() {
+        fixQueue.setConsumer(consumer);
+        TestLocation polled = new TestLocation();
+        long time = 0L;
+        long expectedTime = 0L;
+        for (int i = 0; i < 10; i++) {
+            for (int j = 0; j < 3; j++) {
+                assertTrue(fixQueue.offer(new TestLocation(45.0, 7.0, ++time, 5.0f)));
+            }
+            while (fixQueue.poll(polled)) {
+                assertEquals(++expectedTime, polled.getTime());
+            }
+            assertFalse(fixQueue.endDrain());
+        }
+        assertEquals(30L, expectedTime);
+        assertEquals(0, fixQueue.getDepth());
+        assertEquals(3, fixQueue.getMaxDepth());
+        assertEquals(0L, fixQueue.getDroppedCount());
+    }
+
+    @Test
+    public void testOverflowDropsNewFixes() {
+        fixQueue.setConsumer(consumer);
+        for (int i = 1; i <= 6; i++) {
+            assertEquals(i <= 4, fixQueue.offer(new TestLocation(45.0, 7.0, i, 5.0f)));
+        }
+        assertEquals(2L, fixQueue.getDroppedCount());
+        assertEquals(4, fixQueue.getMaxDepth());
+
+        // The queued fixes are the oldest ones
+        TestLocation polled = new TestLocation();
+        for (int i = 1; i <= 4; i++) {
+            assertTrue(fixQueue.poll(polled));
+            assertEquals(i, polled.getTime());
+        }
+        assertFalse(fixQueue.poll(polled));
+    }
+
+    @Test
+    public void testOfferAll() {
+        fixQueue.setConsumer(consumer);
+        assertTrue(fixQueue.offer(new TestLocation(45.0, 7.0, 1L, 5.0f)));
+        assertTrue(fixQueue.poll(new TestLocation()));
+        assertTrue(fixQueue.offer(new TestLocation(45.0, 7.0, 2L, 5.0f)));
+
+        List<Location> locations = new ArrayList<Location>();
+        for (int i = 3; i <= 7; i++) {
+            locations.add(new TestLocation(45.0, 7.0, i, 5.0f));
+        }
+        assertEquals(3, fixQueue.offerAll(locations));
+        assertEquals(2L, fixQueue.getDroppedCount());
+        assertEquals(1, signals);
+
+        TestLocation polled = new TestLocation();
+        for (int i = 2; i <= 5; i++) {
+            assertTrue(fixQueue.poll(polled));
+            assertEquals(i, polled.getTime());
+        }
+        assertFalse(fixQueue.poll(polled));
+    }
+
+    @Test
+    public void testEndDrainWithFixesLeft() {
+        fixQueue.setConsumer(consumer);
+        assertTrue(fixQueue.offer(new TestLocation(45.0, 7.0, 1L, 5.0f)));
+        assertTrue(fixQueue.poll(new TestLocation()));
+
+        // Offered after the last poll, but before the end of the drain
+        assertTrue(fixQueue.offer(new TestLocation(45.0, 7.0, 2L, 5.0f)));
+        assertEquals(1, signals);
+        assertTrue(fixQueue.endDrain());
+
+        // Still signalled, the consumer drains again
+        assertTrue(fixQueue.offer(new TestLocation(45.0, 7.0, 3L, 5.0f)));
+        assertEquals(1, signals);
+        assertEquals(2, fixQueue.getDepth());
+    }
+
+    @Test
+    public void testWithoutConsumer() {
+        assertFalse(fixQueue.offer(new TestLocation(45.0, 7.0, 1L, 5.0f)));
+        assertEquals(0, fixQueue.getDepth());
+
+        // The fixes queued for a detached consumer are dropped
+        fixQueue.setConsumer(consumer);
+        assertTrue(fixQueue.offer(new TestLocation(45.0, 7.0, 2L, 5.0f)));
+        fixQueue.setConsumer(null);
+        assertEquals(0, fixQueue.getDepth());
+        assertFalse(fixQueue.offer(new TestLocation(45.0, 7.0, 3L, 5.0f)));
+    }
+}
@@ -0,0 +1,201 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import com.android.biketrack.content.TrackLocation;
+import com.android.biketrack.stats.TripStatistics;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests of {@link RecordingStateJournal}.
+ */
+public class RecordingStateJournalTest {
+
+    private File file;
+    private RecordingStateJournal journal;
+
+    @Before
+    public void setUp() throws IOException {
+        file = File.createTempFile("recording", ".journal");
+        journal = RecordingStateJournal.open(file);
+    }
+
+    @After
+    public void tearDown() {
+        journal.close();
+        file.delete();
+    }
+
+    @Test
+    public void testEmpty() {
+        assertFalse(journal.restore());
+        assertEquals(-1L, journal.getTrackId());
+    }
+
+    @Test
+    public void testRestore() throws IOException {
+        TestLocation location = new TestLocation(45.0, 7.0, 1000L, 5.0f);
+        location.setRawCoordinates(45.001, 7.001);
+        TripStatistics tripStatistics = new TripStatistics();
+        tripStatistics.setStartTime(1000L);
+        tripStatistics.setTotalDistance(1234.5);
+        tripStatistics.setMaxSpeed(12.5);
+        tripStatistics.setBoundsDegrees(7.0, 45.1, 7.1, 45.0);
+        journal.checkpoint(42L, true, true, false, location, tripStatistics);
+
+        reopen();
+        assertTrue(journal.restore());
+        assertEquals(42L, journal.getTrackId());
+        assertTrue(journal.isPaused());
+        assertTrue(journal.segmentHasLocation());
+        assertFalse(journal.isIdle());
+
+        // The coordinates of the original fix are kept
+        TrackLocation lastLocation = journal.getLastLocation();
+        assertTrue(lastLocation.hasRawCoordinates());
+        assertEquals(45.001, lastLocation.getRawLatitude(), 0.0);
+        assertEquals(7.001, lastLocation.getRawLongitude(), 0.0);
+
+        TripStatistics restored = journal.getTripStatistics();
+        assertEquals(1000L, restored.getStartTime());
+        assertEquals(1234.5, restored.getTotalDistance(), 0.0);
+        assertEquals(12.5, restored.getMaxSpeed(), 0.0);
+        assertTrue(restored.hasBounds());
+        assertEquals(45.1, restored.getTopDegrees(), 0.0);
+        assertEquals(7.0, restored.getLeftDegrees(), 0.0);
+    }
+
+    @Test
+    public void testRestoreWithoutLocation() throws IOException {
+        journal.checkpoint(42L, false, false, true, null, null);
+
+        reopen();
+        assertTrue(journal.restore());
+        assertTrue(journal.isIdle());
+        assertNull(journal.getLastLocation());
+        assertNull(journal.getTripStatistics());
+    }
+
+    @Test
+    public void testSequenceAlternatesSlots() throws IOException {
+        journal.checkpoint(1L, false, false, false, null, null);
+        journal.checkpoint(2L, false, false, false, null, null);
+        journal.checkpoint(3L, false, false, false, null, null);
+        journal.close();
+
+        // The last checkpoint is in the second slot, the one before in the first
+        assertEquals(3L, readSequence(1));
+        assertEquals(2L, readSequence(0));
+
+        journal = RecordingStateJournal.open(file);
+        assertTrue(journal.restore());
+        assertEquals(3L, journal.getTrackId());
+
+        // The next checkpoint follows the restored one
+        journal.checkpoint(4L, false, false, false, null, null);
+        journal.close();
+        assertEquals(4L, readSequence(0));
+        assertEquals(3L, readSequence(1));
+        journal = RecordingStateJournal.open(file);
+    }
+
+    @Test
+    public void testTornCheckpoint() throws IOException {
+        journal.checkpoint(1L, false, false, false, null, null);
+        journal.checkpoint(2L, false, false, false, null, null);
+        journal.close();
+
+        // The process died in the middle of the copy of the second checkpoint,
+        // in the first slot
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.seek(RecordingStateJournal.HEADER_SIZE
+                    + RecordingStateJournal.SLOT_SIZE / 2);
+            randomAccessFile.write(new byte[RecordingStateJournal.SLOT_SIZE / 2]);
+        } finally {
+            randomAccessFile.close();
+        }
+
+        journal = RecordingStateJournal.open(file);
+        assertTrue(journal.restore());
+        assertEquals(1L, journal.getTrackId());
+    }
+
+    @Test
+    public void testCorruptedCheckpoints() throws IOException {
+        journal.checkpoint(1L, false, false, false, null, null);
+        journal.checkpoint(2L, false, false, false, null, null);
+        journal.close();
+
+        // A bit flipped in the track id of each slot
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            for (int i = 0; i < 2; i++) {
+                long position = RecordingStateJournal.HEADER_SIZE
+                        + i * RecordingStateJournal.SLOT_SIZE + 16;
+                randomAccessFile.seek(position);
+                int value = randomAccessFile.read();
+                randomAccessFile.seek(position);
+                randomAccessFile.write(value ^ 0x10);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+
+        journal = RecordingStateJournal.open(file);
+        assertFalse(journal.restore());
+    }
+
+    @Test
+    public void testClear() throws IOException {
+        journal.checkpoint(1L, false, false, false, null, null);
+        journal.clear();
+
+        reopen();
+        assertFalse(journal.restore());
+    }
+
+    private void reopen() throws IOException {
+        journal.close();
+        journal = RecordingStateJournal.open(file);
+    }
+
+    /**
+     * Reads the sequence number of a slot of the closed journal.
+     */
+    private long readSequence(int slot) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+        try {
+            randomAccessFile.seek(RecordingStateJournal.HEADER_SIZE
+                    + slot * RecordingStateJournal.SLOT_SIZE);
+            return randomAccessFile.readLong();
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+}
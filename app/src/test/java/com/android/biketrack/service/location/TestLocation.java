@@ -0,0 +1,177 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.service.location;
+
+import android.location.Location;
+
+import com.android.biketrack.content.TrackLocation;
+
+/**
+ * A {@link TrackLocation} keeping its fields in the local unit tests, where
+ * the methods of the Android {@link Location} only return default values.
+ */
+class TestLocation extends TrackLocation {
+
+    private static final double EARTH_RADIUS = 6371000.0;
+
+    private double latitude;
+    private double longitude;
+    private long time;
+    private long elapsedRealtimeNanos;
+    private double altitude = Double.NaN;
+    private float accuracy = Float.NaN;
+    private float speed = Float.NaN;
+    private float bearing = Float.NaN;
+
+    TestLocation() {
+        super("test");
+    }
+
+    TestLocation(double latitude, double longitude, long time, float accuracy) {
+        this();
+        this.latitude = latitude;
+        this.longitude = longitude;
+        this.time = time;
+        this.accuracy = accuracy;
+    }
+
+    @Override
+    public void reset() {
+        super.reset();
+        latitude = 0.0;
+        longitude = 0.0;
+        time = 0L;
+        elapsedRealtimeNanos = 0L;
+        altitude = Double.NaN;
+        accuracy = Float.NaN;
+        speed = Float.NaN;
+        bearing = Float.NaN;
+    }
+
+    @Override
+    public double getLatitude() {
+        return latitude;
+    }
+
+    @Override
+    public void setLatitude(double latitude) {
+        this.latitude = latitude;
+    }
+
+    @Override
+    public double getLongitude() {
+        return longitude;
+    }
+
+    @Override
+    public void setLongitude(double longitude) {
+        this.longitude = longitude;
+    }
+
+    @Override
+    public long getTime() {
+        return time;
+    }
+
+    @Override
+    public void setTime(long time) {
+        this.time = time;
+    }
+
+    @Override
+    public long getElapsedRealtimeNanos() {
+        return elapsedRealtimeNanos;
+    }
+
+    @Override
+    public void setElapsedRealtimeNanos(long elapsedRealtimeNanos) {
+        this.elapsedRealtimeNanos = elapsedRealtimeNanos;
+    }
+
+    @Override
+    public boolean hasAltitude() {
+        return !Double.isNaN(altitude);
+    }
+
+    @Override
+    public double getAltitude() {
+        return hasAltitude() ? altitude : 0.0;
+    }
+
+    @Override
+    public void setAltitude(double altitude) {
+        this.altitude = altitude;
+    }
+
+    @Override
+    public boolean hasAccuracy() {
+        return !Float.isNaN(accuracy);
+    }
+
+    @Override
+    public float getAccuracy() {
+        return hasAccuracy() ? accuracy : 0.0f;
+    }
+
+    @Override
+    public void setAccuracy(float accuracy) {
+        this.accuracy = accuracy;
+    }
+
+    @Override
+    public boolean hasSpeed() {
+        return !Float.isNaN(speed);
+    }
+
+    @Override
+    public float getSpeed() {
+        return hasSpeed() ? speed : 0.0f;
+    }
+
+    @Override
+    public void setSpeed(float speed) {
+        this.speed = speed;
+    }
+
+    @Override
+    public boolean hasBearing() {
+        return !Float.isNaN(bearing);
+    }
+
+    @Override
+    public float getBearing() {
+        return hasBearing() ? bearing : 0.0f;
+    }
+
+    @Override
+    public void setBearing(float bearing) {
+        this.bearing = bearing;
+    }
+
+    /**
+     * Gets the haversine distance, close enough to the ellipsoid distance of
+     * Android at the scale of the tests.
+     */
+    @Override
+    public float distanceTo(Location location) {
+        double dLatitude = Math.toRadians(location.getLatitude() - latitude);
+        double dLongitude = Math.toRadians(location.getLongitude() - longitude);
+        double a = Math.sin(dLatitude / 2) * Math.sin(dLatitude / 2)
+                + Math.cos(Math.toRadians(latitude)) * Math.cos(Math.toRadians(location.getLatitude()))
+                * Math.sin(dLongitude / 2) * Math.sin(dLongitude / 2);
+        return (float) (2 * EARTH_RADIUS * Math.asin(Math.sqrt(a)));
+    }
+}
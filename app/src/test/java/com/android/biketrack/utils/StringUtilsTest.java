@@ -0,0 +1,61 @@
+/*
+ * This file is part of BikeTrack application.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.biketrack.utils;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests of {@link StringUtils}.
+ */
+public class StringUtilsTest {
+
+    @Test
+    public void testGetTime() {
+        assertEquals(1527848430000L, StringUtils.getTime("2018-06-01T10:20:30Z"));
+        assertEquals(1527848430000L, StringUtils.getTime("2018-06-01T10:20:30"));
+        assertEquals(1527848430000L, StringUtils.getTime(" 2018-06-01 10:20:30 "));
+        assertEquals(1527848430123L, StringUtils.getTime("2018-06-01T10:20:30.123Z"));
+        assertEquals(1527848430123L, StringUtils.getTime("2018-06-01T10:20:30.123456Z"));
+        assertEquals(1527841230500L, StringUtils.getTime("2018-06-01T10:20:30.5+02:00"));
+        assertEquals(1527868230000L, StringUtils.getTime("2018-06-01T10:20:30-05:30"));
+    }
+
+    @Test
+    public void testGetTimeCalendar() {
+        assertEquals(0L, StringUtils.getTime("1970-01-01T00:00:00Z"));
+        assertEquals(1456704000000L, StringUtils.getTime("2016-02-29T00:00:00Z"));
+        assertEquals(-1000L, StringUtils.getTime("1969-12-31T23:59:59Z"));
+        assertEquals(-2203848000000L, StringUtils.getTime("1900-03-01T12:00:00Z"));
+    }
+
+    @Test
+    public void testGetTimeInvalid() {
+        String[] invalid = new String[]{"", "2018-06-01", "2018/06/01T10:20:30Z",
+                "2018-13-01T10:20:30Z", "2018-06-01T10:20:3xZ", "2018-06-01T10:20:30.Z",
+                "2018-06-01T10:20:30+0200", "2018-06-01T10:20:30Zulu"};
+        for (String xmlDateTime : invalid) {
+            try {
+                StringUtils.getTime(xmlDateTime);
+                fail(xmlDateTime);
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+    }
+}